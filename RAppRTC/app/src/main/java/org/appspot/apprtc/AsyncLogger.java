@@ -0,0 +1,413 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Logger that formats and writes messages on a background thread.
+ *
+ * <p>Messages use "{}" placeholders for their arguments, e.g.
+ * d(TAG, "Receive: {}", message). The priority is checked before anything
+ * is built, and arguments are only converted to strings by the writer
+ * thread, so disabled messages cost a field read and enabled ones a slot in
+ * a ring buffer. Arguments must not be modified after they are logged.
+ *
+ * <p>The ring buffer is a bounded lock-free multi-producer queue of
+ * preallocated entries. Logging never blocks: when the buffer is full the
+ * message is dropped and counted, and the writer reports the number of
+ * dropped messages. Messages are delivered to a Sink, logcat by default,
+ * with their time and thread, in the order they were queued.
+ *
+ * <p>Priorities are those of android.util.Log, so v(), d(), w() and e()
+ * reach logcat at the level of the Log method of the same name.
+ *
+ * <p>The shared logger is also the sink of the messages org.webrtc.Logging
+ * writes to java.util.logging, which it does until native logging is enabled
+ * or when the native library is missing. Once Logging.enableLogToDebugOutput()
+ * is called, Logging writes its own and the native messages to logcat in
+ * native code, and has no hook to hand them to a Java sink.
+ */
+public class AsyncLogger {
+  private static final String TAG = "AsyncLogger";
+  private static final int DEFAULT_CAPACITY = 1024;
+  // Writer wake up period while idle, as a safety net for missed wake ups.
+  private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(100);
+  // Name of the java.util.logging logger that org.webrtc.Logging falls back to.
+  static final String WEBRTC_LOGGER_NAME = "org.webrtc.Logging";
+  // java.util.logging only keeps weak references to loggers, so the handler
+  // would be lost if the logger were collected before Logging is loaded.
+  private static final Logger webRtcLogger = Logger.getLogger(WEBRTC_LOGGER_NAME);
+  private static AsyncLogger instance;
+
+  /** Destination of formatted messages. Called on the writer thread. */
+  public interface Sink {
+    void write(int priority, String tag, long timeMs, String threadName, String message,
+        Throwable throwable);
+  }
+
+  /** Writes to logcat. */
+  public static class LogcatSink implements Sink {
+    @Override
+    public void write(int priority, String tag, long timeMs, String threadName, String message,
+        Throwable throwable) {
+      if (throwable != null) {
+        message = message + "\n" + Log.getStackTraceString(throwable);
+      }
+      Log.println(priority, tag, message);
+    }
+  }
+
+  // A queued message. |sequence| tells whether the entry is free for the
+  // producer of that position or ready for the writer.
+  private static class Entry {
+    volatile long sequence;
+    int priority;
+    String tag;
+    long timeMs;
+    String threadName;
+    String format;
+    int argCount;
+    Object arg0;
+    Object arg1;
+    Object arg2;
+    Throwable throwable;
+
+    void clear() {
+      tag = null;
+      threadName = null;
+      format = null;
+      arg0 = null;
+      arg1 = null;
+      arg2 = null;
+      throwable = null;
+    }
+  }
+
+  private final Sink sink;
+  private final Entry[] entries;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  // Next position to write. Only advanced by the writer thread.
+  private volatile long head;
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final Thread writerThread;
+  private final StringBuilder builder = new StringBuilder(256);
+  private volatile int minPriority;
+  private volatile boolean writerParked;
+  private volatile boolean closed;
+  private Handler webRtcLoggingHandler;
+
+  // Returns the shared logger, writing to logcat and attached to
+  // org.webrtc.Logging. It logs all priorities like android.util.Log; raise
+  // the minimum priority to skip verbose traces.
+  public static synchronized AsyncLogger getInstance() {
+    if (instance == null) {
+      instance = new AsyncLogger(new LogcatSink(), DEFAULT_CAPACITY, Log.VERBOSE);
+      instance.attachToWebRtcLogging();
+    }
+    return instance;
+  }
+
+  // |capacity| must be a power of two. Messages below |minPriority|, one of
+  // the android.util.Log priorities, are skipped.
+  public AsyncLogger(Sink sink, int capacity, int minPriority) {
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+      throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+    }
+    this.sink = sink;
+    this.entries = new Entry[capacity];
+    this.mask = capacity - 1;
+    for (int i = 0; i < capacity; i++) {
+      entries[i] = new Entry();
+      entries[i].sequence = i;
+    }
+    this.minPriority = minPriority;
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, TAG);
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  public void setMinPriority(int priority) {
+    minPriority = priority;
+  }
+
+  public boolean isLoggable(int priority) {
+    return priority >= minPriority;
+  }
+
+  // Receives the messages that org.webrtc.Logging writes to java.util.logging,
+  // instead of its default handlers.
+  public synchronized void attachToWebRtcLogging() {
+    if (webRtcLoggingHandler != null) {
+      return;
+    }
+    webRtcLoggingHandler = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        logWebRtcRecord(record);
+      }
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public void close() {}
+    };
+    // Let the minimum priority of this logger decide what is written.
+    webRtcLogger.setLevel(Level.ALL);
+    webRtcLogger.setUseParentHandlers(false);
+    webRtcLogger.addHandler(webRtcLoggingHandler);
+  }
+
+  // Restores the default handlers of org.webrtc.Logging.
+  public synchronized void detachFromWebRtcLogging() {
+    if (webRtcLoggingHandler == null) {
+      return;
+    }
+    webRtcLogger.removeHandler(webRtcLoggingHandler);
+    webRtcLogger.setUseParentHandlers(true);
+    webRtcLoggingHandler = null;
+  }
+
+  // Logging writes "tag: message" at the java.util.logging level of its
+  // severity: LS_ERROR, LS_WARNING and LS_INFO map to SEVERE, WARNING and INFO,
+  // and lower severities to FINE.
+  private void logWebRtcRecord(LogRecord record) {
+    int level = record.getLevel().intValue();
+    int priority;
+    if (level >= Level.SEVERE.intValue()) {
+      priority = Log.ERROR;
+    } else if (level >= Level.WARNING.intValue()) {
+      priority = Log.WARN;
+    } else if (level >= Level.INFO.intValue()) {
+      priority = Log.INFO;
+    } else {
+      priority = Log.VERBOSE;
+    }
+    if (priority < minPriority) {
+      return;
+    }
+    String message = record.getMessage();
+    String tag = WEBRTC_LOGGER_NAME;
+    int separator = message != null ? message.indexOf(": ") : -1;
+    if (separator > 0) {
+      tag = message.substring(0, separator);
+      message = message.substring(separator + 2);
+    }
+    log(priority, tag, message, 0, null, null, null, record.getThrown());
+  }
+
+  // Returns the number of messages dropped because the buffer was full.
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  public void v(String tag, String format) {
+    log(Log.VERBOSE, tag, format, 0, null, null, null, null);
+  }
+
+  public void v(String tag, String format, Object arg) {
+    log(Log.VERBOSE, tag, format, 1, arg, null, null, null);
+  }
+
+  public void v(String tag, String format, Object arg0, Object arg1) {
+    log(Log.VERBOSE, tag, format, 2, arg0, arg1, null, null);
+  }
+
+  public void d(String tag, String format) {
+    log(Log.DEBUG, tag, format, 0, null, null, null, null);
+  }
+
+  public void d(String tag, String format, Object arg) {
+    log(Log.DEBUG, tag, format, 1, arg, null, null, null);
+  }
+
+  public void d(String tag, String format, Object arg0, Object arg1) {
+    log(Log.DEBUG, tag, format, 2, arg0, arg1, null, null);
+  }
+
+  public void d(String tag, String format, Object arg0, Object arg1, Object arg2) {
+    log(Log.DEBUG, tag, format, 3, arg0, arg1, arg2, null);
+  }
+
+  public void w(String tag, String format) {
+    log(Log.WARN, tag, format, 0, null, null, null, null);
+  }
+
+  public void w(String tag, String format, Object arg) {
+    log(Log.WARN, tag, format, 1, arg, null, null, null);
+  }
+
+  public void e(String tag, String format) {
+    log(Log.ERROR, tag, format, 0, null, null, null, null);
+  }
+
+  public void e(String tag, String format, Object arg) {
+    log(Log.ERROR, tag, format, 1, arg, null, null, null);
+  }
+
+  public void e(String tag, String message, Throwable throwable) {
+    log(Log.ERROR, tag, message, 0, null, null, null, throwable);
+  }
+
+  // Queues a message with |argCount| arguments. Returns false if it was not
+  // logged because of its priority or a full buffer.
+  public boolean log(int priority, String tag, String format, int argCount, Object arg0,
+      Object arg1, Object arg2, Throwable throwable) {
+    if (priority < minPriority || closed) {
+      return false;
+    }
+    long position = tail.get();
+    Entry entry;
+    while (true) {
+      entry = entries[(int) position & mask];
+      long difference = entry.sequence - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          break;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        // The writer has not freed this entry yet.
+        droppedCount.incrementAndGet();
+        return false;
+      } else {
+        // Another producer took this position.
+        position = tail.get();
+      }
+    }
+    entry.priority = priority;
+    entry.tag = tag;
+    entry.timeMs = System.currentTimeMillis();
+    entry.threadName = Thread.currentThread().getName();
+    entry.format = format;
+    entry.argCount = argCount;
+    entry.arg0 = arg0;
+    entry.arg1 = arg1;
+    entry.arg2 = arg2;
+    entry.throwable = throwable;
+    entry.sequence = position + 1;
+    if (writerParked) {
+      LockSupport.unpark(writerThread);
+    }
+    return true;
+  }
+
+  // Waits up to |timeoutMs| for the messages queued so far to be written.
+  // Returns false on timeout.
+  public boolean flush(long timeoutMs) {
+    long target = tail.get();
+    long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    while (head < target) {
+      if (System.nanoTime() >= deadlineNs || !writerThread.isAlive()) {
+        return false;
+      }
+      LockSupport.unpark(writerThread);
+      Thread.yield();
+    }
+    return true;
+  }
+
+  // Writes the queued messages and stops the writer thread. Later messages
+  // are ignored.
+  public void close() {
+    detachFromWebRtcLogging();
+    closed = true;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeLoop() {
+    long reportedDropCount = 0;
+    while (true) {
+      long position = head;
+      Entry entry = entries[(int) position & mask];
+      if (entry.sequence != position + 1) {
+        if (closed) {
+          return;
+        }
+        writerParked = true;
+        if (entry.sequence != position + 1 && !closed) {
+          LockSupport.parkNanos(this, IDLE_PARK_NS);
+        }
+        writerParked = false;
+        continue;
+      }
+      write(entry);
+      entry.clear();
+      entry.sequence = position + entries.length;
+      head = position + 1;
+
+      long dropCount = droppedCount.get();
+      if (dropCount != reportedDropCount) {
+        writeSafely(Log.WARN, TAG, System.currentTimeMillis(),
+            writerThread.getName(), "Dropped " + (dropCount - reportedDropCount) + " messages",
+            null);
+        reportedDropCount = dropCount;
+      }
+    }
+  }
+
+  private void write(Entry entry) {
+    builder.setLength(0);
+    appendFormatted(builder, entry.format, entry.argCount, entry.arg0, entry.arg1, entry.arg2);
+    writeSafely(entry.priority, entry.tag, entry.timeMs, entry.threadName, builder.toString(),
+        entry.throwable);
+  }
+
+  private void writeSafely(int priority, String tag, long timeMs, String threadName,
+      String message, Throwable throwable) {
+    try {
+      sink.write(priority, tag, timeMs, threadName, message, throwable);
+    } catch (RuntimeException e) {
+      // Keep the writer alive; the sink has nowhere to report to.
+    }
+  }
+
+  // Appends |format| with its first |argCount| "{}" placeholders replaced by
+  // the arguments. Placeholders without an argument are kept.
+  static void appendFormatted(
+      StringBuilder builder, String format, int argCount, Object arg0, Object arg1, Object arg2) {
+    if (format == null) {
+      builder.append("null");
+      return;
+    }
+    int start = 0;
+    for (int arg = 0; arg < argCount; arg++) {
+      int placeholder = format.indexOf("{}", start);
+      if (placeholder < 0) {
+        break;
+      }
+      builder.append(format, start, placeholder);
+      builder.append(arg == 0 ? arg0 : (arg == 1 ? arg1 : arg2));
+      start = placeholder + 2;
+    }
+    builder.append(format, start, format.length());
+  }
+}
@@ -21,7 +21,9 @@ import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
@@ -29,6 +31,7 @@ import android.view.Window;
 import android.view.WindowManager;
 import android.view.WindowManager.LayoutParams;
 import android.widget.Toast;
+import java.io.File;
 import java.io.IOException;
 import java.lang.RuntimeException;
 import java.util.ArrayList;
@@ -39,19 +42,19 @@ import org.appspot.apprtc.PeerConnectionClient.DataChannelParameters;
 import org.appspot.apprtc.PeerConnectionClient.PeerConnectionParameters;
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.EglBase;
-import org.webrtc.FileVideoCapturer;
 import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RendererCommon;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.ScreenCapturerAndroid;
 import org.webrtc.SessionDescription;
 import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
-import org.webrtc.VideoFileRenderer;
 import org.webrtc.VideoRenderer;
 
 /**
@@ -87,9 +90,18 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   public static final String EXTRA_ENABLE_LEVEL_CONTROL = "org.appspot.apprtc.ENABLE_LEVEL_CONTROL";
   public static final String EXTRA_DISPLAY_HUD = "org.appspot.apprtc.DISPLAY_HUD";
   public static final String EXTRA_TRACING = "org.appspot.apprtc.TRACING";
+  public static final String EXTRA_RECORD_STATS = "org.appspot.apprtc.RECORD_STATS";
+  public static final String EXTRA_LATENCY_PROBE = "org.appspot.apprtc.LATENCY_PROBE";
+  public static final String EXTRA_QUALITY_ADAPTATION = "org.appspot.apprtc.QUALITY_ADAPTATION";
+  public static final String EXTRA_PERFORMANCE_GOVERNOR =
+      "org.appspot.apprtc.PERFORMANCE_GOVERNOR";
   public static final String EXTRA_CMDLINE = "org.appspot.apprtc.CMDLINE";
   public static final String EXTRA_RUNTIME = "org.appspot.apprtc.RUNTIME";
+  public static final String EXTRA_CONNECT_TIME_MS = "org.appspot.apprtc.CONNECT_TIME_MS";
   public static final String EXTRA_VIDEO_FILE_AS_CAMERA = "org.appspot.apprtc.VIDEO_FILE_AS_CAMERA";
+  // Playback speed of the video file, where 0 plays it as fast as possible.
+  public static final String EXTRA_VIDEO_FILE_AS_CAMERA_SPEED =
+      "org.appspot.apprtc.VIDEO_FILE_AS_CAMERA_SPEED";
   public static final String EXTRA_SAVE_REMOTE_VIDEO_TO_FILE =
       "org.appspot.apprtc.SAVE_REMOTE_VIDEO_TO_FILE";
   public static final String EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH =
@@ -113,8 +125,14 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   private static final String[] MANDATORY_PERMISSIONS = {"android.permission.MODIFY_AUDIO_SETTINGS",
       "android.permission.RECORD_AUDIO", "android.permission.INTERNET"};
 
-  // Peer connection statistics callback period in ms.
+  // Peer connection statistics callback period in ms while the HUD is shown.
   private static final int STAT_CALLBACK_PERIOD = 1000;
+  // Statistics callback period in ms for call stats when nothing is shown.
+  private static final int STAT_IDLE_CALLBACK_PERIOD = 5000;
+  private static final String STATS_RECORDING_FILE_NAME = "webrtc-stats.bin";
+  private static final long STATS_RECORDING_MAX_FILE_BYTES = 4 * 1024 * 1024;
+  private static final int STATS_RECORDING_MAX_FILES = 3;
+  private static final long MAX_FIRST_FRAME_DELAY_MS = 60 * 1000;
   // Local preview screen position before call is connected.
   private static final int LOCAL_X_CONNECTING = 0;
   private static final int LOCAL_Y_CONNECTING = 0;
@@ -137,7 +155,23 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   private EglBase rootEglBase;
   private SurfaceViewRenderer localRender;
   private SurfaceViewRenderer remoteRenderScreen;
-  private VideoFileRenderer videoFileRenderer;
+  private Y4mFileRenderer videoFileRenderer;
+  private volatile StatsRecorder statsRecorder;
+  private LatencyProbe latencyProbe;
+  private CallQualityAnalyzer callQualityAnalyzer;
+  // Capture format adaptation to the CPU load and the send video quality,
+  // both arbitrated by the CpuAdaptationController.
+  private boolean qualityAdaptation;
+  private CpuAdaptationController cpuAdaptationController;
+  // Caps the call to the thermal and battery state of the device, or null.
+  // Updated on the stats callback thread.
+  private PerformanceGovernor performanceGovernor;
+  // The budget applied on the UI thread.
+  private PerformanceGovernor.Budget performanceBudget;
+  private StatsScheduler.Subscription hudStatsSubscription;
+  // Polls the send video stats for the CpuAdaptationController.
+  private StatsScheduler.Subscription cpuStatsSubscription;
+  private boolean displayHud;
   private final List<VideoRenderer.Callbacks> remoteRenderers =
       new ArrayList<VideoRenderer.Callbacks>();
   private PercentFrameLayout localRenderLayout;
@@ -153,6 +187,8 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   private boolean isError;
   private boolean callControlFragmentVisible = true;
   private long callStartedTimeMs = 0;
+  // Time the user asked to connect, in SystemClock.elapsedRealtime() units.
+  private long connectTimeMs = 0;
   private boolean micEnabled = true;
   private boolean screencaptureEnabled = false;
   private static Intent mediaProjectionPermissionResultData;
@@ -204,6 +240,13 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
     final Intent intent = getIntent();
 
+    // The latency probe needs both ends of the call on this device.
+    if (intent.getBooleanExtra(EXTRA_LOOPBACK, false)
+        && intent.getBooleanExtra(EXTRA_LATENCY_PROBE, false)) {
+      latencyProbe = new LatencyProbe(MetricsRegistry.getInstance());
+      remoteRenderers.add(latencyProbe);
+    }
+
     // Create video renderers.
     rootEglBase = EglBase.create();
     localRender.init(rootEglBase.getEglBaseContext(), null);
@@ -214,7 +257,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       int videoOutWidth = intent.getIntExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_WIDTH, 0);
       int videoOutHeight = intent.getIntExtra(EXTRA_SAVE_REMOTE_VIDEO_TO_FILE_HEIGHT, 0);
       try {
-        videoFileRenderer = new VideoFileRenderer(
+        videoFileRenderer = new Y4mFileRenderer(
             saveRemoteVideoToFile, videoOutWidth, videoOutHeight, rootEglBase.getEglBaseContext());
         remoteRenderers.add(videoFileRenderer);
       } catch (IOException e) {
@@ -222,7 +265,22 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
             "Failed to open video file for output: " + saveRemoteVideoToFile, e);
       }
     }
-    remoteRenderScreen.init(rootEglBase.getEglBaseContext(), null);
+    connectTimeMs = intent.getLongExtra(EXTRA_CONNECT_TIME_MS, SystemClock.elapsedRealtime());
+    remoteRenderScreen.init(rootEglBase.getEglBaseContext(), new RendererCommon.RendererEvents() {
+      @Override
+      public void onFirstFrameRendered() {
+        long callStartDelayMs = System.currentTimeMillis() - callStartedTimeMs;
+        Log.i(TAG, "First remote frame rendered: delay="
+                + (SystemClock.elapsedRealtime() - connectTimeMs) + "ms since connect, "
+                + callStartDelayMs + "ms since call start");
+        MetricsRegistry.getInstance()
+            .getHistogram("CallActivity.TimeToFirstRemoteFrameMs", MAX_FIRST_FRAME_DELAY_MS)
+            .record(callStartDelayMs);
+      }
+
+      @Override
+      public void onFrameResolutionChanged(int videoWidth, int videoHeight, int rotation) {}
+    });
 
     localRender.setZOrderMediaOverlay(true);
     localRender.setEnableHardwareScaler(true /* enabled */);
@@ -261,6 +319,12 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
     boolean loopback = intent.getBooleanExtra(EXTRA_LOOPBACK, false);
     boolean tracing = intent.getBooleanExtra(EXTRA_TRACING, false);
+    displayHud = intent.getBooleanExtra(EXTRA_DISPLAY_HUD, false);
+    if (intent.getBooleanExtra(EXTRA_RECORD_STATS, false)) {
+      statsRecorder = new StatsRecorder(
+          new File(Environment.getExternalStorageDirectory(), STATS_RECORDING_FILE_NAME),
+          STATS_RECORDING_MAX_FILE_BYTES, STATS_RECORDING_MAX_FILES);
+    }
 
     int videoWidth = intent.getIntExtra(EXTRA_VIDEO_WIDTH, 0);
     int videoHeight = intent.getIntExtra(EXTRA_VIDEO_HEIGHT, 0);
@@ -275,6 +339,58 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       videoWidth = displayMetrics.widthPixels;
       videoHeight = displayMetrics.heightPixels;
     }
+    callQualityAnalyzer =
+        new CallQualityAnalyzer(MetricsRegistry.getInstance(), new CallQualityAnalyzer.Listener() {
+          @Override
+          public void onQualityEvent(
+              CallQualityAnalyzer.EventType type, CallQualityAnalyzer.Estimate estimate) {
+            onCallQualityEvent(type, estimate);
+          }
+        });
+    qualityAdaptation = intent.getBooleanExtra(EXTRA_QUALITY_ADAPTATION, false)
+        && intent.getBooleanExtra(EXTRA_VIDEO_CALL, true) && !screencaptureEnabled;
+    // The default capture format is the largest one.
+    int maxCaptureFormatIndex = (videoWidth == 0 || videoHeight == 0)
+        ? 0
+        : CaptureQualityController.getFormatIndex(videoWidth, videoHeight);
+    int captureFramerate = intent.getIntExtra(EXTRA_VIDEO_FPS, 0);
+    cpuAdaptationController = new CpuAdaptationController(
+        MetricsRegistry.getInstance(), new CpuAdaptationController.Listener() {
+          @Override
+          public void onCaptureFormatChange(
+              final int width, final int height, final int framerate, boolean down) {
+            Log.i(TAG, (down ? "Stepping down" : "Stepping up") + " capture format to " + width
+                    + "x" + height + "@" + framerate);
+            runOnUiThread(new Runnable() {
+              @Override
+              public void run() {
+                if (peerConnectionClient != null) {
+                  changeCaptureFormat(width, height, framerate);
+                }
+              }
+            });
+          }
+        });
+    CaptureFormat callFormat = CaptureQualityController.FORMATS.get(maxCaptureFormatIndex);
+    cpuAdaptationController.setMaxCaptureFormat(
+        (videoWidth == 0 || videoHeight == 0) ? callFormat.width : videoWidth,
+        (videoWidth == 0 || videoHeight == 0) ? callFormat.height : videoHeight,
+        captureFramerate > 0 ? captureFramerate : callFormat.framerate.max / 1000);
+    if (intent.getBooleanExtra(EXTRA_PERFORMANCE_GOVERNOR, false)) {
+      performanceGovernor = new PerformanceGovernor(
+          MetricsRegistry.getInstance(), new PerformanceGovernor.Listener() {
+            @Override
+            public void onBudgetChanged(final PerformanceGovernor.Budget budget) {
+              Log.i(TAG, "Performance budget changed to " + budget);
+              runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                  applyPerformanceBudget(budget);
+                }
+              });
+            }
+          });
+    }
     DataChannelParameters dataChannelParameters = null;
     if (intent.getBooleanExtra(EXTRA_DATA_CHANNEL_ENABLED, true)) {
       dataChannelParameters = new DataChannelParameters(intent.getBooleanExtra(EXTRA_ORDERED, true),
@@ -342,6 +458,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
     peerConnectionClient.createPeerConnectionFactory(
         CallActivity.this, peerConnectionParameters, CallActivity.this);
+    hudFragment.setStatsStore(peerConnectionClient.getStatsStore());
 
     if (screencaptureEnabled) {
       MediaProjectionManager mediaProjectionManager =
@@ -413,6 +530,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     if (peerConnectionClient != null && !screencaptureEnabled) {
       peerConnectionClient.stopVideoSource();
     }
+    if (peerConnectionClient != null) {
+      peerConnectionClient.setStatsInBackground(true);
+    }
     cpuMonitor.pause();
   }
 
@@ -424,6 +544,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     if (peerConnectionClient != null && !screencaptureEnabled) {
       peerConnectionClient.startVideoSource();
     }
+    if (peerConnectionClient != null) {
+      peerConnectionClient.setStatsInBackground(false);
+    }
     cpuMonitor.resume();
   }
 
@@ -434,6 +557,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       logToast.cancel();
     }
     activityRunning = false;
+    if (cpuMonitor != null) {
+      cpuMonitor.release();
+    }
     rootEglBase.release();
     super.onDestroy();
   }
@@ -460,10 +586,50 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   @Override
   public void onCaptureFormatChange(int width, int height, int framerate) {
     if (peerConnectionClient != null) {
-      peerConnectionClient.changeCaptureFormat(width, height, framerate);
+      changeCaptureFormat(width, height, framerate);
+      // Adapt to the CPU load from the format chosen by the user.
+      cpuAdaptationController.setMaxCaptureFormat(width, height, framerate);
     }
   }
 
+  private void changeCaptureFormat(int width, int height, int framerate) {
+    peerConnectionClient.changeCaptureFormat(width, height, framerate);
+    // Adapt from the format captured now.
+    cpuAdaptationController.setCaptureFormat(width, height, framerate);
+  }
+
+  // Caps the renderers, the send video bitrate and the stats poll rate to
+  // |budget|. Called on the UI thread.
+  private void applyPerformanceBudget(PerformanceGovernor.Budget budget) {
+    performanceBudget = budget;
+    SurfaceViewRenderer[] renderers = {localRender, remoteRenderScreen};
+    for (SurfaceViewRenderer renderer : renderers) {
+      if (renderer == null) {
+        continue;
+      }
+      if (budget.maxRenderFps > 0) {
+        renderer.setFpsReduction(budget.maxRenderFps);
+      } else {
+        renderer.disableFpsReduction();
+      }
+    }
+    if (peerConnectionClient != null) {
+      peerConnectionClient.setVideoMaxBitrate(getVideoMaxBitrate());
+      peerConnectionClient.setStatsMinPeriodMs(budget.statsMinPeriodMs);
+    }
+  }
+
+  // Returns the lower of the maximum video bitrate of the settings and the
+  // one of the performance budget, or null if there is neither.
+  private Integer getVideoMaxBitrate() {
+    int maxBitrateKbps = peerConnectionParameters.videoMaxBitrate;
+    if (performanceBudget != null && performanceBudget.maxVideoBitrateKbps > 0
+        && (maxBitrateKbps <= 0 || performanceBudget.maxVideoBitrateKbps < maxBitrateKbps)) {
+      maxBitrateKbps = performanceBudget.maxVideoBitrateKbps;
+    }
+    return maxBitrateKbps > 0 ? maxBitrateKbps : null;
+  }
+
   @Override
   public boolean onToggleMic() {
     if (peerConnectionClient != null) {
@@ -473,6 +639,22 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     return micEnabled;
   }
 
+  // Called on the stats callback thread. Low send video quality steps the
+  // capture format down through the CpuAdaptationController, which also
+  // holds steps up until the quality recovered.
+  private void onCallQualityEvent(
+      CallQualityAnalyzer.EventType type, CallQualityAnalyzer.Estimate estimate) {
+    Log.d(TAG, "Call quality event " + type + ": " + estimate);
+    if (!qualityAdaptation) {
+      return;
+    }
+    if (type == CallQualityAnalyzer.EventType.SEND_VIDEO_QUALITY_LOW) {
+      cpuAdaptationController.setSendQualityLow(true);
+    } else if (type == CallQualityAnalyzer.EventType.SEND_VIDEO_QUALITY_RECOVERED) {
+      cpuAdaptationController.setSendQualityLow(false);
+    }
+  }
+
   // Helper functions.
   private void toggleCallControlFragmentVisibility() {
     if (!iceConnected || !callFragment.isAdded()) {
@@ -490,6 +672,14 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
     ft.setTransition(FragmentTransaction.TRANSIT_FRAGMENT_FADE);
     ft.commit();
+    updateHudStatsSubscription();
+  }
+
+  // Polls stats at the HUD rate only while the HUD is on screen.
+  private void updateHudStatsSubscription() {
+    if (hudStatsSubscription != null) {
+      hudStatsSubscription.setActive(displayHud && callControlFragmentVisible);
+    }
   }
 
   private void updateVideoView() {
@@ -549,8 +739,30 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
     // Update video view.
     updateVideoView();
-    // Enable statistics callback.
-    peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
+    // Enable statistics callback. Recordings keep the full rate.
+    peerConnectionClient.enableStatsEvents(
+        true, statsRecorder != null ? STAT_CALLBACK_PERIOD : STAT_IDLE_CALLBACK_PERIOD);
+    if (hudStatsSubscription == null) {
+      // The HUD needs a query of the whole connection even when only the
+      // encoder section is shown: its target and actual bitrates come from
+      // the VideoBwe report, and its stream rates from the ssrc of the
+      // remote audio track, which has no track to query. A track query
+      // returns neither.
+      hudStatsSubscription = peerConnectionClient.addStatsSubscription(STAT_CALLBACK_PERIOD);
+    }
+    updateHudStatsSubscription();
+    if (qualityAdaptation && cpuStatsSubscription == null) {
+      // CPU adaptation only needs the encode usage of the send video ssrc
+      // report, which a query of the local video track returns.
+      cpuStatsSubscription = peerConnectionClient.addStatsSubscription(STAT_CALLBACK_PERIOD,
+          StatsRequest.forTracks(StatsRequest.LOCAL_VIDEO_TRACK, "ssrc"),
+          new StatsScheduler.StatsListener() {
+            @Override
+            public void onStatsReady(StatsReport[] reports, StatsEngine.CallStats callStats) {
+              onCpuAdaptationStats(callStats);
+            }
+          });
+    }
   }
 
   private void onAudioManagerChangedState() {
@@ -568,6 +780,17 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     if (peerConnectionClient != null) {
       peerConnectionClient.close();
       peerConnectionClient = null;
+      hudStatsSubscription = null;
+      cpuStatsSubscription = null;
+    }
+    if (statsRecorder != null) {
+      // Writing the pending snapshots must not block the UI thread.
+      statsRecorder.closeAsync();
+      statsRecorder = null;
+    }
+    if (latencyProbe != null) {
+      latencyProbe.logSummary();
+      latencyProbe = null;
     }
     if (localRender != null) {
       localRender.release();
@@ -642,7 +865,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     String videoFileAsCamera = getIntent().getStringExtra(EXTRA_VIDEO_FILE_AS_CAMERA);
     if (videoFileAsCamera != null) {
       try {
-        videoCapturer = new FileVideoCapturer(videoFileAsCamera);
+        MappedFileVideoCapturer fileCapturer = new MappedFileVideoCapturer(videoFileAsCamera);
+        fileCapturer.setSpeed(getIntent().getFloatExtra(EXTRA_VIDEO_FILE_AS_CAMERA_SPEED, 1f));
+        videoCapturer = fileCapturer;
       } catch (IOException e) {
         reportError("Failed to open video file for emulated camera");
         return null;
@@ -690,6 +915,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     if (peerConnectionParameters.videoCallEnabled) {
       videoCapturer = createVideoCapturer();
     }
+    if (videoCapturer != null && latencyProbe != null) {
+      videoCapturer = latencyProbe.wrapCapturer(videoCapturer);
+    }
     peerConnectionClient.createPeerConnection(rootEglBase.getEglBaseContext(), localRender,
         remoteRenderers, videoCapturer, signalingParameters);
 
@@ -809,9 +1037,10 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
             appRtcClient.sendAnswerSdp(sdp);
           }
         }
-        if (peerConnectionParameters.videoMaxBitrate > 0) {
-          Log.d(TAG, "Set video maximum bitrate: " + peerConnectionParameters.videoMaxBitrate);
-          peerConnectionClient.setVideoMaxBitrate(peerConnectionParameters.videoMaxBitrate);
+        Integer videoMaxBitrate = getVideoMaxBitrate();
+        if (videoMaxBitrate != null) {
+          Log.d(TAG, "Set video maximum bitrate: " + videoMaxBitrate);
+          peerConnectionClient.setVideoMaxBitrate(videoMaxBitrate);
         }
       }
     });
@@ -869,13 +1098,42 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   @Override
   public void onPeerConnectionClosed() {}
 
+  @Override
+  public void onPeerConnectionCallStats(final StatsEngine.CallStats callStats) {
+    callQualityAnalyzer.update(callStats);
+    if (performanceGovernor != null) {
+      performanceGovernor.update(callStats.timestampMs, cpuMonitor.getDeviceState());
+    }
+    hudFragment.updateCallStats(callStats);
+  }
+
+  // Called on the signaling thread with the stats of the send video track.
+  private void onCpuAdaptationStats(StatsEngine.CallStats callStats) {
+    StatsEngine.StreamStats sendVideo = callStats.getStream(true, true);
+    cpuAdaptationController.update(callStats.timestampMs, cpuMonitor.getCpuUsageAverage(),
+        sendVideo != null ? sendVideo.encodeUsagePercent : Double.NaN);
+    cpuMonitor.setCpuOveruse(cpuAdaptationController.isOverusing());
+  }
+
   @Override
   public void onPeerConnectionStatsReady(final StatsReport[] reports) {
+    StatsRecorder recorder = statsRecorder;
+    if (recorder != null) {
+      recorder.record(reports);
+    }
+    // Format the HUD texts here so that the UI thread only sets the ones
+    // that changed.
+    final HudModel.Update hudUpdate = hudFragment.formatStatistics(reports);
+    if (hudUpdate == null || hudUpdate.getChangedSectionCount() == 0) {
+      return;
+    }
     runOnUiThread(new Runnable() {
       @Override
       public void run() {
         if (!isError && iceConnected) {
-          hudFragment.updateEncoderStatistics(reports);
+          hudFragment.applyStatistics(hudUpdate);
+        } else {
+          hudFragment.discardStatistics();
         }
       }
     });
@@ -0,0 +1,386 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Estimates call quality from the rates of each stats poll.
+ *
+ * <p>Audio quality is a MOS computed with a simplified ITU-T G.107 E-model
+ * from the round trip time, receive jitter and receive packet loss. Video
+ * quality is a heuristic on the same 1 to 5 scale from the frame rate, the
+ * time spent frozen and packet loss. The send side is scored on the share of
+ * captured frames that are encoded rather than on the absolute frame rate,
+ * which the app lowers on purpose under CPU load. The receive stream is
+ * frozen while a poll interval decodes no frames, and frames received but
+ * not decoded, or captured but not encoded, are counted as dropped.
+ *
+ * <p>All inputs are smoothed with exponential moving averages, so each poll
+ * is an O(1) update. Crossing a threshold emits an event to the Listener;
+ * the low and recovered thresholds differ so that a score close to one of
+ * them does not flap. A low score is reported again every
+ * LOW_QUALITY_REPEAT_MS while it lasts, so that a listener can keep
+ * adapting. Scores are also published as gauges of the MetricsRegistry.
+ *
+ * <p>This class is not thread-safe; it should be updated from the thread
+ * that delivers stats callbacks.
+ */
+class CallQualityAnalyzer {
+  // Time constant of the moving averages.
+  private static final double SMOOTHING_TIME_MS = 5000;
+  // No quality events are emitted before a stream has been seen this long.
+  private static final long WARM_UP_MS = 5000;
+  static final long LOW_QUALITY_REPEAT_MS = 10000;
+  static final double LOW_QUALITY_MOS = 3.1;
+  static final double RECOVERED_QUALITY_MOS = 3.6;
+
+  // E-model constants. The loss robustness factor is in the range of codecs
+  // with packet loss concealment; Opus with FEC does better.
+  private static final double R0 = 93.2;
+  private static final double EQUIPMENT_IMPAIRMENT = 0;
+  private static final double LOSS_ROBUSTNESS = 20;
+  private static final double CODEC_DELAY_MS = 20;
+  // The jitter buffer holds about two times the interarrival jitter.
+  private static final double JITTER_BUFFER_FACTOR = 2;
+
+  // Frame rate of the best receive video score.
+  private static final double REFERENCE_FPS = 30;
+  // Packet loss of the worst video score.
+  private static final double MAX_VIDEO_LOSS_PERCENT = 25;
+  private static final long MAX_FREEZE_MS = 60 * 1000;
+
+  /** Threshold crossings. */
+  public enum EventType {
+    AUDIO_QUALITY_LOW,
+    AUDIO_QUALITY_RECOVERED,
+    SEND_VIDEO_QUALITY_LOW,
+    SEND_VIDEO_QUALITY_RECOVERED,
+    RECEIVE_VIDEO_QUALITY_LOW,
+    RECEIVE_VIDEO_QUALITY_RECOVERED,
+    VIDEO_FREEZE_STARTED,
+    VIDEO_FREEZE_ENDED
+  }
+
+  /** Receives quality events on the thread that calls update(). */
+  public interface Listener {
+    void onQualityEvent(EventType type, Estimate estimate);
+  }
+
+  /** Smoothed quality of the call after a poll. Scores are NaN if unknown. */
+  public static class Estimate {
+    public final double audioMos;
+    public final double sendVideoScore;
+    public final double receiveVideoScore;
+    public final double rttMs;
+    public final double jitterMs;
+    public final double audioLossPercent;
+    public final double sendFrameDropPercent;
+    public final double receiveFrameDropPercent;
+    public final boolean videoFrozen;
+    public final int freezeCount;
+    public final long totalFreezeMs;
+
+    public Estimate(double audioMos, double sendVideoScore, double receiveVideoScore,
+        double rttMs, double jitterMs, double audioLossPercent, double sendFrameDropPercent,
+        double receiveFrameDropPercent, boolean videoFrozen, int freezeCount,
+        long totalFreezeMs) {
+      this.audioMos = audioMos;
+      this.sendVideoScore = sendVideoScore;
+      this.receiveVideoScore = receiveVideoScore;
+      this.rttMs = rttMs;
+      this.jitterMs = jitterMs;
+      this.audioLossPercent = audioLossPercent;
+      this.sendFrameDropPercent = sendFrameDropPercent;
+      this.receiveFrameDropPercent = receiveFrameDropPercent;
+      this.videoFrozen = videoFrozen;
+      this.freezeCount = freezeCount;
+      this.totalFreezeMs = totalFreezeMs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("MOS audio %.2f, video send %.2f, video recv %.2f, rtt %.0f ms, "
+              + "jitter %.0f ms, audio loss %.1f%%, frame drops send %.1f%% recv %.1f%%, "
+              + "%d freezes, %d ms frozen",
+          audioMos, sendVideoScore, receiveVideoScore, rttMs, jitterMs, audioLossPercent,
+          sendFrameDropPercent, receiveFrameDropPercent, freezeCount, totalFreezeMs);
+    }
+  }
+
+  // Exponential moving average with a time based gain.
+  private static class Average {
+    double value = Double.NaN;
+
+    void add(double sample, double gain) {
+      if (Double.isNaN(sample)) {
+        return;
+      }
+      value = Double.isNaN(value) ? sample : value + (sample - value) * gain;
+    }
+  }
+
+  // Low quality state of one score, with hysteresis.
+  private static class Threshold {
+    final EventType lowEvent;
+    final EventType recoveredEvent;
+    long firstSampleMs = -1;
+    boolean low;
+    long lastLowEventMs;
+
+    Threshold(EventType lowEvent, EventType recoveredEvent) {
+      this.lowEvent = lowEvent;
+      this.recoveredEvent = recoveredEvent;
+    }
+
+    // Returns the event to emit for |score| at |timeMs|, or null.
+    EventType update(double score, long timeMs) {
+      if (Double.isNaN(score)) {
+        return null;
+      }
+      if (firstSampleMs < 0) {
+        firstSampleMs = timeMs;
+      }
+      if (timeMs - firstSampleMs < WARM_UP_MS) {
+        return null;
+      }
+      if (score < LOW_QUALITY_MOS
+          && (!low || timeMs - lastLowEventMs >= LOW_QUALITY_REPEAT_MS)) {
+        low = true;
+        lastLowEventMs = timeMs;
+        return lowEvent;
+      }
+      if (low && score >= RECOVERED_QUALITY_MOS) {
+        low = false;
+        return recoveredEvent;
+      }
+      return null;
+    }
+  }
+
+  private final Listener listener;
+  private final MetricsRegistry.Gauge audioMosGauge;
+  private final MetricsRegistry.Gauge sendVideoScoreGauge;
+  private final MetricsRegistry.Gauge receiveVideoScoreGauge;
+  private final MetricsRegistry.Gauge sendFrameDropGauge;
+  private final MetricsRegistry.Gauge receiveFrameDropGauge;
+  private final MetricsRegistry.Counter freezeCounter;
+  private final MetricsRegistry.Histogram freezeDurationHistogram;
+
+  private final Average rttMs = new Average();
+  private final Average jitterMs = new Average();
+  private final Average audioLossPercent = new Average();
+  private final Average sendLossPercent = new Average();
+  private final Average sendFrameDropPercent = new Average();
+  private final Average receiveFps = new Average();
+  private final Average receiveLossPercent = new Average();
+  private final Average receiveFrameDropPercent = new Average();
+  private final Average receiveFrozenFraction = new Average();
+  private final Threshold audioThreshold =
+      new Threshold(EventType.AUDIO_QUALITY_LOW, EventType.AUDIO_QUALITY_RECOVERED);
+  private final Threshold sendVideoThreshold =
+      new Threshold(EventType.SEND_VIDEO_QUALITY_LOW, EventType.SEND_VIDEO_QUALITY_RECOVERED);
+  private final Threshold receiveVideoThreshold = new Threshold(
+      EventType.RECEIVE_VIDEO_QUALITY_LOW, EventType.RECEIVE_VIDEO_QUALITY_RECOVERED);
+
+  private long lastTimestampMs = -1;
+  // True once the receive stream decoded a frame.
+  private boolean receiveDecoding;
+  private boolean frozen;
+  // Time of the last poll that decoded frames.
+  private long lastFrameTimestampMs;
+  private int freezeCount;
+  private long totalFreezeMs;
+
+  public CallQualityAnalyzer(MetricsRegistry metrics, Listener listener) {
+    this.listener = listener;
+    audioMosGauge = metrics.getGauge("CallQuality.AudioMos");
+    sendVideoScoreGauge = metrics.getGauge("CallQuality.SendVideoScore");
+    receiveVideoScoreGauge = metrics.getGauge("CallQuality.ReceiveVideoScore");
+    sendFrameDropGauge = metrics.getGauge("CallQuality.SendFrameDropPercent");
+    receiveFrameDropGauge = metrics.getGauge("CallQuality.ReceiveFrameDropPercent");
+    freezeCounter = metrics.getCounter("CallQuality.Freezes");
+    freezeDurationHistogram = metrics.getHistogram("CallQuality.FreezeDurationMs", MAX_FREEZE_MS);
+  }
+
+  // Returns the MOS of the E-model rating factor R.
+  static double rToMos(double r) {
+    if (r <= 0) {
+      return 1;
+    }
+    if (r >= 100) {
+      return 4.5;
+    }
+    return 1 + 0.035 * r + 7e-6 * r * (r - 60) * (100 - r);
+  }
+
+  // Returns the audio MOS for a call with |rttMs| round trip time,
+  // |jitterMs| interarrival jitter and |lossPercent| random packet loss.
+  static double computeAudioMos(double rttMs, double jitterMs, double lossPercent) {
+    double delayMs = rttMs / 2 + JITTER_BUFFER_FACTOR * jitterMs + CODEC_DELAY_MS;
+    double delayImpairment = 0.024 * delayMs;
+    if (delayMs > 177.3) {
+      delayImpairment += 0.11 * (delayMs - 177.3);
+    }
+    double lossImpairment = EQUIPMENT_IMPAIRMENT
+        + (95 - EQUIPMENT_IMPAIRMENT) * lossPercent / (lossPercent + LOSS_ROBUSTNESS);
+    return rToMos(R0 - delayImpairment - lossImpairment);
+  }
+
+  // Returns the video score for a stream at |fps| frames per second that is
+  // frozen |frozenFraction| of the time and loses |lossPercent| of packets.
+  static double computeVideoScore(double fps, double frozenFraction, double lossPercent) {
+    if (Double.isNaN(fps)) {
+      return Double.NaN;
+    }
+    double quality = Math.min(1, Math.log(1 + Math.max(0, fps)) / Math.log(1 + REFERENCE_FPS));
+    if (!Double.isNaN(frozenFraction)) {
+      quality *= 1 - frozenFraction;
+    }
+    if (!Double.isNaN(lossPercent)) {
+      quality *= 1 - Math.min(1, lossPercent / MAX_VIDEO_LOSS_PERCENT);
+    }
+    return 1 + 4 * quality;
+  }
+
+  // Returns the send video score for a stream that encodes all but
+  // |frameDropPercent| of its input frames and loses |lossPercent| of
+  // packets. Encoding every input frame gets the best score at any input
+  // frame rate, so a lower capture frame rate, e.g. after CPU adaptation,
+  // does not count as low quality.
+  static double computeSendVideoScore(double frameDropPercent, double lossPercent) {
+    if (Double.isNaN(frameDropPercent)) {
+      return Double.NaN;
+    }
+    return computeVideoScore(
+        REFERENCE_FPS * (1 - frameDropPercent / 100), Double.NaN, lossPercent);
+  }
+
+  // Returns the percentage of |inputFps| that did not make it to |fps|.
+  private static double getFrameDropPercent(double fps, double inputFps) {
+    if (Double.isNaN(fps) || Double.isNaN(inputFps) || inputFps <= 0) {
+      return Double.NaN;
+    }
+    return 100 * Math.max(0, 1 - fps / inputFps);
+  }
+
+  // Adds the stats of a poll and returns the updated estimate.
+  public Estimate update(StatsEngine.CallStats callStats) {
+    long timeMs = callStats.timestampMs;
+    long intervalMs = lastTimestampMs < 0 ? 0 : timeMs - lastTimestampMs;
+    if (lastTimestampMs >= 0 && intervalMs <= 0) {
+      // A repeated or reordered poll.
+      return getEstimate();
+    }
+    lastTimestampMs = timeMs;
+    double gain = 1 - Math.exp(-intervalMs / SMOOTHING_TIME_MS);
+
+    StatsEngine.StreamStats audioSend = callStats.getStream(false, true);
+    StatsEngine.StreamStats audioReceive = callStats.getStream(false, false);
+    StatsEngine.StreamStats videoSend = callStats.getStream(true, true);
+    StatsEngine.StreamStats videoReceive = callStats.getStream(true, false);
+
+    double rtt = callStats.connectionRttMs;
+    if (Double.isNaN(rtt) && audioSend != null) {
+      rtt = audioSend.rttMs;
+    }
+    rttMs.add(rtt, gain);
+    if (audioReceive != null) {
+      jitterMs.add(audioReceive.jitterMs, gain);
+      audioLossPercent.add(audioReceive.lossPercent, gain);
+    }
+    if (videoSend != null) {
+      sendLossPercent.add(videoSend.lossPercent, gain);
+      sendFrameDropPercent.add(
+          getFrameDropPercent(videoSend.framesPerSecond, videoSend.inputFramesPerSecond), gain);
+    }
+    EventType freezeEvent = null;
+    if (videoReceive != null) {
+      if (videoReceive.counterReset) {
+        // A new stream; it has not decoded anything yet.
+        receiveDecoding = false;
+        frozen = false;
+      }
+      receiveFps.add(videoReceive.framesPerSecond, gain);
+      receiveLossPercent.add(videoReceive.lossPercent, gain);
+      receiveFrameDropPercent.add(getFrameDropPercent(
+          videoReceive.framesPerSecond, videoReceive.inputFramesPerSecond), gain);
+      freezeEvent = updateFreeze(videoReceive, timeMs, intervalMs, gain);
+    }
+
+    Estimate estimate = getEstimate();
+    audioMosGauge.set(estimate.audioMos);
+    sendVideoScoreGauge.set(estimate.sendVideoScore);
+    receiveVideoScoreGauge.set(estimate.receiveVideoScore);
+    sendFrameDropGauge.set(estimate.sendFrameDropPercent);
+    receiveFrameDropGauge.set(estimate.receiveFrameDropPercent);
+
+    emit(freezeEvent, estimate);
+    emit(audioThreshold.update(estimate.audioMos, timeMs), estimate);
+    emit(sendVideoThreshold.update(estimate.sendVideoScore, timeMs), estimate);
+    emit(receiveVideoThreshold.update(estimate.receiveVideoScore, timeMs), estimate);
+    return estimate;
+  }
+
+  // Tracks freezes of the receive stream from the frames decoded during the
+  // last |intervalMs|. Freeze durations have the resolution of the polls.
+  private EventType updateFreeze(
+      StatsEngine.StreamStats stream, long timeMs, long intervalMs, double gain) {
+    if (Double.isNaN(stream.framesPerSecond) || intervalMs <= 0) {
+      return null;
+    }
+    boolean decoded = stream.framesPerSecond * intervalMs / 1000 >= 0.5;
+    if (!receiveDecoding) {
+      if (decoded) {
+        receiveDecoding = true;
+        lastFrameTimestampMs = timeMs;
+      }
+      return null;
+    }
+    receiveFrozenFraction.add(decoded ? 0 : 1, gain);
+    if (!decoded) {
+      if (!frozen) {
+        frozen = true;
+        freezeCount++;
+        freezeCounter.increment();
+        return EventType.VIDEO_FREEZE_STARTED;
+      }
+      return null;
+    }
+    EventType event = null;
+    if (frozen) {
+      frozen = false;
+      long freezeMs = timeMs - lastFrameTimestampMs;
+      totalFreezeMs += freezeMs;
+      freezeDurationHistogram.record(freezeMs);
+      event = EventType.VIDEO_FREEZE_ENDED;
+    }
+    lastFrameTimestampMs = timeMs;
+    return event;
+  }
+
+  private void emit(EventType type, Estimate estimate) {
+    if (type != null) {
+      listener.onQualityEvent(type, estimate);
+    }
+  }
+
+  public Estimate getEstimate() {
+    double audioMos = Double.NaN;
+    if (!Double.isNaN(audioLossPercent.value)) {
+      audioMos = computeAudioMos(Double.isNaN(rttMs.value) ? 0 : rttMs.value,
+          Double.isNaN(jitterMs.value) ? 0 : jitterMs.value, audioLossPercent.value);
+    }
+    return new Estimate(audioMos,
+        computeSendVideoScore(sendFrameDropPercent.value, sendLossPercent.value),
+        computeVideoScore(receiveFps.value, receiveFrozenFraction.value, receiveLossPercent.value),
+        rttMs.value, jitterMs.value, audioLossPercent.value, sendFrameDropPercent.value,
+        receiveFrameDropPercent.value, frozen, freezeCount, totalFreezeMs);
+  }
+}
@@ -22,7 +22,8 @@ import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
  * Control capture format based on a seekbar listener.
  */
 public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener {
-  private final List<CaptureFormat> formats =
+  // Capture formats to choose from, largest first.
+  static final List<CaptureFormat> FORMATS =
       Arrays.asList(new CaptureFormat(1280, 720, 0, 30000), new CaptureFormat(960, 540, 0, 30000),
           new CaptureFormat(640, 480, 0, 30000), new CaptureFormat(480, 360, 0, 30000),
           new CaptureFormat(320, 240, 0, 30000), new CaptureFormat(256, 144, 0, 30000));
@@ -33,7 +34,6 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
   private int width = 0;
   private int height = 0;
   private int framerate = 0;
-  private double targetBandwidth = 0;
 
   public CaptureQualityController(
       TextView captureFormatText, CallFragment.OnCallEvents callEvents) {
@@ -41,22 +41,25 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
     this.callEvents = callEvents;
   }
 
-  private final Comparator<CaptureFormat> compareFormats = new Comparator<CaptureFormat>() {
-    @Override
-    public int compare(CaptureFormat first, CaptureFormat second) {
-      int firstFps = calculateFramerate(targetBandwidth, first);
-      int secondFps = calculateFramerate(targetBandwidth, second);
-
-      if (firstFps >= FRAMERATE_THRESHOLD && secondFps >= FRAMERATE_THRESHOLD
-          || firstFps == secondFps) {
-        // Compare resolution.
-        return first.width * first.height - second.width * second.height;
-      } else {
-        // Compare fps.
-        return firstFps - secondFps;
+  // Orders formats by how well they use |targetBandwidth|.
+  private static Comparator<CaptureFormat> getFormatComparator(final double targetBandwidth) {
+    return new Comparator<CaptureFormat>() {
+      @Override
+      public int compare(CaptureFormat first, CaptureFormat second) {
+        int firstFps = calculateFramerate(targetBandwidth, first);
+        int secondFps = calculateFramerate(targetBandwidth, second);
+
+        if (firstFps >= FRAMERATE_THRESHOLD && secondFps >= FRAMERATE_THRESHOLD
+            || firstFps == secondFps) {
+          // Compare resolution.
+          return first.width * first.height - second.width * second.height;
+        } else {
+          // Compare fps.
+          return firstFps - secondFps;
+        }
       }
-    }
-  };
+    };
+  }
 
   @Override
   public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
@@ -68,26 +71,19 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
       return;
     }
 
-    // Extract max bandwidth (in millipixels / second).
-    long maxCaptureBandwidth = java.lang.Long.MIN_VALUE;
-    for (CaptureFormat format : formats) {
-      maxCaptureBandwidth =
-          Math.max(maxCaptureBandwidth, (long) format.width * format.height * format.framerate.max);
-    }
-
     // Fraction between 0 and 1.
     double bandwidthFraction = (double) progress / 100.0;
     // Make a log-scale transformation, still between 0 and 1.
     final double kExpConstant = 3.0;
     bandwidthFraction =
         (Math.exp(kExpConstant * bandwidthFraction) - 1) / (Math.exp(kExpConstant) - 1);
-    targetBandwidth = bandwidthFraction * maxCaptureBandwidth;
+    double targetBandwidth = bandwidthFraction * getMaxCaptureBandwidth();
 
     // Choose the best format given a target bandwidth.
-    final CaptureFormat bestFormat = Collections.max(formats, compareFormats);
+    final CaptureFormat bestFormat = getBestFormat(targetBandwidth);
     width = bestFormat.width;
     height = bestFormat.height;
-    framerate = calculateFramerate(targetBandwidth, bestFormat);
+    framerate = bestFormat.framerate.max / 1000;
     captureFormatText.setText(
         String.format(captureFormatText.getContext().getString(R.string.format_description), width,
             height, framerate));
@@ -101,8 +97,44 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
     callEvents.onCaptureFormatChange(width, height, framerate);
   }
 
+  // Returns the index in FORMATS of the largest format with at most
+  // |width| x |height| pixels, or of the smallest format.
+  static int getFormatIndex(int width, int height) {
+    for (int i = 0; i < FORMATS.size(); i++) {
+      CaptureFormat format = FORMATS.get(i);
+      if (format.width * format.height <= width * height) {
+        return i;
+      }
+    }
+    return FORMATS.size() - 1;
+  }
+
+  // Returns the largest bandwidth of FORMATS, in millipixels / second.
+  static long getMaxCaptureBandwidth() {
+    long maxCaptureBandwidth = java.lang.Long.MIN_VALUE;
+    for (CaptureFormat format : FORMATS) {
+      maxCaptureBandwidth =
+          Math.max(maxCaptureBandwidth, (long) format.width * format.height * format.framerate.max);
+    }
+    return maxCaptureBandwidth;
+  }
+
+  // Returns the format of FORMATS that best uses |targetBandwidth|, in
+  // millipixels / second, with its max framerate lowered to what the
+  // bandwidth allows.
+  static CaptureFormat getBestFormat(double targetBandwidth) {
+    return getBestFormat(FORMATS, targetBandwidth);
+  }
+
+  // Like getBestFormat(double), choosing from |formats|.
+  static CaptureFormat getBestFormat(List<CaptureFormat> formats, double targetBandwidth) {
+    CaptureFormat bestFormat = Collections.max(formats, getFormatComparator(targetBandwidth));
+    int framerate = calculateFramerate(targetBandwidth, bestFormat);
+    return new CaptureFormat(bestFormat.width, bestFormat.height, 0, framerate * 1000);
+  }
+
   // Return the highest frame rate possible based on bandwidth and format.
-  private int calculateFramerate(double bandwidth, CaptureFormat format) {
+  private static int calculateFramerate(double bandwidth, CaptureFormat format) {
     return (int) Math.round(
         Math.min(format.framerate.max, (int) Math.round(bandwidth / (format.width * format.height)))
         / 1000.0);
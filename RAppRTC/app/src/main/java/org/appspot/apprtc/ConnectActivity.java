@@ -17,6 +17,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -247,6 +248,47 @@ public class ConnectActivity extends Activity {
       roomListView.requestFocus();
       roomListView.setItemChecked(0, true);
     }
+    if (sharedPrefGetBoolean(R.string.pref_prewarm_key, null, R.string.pref_prewarm_default,
+            false /* useFromIntent */)) {
+      prewarmCall();
+    }
+  }
+
+  @Override
+  protected void onDestroy() {
+    PeerConnectionClient.getInstance().releasePrewarmedPeerConnectionFactory();
+    super.onDestroy();
+  }
+
+  // Prepares call setup while the user is still choosing a room: creates the
+  // peer connection factory and warms up the room server connection. A call
+  // started with the same settings reuses both.
+  private void prewarmCall() {
+    String roomUrl = sharedPref.getString(
+        keyprefRoomServerUrl, getString(R.string.pref_room_server_url_default));
+    if (URLUtil.isHttpsUrl(roomUrl) || URLUtil.isHttpUrl(roomUrl)) {
+      RoomParametersFetcher.prewarm(roomUrl);
+    }
+    PeerConnectionClient.PeerConnectionParameters peerConnectionParameters =
+        new PeerConnectionClient.PeerConnectionParameters(true /* videoCallEnabled */,
+            false /* loopback */,
+            sharedPrefGetBoolean(R.string.pref_tracing_key, null, R.string.pref_tracing_default,
+                false),
+            0, 0, 0, 0, null,
+            sharedPrefGetBoolean(R.string.pref_hwcodec_key, null, R.string.pref_hwcodec_default,
+                false),
+            0, null, false, false,
+            sharedPrefGetBoolean(R.string.pref_opensles_key, null,
+                R.string.pref_opensles_default, false),
+            sharedPrefGetBoolean(R.string.pref_disable_built_in_aec_key, null,
+                R.string.pref_disable_built_in_aec_default, false),
+            sharedPrefGetBoolean(R.string.pref_disable_built_in_agc_key, null,
+                R.string.pref_disable_built_in_agc_default, false),
+            sharedPrefGetBoolean(R.string.pref_disable_built_in_ns_key, null,
+                R.string.pref_disable_built_in_ns_default, false),
+            false /* enableLevelControl */);
+    PeerConnectionClient.getInstance().prewarmPeerConnectionFactory(
+        getApplicationContext(), peerConnectionParameters);
   }
 
   @Override
@@ -318,6 +360,7 @@ public class ConnectActivity extends Activity {
   private void connectToRoom(String roomId, boolean commandLineRun, boolean loopback,
       boolean useValuesFromIntent, int runTimeMs) {
     this.commandLineRun = commandLineRun;
+    final long connectTimeMs = SystemClock.elapsedRealtime();
 
     // roomId is random for loopback.
     if (loopback) {
@@ -433,6 +476,16 @@ public class ConnectActivity extends Activity {
         CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED,
         R.string.pref_capturequalityslider_default, useValuesFromIntent);
 
+    // Check capture quality adaptation flag.
+    boolean qualityAdaptation = sharedPrefGetBoolean(R.string.pref_quality_adaptation_key,
+        CallActivity.EXTRA_QUALITY_ADAPTATION, R.string.pref_quality_adaptation_default,
+        useValuesFromIntent);
+
+    // Check performance governor flag.
+    boolean performanceGovernor = sharedPrefGetBoolean(R.string.pref_performance_governor_key,
+        CallActivity.EXTRA_PERFORMANCE_GOVERNOR, R.string.pref_performance_governor_default,
+        useValuesFromIntent);
+
     // Get video and audio start bitrate.
     int videoStartBitrate = 0;
     if (useValuesFromIntent) {
@@ -469,6 +522,14 @@ public class ConnectActivity extends Activity {
     boolean tracing = sharedPrefGetBoolean(R.string.pref_tracing_key, CallActivity.EXTRA_TRACING,
         R.string.pref_tracing_default, useValuesFromIntent);
 
+    // Check statistics recording flag.
+    boolean recordStats = sharedPrefGetBoolean(R.string.pref_record_stats_key,
+        CallActivity.EXTRA_RECORD_STATS, R.string.pref_record_stats_default, useValuesFromIntent);
+
+    // Check glass-to-glass latency probe flag.
+    boolean latencyProbe = sharedPrefGetBoolean(R.string.pref_latency_probe_key,
+        CallActivity.EXTRA_LATENCY_PROBE, R.string.pref_latency_probe_default, useValuesFromIntent);
+
     // Get datachannel options
     boolean dataChannelEnabled = sharedPrefGetBoolean(R.string.pref_enable_datachannel_key,
         CallActivity.EXTRA_DATA_CHANNEL_ENABLED, R.string.pref_enable_datachannel_default,
@@ -503,6 +564,8 @@ public class ConnectActivity extends Activity {
       intent.putExtra(CallActivity.EXTRA_VIDEO_HEIGHT, videoHeight);
       intent.putExtra(CallActivity.EXTRA_VIDEO_FPS, cameraFps);
       intent.putExtra(CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED, captureQualitySlider);
+      intent.putExtra(CallActivity.EXTRA_QUALITY_ADAPTATION, qualityAdaptation);
+      intent.putExtra(CallActivity.EXTRA_PERFORMANCE_GOVERNOR, performanceGovernor);
       intent.putExtra(CallActivity.EXTRA_VIDEO_BITRATE, videoStartBitrate);
       intent.putExtra(CallActivity.EXTRA_VIDEOCODEC, videoCodec);
       intent.putExtra(CallActivity.EXTRA_HWCODEC_ENABLED, hwCodec);
@@ -518,8 +581,11 @@ public class ConnectActivity extends Activity {
       intent.putExtra(CallActivity.EXTRA_AUDIOCODEC, audioCodec);
       intent.putExtra(CallActivity.EXTRA_DISPLAY_HUD, displayHud);
       intent.putExtra(CallActivity.EXTRA_TRACING, tracing);
+      intent.putExtra(CallActivity.EXTRA_RECORD_STATS, recordStats);
+      intent.putExtra(CallActivity.EXTRA_LATENCY_PROBE, latencyProbe);
       intent.putExtra(CallActivity.EXTRA_CMDLINE, commandLineRun);
       intent.putExtra(CallActivity.EXTRA_RUNTIME, runTimeMs);
+      intent.putExtra(CallActivity.EXTRA_CONNECT_TIME_MS, connectTimeMs);
 
       intent.putExtra(CallActivity.EXTRA_DATA_CHANNEL_ENABLED, dataChannelEnabled);
 
@@ -539,6 +605,12 @@ public class ConnectActivity extends Activity {
           intent.putExtra(CallActivity.EXTRA_VIDEO_FILE_AS_CAMERA, videoFileAsCamera);
         }
 
+        if (getIntent().hasExtra(CallActivity.EXTRA_VIDEO_FILE_AS_CAMERA_SPEED)) {
+          float speed =
+              getIntent().getFloatExtra(CallActivity.EXTRA_VIDEO_FILE_AS_CAMERA_SPEED, 1f);
+          intent.putExtra(CallActivity.EXTRA_VIDEO_FILE_AS_CAMERA_SPEED, speed);
+        }
+
         if (getIntent().hasExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE)) {
           String saveRemoteVideoToFile =
               getIntent().getStringExtra(CallActivity.EXTRA_SAVE_REMOTE_VIDEO_TO_FILE);
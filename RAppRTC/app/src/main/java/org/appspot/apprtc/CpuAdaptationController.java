@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+/**
+ * Steps the capture format down while the CPU is overused or the send video
+ * quality is low, and back up once both have recovered.
+ *
+ * <p>Each stats poll passes the CpuMonitor average and the encode usage of
+ * the send video stream. The CPU is overused when either is above its high
+ * threshold for OVERUSE_POLLS polls in a row, and underused when both are
+ * below their low thresholds; the gap between the thresholds keeps a load
+ * close to one of them from flapping. A step scales the capture bandwidth,
+ * width x height x framerate, by STEP_FACTOR and picks the format for it
+ * with the same bandwidth math as the capture quality SeekBar of
+ * CaptureQualityController. It chooses from the formats of its list that
+ * are no larger than the format of the call, at no more than its framerate.
+ * If the math keeps the format, the step moves to the neighboring one.
+ *
+ * <p>Steps down are at least DOWN_INTERVAL_MS apart, which is how long the
+ * CpuMonitor average takes to reflect a change. Steps up wait for
+ * upDelayMs of underuse after the last step. If the CPU is overused again
+ * within that delay after a step up, the format is about to oscillate and
+ * the delay doubles, up to MAX_UP_DELAY_MS. Once a step up has held for a
+ * full delay without overuse or low quality, the delay halves, and keeps
+ * halving once per delay down to INITIAL_UP_DELAY_MS, so a few oscillations
+ * early in a call do not slow the steps up for the rest of it.
+ *
+ * <p>It is the only owner of the capture format for adaptation, so the CPU
+ * load and the CallQualityAnalyzer events passed to setSendQualityLow() do
+ * not undo each other's steps. Low send quality steps down like overuse
+ * does. Steps up also need the quality to have recovered, so the format
+ * stays between the format of the call and the lowest format of the list.
+ *
+ * <p>Time is passed in by the caller, so a run is deterministic. Methods are
+ * synchronized since the format may also be changed from the UI thread.
+ */
+class CpuAdaptationController {
+  static final double HIGH_CPU_PERCENT = 85;
+  static final double LOW_CPU_PERCENT = 50;
+  static final double HIGH_ENCODE_USAGE_PERCENT = 85;
+  static final double LOW_ENCODE_USAGE_PERCENT = 50;
+  static final int OVERUSE_POLLS = 2;
+  static final double STEP_FACTOR = 0.6;
+  static final long DOWN_INTERVAL_MS = 10000;
+  static final long INITIAL_UP_DELAY_MS = 20000;
+  static final long MAX_UP_DELAY_MS = 240000;
+  // Formats are not stepped below this framerate.
+  static final int MIN_FRAMERATE = 10;
+
+  /** Receives the format to capture, on the thread that calls update(). */
+  public interface Listener {
+    void onCaptureFormatChange(int width, int height, int framerate, boolean overuse);
+  }
+
+  private final MetricsRegistry metrics;
+  private final Listener listener;
+  // The formats steps choose from, at most at the call's size and framerate.
+  private final List<CaptureFormat> formats = new ArrayList<CaptureFormat>();
+  private int maxWidth;
+  private int maxHeight;
+  private int maxFramerate;
+  private int width;
+  private int height;
+  private int framerate;
+  private int overusePolls;
+  private boolean overuse;
+  private boolean hasChanged;
+  private long lastChangeMs;
+  private boolean lastChangeWasUp;
+  private boolean underuse;
+  private boolean sendQualityLow;
+  private long underuseStartMs;
+  private long upDelayMs = INITIAL_UP_DELAY_MS;
+  // Start of the time without overuse or low quality since the last step.
+  private long stableSinceMs;
+
+  public CpuAdaptationController(MetricsRegistry metrics, Listener listener) {
+    this.metrics = metrics;
+    this.listener = listener;
+  }
+
+  // Sets the format chosen for the call, which steps up do not go beyond,
+  // and that is captured now.
+  public synchronized void setMaxCaptureFormat(int width, int height, int framerate) {
+    maxWidth = width;
+    maxHeight = height;
+    maxFramerate = framerate;
+    formats.clear();
+    formats.add(new CaptureFormat(width, height, 0, framerate * 1000));
+    for (CaptureFormat format : CaptureQualityController.FORMATS) {
+      if (format.width * format.height < width * height) {
+        formats.add(new CaptureFormat(format.width, format.height, 0,
+            Math.min(format.framerate.max, framerate * 1000)));
+      }
+    }
+    setCaptureFormat(width, height, framerate);
+  }
+
+  // Sets the format captured now if it was changed elsewhere.
+  public synchronized void setCaptureFormat(int width, int height, int framerate) {
+    this.width = width;
+    this.height = height;
+    this.framerate = framerate;
+  }
+
+  public synchronized boolean isOverusing() {
+    return overuse;
+  }
+
+  // Sets whether the send video quality is low, between the LOW and
+  // RECOVERED events of the CallQualityAnalyzer. Takes effect at the next
+  // update().
+  public synchronized void setSendQualityLow(boolean low) {
+    sendQualityLow = low;
+  }
+
+  long getUpDelayMs() {
+    return upDelayMs;
+  }
+
+  // Updates with the CpuMonitor average |cpuUsagePercent| and the encode
+  // usage of the send video stream at |timeMs|. Either may be NaN if not
+  // known. Returns true if the capture format was changed.
+  public synchronized boolean update(
+      long timeMs, double cpuUsagePercent, double encodeUsagePercent) {
+    if (maxWidth == 0 || maxHeight == 0 || maxFramerate == 0) {
+      return false;
+    }
+    // Comparisons with NaN are false, so an unknown input counts as neither
+    // high nor low, but not as all inputs being low.
+    boolean high = cpuUsagePercent >= HIGH_CPU_PERCENT
+        || encodeUsagePercent >= HIGH_ENCODE_USAGE_PERCENT;
+    boolean known = !Double.isNaN(cpuUsagePercent) || !Double.isNaN(encodeUsagePercent);
+    boolean low = known && !(cpuUsagePercent >= LOW_CPU_PERCENT)
+        && !(encodeUsagePercent >= LOW_ENCODE_USAGE_PERCENT);
+    overusePolls = high ? overusePolls + 1 : 0;
+    overuse = overusePolls >= OVERUSE_POLLS;
+    if (low && !underuse) {
+      underuseStartMs = timeMs;
+    }
+    underuse = low;
+    metrics.getGauge("CpuAdaptation.Overuse").set(overuse ? 1 : 0);
+
+    if (overuse || sendQualityLow) {
+      stableSinceMs = timeMs;
+    } else if (lastChangeWasUp && upDelayMs > INITIAL_UP_DELAY_MS
+        && timeMs - stableSinceMs >= upDelayMs) {
+      // The format of the step up held; the backoff is no longer needed.
+      upDelayMs = Math.max(INITIAL_UP_DELAY_MS, upDelayMs / 2);
+      stableSinceMs = timeMs;
+    }
+
+    long sinceChangeMs = hasChanged ? timeMs - lastChangeMs : Long.MAX_VALUE;
+    if ((overuse || sendQualityLow) && sinceChangeMs >= DOWN_INTERVAL_MS) {
+      if (lastChangeWasUp && sinceChangeMs < upDelayMs) {
+        // The step up was too much again; wait longer before the next.
+        upDelayMs = Math.min(MAX_UP_DELAY_MS, upDelayMs * 2);
+      }
+      return step(timeMs, false);
+    }
+    if (underuse && !sendQualityLow && timeMs - underuseStartMs >= upDelayMs) {
+      return step(timeMs, true);
+    }
+    return false;
+  }
+
+  private boolean step(long timeMs, boolean up) {
+    double bandwidth = getBandwidth(width, height, framerate);
+    double maxBandwidth = getBandwidth(maxWidth, maxHeight, maxFramerate);
+    double targetBandwidth =
+        up ? Math.min(maxBandwidth, bandwidth / STEP_FACTOR) : bandwidth * STEP_FACTOR;
+    CaptureFormat format = (up && targetBandwidth >= maxBandwidth)
+        ? formats.get(0)
+        : CaptureQualityController.getBestFormat(formats, targetBandwidth);
+    double newBandwidth = getBandwidth(format);
+    if (up ? newBandwidth <= bandwidth : newBandwidth >= bandwidth) {
+      format = getNeighborFormat(bandwidth, up);
+      if (format == null) {
+        // Already at the top or the bottom.
+        return false;
+      }
+    }
+    if (!up && format.framerate.max / 1000 < Math.min(MIN_FRAMERATE, maxFramerate)) {
+      return false;
+    }
+    width = format.width;
+    height = format.height;
+    framerate = format.framerate.max / 1000;
+    hasChanged = true;
+    lastChangeMs = timeMs;
+    lastChangeWasUp = up;
+    stableSinceMs = timeMs;
+    // Underuse has to last a full delay at the new format.
+    underuseStartMs = timeMs;
+    metrics.getCounter(up ? "CpuAdaptation.StepsUp" : "CpuAdaptation.StepsDown").increment();
+    listener.onCaptureFormatChange(width, height, framerate, !up);
+    return true;
+  }
+
+  // Returns the format with the next larger bandwidth than |bandwidth| if
+  // |up|, or the next smaller one, at its full framerate. Returns null if
+  // there is none.
+  private CaptureFormat getNeighborFormat(double bandwidth, boolean up) {
+    CaptureFormat neighbor = null;
+    for (CaptureFormat format : formats) {
+      double formatBandwidth = getBandwidth(format);
+      if (up ? formatBandwidth <= bandwidth : formatBandwidth >= bandwidth) {
+        continue;
+      }
+      if (neighbor == null
+          || (up ? formatBandwidth < getBandwidth(neighbor)
+                 : formatBandwidth > getBandwidth(neighbor))) {
+        neighbor = format;
+      }
+    }
+    return neighbor;
+  }
+
+  private static double getBandwidth(CaptureFormat format) {
+    return (double) format.width * format.height * format.framerate.max;
+  }
+
+  // Returns the capture bandwidth in millipixels / second, the unit of
+  // CaptureQualityController.
+  private static double getBandwidth(int width, int height, int framerate) {
+    return (double) width * height * framerate * 1000;
+  }
+}
@@ -17,12 +17,13 @@ import android.os.BatteryManager;
 import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Scanner;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -62,6 +63,17 @@ import java.util.concurrent.TimeUnit;
  * second, one would need to increase SAMPLE_SAVE_NUMBER and probably use
  * Queue<Integer> to avoid copying overhead.
  *
+ * <p>Kernel files are read with a ProcSampler, which keeps them open and
+ * parses them without allocating.
+ *
+ * <p>Each sample also computes the utilization of every core from the cpuN
+ * lines of /proc/stat, and the CPU use of the threads of this process from
+ * /proc/self/task, so getHotThreads() can tell which of the encoder, the
+ * renderer or the audio threads is busy. The battery state and the
+ * temperatures of /sys/class/thermal are sampled along, for
+ * getDeviceState(). The battery is read from its sticky broadcast once per
+ * CPU_STAT_LOG_PERIOD_MS, since registerReceiver() is a binder call.
+ *
  * <p>Known problems:
  *   1. Nexus 7 devices running Kitkat have a kernel which often output an
  *      incorrect 'idle' field in /proc/stat.  The value is close to twice the
@@ -72,11 +84,21 @@ import java.util.concurrent.TimeUnit;
 class CpuMonitor {
   private static final String TAG = "CpuMonitor";
   private static final int MOVING_AVERAGE_SAMPLES = 5;
+  private static final int HOT_THREAD_COUNT = 3;
+  private static final String THERMAL_DIR = "/sys/class/thermal";
+  // Thermal zone types that measure the surface or the battery rather than
+  // the SoC.
+  private static final String[] SURFACE_THERMAL_ZONE_TYPES = {
+      "skin", "battery", "case", "back", "shell", "quiet"};
 
   private static final int CPU_STAT_SAMPLE_PERIOD_MS = 2000;
   private static final int CPU_STAT_LOG_PERIOD_MS = 6000;
 
   private final Context appContext;
+  private final MetricsRegistry.Gauge cpuUsageCurrentGauge;
+  private final MetricsRegistry.Gauge cpuUsageAverageGauge;
+  private final MetricsRegistry.Gauge frequencyScaleAverageGauge;
+  private MetricsRegistry.Gauge[] coreUsageGauges;
   // User CPU usage at current frequency.
   private final MovingAverage userCpuUsage;
   // System CPU usage at current frequency.
@@ -92,22 +114,46 @@ class CpuMonitor {
   private int cpusPresent;
   private int actualCpusPresent;
   private boolean initialized;
+  private boolean released;
   private boolean cpuOveruse;
-  private String[] maxPath;
-  private String[] curPath;
+  private final ProcSampler procSampler = new ProcSampler();
+  private final long[] cpuTimes = new long[ProcSampler.CPU_TIME_FIELDS];
+  private ProcSampler.KernelFile[] maxFreqFiles;
+  private ProcSampler.KernelFile[] curFreqFiles;
   private double[] curFreqScales;
-  private ProcStat lastProcStat;
+  // Reused to sample without allocating.
+  private ProcStat procStat = new ProcStat();
+  private ProcStat lastProcStat = new ProcStat();
+  private long[][] coreTimes;
+  private long[][] lastCoreTimes;
+  // Busy fraction of each core over the last interval.
+  private double[] coreUsages;
+  private int onlineCores;
+  private final ThreadCpuSampler threadSampler = new ThreadCpuSampler(procSampler);
+  private List<ThreadCpuSampler.ThreadUsage> hotThreads =
+      Collections.<ThreadCpuSampler.ThreadUsage>emptyList();
+  // Gauges of the thread names seen so far, so their names are built once.
+  private final Map<String, MetricsRegistry.Gauge> threadGauges =
+      new HashMap<String, MetricsRegistry.Gauge>();
+  // Thread gauges set in the last and in the previous sample.
+  private List<MetricsRegistry.Gauge> hotThreadGauges = new ArrayList<MetricsRegistry.Gauge>();
+  private List<MetricsRegistry.Gauge> previousHotThreadGauges =
+      new ArrayList<MetricsRegistry.Gauge>();
+  private ProcSampler.KernelFile[] thermalZoneFiles;
+  private boolean[] surfaceThermalZones;
+  // Highest temperatures of the last sample, or NaN.
+  private double socTemperatureC = Double.NaN;
+  private double surfaceTemperatureC = Double.NaN;
+  private int batteryLevel = -1;
+  private boolean batteryCharging;
+  private double batteryTemperatureC = Double.NaN;
+  // Time of the last battery read, or 0 before the first one.
+  private long lastBatteryReadTimeMs;
 
   private static class ProcStat {
-    final long userTime;
-    final long systemTime;
-    final long idleTime;
-
-    ProcStat(long userTime, long systemTime, long idleTime) {
-      this.userTime = userTime;
-      this.systemTime = systemTime;
-      this.idleTime = idleTime;
-    }
+    long userTime;
+    long systemTime;
+    long idleTime;
   }
 
   private static class MovingAverage {
@@ -154,6 +200,10 @@ class CpuMonitor {
   public CpuMonitor(Context context) {
     Log.d(TAG, "CpuMonitor ctor.");
     appContext = context.getApplicationContext();
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    cpuUsageCurrentGauge = metrics.getGauge("CpuMonitor.CpuUsageCurrent");
+    cpuUsageAverageGauge = metrics.getGauge("CpuMonitor.CpuUsageAverage");
+    frequencyScaleAverageGauge = metrics.getGauge("CpuMonitor.FrequencyScaleAverage");
     userCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
     systemCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
     totalCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
@@ -172,11 +222,43 @@ class CpuMonitor {
   }
 
   public void resume() {
+    if (isReleased()) {
+      return;
+    }
     Log.d(TAG, "resume");
     resetStat();
     scheduleCpuUtilizationTask();
   }
 
+  // Stops sampling and closes the kernel files. A sample in progress on the
+  // executor thread is waited for, since it holds the files.
+  public void release() {
+    pause();
+    synchronized (this) {
+      Log.d(TAG, "release");
+      released = true;
+      if (curFreqFiles != null) {
+        for (int i = 0; i < cpusPresent; i++) {
+          if (maxFreqFiles[i] != null) {
+            maxFreqFiles[i].close();
+          }
+          curFreqFiles[i].close();
+        }
+      }
+      if (thermalZoneFiles != null) {
+        for (ProcSampler.KernelFile file : thermalZoneFiles) {
+          file.close();
+        }
+      }
+      threadSampler.close();
+      procSampler.close();
+    }
+  }
+
+  private synchronized boolean isReleased() {
+    return released;
+  }
+
   public synchronized void reset() {
     if (executor != null) {
       Log.d(TAG, "reset");
@@ -185,6 +267,11 @@ class CpuMonitor {
     }
   }
 
+  // Marks the CPU as overused in the stat log, as decided by the caller.
+  public synchronized void setCpuOveruse(boolean cpuOveruse) {
+    this.cpuOveruse = cpuOveruse;
+  }
+
   public synchronized int getCpuUsageCurrent() {
     return doubleToPercent(userCpuUsage.getCurrent() + systemCpuUsage.getCurrent());
   }
@@ -197,6 +284,28 @@ class CpuMonitor {
     return doubleToPercent(frequencyScale.getAverage());
   }
 
+  // Returns the thermal, battery and CPU state of the last sample.
+  public synchronized PerformanceGovernor.DeviceState getDeviceState() {
+    return new PerformanceGovernor.DeviceState(socTemperatureC, surfaceTemperatureC,
+        batteryLevel, batteryCharging, getCpuUsageAverage(), getFrequencyScaleAverage());
+  }
+
+  // Returns the utilization of each present core in percent over the last
+  // sample interval. Offline cores read 0.
+  public synchronized int[] getCoreUsages() {
+    int[] usages = new int[cpusPresent];
+    for (int i = 0; i < cpusPresent; i++) {
+      usages[i] = doubleToPercent(coreUsages[i]);
+    }
+    return usages;
+  }
+
+  // Returns the thread names of this process that used the most CPU time
+  // over the last sample interval, busiest first.
+  public synchronized List<ThreadCpuSampler.ThreadUsage> getHotThreads() {
+    return hotThreads;
+  }
+
   private void scheduleCpuUtilizationTask() {
     if (executor != null) {
       executor.shutdownNow();
@@ -213,7 +322,14 @@ class CpuMonitor {
   }
 
   private void cpuUtilizationTask() {
+    sampleDeviceState();
     boolean cpuMonitorAvailable = sampleCpuUtilization();
+    if (cpuMonitorAvailable) {
+      cpuUsageCurrentGauge.set(getCpuUsageCurrent());
+      cpuUsageAverageGauge.set(getCpuUsageAverage());
+      frequencyScaleAverageGauge.set(getFrequencyScaleAverage());
+      updateCoreAndThreadMetrics();
+    }
     if (cpuMonitorAvailable
         && SystemClock.elapsedRealtime() - lastStatLogTimeMs >= CPU_STAT_LOG_PERIOD_MS) {
       lastStatLogTimeMs = SystemClock.elapsedRealtime();
@@ -222,38 +338,59 @@ class CpuMonitor {
     }
   }
 
-  private void init() {
-    try {
-      FileReader fin = new FileReader("/sys/devices/system/cpu/present");
-      try {
-        BufferedReader reader = new BufferedReader(fin);
-        Scanner scanner = new Scanner(reader).useDelimiter("[-\n]");
-        scanner.nextInt(); // Skip leading number 0.
-        cpusPresent = 1 + scanner.nextInt();
-        scanner.close();
-      } catch (Exception e) {
-        Log.e(TAG, "Cannot do CPU stats due to /sys/devices/system/cpu/present parsing problem");
-      } finally {
-        fin.close();
+  private synchronized void updateCoreAndThreadMetrics() {
+    for (int i = 0; i < cpusPresent; i++) {
+      coreUsageGauges[i].set(doubleToPercent(coreUsages[i]));
+    }
+    List<MetricsRegistry.Gauge> gauges = previousHotThreadGauges;
+    previousHotThreadGauges = hotThreadGauges;
+    hotThreadGauges = gauges;
+    hotThreadGauges.clear();
+    for (int i = 0; i < hotThreads.size(); i++) {
+      ThreadCpuSampler.ThreadUsage thread = hotThreads.get(i);
+      MetricsRegistry.Gauge gauge = threadGauges.get(thread.name);
+      if (gauge == null) {
+        gauge = MetricsRegistry.getInstance().getGauge("CpuMonitor.Thread." + thread.name);
+        threadGauges.put(thread.name, gauge);
       }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Cannot do CPU stats since /sys/devices/system/cpu/present is missing");
-    } catch (IOException e) {
-      Log.e(TAG, "Error closing file");
+      gauge.set(thread.coreUsagePercent);
+      hotThreadGauges.add(gauge);
+    }
+    // Threads that left the top list read 0 rather than their last value.
+    for (int i = 0; i < previousHotThreadGauges.size(); i++) {
+      MetricsRegistry.Gauge gauge = previousHotThreadGauges.get(i);
+      if (!hotThreadGauges.contains(gauge)) {
+        gauge.set(0);
+      }
+    }
+  }
+
+  private void init() {
+    cpusPresent = procSampler.readCpuCount("/sys/devices/system/cpu/present");
+    if (cpusPresent == 0) {
+      Log.e(TAG, "Cannot do CPU stats since /sys/devices/system/cpu/present can not be read");
     }
 
     cpuFreqMax = new long[cpusPresent];
-    maxPath = new String[cpusPresent];
-    curPath = new String[cpusPresent];
+    maxFreqFiles = new ProcSampler.KernelFile[cpusPresent];
+    curFreqFiles = new ProcSampler.KernelFile[cpusPresent];
     curFreqScales = new double[cpusPresent];
+    coreTimes = new long[cpusPresent][ProcSampler.CPU_TIME_FIELDS];
+    lastCoreTimes = new long[cpusPresent][ProcSampler.CPU_TIME_FIELDS];
+    coreUsages = new double[cpusPresent];
+    coreUsageGauges = new MetricsRegistry.Gauge[cpusPresent];
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
     for (int i = 0; i < cpusPresent; i++) {
+      coreUsageGauges[i] = metrics.getGauge("CpuMonitor.Core" + i + "Usage");
       cpuFreqMax[i] = 0; // Frequency "not yet determined".
       curFreqScales[i] = 0;
-      maxPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq";
-      curPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq";
+      maxFreqFiles[i] =
+          procSampler.open("/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq");
+      curFreqFiles[i] =
+          procSampler.open("/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq");
     }
 
-    lastProcStat = new ProcStat(0, 0, 0);
+    lastProcStat = new ProcStat();
     resetStat();
 
     initialized = true;
@@ -264,21 +401,99 @@ class CpuMonitor {
     systemCpuUsage.reset();
     totalCpuUsage.reset();
     frequencyScale.reset();
+    if (coreUsages != null) {
+      Arrays.fill(coreUsages, 0);
+    }
+    hotThreads = Collections.<ThreadCpuSampler.ThreadUsage>emptyList();
     lastStatLogTimeMs = SystemClock.elapsedRealtime();
   }
 
-  private int getBatteryLevel() {
-    // Use sticky broadcast with null receiver to read battery level once only.
+  private void initThermalZones() {
+    String[] zones = new File(THERMAL_DIR).list();
+    int count = 0;
+    if (zones != null) {
+      for (String zone : zones) {
+        if (zone.startsWith("thermal_zone")) {
+          zones[count++] = zone;
+        }
+      }
+    }
+    thermalZoneFiles = new ProcSampler.KernelFile[count];
+    surfaceThermalZones = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      String path = THERMAL_DIR + "/" + zones[i];
+      thermalZoneFiles[i] = procSampler.open(path + "/temp");
+      String type = procSampler.readString(path + "/type");
+      if (type != null) {
+        type = type.toLowerCase();
+        for (String surfaceType : SURFACE_THERMAL_ZONE_TYPES) {
+          surfaceThermalZones[i] |= type.contains(surfaceType);
+        }
+      }
+    }
+    Log.d(TAG, "Thermal zones: " + count);
+  }
+
+  // Samples the battery and the highest temperatures of the SoC and the
+  // surface.
+  private synchronized void sampleDeviceState() {
+    // A task that started before release() would open the files again.
+    if (released) {
+      return;
+    }
+    if (thermalZoneFiles == null) {
+      initThermalZones();
+    }
+    long nowMs = SystemClock.elapsedRealtime();
+    if (lastBatteryReadTimeMs == 0 || nowMs - lastBatteryReadTimeMs >= CPU_STAT_LOG_PERIOD_MS) {
+      lastBatteryReadTimeMs = nowMs;
+      readBatteryState();
+    }
+
+    socTemperatureC = Double.NaN;
+    surfaceTemperatureC = batteryTemperatureC;
+    for (int i = 0; i < thermalZoneFiles.length; i++) {
+      long value = procSampler.readLong(thermalZoneFiles[i]);
+      // Most kernels report millidegrees, some degrees. Zones without a
+      // sensor report 0 or nonsense.
+      double temperatureC = value >= 1000 ? value / 1000.0 : value;
+      if (temperatureC <= 0 || temperatureC > 150) {
+        continue;
+      }
+      if (surfaceThermalZones[i]) {
+        surfaceTemperatureC = Double.isNaN(surfaceTemperatureC)
+            ? temperatureC
+            : Math.max(surfaceTemperatureC, temperatureC);
+      } else {
+        socTemperatureC = Double.isNaN(socTemperatureC)
+            ? temperatureC
+            : Math.max(socTemperatureC, temperatureC);
+      }
+    }
+  }
+
+  // Reads the level, charging state and temperature of the battery.
+  private void readBatteryState() {
+    // Use sticky broadcast with null receiver to read battery state once only.
     Intent intent = appContext.registerReceiver(
         null /* receiver */, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-
-    int batteryLevel = 0;
-    int batteryScale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
-    if (batteryScale > 0) {
-      batteryLevel =
-          (int) (100f * intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0) / batteryScale);
+    batteryTemperatureC = Double.NaN;
+    if (intent != null) {
+      int batteryScale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+      if (batteryScale > 0) {
+        batteryLevel =
+            (int) (100f * intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0) / batteryScale);
+      }
+      int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+      batteryCharging = status == BatteryManager.BATTERY_STATUS_CHARGING
+          || status == BatteryManager.BATTERY_STATUS_FULL
+          || intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+      int temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+      if (temperature != Integer.MIN_VALUE) {
+        // In tenths of a degree.
+        batteryTemperatureC = temperature / 10.0;
+      }
     }
-    return batteryLevel;
   }
 
   /**
@@ -294,6 +509,9 @@ class CpuMonitor {
     long cpuFreqCurSum = 0;
     long cpuFreqMaxSum = 0;
 
+    if (released) {
+      return false;
+    }
     if (!initialized) {
       init();
     }
@@ -312,18 +530,19 @@ class CpuMonitor {
       curFreqScales[i] = 0;
       if (cpuFreqMax[i] == 0) {
         // We have never found this CPU's max frequency.  Attempt to read it.
-        long cpufreqMax = readFreqFromFile(maxPath[i]);
+        long cpufreqMax = procSampler.readLong(maxFreqFiles[i]);
         if (cpufreqMax > 0) {
           Log.d(TAG, "Core " + i + ". Max frequency: " + cpufreqMax);
           lastSeenMaxFreq = cpufreqMax;
           cpuFreqMax[i] = cpufreqMax;
-          maxPath[i] = null; // Kill path to free its memory.
+          maxFreqFiles[i].close();
+          maxFreqFiles[i] = null; // It is never read again.
         }
       } else {
         lastSeenMaxFreq = cpuFreqMax[i]; // A valid, previously read value.
       }
 
-      long cpuFreqCur = readFreqFromFile(curPath[i]);
+      long cpuFreqCur = procSampler.readLong(curFreqFiles[i]);
       if (cpuFreqCur == 0 && lastSeenMaxFreq == 0) {
         // No current frequency information for this CPU core - ignore it.
         continue;
@@ -362,8 +581,7 @@ class CpuMonitor {
       currentFrequencyScale = (frequencyScale.getCurrent() + currentFrequencyScale) * 0.5;
     }
 
-    ProcStat procStat = readProcStat();
-    if (procStat == null) {
+    if (!readProcStat(procStat)) {
       return false;
     }
 
@@ -389,12 +607,46 @@ class CpuMonitor {
         (currentUserCpuUsage + currentSystemCpuUsage) * currentFrequencyScale;
     totalCpuUsage.addValue(currentTotalCpuUsage);
 
+    onlineCores = 0;
+    for (int i = 0; i < cpusPresent; i++) {
+      coreUsages[i] = getBusyFraction(coreTimes[i], lastCoreTimes[i]);
+      if (coreTimes[i][ProcSampler.IDLE] > 0) {
+        onlineCores++;
+      }
+    }
+    if (threadSampler.sample() > 0 && onlineCores > 0) {
+      hotThreads = threadSampler.getTopThreads(HOT_THREAD_COUNT, allTime / (double) onlineCores);
+    }
+
     // Save new measurements for next round's deltas.
+    ProcStat previousProcStat = lastProcStat;
     lastProcStat = procStat;
+    procStat = previousProcStat;
+    long[][] previousCoreTimes = lastCoreTimes;
+    lastCoreTimes = coreTimes;
+    coreTimes = previousCoreTimes;
 
     return true;
   }
 
+  // Returns the busy fraction of a core between the /proc/stat fields
+  // |lastTimes| and |times|, or 0 if it was offline in between.
+  private static double getBusyFraction(long[] times, long[] lastTimes) {
+    long busyTime = 0;
+    long allTime = 0;
+    for (int i = 0; i < ProcSampler.CPU_TIME_FIELDS; i++) {
+      long diff = times[i] - lastTimes[i];
+      if (diff < 0) {
+        return 0;
+      }
+      allTime += diff;
+      if (i != ProcSampler.IDLE) {
+        busyTime += diff;
+      }
+    }
+    return allTime > 0 ? busyTime / (double) allTime : 0;
+  }
+
   private int doubleToPercent(double d) {
     return (int) (d * 100 + 0.5);
   }
@@ -423,88 +675,41 @@ class CpuMonitor {
     for (int i = 0; i < cpusPresent; i++) {
       stat.append(doubleToPercent(curFreqScales[i])).append(" ");
     }
-    stat.append("). Battery: ").append(getBatteryLevel());
+    stat.append("). Core usage: ( ");
+    for (int i = 0; i < cpusPresent; i++) {
+      stat.append(doubleToPercent(coreUsages[i])).append(" ");
+    }
+    stat.append("). Hot threads: ").append(hotThreads);
+    stat.append(". Battery: ").append(batteryLevel);
+    if (batteryCharging) {
+      stat.append(" charging");
+    }
+    stat.append(". Temperature SoC: ").append(Math.round(socTemperatureC))
+        .append(" surface: ").append(Math.round(surfaceTemperatureC));
     if (cpuOveruse) {
       stat.append(". Overuse.");
     }
     return stat.toString();
   }
 
-  /**
-   * Read a single integer value from the named file.  Return the read value
-   * or if an error occurs return 0.
-   */
-  private long readFreqFromFile(String fileName) {
-    long number = 0;
-    try {
-      BufferedReader reader = new BufferedReader(new FileReader(fileName));
-      try {
-        String line = reader.readLine();
-        number = parseLong(line);
-      } finally {
-        reader.close();
-      }
-    } catch (FileNotFoundException e) {
-      // CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-      // is not present. This is not an error.
-    } catch (IOException e) {
-      // CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-      // is empty. This is not an error.
-    }
-    return number;
-  }
-
-  private static long parseLong(String value) {
-    long number = 0;
-    try {
-      number = Long.parseLong(value);
-    } catch (NumberFormatException e) {
-      Log.e(TAG, "parseLong error.", e);
-    }
-    return number;
-  }
-
   /*
    * Read the current utilization of all CPUs using the cumulative first line
-   * of /proc/stat.
+   * of /proc/stat into |procStat|, and the per core lines into coreTimes.
    */
-  private ProcStat readProcStat() {
-    long userTime = 0;
-    long systemTime = 0;
-    long idleTime = 0;
-    try {
-      BufferedReader reader = new BufferedReader(new FileReader("/proc/stat"));
-      try {
-        // line should contain something like this:
-        // cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
-        //       user    nice  system     idle   iowait  irq   softirq
-        String line = reader.readLine();
-        String lines[] = line.split("\\s+");
-        int length = lines.length;
-        if (length >= 5) {
-          userTime = parseLong(lines[1]); // user
-          userTime += parseLong(lines[2]); // nice
-          systemTime = parseLong(lines[3]); // system
-          idleTime = parseLong(lines[4]); // idle
-        }
-        if (length >= 8) {
-          userTime += parseLong(lines[5]); // iowait
-          systemTime += parseLong(lines[6]); // irq
-          systemTime += parseLong(lines[7]); // softirq
-        }
-      } catch (Exception e) {
-        Log.e(TAG, "Problems parsing /proc/stat", e);
-        return null;
-      } finally {
-        reader.close();
-      }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Cannot open /proc/stat for reading", e);
-      return null;
-    } catch (IOException e) {
-      Log.e(TAG, "Problems reading /proc/stat", e);
-      return null;
-    }
-    return new ProcStat(userTime, systemTime, idleTime);
+  private boolean readProcStat(ProcStat procStat) {
+    // line should contain something like this:
+    // cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
+    //       user    nice  system     idle   iowait  irq   softirq
+    // Missing fields of older kernels read as 0.
+    if (procSampler.readCpuTimes(cpuTimes, coreTimes) <= ProcSampler.IDLE) {
+      Log.e(TAG, "Problems reading /proc/stat");
+      return false;
+    }
+    procStat.userTime = cpuTimes[ProcSampler.USER] + cpuTimes[ProcSampler.NICE]
+        + cpuTimes[ProcSampler.IOWAIT];
+    procStat.systemTime = cpuTimes[ProcSampler.SYSTEM] + cpuTimes[ProcSampler.IRQ]
+        + cpuTimes[ProcSampler.SOFTIRQ];
+    procStat.idleTime = cpuTimes[ProcSampler.IDLE];
+    return true;
   }
 }
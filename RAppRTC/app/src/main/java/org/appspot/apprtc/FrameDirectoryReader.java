@@ -0,0 +1,247 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads a video from a directory with a raw frame per file, for content
+ * that is too large to convert to a single file first.
+ *
+ * <p>Frame files are ordered by the last number in their name, e.g.
+ * frame_0001.yuv, and each holds one frame in the format of the sidecar
+ * file video.properties in the directory, see RawVideoReader. The
+ * constructor only lists the files and checks their sizes; a frame is read
+ * when it is handed out, into a buffer of its holder, so nothing is
+ * allocated per frame.
+ *
+ * <p>Thread-safe; frames may be released on another thread than the one
+ * that got them.
+ */
+class FrameDirectoryReader implements VideoReader {
+  private static final String TAG = "FrameDirectoryReader";
+  static final String SIDECAR_NAME = "video.properties";
+
+  private static class LoadedFrame implements Frame {
+    private final FrameDirectoryReader reader;
+    // The file contents, and the I420 frame converted from another format.
+    private final ByteBuffer raw;
+    private final ByteBuffer converted;
+    private final YuvFrameConverter converter;
+    private ByteBuffer data;
+    private int index;
+
+    private LoadedFrame(FrameDirectoryReader reader) {
+      this.reader = reader;
+      raw = ByteBuffer.allocateDirect(reader.frameSize);
+      if (reader.format == PixelFormat.I420) {
+        converted = null;
+        converter = null;
+      } else {
+        converted = ByteBuffer.allocate(reader.frameWidth * reader.frameHeight * 3 / 2);
+        converter = new YuvFrameConverter();
+      }
+    }
+
+    @Override
+    public ByteBuffer getData() {
+      return data;
+    }
+
+    @Override
+    public int getIndex() {
+      return index;
+    }
+
+    @Override
+    public void release() {
+      reader.release(this);
+    }
+  }
+
+  private final String path;
+  private final PixelFormat format;
+  private final int frameWidth;
+  private final int frameHeight;
+  private final int frameSize;
+  private final long frameIntervalNs;
+  private final File[] frameFiles;
+  private final ArrayDeque<LoadedFrame> pool =
+      new ArrayDeque<LoadedFrame>(MappedVideoReader.POOL_SIZE);
+  private int nextFrameIndex;
+
+  public FrameDirectoryReader(String path) throws IOException {
+    this.path = path;
+    File directory = new File(path);
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Not a directory: " + path);
+    }
+    RawVideoReader.Sidecar sidecar =
+        RawVideoReader.Sidecar.read(new File(directory, SIDECAR_NAME));
+    format = sidecar.format;
+    frameWidth = sidecar.width;
+    frameHeight = sidecar.height;
+    frameSize = format.getFrameSize(frameWidth, frameHeight);
+    frameIntervalNs = sidecar.frameIntervalNs;
+
+    List<File> frames = new ArrayList<File>();
+    for (File file : files) {
+      if (!file.isFile() || file.getName().equals(SIDECAR_NAME)
+          || getFrameNumber(file.getName()) < 0) {
+        continue;
+      }
+      if (file.length() != frameSize) {
+        throw new IOException(
+            "Frame file " + file + " has " + file.length() + " bytes instead of " + frameSize);
+      }
+      frames.add(file);
+    }
+    if (frames.isEmpty()) {
+      throw new IOException("No frames in " + path);
+    }
+    Collections.sort(frames, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        int result = Long.compare(getFrameNumber(lhs.getName()), getFrameNumber(rhs.getName()));
+        return (result != 0) ? result : lhs.getName().compareTo(rhs.getName());
+      }
+    });
+    frameFiles = frames.toArray(new File[frames.size()]);
+    for (int i = 0; i < MappedVideoReader.POOL_SIZE; i++) {
+      pool.add(new LoadedFrame(this));
+    }
+    Log.d(TAG, "Opened " + path + ": " + frameWidth + "x" + frameHeight + " " + format + ", "
+            + frameFiles.length + " frames, frame interval " + frameIntervalNs + " ns");
+  }
+
+  // Returns the last number in |name|, or -1 if there is none.
+  static long getFrameNumber(String name) {
+    int end = name.length();
+    while (end > 0 && !Character.isDigit(name.charAt(end - 1))) {
+      end--;
+    }
+    int start = end;
+    while (start > 0 && Character.isDigit(name.charAt(start - 1))) {
+      start--;
+    }
+    if (start == end) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(name.substring(start, end));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  @Override
+  public int getFrameWidth() {
+    return frameWidth;
+  }
+
+  @Override
+  public int getFrameHeight() {
+    return frameHeight;
+  }
+
+  @Override
+  public int getFrameCount() {
+    return frameFiles.length;
+  }
+
+  @Override
+  public long getFrameIntervalNs() {
+    return frameIntervalNs;
+  }
+
+  @Override
+  public synchronized Frame getNextFrame() {
+    Frame frame = getFrame(nextFrameIndex);
+    if (frame != null) {
+      nextFrameIndex = (nextFrameIndex + 1) % frameFiles.length;
+    }
+    return frame;
+  }
+
+  @Override
+  public Frame getFrame(int index) {
+    if (index < 0 || index >= frameFiles.length) {
+      throw new IndexOutOfBoundsException("Frame " + index + " of " + frameFiles.length);
+    }
+    LoadedFrame frame;
+    synchronized (this) {
+      frame = pool.poll();
+    }
+    if (frame == null) {
+      return null;
+    }
+    // Read outside the lock, so that frames can be released meanwhile.
+    try {
+      load(frameFiles[index], frame.raw);
+    } catch (IOException e) {
+      synchronized (this) {
+        pool.add(frame);
+      }
+      throw new RuntimeException("Error reading " + frameFiles[index], e);
+    }
+    if (format == PixelFormat.I420) {
+      frame.data = frame.raw;
+    } else {
+      MappedVideoReader.convertToI420(
+          frame.converter, format, frame.raw, frameWidth, frameHeight, frame.converted);
+      frame.data = frame.converted;
+    }
+    frame.index = index;
+    return frame;
+  }
+
+  private static void load(File file, ByteBuffer buffer) throws IOException {
+    buffer.clear();
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new IOException("Frame file " + file + " is truncated");
+        }
+      }
+    } finally {
+      in.close();
+    }
+    buffer.flip();
+  }
+
+  private synchronized void release(LoadedFrame frame) {
+    if (frame.data == null) {
+      throw new IllegalStateException("Frame released twice");
+    }
+    frame.data = null;
+    pool.add(frame);
+  }
+
+  @Override
+  public synchronized void close() {
+    pool.clear();
+    Log.d(TAG, "Closed " + path);
+  }
+}
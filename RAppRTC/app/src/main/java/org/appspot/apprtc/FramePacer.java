@@ -0,0 +1,255 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Paces the frames of a video file on a monotonic nanosecond clock.
+ *
+ * <p>Frame n is due at startNs + n * frameIntervalNs / speed. Due times are
+ * computed from the start, not from the previous frame, so a late wakeup
+ * does not delay the frames after it: they are delivered right away until
+ * the schedule is caught up. If a frame is more than MAX_LATENESS_FRAMES
+ * intervals late, e.g. after the device was suspended, the schedule is
+ * restarted from the current time instead of delivering a burst. The
+ * timestamp of a frame is its due time, so it does not carry the jitter of
+ * the wakeup.
+ *
+ * <p>Besides real time, at speed 1, the pacer can run faster or slower
+ * than real time, as fast as possible at speed 0, or in frame-step mode,
+ * where each frame waits for a step() call. When there is no schedule, at
+ * speed 0 or in frame-step mode, timestamps advance by frameIntervalNs per
+ * frame, so that they keep the frame rate of the file.
+ *
+ * <p>awaitFrame() is called on the capture thread; the other methods may
+ * be called on any thread.
+ */
+class FramePacer {
+  // Frames later than this are counted as late.
+  static final double LATE_FRAMES = 0.25;
+  static final int MAX_LATENESS_FRAMES = 3;
+
+  /** A monotonic clock in nanoseconds. */
+  public interface Clock {
+    long nanoTime();
+  }
+
+  private final Clock clock;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private long frameIntervalNs;
+  private double speed = 1;
+  private boolean frameStep;
+  private int pendingSteps;
+  private boolean running;
+  // Start of the schedule and frames delivered since.
+  private boolean started;
+  private long startNs;
+  private long scheduledFrames;
+  private long lastTimestampNs;
+  private long frames;
+  private long lateFrames;
+  private long resyncs;
+
+  public FramePacer(Clock clock, long frameIntervalNs) {
+    if (frameIntervalNs <= 0) {
+      throw new IllegalArgumentException("Frame interval must be positive: " + frameIntervalNs);
+    }
+    this.clock = clock;
+    this.frameIntervalNs = frameIntervalNs;
+  }
+
+  // Returns the interval of a |framerate| of |numerator| / |denominator|
+  // frames per second.
+  public static long getFrameIntervalNs(int numerator, int denominator) {
+    return TimeUnit.SECONDS.toNanos(denominator) / numerator;
+  }
+
+  // Starts delivering frames, with the first one due now.
+  public void start() {
+    lock.lock();
+    try {
+      running = true;
+      started = false;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Makes awaitFrame() return -1 until the next start().
+  public void stop() {
+    lock.lock();
+    try {
+      running = false;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void setFrameIntervalNs(long frameIntervalNs) {
+    if (frameIntervalNs <= 0) {
+      throw new IllegalArgumentException("Frame interval must be positive: " + frameIntervalNs);
+    }
+    lock.lock();
+    try {
+      this.frameIntervalNs = frameIntervalNs;
+      restartSchedule();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Plays at |speed| times real time, or as fast as possible if 0.
+  public void setSpeed(double speed) {
+    if (speed < 0 || Double.isNaN(speed)) {
+      throw new IllegalArgumentException("Invalid speed: " + speed);
+    }
+    lock.lock();
+    try {
+      this.speed = speed;
+      restartSchedule();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // In frame-step mode, each frame waits for a step().
+  public void setFrameStep(boolean frameStep) {
+    lock.lock();
+    try {
+      this.frameStep = frameStep;
+      pendingSteps = 0;
+      restartSchedule();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Lets |count| more frames through in frame-step mode.
+  public void step(int count) {
+    lock.lock();
+    try {
+      pendingSteps += count;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Waits until the next frame is due. Returns its timestamp in ns of the
+  // clock, or -1 if the pacer is stopped.
+  public long awaitFrame() throws InterruptedException {
+    lock.lock();
+    try {
+      while (true) {
+        if (!running) {
+          return -1;
+        }
+        long nowNs = clock.nanoTime();
+        if (!started) {
+          started = true;
+          startNs = nowNs;
+          scheduledFrames = 0;
+        }
+        if (frameStep || speed == 0) {
+          if (frameStep && pendingSteps == 0) {
+            changed.await();
+            continue;
+          }
+          if (frameStep) {
+            pendingSteps--;
+          }
+          long timestampNs = (frames == 0) ? nowNs : lastTimestampNs + frameIntervalNs;
+          return deliver(timestampNs);
+        }
+        long dueNs = getDueNs(scheduledFrames);
+        long waitNs = dueNs - nowNs;
+        if (waitNs > 0) {
+          changed.awaitNanos(waitNs);
+          continue;
+        }
+        double latenessFrames = (double) -waitNs * speed / frameIntervalNs;
+        if (latenessFrames > MAX_LATENESS_FRAMES) {
+          // Too far behind to catch up; start over from now.
+          resyncs++;
+          startNs = nowNs;
+          scheduledFrames = 0;
+          dueNs = nowNs;
+        } else if (latenessFrames > LATE_FRAMES) {
+          lateFrames++;
+        }
+        scheduledFrames++;
+        return deliver(dueNs);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Returns false if frames are not paced by the clock, when playing as fast
+  // as possible or in frame-step mode.
+  public boolean isPaced() {
+    lock.lock();
+    try {
+      return !frameStep && speed != 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long deliver(long timestampNs) {
+    frames++;
+    lastTimestampNs = timestampNs;
+    return timestampNs;
+  }
+
+  private long getDueNs(long frame) {
+    return startNs + (long) (frame * frameIntervalNs / speed);
+  }
+
+  // Schedules the next frame from now, after a change of pace.
+  private void restartSchedule() {
+    started = false;
+    changed.signalAll();
+  }
+
+  public long getFrames() {
+    lock.lock();
+    try {
+      return frames;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getLateFrames() {
+    lock.lock();
+    try {
+      return lateFrames;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getResyncs() {
+    lock.lock();
+    try {
+      return resyncs;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads and converts the frames of a video file to NV21 ahead of capture.
+ *
+ * <p>A background thread reads the next frames from the VideoReader and
+ * converts them into a ring of |depth| buffers, which are recycled with
+ * release(), so that the capture thread only dequeues frames and does no
+ * I/O or conversion. Frames are numbered by a sequence number that counts
+ * capture ticks; frame n of the file is captured at tick n modulo the
+ * number of frames.
+ *
+ * <p>If the frame of a tick is not ready, the tick is late and the frame is
+ * dropped, like a camera drops the frames it could not deliver, so that
+ * the video stays in time. The prefetch thread then skips to the frame of
+ * the latest tick. When the capture is not paced, take() can instead wait
+ * for the frame. Late and dropped frames are counted in the
+ * MetricsRegistry, together with a histogram of the time to prefetch a
+ * frame.
+ */
+class FramePrefetcher {
+  private static final String TAG = "FramePrefetcher";
+  private static final long MAX_PREFETCH_TIME_US = TimeUnit.SECONDS.toMicros(1);
+
+  /** A converted frame, owned by the caller of take() until release(). */
+  public static class Slot {
+    private final byte[] data;
+    private final ByteBuffer buffer;
+    private long sequence;
+
+    private Slot(int size) {
+      data = new byte[size];
+      buffer = ByteBuffer.wrap(data);
+    }
+
+    // Returns the frame in NV21.
+    public byte[] getData() {
+      return data;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+  }
+
+  private final VideoReader reader;
+  private final YuvFrameConverter converter;
+  private final MetricsRegistry.Counter lateFrameCounter;
+  private final MetricsRegistry.Counter droppedFrameCounter;
+  private final MetricsRegistry.Histogram prefetchTimeHistogram;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition slotFreed = lock.newCondition();
+  private final Condition frameReady = lock.newCondition();
+  // Slots to prefetch into, and prefetched slots in sequence order.
+  private final ArrayDeque<Slot> freeSlots;
+  private final ArrayDeque<Slot> readySlots;
+  private boolean running;
+  private Thread thread;
+  // Next sequence to prefetch, and the latest one asked for by take().
+  private long nextSequence;
+  private long requestedSequence;
+  private long prefetchedFrames;
+  private long lateFrames;
+  private long droppedFrames;
+
+  private final Runnable prefetchLoop = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        while (prefetchNextFrame()) {
+        }
+      } catch (InterruptedException e) {
+        Log.d(TAG, "Prefetch thread interrupted");
+      }
+    }
+  };
+
+  // Prefetches |depth| frames of |reader|. |converter| is only used on the
+  // prefetch thread.
+  public FramePrefetcher(VideoReader reader, YuvFrameConverter converter, int depth,
+      MetricsRegistry metrics) {
+    if (depth < 1) {
+      throw new IllegalArgumentException("Invalid prefetch depth: " + depth);
+    }
+    this.reader = reader;
+    this.converter = converter;
+    lateFrameCounter = metrics.getCounter("FramePrefetcher.LateFrames");
+    droppedFrameCounter = metrics.getCounter("FramePrefetcher.DroppedFrames");
+    prefetchTimeHistogram =
+        metrics.getHistogram("FramePrefetcher.PrefetchTimeUs", MAX_PREFETCH_TIME_US);
+    freeSlots = new ArrayDeque<Slot>(depth);
+    readySlots = new ArrayDeque<Slot>(depth);
+    int frameSize = reader.getFrameWidth() * reader.getFrameHeight() * 3 / 2;
+    for (int i = 0; i < depth; i++) {
+      freeSlots.add(new Slot(frameSize));
+    }
+  }
+
+  // Starts prefetching at |firstSequence|.
+  public void start(long firstSequence) {
+    lock.lock();
+    try {
+      if (running) {
+        throw new IllegalStateException("Already started");
+      }
+      running = true;
+      nextSequence = firstSequence;
+      requestedSequence = firstSequence;
+    } finally {
+      lock.unlock();
+    }
+    thread = new Thread(prefetchLoop, TAG);
+    thread.start();
+  }
+
+  // Stops the prefetch thread and discards the prefetched frames. Slots that
+  // are taken may still be released afterwards.
+  public void stop() throws InterruptedException {
+    lock.lock();
+    try {
+      running = false;
+      slotFreed.signalAll();
+      frameReady.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (thread != null) {
+      thread.join();
+      thread = null;
+    }
+    lock.lock();
+    try {
+      freeSlots.addAll(readySlots);
+      readySlots.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Waits until the ring is filled, before the first take().
+  public void awaitFilled() throws InterruptedException {
+    lock.lock();
+    try {
+      while (running && !freeSlots.isEmpty()) {
+        frameReady.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Returns the frame of tick |sequence|, or null if it is not ready, in
+  // which case it is dropped. If |wait|, waits for the frame instead, unless
+  // the prefetcher is stopped. Sequences must not decrease between calls.
+  public Slot take(long sequence, boolean wait) throws InterruptedException {
+    lock.lock();
+    try {
+      requestedSequence = Math.max(requestedSequence, sequence);
+      while (true) {
+        // Frames of earlier ticks came too late.
+        while (!readySlots.isEmpty() && readySlots.peek().sequence < sequence) {
+          freeSlot(readySlots.poll());
+          droppedFrames++;
+          droppedFrameCounter.increment();
+        }
+        if (!readySlots.isEmpty() && readySlots.peek().sequence == sequence) {
+          return readySlots.poll();
+        }
+        // The prefetch thread is past |sequence| only if sequences decreased.
+        if (!wait || !running || !readySlots.isEmpty()) {
+          lateFrames++;
+          lateFrameCounter.increment();
+          return null;
+        }
+        frameReady.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Returns a slot from take() to the ring.
+  public void release(Slot slot) {
+    lock.lock();
+    try {
+      freeSlot(slot);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void freeSlot(Slot slot) {
+    freeSlots.add(slot);
+    slotFreed.signalAll();
+  }
+
+  // Prefetches a frame on the prefetch thread. Returns false when stopped.
+  private boolean prefetchNextFrame() throws InterruptedException {
+    Slot slot;
+    long sequence;
+    lock.lock();
+    try {
+      while (running && freeSlots.isEmpty()) {
+        slotFreed.await();
+      }
+      if (!running) {
+        return false;
+      }
+      slot = freeSlots.poll();
+      // Skip the frames of ticks that were missed.
+      sequence = Math.max(nextSequence, requestedSequence);
+      long skipped = sequence - nextSequence;
+      droppedFrames += skipped;
+      droppedFrameCounter.add(skipped);
+      nextSequence = sequence + 1;
+    } finally {
+      lock.unlock();
+    }
+
+    long startNs = System.nanoTime();
+    VideoReader.Frame frame = reader.getFrame((int) (sequence % reader.getFrameCount()));
+    try {
+      converter.i420ToNV21(
+          frame.getData(), reader.getFrameWidth(), reader.getFrameHeight(), slot.buffer);
+    } finally {
+      frame.release();
+    }
+    prefetchTimeHistogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNs));
+
+    lock.lock();
+    try {
+      slot.sequence = sequence;
+      readySlots.add(slot);
+      prefetchedFrames++;
+      frameReady.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    return true;
+  }
+
+  public long getPrefetchedFrames() {
+    lock.lock();
+    try {
+      return prefetchedFrames;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getLateFrames() {
+    lock.lock();
+    try {
+      return lateFrames;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Returns the number of frames skipped or discarded because they were not
+  // ready in time.
+  public long getDroppedFrames() {
+    lock.lock();
+    try {
+      return droppedFrames;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
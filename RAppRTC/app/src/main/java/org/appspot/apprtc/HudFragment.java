@@ -21,9 +21,6 @@ import android.widget.TextView;
 
 import org.webrtc.StatsReport;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Fragment for HUD statistics display.
  */
@@ -35,10 +32,35 @@ public class HudFragment extends Fragment {
   private TextView hudViewVideoSend;
   private TextView hudViewVideoRecv;
   private ImageButton toggleDebugButton;
-  private boolean videoCallEnabled;
-  private boolean displayHud;
+  // Read by formatStatistics() on the stats callback thread.
+  private volatile boolean videoCallEnabled;
+  private volatile boolean displayHud;
   private volatile boolean isRunning;
-  private CpuMonitor cpuMonitor;
+  private volatile CpuMonitor cpuMonitor;
+  // Only used on the stats callback thread. Null until setStatsStore().
+  private volatile HudModel hudModel;
+  private final HudModel.TextSink textSink = new HudModel.TextSink() {
+    @Override
+    public void setText(int section, String text) {
+      switch (section) {
+        case HudModel.SECTION_ENCODER:
+          encoderStatView.setText(text);
+          break;
+        case HudModel.SECTION_BWE:
+          hudViewBwe.setText(text);
+          break;
+        case HudModel.SECTION_CONNECTION:
+          hudViewConnection.setText(text);
+          break;
+        case HudModel.SECTION_VIDEO_SEND:
+          hudViewVideoSend.setText(text);
+          break;
+        case HudModel.SECTION_VIDEO_RECV:
+          hudViewVideoRecv.setText(text);
+          break;
+      }
+    }
+  };
 
   @Override
   public View onCreateView(
@@ -80,6 +102,8 @@ public class HudFragment extends Fragment {
     encoderStatView.setVisibility(visibility);
     toggleDebugButton.setVisibility(visibility);
     hudViewsSetProperties(View.INVISIBLE);
+    // The views may have been recreated since the last update.
+    discardStatistics();
     isRunning = true;
   }
 
@@ -93,6 +117,12 @@ public class HudFragment extends Fragment {
     this.cpuMonitor = cpuMonitor;
   }
 
+  // Shows the stats of |statsStore|, which the stats callbacks have added the
+  // reports to before formatStatistics() is called.
+  public void setStatsStore(StatsStore statsStore) {
+    hudModel = new HudModel(statsStore);
+  }
+
   private void hudViewsSetProperties(int visibility) {
     hudViewBwe.setVisibility(visibility);
     hudViewConnection.setVisibility(visibility);
@@ -104,102 +134,56 @@ public class HudFragment extends Fragment {
     hudViewVideoRecv.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
   }
 
-  private Map<String, String> getReportMap(StatsReport report) {
-    Map<String, String> reportMap = new HashMap<String, String>();
-    for (StatsReport.Value value : report.values) {
-      reportMap.put(value.name, value.value);
+  // Keeps the rates of the latest poll. They are shown by the
+  // formatStatistics call that follows for the same reports. Called on the
+  // stats callback thread.
+  public void updateCallStats(StatsEngine.CallStats callStats) {
+    HudModel hudModel = this.hudModel;
+    if (hudModel != null) {
+      hudModel.setCallStats(callStats);
     }
-    return reportMap;
   }
 
-  public void updateEncoderStatistics(final StatsReport[] reports) {
-    if (!isRunning || !displayHud) {
-      return;
-    }
-    StringBuilder encoderStat = new StringBuilder(128);
-    StringBuilder bweStat = new StringBuilder();
-    StringBuilder connectionStat = new StringBuilder();
-    StringBuilder videoSendStat = new StringBuilder();
-    StringBuilder videoRecvStat = new StringBuilder();
-    String fps = null;
-    String targetBitrate = null;
-    String actualBitrate = null;
-
-    for (StatsReport report : reports) {
-      if (report.type.equals("ssrc") && report.id.contains("ssrc") && report.id.contains("send")) {
-        // Send video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String trackId = reportMap.get("googTrackId");
-        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
-          fps = reportMap.get("googFrameRateSent");
-          videoSendStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoSendStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
-          && report.id.contains("recv")) {
-        // Receive video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        // Check if this stat is for video track.
-        String frameWidth = reportMap.get("googFrameWidthReceived");
-        if (frameWidth != null) {
-          videoRecvStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoRecvStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.id.equals("bweforvideo")) {
-        // BWE statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        targetBitrate = reportMap.get("googTargetEncBitrate");
-        actualBitrate = reportMap.get("googActualEncBitrate");
-
-        bweStat.append(report.id).append("\n");
-        for (StatsReport.Value value : report.values) {
-          String name = value.name.replace("goog", "").replace("Available", "");
-          bweStat.append(name).append("=").append(value.value).append("\n");
-        }
-      } else if (report.type.equals("googCandidatePair")) {
-        // Connection statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String activeConnection = reportMap.get("googActiveConnection");
-        if (activeConnection != null && activeConnection.equals("true")) {
-          connectionStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            connectionStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      }
+  // Formats |reports| on the stats callback thread. Returns the HUD texts to
+  // pass to applyStatistics() on the UI thread, or null if the HUD is off.
+  public HudModel.Update formatStatistics(final StatsReport[] reports) {
+    HudModel hudModel = this.hudModel;
+    if (!isRunning || !displayHud || hudModel == null) {
+      return null;
     }
-    hudViewBwe.setText(bweStat.toString());
-    hudViewConnection.setText(connectionStat.toString());
-    hudViewVideoSend.setText(videoSendStat.toString());
-    hudViewVideoRecv.setText(videoRecvStat.toString());
-
-    if (videoCallEnabled) {
-      if (fps != null) {
-        encoderStat.append("Fps:  ").append(fps).append("\n");
-      }
-      if (targetBitrate != null) {
-        encoderStat.append("Target BR: ").append(targetBitrate).append("\n");
+    String cpuStat = null;
+    CpuMonitor cpuMonitor = this.cpuMonitor;
+    if (cpuMonitor != null) {
+      StringBuilder builder = new StringBuilder();
+      builder.append("CPU%: ").append(cpuMonitor.getCpuUsageCurrent()).append("/")
+          .append(cpuMonitor.getCpuUsageAverage()).append(". Freq: ")
+          .append(cpuMonitor.getFrequencyScaleAverage()).append("\nCores%:");
+      for (int usage : cpuMonitor.getCoreUsages()) {
+        builder.append(" ").append(usage);
       }
-      if (actualBitrate != null) {
-        encoderStat.append("Actual BR: ").append(actualBitrate).append("\n");
+      for (ThreadCpuSampler.ThreadUsage thread : cpuMonitor.getHotThreads()) {
+        builder.append("\n").append(thread);
       }
+      cpuStat = builder.toString();
+    }
+    return hudModel.update(reports, videoCallEnabled, cpuStat);
+  }
+
+  // Sets the texts that changed since the previous update.
+  public void applyStatistics(HudModel.Update update) {
+    if (!isRunning) {
+      discardStatistics();
+      return;
     }
+    update.applyTo(textSink);
+  }
 
-    if (cpuMonitor != null) {
-      encoderStat.append("CPU%: ")
-          .append(cpuMonitor.getCpuUsageCurrent())
-          .append("/")
-          .append(cpuMonitor.getCpuUsageAverage())
-          .append(". Freq: ")
-          .append(cpuMonitor.getFrequencyScaleAverage());
+  // Called on the UI thread for an update from formatStatistics() that is
+  // not applied, so that the next update sets every section again.
+  public void discardStatistics() {
+    HudModel hudModel = this.hudModel;
+    if (hudModel != null) {
+      hudModel.requestFullUpdate();
     }
-    encoderStatView.setText(encoderStat.toString());
   }
 }
@@ -0,0 +1,312 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.Arrays;
+import org.webrtc.StatsReport;
+
+/**
+ * Formats stats reports into the texts of the HUD views.
+ *
+ * <p>The values are read from the StatsStore that PeerConnectionClient adds
+ * every stats poll to, so the HUD does not parse the reports again.
+ *
+ * <p>Each report is formatted once per value change: the formatted lines of
+ * the previous snapshot are kept per report key and reused while the
+ * StatsStore flags the metric of a line as unchanged, and display names are
+ * computed once per name key. Report kinds are classified once per report,
+ * so a poll does not walk the value strings again. An update only carries
+ * the texts of the sections that changed, so the UI thread only has to set
+ * those. An update that the UI thread does not apply must be reported with
+ * requestFullUpdate(), so that the next update carries every section
+ * again. Not thread safe except for requestFullUpdate(); update() is meant
+ * to run on the stats callback thread.
+ */
+class HudModel {
+  public static final int SECTION_ENCODER = 0;
+  public static final int SECTION_BWE = 1;
+  public static final int SECTION_CONNECTION = 2;
+  public static final int SECTION_VIDEO_SEND = 3;
+  public static final int SECTION_VIDEO_RECV = 4;
+  public static final int SECTION_COUNT = 5;
+
+  // Kinds of reports shown in the HUD.
+  private static final int KIND_OTHER = 0;
+  private static final int KIND_SSRC_SEND = 1;
+  private static final int KIND_SSRC_RECV = 2;
+  private static final int KIND_BWE = 3;
+  private static final int KIND_CANDIDATE_PAIR = 4;
+
+  /** Receives the text of a changed section. */
+  public interface TextSink {
+    void setText(int section, String text);
+  }
+
+  /** The section texts that changed in an update. Immutable. */
+  public static class Update {
+    // Null for sections that did not change.
+    private final String[] texts;
+
+    private Update(String[] texts) {
+      this.texts = texts;
+    }
+
+    public int getChangedSectionCount() {
+      int count = 0;
+      for (String text : texts) {
+        if (text != null) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    public void applyTo(TextSink sink) {
+      for (int section = 0; section < texts.length; section++) {
+        if (texts[section] != null) {
+          sink.setText(section, texts[section]);
+        }
+      }
+    }
+  }
+
+  // Kind of a report, and its formatted text and the metrics of its lines.
+  private static class ReportState {
+    // Report id the state belongs to, since keys of evicted reports are
+    // reused.
+    final String id;
+    final int kind;
+    int[] metrics = new int[0];
+    String[] lines = new String[0];
+    String text;
+    // Snapshot the text was last formatted for.
+    long snapshot;
+
+    ReportState(String id, int kind) {
+      this.id = id;
+      this.kind = kind;
+    }
+  }
+
+  private final StatsStore statsStore;
+  // Indexed by report key.
+  private ReportState[] reportStates = new ReportState[16];
+  // Indexed by name key.
+  private String[] displayNames = new String[64];
+  private String[] bweDisplayNames = new String[64];
+  private final String[] texts = new String[SECTION_COUNT];
+  private final StringBuilder[] builders = new StringBuilder[SECTION_COUNT];
+  private StatsEngine.CallStats callStats;
+  // Set when an update was not applied, so the views may not show |texts|.
+  private volatile boolean fullUpdateRequested;
+
+  public HudModel(StatsStore statsStore) {
+    this.statsStore = statsStore;
+    for (int i = 0; i < SECTION_COUNT; i++) {
+      builders[i] = new StringBuilder(256);
+    }
+  }
+
+  // Makes the next update() return all sections, not only the changed ones.
+  // Can be called on any thread.
+  public void requestFullUpdate() {
+    fullUpdateRequested = true;
+  }
+
+  // Keeps the rates of the latest poll for the next update().
+  public void setCallStats(StatsEngine.CallStats callStats) {
+    this.callStats = callStats;
+  }
+
+  // Formats |reports|, which must be the latest snapshot added to the
+  // store, and returns the sections that differ from the previous update.
+  // |cpuStat| is appended to the encoder section if not null.
+  public Update update(StatsReport[] reports, boolean videoCallEnabled, String cpuStat) {
+    for (StringBuilder builder : builders) {
+      builder.setLength(0);
+    }
+    String fps = null;
+    String targetBitrate = null;
+    String actualBitrate = null;
+
+    for (StatsReport report : reports) {
+      int reportKey = statsStore.getReportKey(report.id);
+      ReportState state = getReportState(reportKey, report);
+      if (state.kind == KIND_SSRC_SEND) {
+        // Send video statistics.
+        String trackId = getStatsValue(reportKey, "googTrackId");
+        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
+          fps = getStatsValue(reportKey, "googFrameRateSent");
+          builders[SECTION_VIDEO_SEND].append(getReportText(reportKey, state));
+        }
+      } else if (state.kind == KIND_SSRC_RECV) {
+        // Receive video statistics.
+        // Check if this stat is for video track.
+        if (getStatsValue(reportKey, "googFrameWidthReceived") != null) {
+          builders[SECTION_VIDEO_RECV].append(getReportText(reportKey, state));
+        }
+      } else if (state.kind == KIND_BWE) {
+        // BWE statistics.
+        targetBitrate = getStatsValue(reportKey, "googTargetEncBitrate");
+        actualBitrate = getStatsValue(reportKey, "googActualEncBitrate");
+        builders[SECTION_BWE].append(getReportText(reportKey, state));
+      } else if (state.kind == KIND_CANDIDATE_PAIR) {
+        // Connection statistics.
+        if ("true".equals(getStatsValue(reportKey, "googActiveConnection"))) {
+          builders[SECTION_CONNECTION].append(getReportText(reportKey, state));
+        }
+      }
+    }
+
+    StringBuilder encoderStat = builders[SECTION_ENCODER];
+    if (videoCallEnabled) {
+      if (fps != null) {
+        encoderStat.append("Fps:  ").append(fps).append("\n");
+      }
+      if (targetBitrate != null) {
+        encoderStat.append("Target BR: ").append(targetBitrate).append("\n");
+      }
+      if (actualBitrate != null) {
+        encoderStat.append("Actual BR: ").append(actualBitrate).append("\n");
+      }
+    }
+    if (callStats != null) {
+      appendStreamStats(encoderStat, "Video send", callStats.getStream(true, true));
+      appendStreamStats(encoderStat, "Video recv", callStats.getStream(true, false));
+      appendStreamStats(encoderStat, "Audio send", callStats.getStream(false, true));
+      appendStreamStats(encoderStat, "Audio recv", callStats.getStream(false, false));
+    }
+    if (cpuStat != null) {
+      encoderStat.append(cpuStat);
+    }
+
+    boolean fullUpdate = fullUpdateRequested;
+    fullUpdateRequested = false;
+    String[] changed = new String[SECTION_COUNT];
+    for (int section = 0; section < SECTION_COUNT; section++) {
+      String text = builders[section].toString();
+      if (fullUpdate || !text.equals(texts[section])) {
+        texts[section] = text;
+        changed[section] = text;
+      }
+    }
+    return new Update(changed);
+  }
+
+  private ReportState getReportState(int reportKey, StatsReport report) {
+    if (reportKey >= reportStates.length) {
+      reportStates = Arrays.copyOf(reportStates, Math.max(reportKey + 1, reportStates.length * 2));
+    }
+    String id = statsStore.getReportId(reportKey);
+    ReportState state = reportStates[reportKey];
+    if (state == null || state.id != id) {
+      state = new ReportState(id, classify(report));
+      reportStates[reportKey] = state;
+    }
+    return state;
+  }
+
+  private static int classify(StatsReport report) {
+    if (report.type.equals("ssrc") && report.id.contains("ssrc")) {
+      if (report.id.contains("send")) {
+        return KIND_SSRC_SEND;
+      }
+      if (report.id.contains("recv")) {
+        return KIND_SSRC_RECV;
+      }
+    } else if (report.id.equals("bweforvideo")) {
+      return KIND_BWE;
+    } else if (report.type.equals("googCandidatePair")) {
+      return KIND_CANDIDATE_PAIR;
+    }
+    return KIND_OTHER;
+  }
+
+  // Returns value |name| of report |reportKey| from the latest snapshot as
+  // reported, or null.
+  private String getStatsValue(int reportKey, String name) {
+    int metric = statsStore.getMetric(reportKey, statsStore.getNameKey(name));
+    return (metric >= 0 && statsStore.isMetricCurrent(metric))
+        ? statsStore.getLatestString(metric)
+        : null;
+  }
+
+  // Returns the "id\nname=value\n..." text of report |reportKey|, formatting
+  // only the values that changed since the previous snapshot.
+  private String getReportText(int reportKey, ReportState state) {
+    long snapshot = statsStore.getSnapshotCount();
+    int valueCount = statsStore.getReportValueCount(reportKey);
+    // Lines are only reused if they were formatted for the previous snapshot.
+    boolean reformat = state.text == null || state.snapshot != snapshot - 1
+        || state.metrics.length != valueCount;
+    if (state.metrics.length != valueCount) {
+      state.metrics = new int[valueCount];
+      state.lines = new String[valueCount];
+    }
+    boolean changed = reformat;
+    for (int i = 0; i < valueCount; i++) {
+      int metric = statsStore.getReportMetric(reportKey, i);
+      if (!reformat && metric == state.metrics[i] && !statsStore.isMetricChanged(metric)) {
+        continue;
+      }
+      state.metrics[i] = metric;
+      String name = getDisplayName(statsStore.getMetricNameKey(metric), state.kind == KIND_BWE);
+      state.lines[i] = name + "=" + statsStore.getLatestString(metric) + "\n";
+      changed = true;
+    }
+    state.snapshot = snapshot;
+    if (changed) {
+      StringBuilder builder = new StringBuilder(state.id.length() + 1 + 32 * valueCount);
+      builder.append(state.id).append("\n");
+      for (String line : state.lines) {
+        builder.append(line);
+      }
+      state.text = builder.toString();
+    }
+    return state.text;
+  }
+
+  private String getDisplayName(int nameKey, boolean isBwe) {
+    String[] names = isBwe ? bweDisplayNames : displayNames;
+    if (nameKey >= names.length) {
+      names = Arrays.copyOf(names, Math.max(nameKey + 1, names.length * 2));
+      if (isBwe) {
+        bweDisplayNames = names;
+      } else {
+        displayNames = names;
+      }
+    }
+    String displayName = names[nameKey];
+    if (displayName == null) {
+      displayName = statsStore.getName(nameKey).replace("goog", "");
+      if (isBwe) {
+        displayName = displayName.replace("Available", "");
+      }
+      names[nameKey] = displayName;
+    }
+    return displayName;
+  }
+
+  private static void appendStreamStats(
+      StringBuilder builder, String label, StatsEngine.StreamStats stream) {
+    if (stream == null || Double.isNaN(stream.bitrateKbps)) {
+      return;
+    }
+    builder.append(label).append(": ").append(Math.round(stream.bitrateKbps)).append(" kbps");
+    if (!Double.isNaN(stream.framesPerSecond)) {
+      builder.append(", ").append(Math.round(stream.framesPerSecond)).append(" fps");
+    }
+    if (!Double.isNaN(stream.lossPercent)) {
+      builder.append(", loss ").append(Math.round(stream.lossPercent)).append("%");
+    }
+    builder.append("\n");
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoCapturer;
+import org.webrtc.VideoRenderer;
+
+/**
+ * Measures capture-to-render ("glass-to-glass") latency of loopback calls.
+ *
+ * <p>The capturer returned by wrapCapturer() stamps the capture time into the
+ * top of every byte buffer frame as a row of black and white luma blocks.
+ * The probe itself is a renderer for the remote video track: it reads the
+ * timecode back and records the latency in the "LatencyProbe.GlassToGlassMs"
+ * histogram of the MetricsRegistry. Both ends must share a clock, so this
+ * only works in loopback.
+ *
+ * <p>Frames are stamped with 2 marker blocks followed by a 24 bit millisecond
+ * timecode and an 8 bit check, each bit one block of width / BLOCK_COUNT.
+ * Texture frames can neither be stamped nor read, so use a byte buffer
+ * capturer such as FileVideoCapturer, and software decoding, for
+ * measurements. A wrapped camera capturer can not switch cameras.
+ */
+class LatencyProbe implements VideoRenderer.Callbacks {
+  private static final String TAG = "LatencyProbe";
+  private static final int TIMECODE_BITS = 24;
+  private static final int TIMECODE_MASK = (1 << TIMECODE_BITS) - 1;
+  private static final int CHECK_BITS = 8;
+  static final int BLOCK_COUNT = 2 + TIMECODE_BITS + CHECK_BITS;
+  private static final int BLACK = 16;
+  private static final int WHITE = 235;
+  private static final int THRESHOLD = (BLACK + WHITE) / 2;
+  // Markers have to be this far from the threshold to accept a frame.
+  private static final int MARKER_MARGIN = 48;
+  private static final long MAX_LATENCY_MS = 10000;
+  private static final int LOG_PERIOD_FRAMES = 300;
+
+  private final MetricsRegistry.Histogram latencyHistogram;
+  private final MetricsRegistry.Counter stampedFrames;
+  private final MetricsRegistry.Counter unstampedFrames;
+  private final MetricsRegistry.Counter detectedFrames;
+  private final MetricsRegistry.Counter missedFrames;
+  // Render thread state.
+  private int lastTimecode = -1;
+
+  public LatencyProbe(MetricsRegistry metrics) {
+    latencyHistogram = metrics.getHistogram("LatencyProbe.GlassToGlassMs", MAX_LATENCY_MS);
+    stampedFrames = metrics.getCounter("LatencyProbe.StampedFrames");
+    unstampedFrames = metrics.getCounter("LatencyProbe.UnstampedFrames");
+    detectedFrames = metrics.getCounter("LatencyProbe.DetectedFrames");
+    missedFrames = metrics.getCounter("LatencyProbe.MissedFrames");
+  }
+
+  private static int nowTimecode() {
+    return (int) (TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) & TIMECODE_MASK);
+  }
+
+  // Returns a capturer that delivers the frames of |capturer| with a
+  // timecode stamped in.
+  public VideoCapturer wrapCapturer(final VideoCapturer capturer) {
+    return new VideoCapturer() {
+      @Override
+      public void initialize(SurfaceTextureHelper surfaceTextureHelper,
+          Context applicationContext, final CapturerObserver capturerObserver) {
+        capturer.initialize(surfaceTextureHelper, applicationContext, new CapturerObserver() {
+          @Override
+          public void onCapturerStarted(boolean success) {
+            capturerObserver.onCapturerStarted(success);
+          }
+
+          @Override
+          public void onCapturerStopped() {
+            capturerObserver.onCapturerStopped();
+          }
+
+          @Override
+          public void onByteBufferFrameCaptured(
+              byte[] data, int width, int height, int rotation, long timeStamp) {
+            if (stampNv21(data, width, height, nowTimecode())) {
+              stampedFrames.increment();
+            } else {
+              unstampedFrames.increment();
+            }
+            capturerObserver.onByteBufferFrameCaptured(data, width, height, rotation, timeStamp);
+          }
+
+          @Override
+          public void onTextureFrameCaptured(int width, int height, int oesTextureId,
+              float[] transformMatrix, int rotation, long timestamp) {
+            unstampedFrames.increment();
+            capturerObserver.onTextureFrameCaptured(
+                width, height, oesTextureId, transformMatrix, rotation, timestamp);
+          }
+        });
+      }
+
+      @Override
+      public void startCapture(int width, int height, int framerate) {
+        capturer.startCapture(width, height, framerate);
+      }
+
+      @Override
+      public void stopCapture() throws InterruptedException {
+        capturer.stopCapture();
+      }
+
+      @Override
+      public void changeCaptureFormat(int width, int height, int framerate) {
+        capturer.changeCaptureFormat(width, height, framerate);
+      }
+
+      @Override
+      public void dispose() {
+        capturer.dispose();
+      }
+
+      @Override
+      public boolean isScreencast() {
+        return capturer.isScreencast();
+      }
+    };
+  }
+
+  @Override
+  public void renderFrame(VideoRenderer.I420Frame frame) {
+    try {
+      if (!frame.yuvFrame) {
+        missedFrames.increment();
+        return;
+      }
+      int timecode =
+          readTimecode(frame.yuvPlanes[0], frame.yuvStrides[0], frame.width, frame.height);
+      if (timecode < 0) {
+        missedFrames.increment();
+        return;
+      }
+      if (timecode == lastTimecode) {
+        // The same frame rendered again.
+        return;
+      }
+      lastTimecode = timecode;
+      long latencyMs = (nowTimecode() - timecode) & TIMECODE_MASK;
+      if (latencyMs > MAX_LATENCY_MS) {
+        missedFrames.increment();
+        return;
+      }
+      latencyHistogram.record(latencyMs);
+      detectedFrames.increment();
+      if (detectedFrames.get() % LOG_PERIOD_FRAMES == 0) {
+        logSummary();
+      }
+    } finally {
+      VideoRenderer.renderFrameDone(frame);
+    }
+  }
+
+  public void logSummary() {
+    Log.i(TAG, "Glass-to-glass latency ms: " + latencyHistogram.snapshot() + ", stamped "
+            + stampedFrames.get() + ", unstamped " + unstampedFrames.get() + ", detected "
+            + detectedFrames.get() + ", missed " + missedFrames.get());
+  }
+
+  private static int getCheck(int timecode) {
+    return (timecode ^ (timecode >> 8) ^ (timecode >> 16) ^ 0x5A) & 0xFF;
+  }
+
+  // Returns the value of block |index|: the markers, then the timecode and
+  // check bits, most significant first.
+  private static boolean isWhiteBlock(int index, int timecode) {
+    if (index < 2) {
+      return index == 1;
+    }
+    int bit = index - 2;
+    if (bit < TIMECODE_BITS) {
+      return ((timecode >> (TIMECODE_BITS - 1 - bit)) & 1) != 0;
+    }
+    bit -= TIMECODE_BITS;
+    return ((getCheck(timecode) >> (CHECK_BITS - 1 - bit)) & 1) != 0;
+  }
+
+  private static int getBlockHeight(int width, int height) {
+    int blockHeight = Math.max(2, width / BLOCK_COUNT);
+    return blockHeight <= height ? blockHeight : 0;
+  }
+
+  // Stamps |timecode| into the top rows of the NV21 frame |data| and makes
+  // the chroma of those rows neutral. Returns false if the frame is too
+  // small.
+  static boolean stampNv21(byte[] data, int width, int height, int timecode) {
+    int blockHeight = getBlockHeight(width, height);
+    if (width < 2 * BLOCK_COUNT || blockHeight == 0 || data.length < width * height * 3 / 2) {
+      return false;
+    }
+    for (int y = 0; y < blockHeight; y++) {
+      int rowOffset = y * width;
+      for (int index = 0; index < BLOCK_COUNT; index++) {
+        byte luma = (byte) (isWhiteBlock(index, timecode) ? WHITE : BLACK);
+        int end = (index + 1) * width / BLOCK_COUNT;
+        for (int x = index * width / BLOCK_COUNT; x < end; x++) {
+          data[rowOffset + x] = luma;
+        }
+      }
+    }
+    int chromaEnd = width * height + ((blockHeight + 1) / 2) * width;
+    for (int i = width * height; i < chromaEnd; i++) {
+      data[i] = (byte) 128;
+    }
+    return true;
+  }
+
+  // Returns the timecode stamped into the luma plane |y|, or -1 if the frame
+  // does not carry a valid one. The frame may have been scaled since.
+  static int readTimecode(ByteBuffer y, int stride, int width, int height) {
+    int blockHeight = getBlockHeight(width, height);
+    if (width < BLOCK_COUNT || blockHeight == 0) {
+      return -1;
+    }
+    int timecode = 0;
+    int check = 0;
+    for (int index = 0; index < BLOCK_COUNT; index++) {
+      int luma = readBlock(y, stride, width, blockHeight, index);
+      boolean white = luma >= THRESHOLD;
+      if (index < 2) {
+        if (Math.abs(luma - THRESHOLD) < MARKER_MARGIN || white != (index == 1)) {
+          return -1;
+        }
+      } else if (index < 2 + TIMECODE_BITS) {
+        timecode = (timecode << 1) | (white ? 1 : 0);
+      } else {
+        check = (check << 1) | (white ? 1 : 0);
+      }
+    }
+    return check == getCheck(timecode) ? timecode : -1;
+  }
+
+  // Returns the mean luma of the center of block |index|, where compression
+  // artifacts at the block edges do not reach.
+  private static int readBlock(ByteBuffer y, int stride, int width, int blockHeight, int index) {
+    int left = index * width / BLOCK_COUNT;
+    int right = (index + 1) * width / BLOCK_COUNT;
+    int marginX = (right - left) / 4;
+    int marginY = blockHeight / 4;
+    int sum = 0;
+    int count = 0;
+    for (int row = marginY; row < blockHeight - marginY; row++) {
+      for (int x = left + marginX; x < right - marginX; x++) {
+        sum += y.get(row * stride + x) & 0xFF;
+        count++;
+      }
+    }
+    return count == 0 ? 0 : sum / count;
+  }
+}
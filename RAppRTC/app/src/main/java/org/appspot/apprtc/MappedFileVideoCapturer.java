@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoCapturer;
+
+/**
+ * Capturer that plays a video in a loop, like org.webrtc.FileVideoCapturer,
+ * but reads the frames through a VideoReader and converts them to NV21 with
+ * YuvFrameConverter. Besides .y4m files, it plays raw video files and
+ * directories of frame files, with their size and format in a sidecar
+ * file, see RawVideoReader and FrameDirectoryReader.
+ *
+ * <p>A FramePrefetcher reads and converts the next frames on a background
+ * thread into a ring of reused buffers, so that the capture thread only
+ * hands out frames. The observer copies the frame before
+ * onByteBufferFrameCaptured() returns.
+ *
+ * <p>Frames are paced by a FramePacer on the elapsedRealtimeNanos() clock,
+ * at the frame rate of the file, or at the requested frame rate if the
+ * file has none. For benchmarks, the file can be played at another speed,
+ * as fast as possible, or a frame at a time.
+ */
+public class MappedFileVideoCapturer implements VideoCapturer {
+  private static final String TAG = "MappedFileVideoCapturer";
+  private static final int PREFETCH_DEPTH = 3;
+
+  private final VideoReader videoReader;
+  // Converts large frames in row bands. ForkJoinPool.commonPool() is only
+  // available from API 24.
+  private final ForkJoinPool conversionPool;
+  private final FramePrefetcher prefetcher;
+  private final FramePacer pacer;
+  private CapturerObserver capturerObserver;
+  private Thread captureThread;
+  // Sequence number of the next capture tick.
+  private long nextSequence;
+
+  private final Runnable captureLoop = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        // Starts with the first frames ready, so that they are not late.
+        prefetcher.awaitFilled();
+        long captureTimeNs;
+        while ((captureTimeNs = pacer.awaitFrame()) >= 0) {
+          tick(captureTimeNs, nextSequence++);
+        }
+      } catch (InterruptedException e) {
+        Log.d(TAG, "Capture thread interrupted");
+      }
+    }
+  };
+
+  public MappedFileVideoCapturer(String inputFile) throws IOException {
+    this(openVideoReader(inputFile));
+  }
+
+  public MappedFileVideoCapturer(VideoReader videoReader) {
+    this.videoReader = videoReader;
+    // The prefetch thread works on a band too, like the common pool leaves
+    // a core to the caller.
+    conversionPool =
+        new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    prefetcher = new FramePrefetcher(videoReader, new YuvFrameConverter(conversionPool),
+        PREFETCH_DEPTH, MetricsRegistry.getInstance());
+    pacer = new FramePacer(new FramePacer.Clock() {
+      @Override
+      public long nanoTime() {
+        return SystemClock.elapsedRealtimeNanos();
+      }
+    }, FramePacer.getFrameIntervalNs(30, 1));
+  }
+
+  // Opens a directory of frame files, a y4m file or else a raw video file.
+  // y4m files are told by their magic bytes, so they need not be named
+  // .y4m.
+  public static VideoReader openVideoReader(String path) throws IOException {
+    try {
+      if (new File(path).isDirectory()) {
+        return new FrameDirectoryReader(path);
+      }
+      if (Y4mFileReader.isY4mFile(path)) {
+        return new Y4mFileReader(path);
+      }
+      return new RawVideoReader(path);
+    } catch (IOException e) {
+      Log.d(TAG, "Could not open video file: " + path);
+      throw e;
+    }
+  }
+
+  private void tick(long captureTimeNs, long sequence) throws InterruptedException {
+    // Unpaced playback waits for the frame rather than dropping it.
+    FramePrefetcher.Slot slot = prefetcher.take(sequence, !pacer.isPaced());
+    if (slot == null) {
+      return;
+    }
+    try {
+      capturerObserver.onByteBufferFrameCaptured(slot.getData(), videoReader.getFrameWidth(),
+          videoReader.getFrameHeight(), 0, captureTimeNs);
+    } finally {
+      prefetcher.release(slot);
+    }
+  }
+
+  // Plays the file at |speed| times its frame rate, or as fast as possible
+  // if 0.
+  public void setSpeed(double speed) {
+    pacer.setSpeed(speed);
+  }
+
+  // In frame-step mode, a frame is captured for each step().
+  public void setFrameStep(boolean frameStep) {
+    pacer.setFrameStep(frameStep);
+  }
+
+  public void step(int frames) {
+    pacer.step(frames);
+  }
+
+  @Override
+  public void initialize(SurfaceTextureHelper surfaceTextureHelper, Context applicationContext,
+      CapturerObserver capturerObserver) {
+    this.capturerObserver = capturerObserver;
+  }
+
+  @Override
+  public void startCapture(int width, int height, int framerate) {
+    long frameIntervalNs = videoReader.getFrameIntervalNs();
+    if (frameIntervalNs == 0) {
+      frameIntervalNs = FramePacer.getFrameIntervalNs(framerate, 1);
+    }
+    pacer.setFrameIntervalNs(frameIntervalNs);
+    prefetcher.start(nextSequence);
+    pacer.start();
+    captureThread = new Thread(captureLoop, TAG);
+    captureThread.start();
+  }
+
+  @Override
+  public void stopCapture() throws InterruptedException {
+    pacer.stop();
+    if (captureThread != null) {
+      captureThread.join();
+      captureThread = null;
+    }
+    prefetcher.stop();
+    Log.d(TAG, "Captured " + pacer.getFrames() + " frames, " + pacer.getLateFrames()
+            + " late, " + pacer.getResyncs() + " resyncs; prefetched "
+            + prefetcher.getPrefetchedFrames() + " frames, " + prefetcher.getLateFrames()
+            + " late, " + prefetcher.getDroppedFrames() + " dropped");
+  }
+
+  @Override
+  public void changeCaptureFormat(int width, int height, int framerate) {
+    // Empty on purpose
+  }
+
+  @Override
+  public void dispose() {
+    videoReader.close();
+    conversionPool.shutdown();
+  }
+
+  @Override
+  public boolean isScreencast() {
+    return false;
+  }
+}
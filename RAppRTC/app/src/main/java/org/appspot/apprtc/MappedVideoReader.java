@@ -0,0 +1,333 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the frames of a video file from memory maps, given the offset of
+ * every frame, which the subclasses find in the file.
+ *
+ * <p>The file is split into windows of whole frames, each at most
+ * maxWindowSize bytes, DEFAULT_WINDOW_SIZE unless given. A window is mapped
+ * when a frame in it is first handed out, and dropped once no frame in it
+ * is handed out and frames of another window are read. So only a few
+ * windows are mapped at a time, and a 32-bit process can play files larger
+ * than its address space. Dropped maps are unmapped by the garbage
+ * collector, which FileChannel.map() runs when it is out of address space.
+ *
+ * <p>Frames are handed out from a pool of POOL_SIZE holders. I420 frames
+ * are read-only views of the maps, so nothing is copied or allocated per
+ * frame. Frames in other formats are converted to I420 in a buffer of the
+ * holder.
+ *
+ * <p>Thread-safe; frames may be released on another thread than the one
+ * that got them.
+ */
+class MappedVideoReader implements VideoReader {
+  private static final String TAG = "MappedVideoReader";
+  static final int POOL_SIZE = 3;
+  // Tens of frames of 720p or 1080p.
+  static final long DEFAULT_WINDOW_SIZE = 32 * 1024 * 1024;
+
+  /** The frame size, format and offsets of a video file. */
+  static class Layout {
+    final String path;
+    final PixelFormat format;
+    final int width;
+    final int height;
+    final long frameIntervalNs;
+    final long[] frameOffsets;
+    final int frameCount;
+
+    Layout(String path, PixelFormat format, int width, int height, long frameIntervalNs,
+        long[] frameOffsets, int frameCount) {
+      this.path = path;
+      this.format = format;
+      this.width = width;
+      this.height = height;
+      this.frameIntervalNs = frameIntervalNs;
+      this.frameOffsets = frameOffsets;
+      this.frameCount = frameCount;
+    }
+  }
+
+  private static class MappedFrame implements Frame {
+    private final MappedVideoReader reader;
+    // View of the map of window |viewWindow|, or null. Kept while the
+    // window is mapped, so frames of the same window reuse it.
+    private ByteBuffer view;
+    private int viewWindow = -1;
+    // I420 frame converted from another format, allocated on first use.
+    private ByteBuffer converted;
+    private ByteBuffer data;
+    private int index;
+    private int window;
+
+    private MappedFrame(MappedVideoReader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public ByteBuffer getData() {
+      return data;
+    }
+
+    @Override
+    public int getIndex() {
+      return index;
+    }
+
+    @Override
+    public void release() {
+      reader.release(this);
+    }
+  }
+
+  private final String path;
+  private final PixelFormat format;
+  private final int frameWidth;
+  private final int frameHeight;
+  private final int frameSize;
+  private final int frameCount;
+  private final long frameIntervalNs;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  // File range of each window, and its map while mapped.
+  private final long[] windowStarts;
+  private final long[] windowSizes;
+  private final MappedByteBuffer[] windows;
+  // Frames of each window that are handed out.
+  private final int[] windowFrameCounts;
+  // Window of the frame handed out last, which is kept mapped for the
+  // frames that follow it.
+  private int currentWindow = -1;
+  // Window and offset in the window of the data of each frame.
+  private final int[] frameWindows;
+  private final int[] frameWindowOffsets;
+  private final ArrayDeque<MappedFrame> pool = new ArrayDeque<MappedFrame>(POOL_SIZE);
+  // Converts frames that are not I420, under the lock of the reader.
+  private final YuvFrameConverter converter = new YuvFrameConverter();
+  private int nextFrameIndex;
+  private int mapCount;
+
+  MappedVideoReader(Layout layout, long maxWindowSize) throws IOException {
+    this.path = layout.path;
+    this.format = layout.format;
+    this.frameWidth = layout.width;
+    this.frameHeight = layout.height;
+    this.frameSize = format.getFrameSize(frameWidth, frameHeight);
+    this.frameCount = layout.frameCount;
+    this.frameIntervalNs = layout.frameIntervalNs;
+    if (frameCount == 0) {
+      throw new IOException("No frames in " + path);
+    }
+    long[] offsets = layout.frameOffsets;
+
+    // Split the file into runs of frames that fit in a window.
+    List<long[]> ranges = new ArrayList<long[]>();
+    frameWindows = new int[frameCount];
+    frameWindowOffsets = new int[frameCount];
+    int first = 0;
+    while (first < frameCount) {
+      long start = offsets[first];
+      int last = first;
+      while (last + 1 < frameCount && offsets[last + 1] + frameSize - start <= maxWindowSize) {
+        last++;
+      }
+      for (int i = first; i <= last; i++) {
+        frameWindows[i] = ranges.size();
+        frameWindowOffsets[i] = (int) (offsets[i] - start);
+      }
+      ranges.add(new long[] {start, offsets[last] + frameSize - start});
+      first = last + 1;
+    }
+    windowStarts = new long[ranges.size()];
+    windowSizes = new long[ranges.size()];
+    for (int i = 0; i < ranges.size(); i++) {
+      windowStarts[i] = ranges.get(i)[0];
+      windowSizes[i] = ranges.get(i)[1];
+    }
+    windows = new MappedByteBuffer[ranges.size()];
+    windowFrameCounts = new int[ranges.size()];
+    for (int i = 0; i < POOL_SIZE; i++) {
+      pool.add(new MappedFrame(this));
+    }
+    // Kept open to map windows as they are needed.
+    file = new RandomAccessFile(path, "r");
+    channel = file.getChannel();
+    Log.d(TAG, "Opened " + path + ": " + frameWidth + "x" + frameHeight + " " + format + ", "
+            + frameCount + " frames in " + windows.length + " windows, frame interval "
+            + frameIntervalNs + " ns");
+  }
+
+  @Override
+  public int getFrameWidth() {
+    return frameWidth;
+  }
+
+  @Override
+  public int getFrameHeight() {
+    return frameHeight;
+  }
+
+  @Override
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  @Override
+  public long getFrameIntervalNs() {
+    return frameIntervalNs;
+  }
+
+  // Returns the number of windows mapped so far, including dropped ones.
+  synchronized int getMapCount() {
+    return mapCount;
+  }
+
+  // Returns the number of windows mapped now.
+  synchronized int getMappedWindowCount() {
+    int count = 0;
+    for (MappedByteBuffer window : windows) {
+      if (window != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public synchronized Frame getNextFrame() {
+    Frame frame = getFrame(nextFrameIndex);
+    if (frame != null) {
+      nextFrameIndex = (nextFrameIndex + 1) % frameCount;
+    }
+    return frame;
+  }
+
+  @Override
+  public synchronized Frame getFrame(int index) {
+    if (index < 0 || index >= frameCount) {
+      throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+    }
+    MappedFrame frame = pool.poll();
+    if (frame == null) {
+      return null;
+    }
+    int window = frameWindows[index];
+    ByteBuffer view;
+    try {
+      view = getView(frame, window);
+    } catch (IOException e) {
+      pool.add(frame);
+      throw new RuntimeException("Error mapping " + path, e);
+    }
+    // Clear before limit() so that the new limit may be below the old
+    // position.
+    view.clear();
+    view.limit(frameWindowOffsets[index] + frameSize);
+    view.position(frameWindowOffsets[index]);
+    frame.data = (format == PixelFormat.I420) ? view : convert(view, frame);
+    frame.index = index;
+    frame.window = window;
+    windowFrameCounts[window]++;
+    if (window != currentWindow) {
+      int previousWindow = currentWindow;
+      currentWindow = window;
+      dropIfUnused(previousWindow);
+    }
+    return frame;
+  }
+
+  // Returns the view of |frame| of |window|, mapping the window if needed.
+  private ByteBuffer getView(MappedFrame frame, int window) throws IOException {
+    if (frame.viewWindow != window) {
+      if (windows[window] == null) {
+        windows[window] =
+            channel.map(FileChannel.MapMode.READ_ONLY, windowStarts[window], windowSizes[window]);
+        mapCount++;
+      }
+      frame.view = windows[window].asReadOnlyBuffer();
+      frame.viewWindow = window;
+    }
+    return frame.view;
+  }
+
+  // Drops the map of |window| if no frame in it is handed out and it is not
+  // the current window. Views held by pooled holders are dropped too, since
+  // they keep the map alive.
+  private void dropIfUnused(int window) {
+    if (window < 0 || window == currentWindow || windowFrameCounts[window] > 0
+        || windows[window] == null) {
+      return;
+    }
+    windows[window] = null;
+    for (MappedFrame frame : pool) {
+      if (frame.viewWindow == window) {
+        frame.view = null;
+        frame.viewWindow = -1;
+      }
+    }
+  }
+
+  private ByteBuffer convert(ByteBuffer src, MappedFrame frame) {
+    if (frame.converted == null) {
+      frame.converted = ByteBuffer.allocate(frameWidth * frameHeight * 3 / 2);
+    }
+    convertToI420(converter, format, src, frameWidth, frameHeight, frame.converted);
+    return frame.converted;
+  }
+
+  // Converts the |format| frame in |src| to I420 in |dst|.
+  static void convertToI420(YuvFrameConverter converter, PixelFormat format, ByteBuffer src,
+      int width, int height, ByteBuffer dst) {
+    if (format == PixelFormat.NV12) {
+      converter.nv12ToI420(src, width, height, dst);
+    } else {
+      converter.planarToI420(src, width, height, format.getChromaWidth(width),
+          format.getChromaHeight(height), dst);
+    }
+  }
+
+  private synchronized void release(MappedFrame frame) {
+    if (frame.data == null) {
+      throw new IllegalStateException("Frame released twice");
+    }
+    frame.data = null;
+    pool.add(frame);
+    windowFrameCounts[frame.window]--;
+    dropIfUnused(frame.window);
+  }
+
+  // Unmapping is left to the garbage collector.
+  @Override
+  public synchronized void close() {
+    pool.clear();
+    Arrays.fill(windows, null);
+    try {
+      file.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Error closing " + path, e);
+    }
+    Log.d(TAG, "Closed " + path);
+  }
+}
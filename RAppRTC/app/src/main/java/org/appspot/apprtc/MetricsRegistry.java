@@ -0,0 +1,290 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of named app metrics: counters, gauges and histograms.
+ *
+ * <p>Metrics are created on first use and updated without locks, so they
+ * can be updated from capture, render and network threads. snapshot()
+ * returns a consistent-enough copy of all metrics for dashboards, logs and
+ * tests. Histograms imported from org.webrtc.Metrics are kept under their
+ * native names, see WebRtcMetricsImporter.
+ */
+public class MetricsRegistry {
+  private static final MetricsRegistry instance = new MetricsRegistry();
+
+  private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+  private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+  private final ConcurrentMap<String, Histogram> histograms =
+      new ConcurrentHashMap<String, Histogram>();
+
+  public static MetricsRegistry getInstance() {
+    return instance;
+  }
+
+  /** Monotonic event count. */
+  public static class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    public void increment() {
+      value.incrementAndGet();
+    }
+
+    public void add(long delta) {
+      value.addAndGet(delta);
+    }
+
+    public long get() {
+      return value.get();
+    }
+  }
+
+  /** Last reported value of a quantity. */
+  public static class Gauge {
+    private volatile double value = Double.NaN;
+
+    public void set(double value) {
+      this.value = value;
+    }
+
+    public double get() {
+      return value;
+    }
+  }
+
+  /**
+   * Histogram of non-negative long values, e.g. latencies in ms, with
+   * log-linear buckets in the style of HdrHistogram: values below
+   * 2^SUB_BUCKET_BITS are counted exactly, larger values in buckets whose
+   * width is at most 1/16 of their value. Values above |highestValue| are
+   * counted in the last bucket.
+   */
+  public static class Histogram {
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    private final long highestValue;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    public Histogram(long highestValue) {
+      if (highestValue < SUB_BUCKET_COUNT) {
+        throw new IllegalArgumentException("Highest value too small: " + highestValue);
+      }
+      this.highestValue = highestValue;
+      this.counts = new AtomicLongArray(getBucketIndex(highestValue) + 1);
+    }
+
+    static int getBucketIndex(long value) {
+      if (value < SUB_BUCKET_COUNT) {
+        return (int) value;
+      }
+      int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      return shift * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift);
+    }
+
+    // Returns the lowest value counted in bucket |index|.
+    static long getBucketLowestValue(int index) {
+      if (index < SUB_BUCKET_COUNT) {
+        return index;
+      }
+      int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+      return (long) (index - shift * SUB_BUCKET_HALF_COUNT) << shift;
+    }
+
+    // Returns the highest value counted in bucket |index|.
+    static long getBucketHighestValue(int index) {
+      return getBucketLowestValue(index + 1) - 1;
+    }
+
+    public void record(long value) {
+      record(value, 1);
+    }
+
+    public void record(long value, long times) {
+      if (times <= 0) {
+        return;
+      }
+      value = Math.max(0, value);
+      counts.addAndGet(getBucketIndex(Math.min(value, highestValue)), times);
+      count.addAndGet(times);
+      sum.addAndGet(value * times);
+      long current;
+      while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+      }
+      while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+      }
+    }
+
+    public HistogramSnapshot snapshot() {
+      long[] bucketCounts = new long[counts.length()];
+      for (int i = 0; i < bucketCounts.length; i++) {
+        bucketCounts[i] = counts.get(i);
+      }
+      return new HistogramSnapshot(bucketCounts, count.get(), sum.get(), min.get(), max.get());
+    }
+  }
+
+  /** Immutable copy of a Histogram. */
+  public static class HistogramSnapshot {
+    private final long[] bucketCounts;
+    public final long count;
+    public final long sum;
+    // Valid if |count| > 0.
+    public final long min;
+    public final long max;
+
+    HistogramSnapshot(long[] bucketCounts, long count, long sum, long min, long max) {
+      this.bucketCounts = bucketCounts;
+      this.count = count;
+      this.sum = sum;
+      this.min = min;
+      this.max = max;
+    }
+
+    public double getMean() {
+      return count == 0 ? Double.NaN : (double) sum / count;
+    }
+
+    // Returns the highest value of the bucket holding the |percentile|-th
+    // percentile, limited to the recorded range, or -1 if empty.
+    public long getValueAtPercentile(double percentile) {
+      long total = 0;
+      for (long bucketCount : bucketCounts) {
+        total += bucketCount;
+      }
+      if (total == 0) {
+        return -1;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+      long seen = 0;
+      for (int i = 0; i < bucketCounts.length; i++) {
+        seen += bucketCounts[i];
+        if (seen >= rank) {
+          // The last bucket also holds values above the highest value.
+          return i == bucketCounts.length - 1
+              ? max
+              : Math.max(min, Math.min(max, Histogram.getBucketHighestValue(i)));
+        }
+      }
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      if (count == 0) {
+        return "count=0";
+      }
+      return "count=" + count + " min=" + min + " mean=" + Math.round(getMean())
+          + " p50=" + getValueAtPercentile(50) + " p90=" + getValueAtPercentile(90)
+          + " p99=" + getValueAtPercentile(99) + " max=" + max;
+    }
+  }
+
+  /** Values of all metrics at one point in time, sorted by name. */
+  public static class Snapshot {
+    public final Map<String, Long> counters;
+    public final Map<String, Double> gauges;
+    public final Map<String, HistogramSnapshot> histograms;
+
+    Snapshot(Map<String, Long> counters, Map<String, Double> gauges,
+        Map<String, HistogramSnapshot> histograms) {
+      this.counters = Collections.unmodifiableMap(counters);
+      this.gauges = Collections.unmodifiableMap(gauges);
+      this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    // Writes one "type name value" line per metric.
+    public String export() {
+      StringBuilder builder = new StringBuilder();
+      for (Map.Entry<String, Long> entry : counters.entrySet()) {
+        builder.append("counter ").append(entry.getKey()).append(" ").append(entry.getValue());
+        builder.append("\n");
+      }
+      for (Map.Entry<String, Double> entry : gauges.entrySet()) {
+        builder.append("gauge ").append(entry.getKey()).append(" ").append(entry.getValue());
+        builder.append("\n");
+      }
+      for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()) {
+        builder.append("histogram ").append(entry.getKey()).append(" ").append(entry.getValue());
+        builder.append("\n");
+      }
+      return builder.toString();
+    }
+  }
+
+  public Counter getCounter(String name) {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      counter = new Counter();
+      Counter existing = counters.putIfAbsent(name, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    return counter;
+  }
+
+  public Gauge getGauge(String name) {
+    Gauge gauge = gauges.get(name);
+    if (gauge == null) {
+      gauge = new Gauge();
+      Gauge existing = gauges.putIfAbsent(name, gauge);
+      if (existing != null) {
+        gauge = existing;
+      }
+    }
+    return gauge;
+  }
+
+  // Returns histogram |name|. |highestValue| only applies when the
+  // histogram is created.
+  public Histogram getHistogram(String name, long highestValue) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histogram = new Histogram(highestValue);
+      Histogram existing = histograms.putIfAbsent(name, histogram);
+      if (existing != null) {
+        histogram = existing;
+      }
+    }
+    return histogram;
+  }
+
+  public Snapshot snapshot() {
+    Map<String, Long> counterValues = new TreeMap<String, Long>();
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      counterValues.put(entry.getKey(), entry.getValue().get());
+    }
+    Map<String, Double> gaugeValues = new TreeMap<String, Double>();
+    for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      gaugeValues.put(entry.getKey(), entry.getValue().get());
+    }
+    Map<String, HistogramSnapshot> histogramValues = new TreeMap<String, HistogramSnapshot>();
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      histogramValues.put(entry.getKey(), entry.getValue().snapshot());
+    }
+    return new Snapshot(counterValues, gaugeValues, histogramValues);
+  }
+}
@@ -13,20 +13,20 @@ package org.appspot.apprtc;
 import android.content.Context;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
@@ -37,6 +37,7 @@ import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
 import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStream;
+import org.webrtc.MediaStreamTrack;
 import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnection.IceConnectionState;
 import org.webrtc.PeerConnectionFactory;
@@ -70,7 +71,6 @@ public class PeerConnectionClient {
   private static final String VIDEO_CODEC_H264 = "H264";
   private static final String AUDIO_CODEC_OPUS = "opus";
   private static final String AUDIO_CODEC_ISAC = "ISAC";
-  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
   private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
   private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
   private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
@@ -81,6 +81,10 @@ public class PeerConnectionClient {
   private static final int HD_VIDEO_WIDTH = 1280;
   private static final int HD_VIDEO_HEIGHT = 720;
   private static final int BPS_IN_KBPS = 1000;
+  private static final int ICE_STATS_BOOST_DURATION_MS = 5000;
+  private static final long MAX_STATS_REPORT_COUNT = 1000;
+  private static final long MAX_STATS_CALLBACK_TIME_MS = 10000;
+  private static final int METRICS_IMPORT_PERIOD_MS = 10000;
 
   private static final PeerConnectionClient instance = new PeerConnectionClient();
   private final PCObserver pcObserver = new PCObserver();
@@ -89,6 +93,9 @@ public class PeerConnectionClient {
 
   private Context context;
   private PeerConnectionFactory factory;
+  // Parameters the current factory was created with by
+  // prewarmPeerConnectionFactory(), or null if it was created for a call.
+  private PeerConnectionParameters prewarmParameters;
   private PeerConnection peerConnection;
   PeerConnectionFactory.Options options = null;
   private AudioSource audioSource;
@@ -96,9 +103,21 @@ public class PeerConnectionClient {
   private boolean videoCallEnabled;
   private boolean preferIsac;
   private String preferredVideoCodec;
+  // One per direction, so that each reuses the parsing of the previous
+  // description of its direction. Each is guarded by itself.
+  private final SdpRewriter localSdpRewriter = new SdpRewriter();
+  private final SdpRewriter remoteSdpRewriter = new SdpRewriter();
   private boolean videoCapturerStopped;
   private boolean isError;
-  private Timer statsTimer;
+  private StatsScheduler statsScheduler;
+  // Subscription used by enableStatsEvents().
+  private StatsScheduler.Subscription statsSubscription;
+  // Adds every stats poll of the call to one StatsStore, which all stats
+  // consumers read. Only updated from the stats observer callback.
+  private StatsEngine statsEngine;
+  private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+  private final WebRtcMetricsImporter metricsImporter = new WebRtcMetricsImporter(metrics);
+  private ScheduledFuture<?> metricsImportTask;
   private VideoRenderer.Callbacks localRender;
   private List<VideoRenderer.Callbacks> remoteRenders;
   private SignalingParameters signalingParameters;
@@ -256,6 +275,12 @@ public class PeerConnectionClient {
      */
     void onPeerConnectionStatsReady(final StatsReport[] reports);
 
+    /**
+     * Callback fired just before onPeerConnectionStatsReady with the
+     * per-stream rates computed from the same reports.
+     */
+    void onPeerConnectionCallStats(final StatsEngine.CallStats callStats);
+
     /**
      * Callback fired once peer connection error happened.
      */
@@ -267,6 +292,9 @@ public class PeerConnectionClient {
     // peer connection API calls to ensure new peer connection factory is
     // created on the same thread as previously destroyed factory.
     executor = Executors.newSingleThreadScheduledExecutor();
+    // org.webrtc.Logging messages go through the asynchronous logger until
+    // native logging is enabled with the factory.
+    AsyncLogger.getInstance();
   }
 
   public static PeerConnectionClient getInstance() {
@@ -283,9 +311,8 @@ public class PeerConnectionClient {
     this.events = events;
     videoCallEnabled = peerConnectionParameters.videoCallEnabled;
     dataChannelEnabled = peerConnectionParameters.dataChannelParameters != null;
-    // Reset variables to initial states.
-    this.context = null;
-    factory = null;
+    // Reset variables to initial states. The factory itself is reset on the
+    // executor thread, where a pre-warmed factory may be reused.
     peerConnection = null;
     preferIsac = false;
     videoCapturerStopped = false;
@@ -300,7 +327,14 @@ public class PeerConnectionClient {
     localVideoSender = null;
     enableAudio = true;
     localAudioTrack = null;
-    statsTimer = new Timer();
+    statsScheduler = new StatsScheduler(executor, new StatsScheduler.PollTask() {
+      @Override
+      public void poll(List<StatsScheduler.Subscription> dueSubscriptions) {
+        getStats(dueSubscriptions);
+      }
+    });
+    statsSubscription = null;
+    statsEngine = new StatsEngine();
 
     executor.execute(new Runnable() {
       @Override
@@ -310,6 +344,47 @@ public class PeerConnectionClient {
     });
   }
 
+  /**
+   * Creates the peer connection factory ahead of a call, e.g. while the user
+   * is still choosing a room. A later createPeerConnectionFactory() call reuses
+   * it if it was created with the same audio, codec and tracing parameters
+   * and no factory options are set.
+   */
+  public void prewarmPeerConnectionFactory(
+      final Context context, final PeerConnectionParameters peerConnectionParameters) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (factory != null) {
+          // A call is running or the factory is already pre-warmed.
+          return;
+        }
+        Log.d(TAG, "Pre-warm peer connection factory.");
+        long startTimeMs = System.currentTimeMillis();
+        if (!initializeFactoryGlobals(context, peerConnectionParameters)) {
+          Log.e(TAG, "Failed to pre-warm peer connection factory.");
+          return;
+        }
+        factory = new PeerConnectionFactory(null);
+        prewarmParameters = peerConnectionParameters;
+        Log.d(TAG, "Peer connection factory pre-warmed in "
+                + (System.currentTimeMillis() - startTimeMs) + " ms.");
+      }
+    });
+  }
+
+  /**
+   * Disposes a pre-warmed factory that was not used by a call.
+   */
+  public void releasePrewarmedPeerConnectionFactory() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        disposePrewarmedFactory();
+      }
+    });
+  }
+
   public void createPeerConnection(final EglBase.Context renderEGLContext,
       final VideoRenderer.Callbacks localRender, final VideoRenderer.Callbacks remoteRender,
       final VideoCapturer videoCapturer, final SignalingParameters signalingParameters) {
@@ -355,19 +430,56 @@ public class PeerConnectionClient {
   }
 
   private void createPeerConnectionFactoryInternal(Context context) {
-    PeerConnectionFactory.initializeInternalTracer();
-    if (peerConnectionParameters.tracing) {
-      PeerConnectionFactory.startInternalTracingCapture(
-          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
-          + "webrtc-trace.txt");
+    isError = false;
+    if (factory != null && prewarmParameters != null && options == null
+        && canReuseFactory(prewarmParameters, peerConnectionParameters)) {
+      Log.d(TAG, "Reuse pre-warmed peer connection factory.");
+      prewarmParameters = null;
+      setCodecPreferences();
+      this.context = context;
+      return;
     }
+    disposePrewarmedFactory();
+
     Log.d(TAG,
         "Create peer connection factory. Use video: " + peerConnectionParameters.videoCallEnabled);
-    isError = false;
+    setCodecPreferences();
+    if (!initializeFactoryGlobals(context, peerConnectionParameters)) {
+      events.onPeerConnectionError("Failed to initializeAndroidGlobals");
+    }
+    if (options != null) {
+      Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
+    }
+    this.context = context;
+    factory = new PeerConnectionFactory(options);
+    Log.d(TAG, "Peer connection factory created.");
+  }
 
-    // Initialize field trials.
-    PeerConnectionFactory.initializeFieldTrials("");
+  // Returns true if a factory created with |prewarmed| parameters can be used
+  // for a call with |requested| parameters.
+  private static boolean canReuseFactory(
+      PeerConnectionParameters prewarmed, PeerConnectionParameters requested) {
+    return prewarmed.tracing == requested.tracing
+        && prewarmed.videoCodecHwAcceleration == requested.videoCodecHwAcceleration
+        && prewarmed.useOpenSLES == requested.useOpenSLES
+        && prewarmed.disableBuiltInAEC == requested.disableBuiltInAEC
+        && prewarmed.disableBuiltInAGC == requested.disableBuiltInAGC
+        && prewarmed.disableBuiltInNS == requested.disableBuiltInNS;
+  }
+
+  private void disposePrewarmedFactory() {
+    if (factory == null || prewarmParameters == null) {
+      return;
+    }
+    Log.d(TAG, "Dispose pre-warmed peer connection factory.");
+    factory.dispose();
+    factory = null;
+    prewarmParameters = null;
+    PeerConnectionFactory.stopInternalTracingCapture();
+    PeerConnectionFactory.shutdownInternalTracer();
+  }
 
+  private void setCodecPreferences() {
     // Check preferred video codec.
     preferredVideoCodec = VIDEO_CODEC_VP8;
     if (videoCallEnabled && peerConnectionParameters.videoCodec != null) {
@@ -382,6 +494,21 @@ public class PeerConnectionClient {
     // Check if ISAC is used by default.
     preferIsac = peerConnectionParameters.audioCodec != null
         && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
+  }
+
+  // Initializes tracing, field trials, audio device settings and Android
+  // globals needed before a factory can be created.
+  private static boolean initializeFactoryGlobals(
+      Context context, PeerConnectionParameters peerConnectionParameters) {
+    PeerConnectionFactory.initializeInternalTracer();
+    if (peerConnectionParameters.tracing) {
+      PeerConnectionFactory.startInternalTracingCapture(
+          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
+          + "webrtc-trace.txt");
+    }
+
+    // Initialize field trials.
+    PeerConnectionFactory.initializeFieldTrials("");
 
     // Enable/disable OpenSL ES playback.
     if (!peerConnectionParameters.useOpenSLES) {
@@ -416,17 +543,9 @@ public class PeerConnectionClient {
       WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(false);
     }
 
-    // Create peer connection factory.
-    if (!PeerConnectionFactory.initializeAndroidGlobals(
-            context, true, true, peerConnectionParameters.videoCodecHwAcceleration)) {
-      events.onPeerConnectionError("Failed to initializeAndroidGlobals");
-    }
-    if (options != null) {
-      Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
-    }
-    this.context = context;
-    factory = new PeerConnectionFactory(options);
-    Log.d(TAG, "Peer connection factory created.");
+    // Initialize Android globals for the peer connection factory.
+    return PeerConnectionFactory.initializeAndroidGlobals(
+        context, true, true, peerConnectionParameters.videoCodecHwAcceleration);
   }
 
   private void createMediaConstraintsInternal() {
@@ -539,6 +658,8 @@ public class PeerConnectionClient {
 
     // Set default WebRTC tracing and INFO libjingle logging.
     // NOTE: this _must_ happen while |factory| is alive!
+    // From here on org.webrtc.Logging writes to logcat in native code, which
+    // the asynchronous logger cannot receive.
     Logging.enableTracing("logcat:", EnumSet.of(Logging.TraceLevel.TRACE_DEFAULT));
     Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
 
@@ -566,6 +687,16 @@ public class PeerConnectionClient {
       }
     }
 
+    // Collect native histograms alongside the app metrics during the call.
+    if (metricsImportTask == null && metricsImporter.enable()) {
+      metricsImportTask = executor.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          metricsImporter.importMetrics();
+        }
+      }, METRICS_IMPORT_PERIOD_MS, METRICS_IMPORT_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
     Log.d(TAG, "Peer connection created.");
   }
 
@@ -574,7 +705,13 @@ public class PeerConnectionClient {
       factory.stopAecDump();
     }
     Log.d(TAG, "Closing peer connection.");
-    statsTimer.cancel();
+    statsScheduler.release();
+    if (metricsImportTask != null) {
+      metricsImportTask.cancel(false);
+      metricsImportTask = null;
+      metricsImporter.importMetrics();
+    }
+    Log.d(TAG, "Call metrics:\n" + metrics.snapshot().export());
     if (dataChannel != null) {
       dataChannel.dispose();
       dataChannel = null;
@@ -624,43 +761,141 @@ public class PeerConnectionClient {
     return videoWidth * videoHeight >= 1280 * 720;
   }
 
-  private void getStats() {
-    if (peerConnection == null || isError) {
+  // Queries the stats all |subscriptions| ask for, with a single query for
+  // the whole connection or one query per requested track.
+  private void getStats(List<StatsScheduler.Subscription> subscriptions) {
+    if (peerConnection == null || isError || subscriptions.isEmpty()) {
       return;
     }
-    boolean success = peerConnection.getStats(new StatsObserver() {
-      @Override
-      public void onComplete(final StatsReport[] reports) {
-        events.onPeerConnectionStatsReady(reports);
+    List<StatsRequest> requests = new ArrayList<StatsRequest>(subscriptions.size());
+    for (StatsScheduler.Subscription subscription : subscriptions) {
+      requests.add(subscription.request);
+    }
+    int tracks = StatsRequest.getTracksToQuery(requests);
+    List<MediaStreamTrack> queryTracks = new ArrayList<MediaStreamTrack>();
+    if (tracks == 0) {
+      queryTracks.add(null);
+    } else {
+      if ((tracks & StatsRequest.LOCAL_AUDIO_TRACK) != 0 && localAudioTrack != null) {
+        queryTracks.add(localAudioTrack);
+      }
+      if ((tracks & StatsRequest.LOCAL_VIDEO_TRACK) != 0 && localVideoTrack != null) {
+        queryTracks.add(localVideoTrack);
+      }
+      if ((tracks & StatsRequest.REMOTE_VIDEO_TRACK) != 0 && remoteVideoTrack != null) {
+        queryTracks.add(remoteVideoTrack);
+      }
+      if (queryTracks.isEmpty()) {
+        return;
+      }
+    }
+    StatsQuery query = new StatsQuery(subscriptions, queryTracks.size(),
+        tracks == 0 ? "Stats.ConnectionQuery" : "Stats.TrackQuery");
+    for (MediaStreamTrack track : queryTracks) {
+      if (!peerConnection.getStats(query, track)) {
+        Log.e(TAG, "getStats() returns false!");
+        query.onComplete(new StatsReport[0]);
       }
-    }, null);
-    if (!success) {
-      Log.e(TAG, "getStats() returns false!");
     }
   }
 
+  // Collects the results of the queries of one poll and hands each
+  // subscriber the reports it asked for.
+  private class StatsQuery implements StatsObserver {
+    private final List<StatsScheduler.Subscription> subscriptions;
+    // Prefix of the metrics that measure this kind of query.
+    private final String metricsName;
+    private final long startTimeMs = SystemClock.elapsedRealtime();
+    private final List<StatsReport[]> results = new ArrayList<StatsReport[]>();
+    private int pendingQueries;
+
+    StatsQuery(
+        List<StatsScheduler.Subscription> subscriptions, int queries, String metricsName) {
+      this.subscriptions = subscriptions;
+      this.metricsName = metricsName;
+      this.pendingQueries = queries;
+    }
+
+    @Override
+    public void onComplete(final StatsReport[] reports) {
+      StatsReport[] merged;
+      synchronized (this) {
+        results.add(reports);
+        if (--pendingQueries > 0) {
+          return;
+        }
+        merged = StatsRequest.merge(results);
+      }
+      metrics.getHistogram(metricsName + ".ReportCount", MAX_STATS_REPORT_COUNT)
+          .record(merged.length);
+      metrics.getHistogram(metricsName + ".CallbackTimeMs", MAX_STATS_CALLBACK_TIME_MS)
+          .record(SystemClock.elapsedRealtime() - startTimeMs);
+      // Every poll is added to the shared store once, whatever consumers
+      // it was made for.
+      StatsEngine.CallStats callStats = statsEngine.update(merged);
+      boolean deliverEvents = false;
+      for (StatsScheduler.Subscription subscription : subscriptions) {
+        if (subscription.listener != null) {
+          subscription.listener.onStatsReady(subscription.request.filter(merged), callStats);
+        } else {
+          deliverEvents = true;
+        }
+      }
+      if (deliverEvents) {
+        events.onPeerConnectionCallStats(callStats);
+        events.onPeerConnectionStatsReady(merged);
+      }
+    }
+  }
+
+
+  // Starts or pauses stats events for all subscribers. |periodMs| is the
+  // period of the default subscription; other consumers can ask for their
+  // own period with addStatsSubscription().
   public void enableStatsEvents(boolean enable, int periodMs) {
     if (enable) {
-      try {
-        statsTimer.schedule(new TimerTask() {
-          @Override
-          public void run() {
-            executor.execute(new Runnable() {
-              @Override
-              public void run() {
-                getStats();
-              }
-            });
-          }
-        }, 0, periodMs);
-      } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
+      if (statsSubscription == null) {
+        statsSubscription = statsScheduler.subscribe(periodMs, StatsRequest.ALL, null);
+      } else {
+        statsSubscription.setPeriodMs(periodMs);
       }
+      statsScheduler.resume();
     } else {
-      statsTimer.cancel();
+      statsScheduler.pause();
     }
   }
 
+  // Adds a consumer of the PeerConnectionEvents stats callbacks polling every
+  // |periodMs| while it is active. Stats are still only delivered while
+  // stats events are enabled.
+  public StatsScheduler.Subscription addStatsSubscription(int periodMs) {
+    return statsScheduler.subscribe(periodMs, StatsRequest.ALL, null);
+  }
+
+  // Adds a consumer that receives only the reports of |request| every
+  // |periodMs|. |listener| is called on the signaling thread.
+  public StatsScheduler.Subscription addStatsSubscription(
+      int periodMs, StatsRequest request, StatsScheduler.StatsListener listener) {
+    return statsScheduler.subscribe(periodMs, request, listener);
+  }
+
+  // Returns the store all stats polls of the call are added to. It is
+  // updated on the stats callback thread just before the reports are
+  // delivered, and must only be read on that thread.
+  public StatsStore getStatsStore() {
+    return statsEngine.getStatsStore();
+  }
+
+  // Stretches the stats period while the app is not in the foreground.
+  public void setStatsInBackground(boolean background) {
+    statsScheduler.setBackground(background);
+  }
+
+  // Limits stats polls to one per |minPeriodMs|, or lifts the limit if 0.
+  public void setStatsMinPeriodMs(int minPeriodMs) {
+    statsScheduler.setMinPeriodMs(minPeriodMs);
+  }
+
   public void setAudioEnabled(final boolean enable) {
     executor.execute(new Runnable() {
       @Override
@@ -751,17 +986,7 @@ public class PeerConnectionClient {
         if (peerConnection == null || isError) {
           return;
         }
-        String sdpDescription = sdp.description;
-        if (preferIsac) {
-          sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-        }
-        if (videoCallEnabled) {
-          sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
-        }
-        if (peerConnectionParameters.audioStartBitrate > 0) {
-          sdpDescription = setStartBitrate(
-              AUDIO_CODEC_OPUS, false, sdpDescription, peerConnectionParameters.audioStartBitrate);
-        }
+        String sdpDescription = rewriteSdp(sdp.description, true /* isRemote */);
         Log.d(TAG, "Set remote SDP.");
         SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
         peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
@@ -871,123 +1096,27 @@ public class PeerConnectionClient {
     }
   }
 
-  private static String setStartBitrate(
-      String codec, boolean isVideoCodec, String sdpDescription, int bitrateKbps) {
-    String[] lines = sdpDescription.split("\r\n");
-    int rtpmapLineIndex = -1;
-    boolean sdpFormatUpdated = false;
-    String codecRtpMap = null;
-    // Search for codec rtpmap in format
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-        rtpmapLineIndex = i;
-        break;
-      }
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec + " codec");
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + " at " + lines[rtpmapLineIndex]);
-
-    // Check if a=fmtp string already exist in remote SDP for this codec and
-    // update it with new bitrate parameter.
-    regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-    codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        Log.d(TAG, "Found " + codec + " " + lines[i]);
-        if (isVideoCodec) {
-          lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Update remote SDP line: " + lines[i]);
-        sdpFormatUpdated = true;
-        break;
-      }
-    }
-
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (int i = 0; i < lines.length; i++) {
-      newSdpDescription.append(lines[i]).append("\r\n");
-      // Append new a=fmtp line if no such line exist for a codec.
-      if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-        String bitrateSet;
-        if (isVideoCodec) {
-          bitrateSet =
-              "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          bitrateSet = "a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-              + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-        newSdpDescription.append(bitrateSet).append("\r\n");
+  // Applies codec preferences to a local or remote description. Remote
+  // descriptions also get the configured audio start bitrate.
+  private String rewriteSdp(String sdpDescription, boolean isRemote) {
+    SdpRewriter sdpRewriter = isRemote ? remoteSdpRewriter : localSdpRewriter;
+    synchronized (sdpRewriter) {
+      sdpRewriter.clearEdits();
+      if (preferIsac) {
+        sdpRewriter.preferCodec(AUDIO_CODEC_ISAC, true);
       }
-    }
-    return newSdpDescription.toString();
-  }
-
-  private static String preferCodec(String sdpDescription, String codec, boolean isAudio) {
-    String[] lines = sdpDescription.split("\r\n");
-    int mLineIndex = -1;
-    String codecRtpMap = null;
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    String mediaDescription = "m=video ";
-    if (isAudio) {
-      mediaDescription = "m=audio ";
-    }
-    for (int i = 0; (i < lines.length) && (mLineIndex == -1 || codecRtpMap == null); i++) {
-      if (lines[i].startsWith(mediaDescription)) {
-        mLineIndex = i;
-        continue;
+      if (videoCallEnabled) {
+        sdpRewriter.preferCodec(preferredVideoCodec, false);
       }
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
+      if (isRemote && peerConnectionParameters.audioStartBitrate > 0) {
+        sdpRewriter.setFmtpParameter(AUDIO_CODEC_OPUS, AUDIO_CODEC_PARAM_BITRATE,
+            peerConnectionParameters.audioStartBitrate * 1000);
       }
-    }
-    if (mLineIndex == -1) {
-      Log.w(TAG, "No " + mediaDescription + " line, so can't prefer " + codec);
-      return sdpDescription;
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec);
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + ", prefer at " + lines[mLineIndex]);
-    String[] origMLineParts = lines[mLineIndex].split(" ");
-    if (origMLineParts.length > 3) {
-      StringBuilder newMLine = new StringBuilder();
-      int origPartIndex = 0;
-      // Format is: m=<media> <port> <proto> <fmt> ...
-      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-      newMLine.append(codecRtpMap);
-      for (; origPartIndex < origMLineParts.length; origPartIndex++) {
-        if (!origMLineParts[origPartIndex].equals(codecRtpMap)) {
-          newMLine.append(" ").append(origMLineParts[origPartIndex]);
-        }
+      if (!sdpRewriter.hasEdits()) {
+        return sdpDescription;
       }
-      lines[mLineIndex] = newMLine.toString();
-      Log.d(TAG, "Change media description: " + lines[mLineIndex]);
-    } else {
-      Log.e(TAG, "Wrong SDP media description format: " + lines[mLineIndex]);
-    }
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (String line : lines) {
-      newSdpDescription.append(line).append("\r\n");
+      return sdpRewriter.rewrite(sdpDescription);
     }
-    return newSdpDescription.toString();
   }
 
   private void drainCandidates() {
@@ -1075,6 +1204,8 @@ public class PeerConnectionClient {
         @Override
         public void run() {
           Log.d(TAG, "IceConnectionState: " + newState);
+          // Poll more often while the connection settles.
+          statsScheduler.boost(ICE_STATS_BOOST_DURATION_MS);
           if (newState == IceConnectionState.CONNECTED) {
             events.onIceConnected();
           } else if (newState == IceConnectionState.DISCONNECTED) {
@@ -1177,13 +1308,7 @@ public class PeerConnectionClient {
         reportError("Multiple SDP create.");
         return;
       }
-      String sdpDescription = origSdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (videoCallEnabled) {
-        sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
-      }
+      String sdpDescription = rewriteSdp(origSdp.description, false /* isRemote */);
       final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
       localSdp = sdp;
       executor.execute(new Runnable() {
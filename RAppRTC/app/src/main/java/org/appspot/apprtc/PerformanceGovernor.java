@@ -0,0 +1,220 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Turns the thermal and battery state of the device into a performance
+ * budget, so that long calls do not overheat the device or drain a low
+ * battery.
+ *
+ * <p>Each signal maps to a budget level from LEVEL_NONE to LEVEL_CRITICAL:
+ * the temperature of the SoC, the temperature of the surface or the
+ * battery, the battery level while not charging, and CPU throttling. The
+ * CPU counts as throttled when, under load, its frequency scale falls below
+ * the highest one seen under load in the call. The budget takes the highest
+ * level of all signals. A higher level applies after RAISE_UPDATES updates
+ * in a row, and the budget relaxes one level per RELAX_MS, so that a device
+ * cools down before it is loaded again.
+ *
+ * <p>Each level caps the frame rate of the renderers, the send video
+ * bitrate and the stats poll rate. Not thread-safe; it should be updated
+ * from one thread.
+ */
+class PerformanceGovernor {
+  static final int LEVEL_NONE = 0;
+  static final int LEVEL_LIGHT = 1;
+  static final int LEVEL_SERIOUS = 2;
+  static final int LEVEL_CRITICAL = 3;
+
+  // Thresholds of LEVEL_LIGHT, LEVEL_SERIOUS and LEVEL_CRITICAL.
+  static final double[] SOC_TEMPERATURES_C = {75, 85, 95};
+  static final double[] SURFACE_TEMPERATURES_C = {40, 43, 46};
+  static final double[] BATTERY_PERCENTS = {20, 10, 5};
+  // Throttling only goes up to LEVEL_SERIOUS.
+  static final double[] THROTTLE_RATIOS = {0.8, 0.6};
+  // CPU use above which the frequency scale is a throttling signal.
+  static final double LOADED_CPU_PERCENT = 60;
+
+  static final int RAISE_UPDATES = 2;
+  static final long RELAX_MS = 60000;
+
+  // Caps by level; 0 is no cap.
+  private static final float[] MAX_RENDER_FPS = {0, 24, 15, 10};
+  private static final int[] MAX_VIDEO_BITRATES_KBPS = {0, 1500, 800, 400};
+  private static final int[] STATS_MIN_PERIODS_MS = {0, 2000, 5000, 10000};
+
+  /** Inputs of an update. Temperatures are NaN and percents -1 if unknown. */
+  public static class DeviceState {
+    public final double socTemperatureC;
+    public final double surfaceTemperatureC;
+    public final int batteryPercent;
+    public final boolean charging;
+    public final int cpuUsagePercent;
+    public final int frequencyScalePercent;
+
+    public DeviceState(double socTemperatureC, double surfaceTemperatureC, int batteryPercent,
+        boolean charging, int cpuUsagePercent, int frequencyScalePercent) {
+      this.socTemperatureC = socTemperatureC;
+      this.surfaceTemperatureC = surfaceTemperatureC;
+      this.batteryPercent = batteryPercent;
+      this.charging = charging;
+      this.cpuUsagePercent = cpuUsagePercent;
+      this.frequencyScalePercent = frequencyScalePercent;
+    }
+  }
+
+  /** The caps of a budget level. Immutable. */
+  public static class Budget {
+    public final int level;
+    // Frame rate the renderers are reduced to, or 0 for no limit.
+    public final float maxRenderFps;
+    // Send video bitrate limit, or 0 for no limit.
+    public final int maxVideoBitrateKbps;
+    // Shortest stats poll period, or 0 for no limit.
+    public final int statsMinPeriodMs;
+    // The signal that set the level, or null.
+    public final String reason;
+
+    Budget(int level, String reason) {
+      this.level = level;
+      this.maxRenderFps = MAX_RENDER_FPS[level];
+      this.maxVideoBitrateKbps = MAX_VIDEO_BITRATES_KBPS[level];
+      this.statsMinPeriodMs = STATS_MIN_PERIODS_MS[level];
+      this.reason = reason;
+    }
+
+    @Override
+    public String toString() {
+      return "level " + level + (reason != null ? " (" + reason + ")" : "") + ": render fps "
+          + maxRenderFps + ", video bitrate " + maxVideoBitrateKbps + " kbps, stats period "
+          + statsMinPeriodMs + " ms";
+    }
+  }
+
+  /** Receives budget changes on the thread that calls update(). */
+  public interface Listener {
+    void onBudgetChanged(Budget budget);
+  }
+
+  private final MetricsRegistry metrics;
+  private final Listener listener;
+  private Budget budget = new Budget(LEVEL_NONE, null);
+  private int raiseUpdates;
+  private boolean relaxing;
+  private long relaxStartMs;
+  // Highest frequency scale seen under load.
+  private int loadedFrequencyScalePercent;
+
+  public PerformanceGovernor(MetricsRegistry metrics, Listener listener) {
+    this.metrics = metrics;
+    this.listener = listener;
+  }
+
+  public Budget getBudget() {
+    return budget;
+  }
+
+  // Updates with |state| at |timeMs|. Returns the current budget.
+  public Budget update(long timeMs, DeviceState state) {
+    int level = LEVEL_NONE;
+    String reason = null;
+
+    int socLevel = getLevel(state.socTemperatureC, SOC_TEMPERATURES_C);
+    if (socLevel > level) {
+      level = socLevel;
+      reason = "SoC " + Math.round(state.socTemperatureC) + " C";
+    }
+    int surfaceLevel = getLevel(state.surfaceTemperatureC, SURFACE_TEMPERATURES_C);
+    if (surfaceLevel > level) {
+      level = surfaceLevel;
+      reason = "surface " + Math.round(state.surfaceTemperatureC) + " C";
+    }
+    if (!state.charging && state.batteryPercent >= 0) {
+      int batteryLevel = getLevelBelow(state.batteryPercent, BATTERY_PERCENTS);
+      if (batteryLevel > level) {
+        level = batteryLevel;
+        reason = "battery " + state.batteryPercent + "%";
+      }
+    }
+    double throttleRatio = getThrottleRatio(state);
+    int throttleLevel = getLevelBelow(throttleRatio, THROTTLE_RATIOS);
+    if (throttleLevel > level) {
+      level = throttleLevel;
+      reason = "CPU throttled to " + Math.round(100 * throttleRatio) + "%";
+    }
+    metrics.getGauge("PerformanceGovernor.SocTemperatureC").set(state.socTemperatureC);
+    metrics.getGauge("PerformanceGovernor.SurfaceTemperatureC").set(state.surfaceTemperatureC);
+    metrics.getGauge("PerformanceGovernor.ThrottleRatio").set(throttleRatio);
+
+    if (level > budget.level) {
+      relaxing = false;
+      if (++raiseUpdates >= RAISE_UPDATES) {
+        setBudget(new Budget(level, reason));
+      }
+    } else if (level < budget.level) {
+      raiseUpdates = 0;
+      if (!relaxing) {
+        relaxing = true;
+        relaxStartMs = timeMs;
+      } else if (timeMs - relaxStartMs >= RELAX_MS) {
+        // One level at a time, each after a full RELAX_MS.
+        relaxStartMs = timeMs;
+        int relaxedLevel = budget.level - 1;
+        setBudget(new Budget(relaxedLevel, relaxedLevel > level ? budget.reason : reason));
+      }
+    } else {
+      raiseUpdates = 0;
+      relaxing = false;
+    }
+    return budget;
+  }
+
+  private void setBudget(Budget budget) {
+    this.budget = budget;
+    raiseUpdates = 0;
+    metrics.getGauge("PerformanceGovernor.Level").set(budget.level);
+    listener.onBudgetChanged(budget);
+  }
+
+  // Returns the frequency scale under load relative to the highest one
+  // seen under load, or 1 if not under load.
+  private double getThrottleRatio(DeviceState state) {
+    if (state.cpuUsagePercent < LOADED_CPU_PERCENT || state.frequencyScalePercent <= 0) {
+      return 1;
+    }
+    loadedFrequencyScalePercent =
+        Math.max(loadedFrequencyScalePercent, state.frequencyScalePercent);
+    return (double) state.frequencyScalePercent / loadedFrequencyScalePercent;
+  }
+
+  // Returns the level of |value| for the increasing |thresholds| of
+  // LEVEL_LIGHT and up. NaN is LEVEL_NONE.
+  private static int getLevel(double value, double[] thresholds) {
+    int level = LEVEL_NONE;
+    for (int i = 0; i < thresholds.length; i++) {
+      if (value >= thresholds[i]) {
+        level = LEVEL_LIGHT + i;
+      }
+    }
+    return level;
+  }
+
+  // Like getLevel() for |thresholds| of values that are worse when lower.
+  private static int getLevelBelow(double value, double[] thresholds) {
+    int level = LEVEL_NONE;
+    for (int i = 0; i < thresholds.length; i++) {
+      if (value <= thresholds[i]) {
+        level = LEVEL_LIGHT + i;
+      }
+    }
+    return level;
+  }
+}
@@ -0,0 +1,396 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads /proc and sysfs files without allocating.
+ *
+ * <p>Files are opened once and kept open; each read is a positional read
+ * from offset 0 into one direct buffer shared by all files, and numbers are
+ * parsed straight from its bytes with a cursor. Kernel files are generated
+ * on read, so a kept open file returns fresh contents every time. Files that
+ * can not be opened, like the cpufreq files of an offline core, are only
+ * retried every REOPEN_PERIOD reads so that their failures do not allocate
+ * exceptions on every sample.
+ *
+ * <p>Only the first BUFFER_SIZE bytes of a file are read, which holds the
+ * cpu lines of /proc/stat and a whole task stat line. Not thread-safe.
+ */
+class ProcSampler {
+  static final int BUFFER_SIZE = 8192;
+  static final int REOPEN_PERIOD = 5;
+  static final String PROC_STAT = "/proc/stat";
+
+  // Indices of the /proc/stat cpu time fields.
+  static final int USER = 0;
+  static final int NICE = 1;
+  static final int SYSTEM = 2;
+  static final int IDLE = 3;
+  static final int IOWAIT = 4;
+  static final int IRQ = 5;
+  static final int SOFTIRQ = 6;
+  static final int CPU_TIME_FIELDS = 7;
+
+  // Fields of /proc/<pid>/task/<tid>/stat between the thread name and
+  // utime: ppid to cmajflt.
+  private static final int TASK_FIELDS_BEFORE_UTIME = 10;
+
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private int length;
+  private int position;
+  // Thread name of the task stat last read, in the buffer.
+  private int taskNameStart;
+  private int taskNameEnd;
+  private final String procStatPath;
+  private KernelFile procStat;
+
+  /** A kernel file kept open between reads. */
+  static class KernelFile {
+    final String path;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    // Reads to skip before trying to open the file again.
+    private int reopenDelay;
+
+    KernelFile(String path) {
+      this.path = path;
+    }
+
+    private boolean ensureOpen() {
+      if (channel != null) {
+        return true;
+      }
+      if (reopenDelay > 0) {
+        reopenDelay--;
+        return false;
+      }
+      try {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        return true;
+      } catch (IOException e) {
+        // Missing, like the cpufreq files of an offline core.
+        reopenDelay = REOPEN_PERIOD;
+        return false;
+      }
+    }
+
+    void close() {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {
+          // Nothing to do for a read-only kernel file.
+        }
+      }
+      file = null;
+      channel = null;
+    }
+  }
+
+  public ProcSampler() {
+    this(PROC_STAT);
+  }
+
+  ProcSampler(String procStatPath) {
+    this.procStatPath = procStatPath;
+  }
+
+  public KernelFile open(String path) {
+    return new KernelFile(path);
+  }
+
+  // Reads |file| and moves the cursor to its start. Returns false if the
+  // file can not be read now.
+  public boolean read(KernelFile file) {
+    length = 0;
+    position = 0;
+    if (!file.ensureOpen()) {
+      return false;
+    }
+    buffer.clear();
+    try {
+      while (buffer.hasRemaining()) {
+        if (file.channel.read(buffer, buffer.position()) <= 0) {
+          break;
+        }
+      }
+    } catch (ClosedChannelException e) {
+      // Closed by an interrupt of the reading thread; reopen on next read.
+      file.close();
+      return false;
+    } catch (IOException e) {
+      // The file went away, e.g. its core went offline.
+      file.close();
+      file.reopenDelay = REOPEN_PERIOD;
+      return false;
+    }
+    length = buffer.position();
+    return length > 0;
+  }
+
+  // Returns the first number of |file|, or 0 if it can not be read, like
+  // the single value files of sysfs.
+  public long readLong(KernelFile file) {
+    if (!read(file)) {
+      return 0;
+    }
+    long value = nextLong();
+    return value < 0 ? 0 : value;
+  }
+
+  // Reads the aggregate "cpu" line of /proc/stat into |times|, indexed by
+  // USER to SOFTIRQ, in clock ticks. Returns the number of fields read, or
+  // 0 on failure.
+  public int readCpuTimes(long[] times) {
+    return readCpuTimes(times, null);
+  }
+
+  // Reads the aggregate "cpu" line like readCpuTimes(long[]), and the "cpuN"
+  // line of each core N into |coreTimes[N]| if not null. Cores without a
+  // line, which are offline, read as all 0.
+  public int readCpuTimes(long[] times, long[][] coreTimes) {
+    if (procStat == null) {
+      procStat = open(procStatPath);
+    }
+    if (!read(procStat) || !startsWith("cpu ")) {
+      return 0;
+    }
+    int count = nextLongs(times, "cpu".length());
+    if (coreTimes == null) {
+      return count;
+    }
+    for (long[] core : coreTimes) {
+      Arrays.fill(core, 0);
+    }
+    while (nextLine() && startsWith("cpu")) {
+      skip("cpu".length());
+      long core = nextLongInLine();
+      if (core >= 0 && core < coreTimes.length) {
+        nextLongs(coreTimes[(int) core], 0);
+      }
+    }
+    return count;
+  }
+
+  // Reads a /proc/<pid>/task/<tid>/stat |file| into |times|: the user and
+  // the system time of the thread in clock ticks. Returns false if the
+  // thread is gone. The thread name is then available from getTaskName().
+  public boolean readTaskTimes(KernelFile file, long[] times) {
+    // The line looks like this, where the name may contain spaces and
+    // parentheses:
+    // 1234 (EglRenderer) S 1200 1200 0 0 -1 1077936192 25 0 0 0 1508 242 ...
+    //                                                            utime stime
+    if (!read(file)) {
+      return false;
+    }
+    taskNameStart = -1;
+    taskNameEnd = -1;
+    for (int i = 0; i < length; i++) {
+      byte b = buffer.get(i);
+      if (b == '(' && taskNameStart < 0) {
+        taskNameStart = i + 1;
+      } else if (b == ')') {
+        taskNameEnd = i;
+      } else if (b == '\n') {
+        break;
+      }
+    }
+    if (taskNameStart < 0 || taskNameEnd < taskNameStart) {
+      return false;
+    }
+    position = taskNameEnd + 1;
+    for (int i = 0; i < TASK_FIELDS_BEFORE_UTIME; i++) {
+      if (nextLongInLine() < 0) {
+        return false;
+      }
+    }
+    times[0] = nextLongInLine();
+    times[1] = nextLongInLine();
+    return times[0] >= 0 && times[1] >= 0;
+  }
+
+  // Returns the thread name of the task stat last read. Returns |name|
+  // itself if it is equal, so that unchanged names are not allocated again.
+  public String getTaskName(String name) {
+    int nameLength = taskNameEnd - taskNameStart;
+    if (name != null && name.length() == nameLength) {
+      boolean equal = true;
+      for (int i = 0; i < nameLength && equal; i++) {
+        equal = buffer.get(taskNameStart + i) == name.charAt(i);
+      }
+      if (equal) {
+        return name;
+      }
+    }
+    char[] chars = new char[nameLength];
+    for (int i = 0; i < nameLength; i++) {
+      chars[i] = (char) (buffer.get(taskNameStart + i) & 0xFF);
+    }
+    return new String(chars);
+  }
+
+  // Parses up to |times.length| numbers of the current line after
+  // |skip| bytes. Returns the number of fields parsed; missing fields are
+  // set to 0.
+  int nextLongs(long[] times, int skip) {
+    position += skip;
+    int count = 0;
+    while (count < times.length) {
+      long value = nextLongInLine();
+      if (value < 0) {
+        break;
+      }
+      times[count++] = value;
+    }
+    for (int i = count; i < times.length; i++) {
+      times[i] = 0;
+    }
+    return count;
+  }
+
+  // Returns true if the line at the cursor starts with |prefix|.
+  public boolean startsWith(String prefix) {
+    if (position + prefix.length() > length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (buffer.get(position + i) != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Moves the cursor to the start of the next complete line. Returns false
+  // at the end of the buffer.
+  public boolean nextLine() {
+    while (position < length && buffer.get(position) != '\n') {
+      position++;
+    }
+    if (position >= length) {
+      return false;
+    }
+    position++;
+    // A line cut off by the end of the buffer is not complete.
+    for (int i = position; i < length; i++) {
+      if (buffer.get(i) == '\n') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Skips |count| bytes of the current line.
+  public void skip(int count) {
+    position = Math.min(length, position + count);
+  }
+
+  // Parses the next unsigned number of the current line, or returns -1 if
+  // the line has no more numbers.
+  public long nextLongInLine() {
+    while (position < length) {
+      byte b = buffer.get(position);
+      if (b == '\n') {
+        return -1;
+      }
+      if (b >= '0' && b <= '9') {
+        break;
+      }
+      position++;
+    }
+    return parseDigits();
+  }
+
+  // Parses the next unsigned number, on any line, or returns -1.
+  public long nextLong() {
+    while (position < length) {
+      byte b = buffer.get(position);
+      if (b >= '0' && b <= '9') {
+        break;
+      }
+      position++;
+    }
+    return parseDigits();
+  }
+
+  private long parseDigits() {
+    if (position >= length) {
+      return -1;
+    }
+    long value = 0;
+    while (position < length) {
+      byte b = buffer.get(position);
+      if (b < '0' || b > '9') {
+        break;
+      }
+      value = value * 10 + (b - '0');
+      position++;
+    }
+    return value;
+  }
+
+  // Returns the first line of the file at |path|, or null if it can not be
+  // read. Allocates; meant for files read once, like thermal zone types.
+  public String readString(String path) {
+    KernelFile file = open(path);
+    try {
+      if (!read(file)) {
+        return null;
+      }
+      int end = 0;
+      while (end < length && buffer.get(end) != '\n') {
+        end++;
+      }
+      char[] chars = new char[end];
+      for (int i = 0; i < end; i++) {
+        chars[i] = (char) (buffer.get(i) & 0xFF);
+      }
+      return new String(chars);
+    } finally {
+      file.close();
+    }
+  }
+
+  // Returns the number of CPUs of a cpu list like
+  // /sys/devices/system/cpu/present, "0-7", "0" or "0-3,6-7": the highest
+  // listed CPU + 1. Returns 0 if it can not be read.
+  public int readCpuCount(String path) {
+    KernelFile file = open(path);
+    try {
+      if (!read(file)) {
+        return 0;
+      }
+      long highest = -1;
+      long value;
+      while ((value = nextLongInLine()) >= 0) {
+        highest = Math.max(highest, value);
+      }
+      return (int) (highest + 1);
+    } finally {
+      file.close();
+    }
+  }
+
+  public void close() {
+    if (procStat != null) {
+      procStat.close();
+      procStat = null;
+    }
+  }
+}
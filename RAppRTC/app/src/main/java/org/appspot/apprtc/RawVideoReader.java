@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Reads the frames of a raw video file, frames back to back without
+ * headers, from memory maps.
+ *
+ * <p>The frame size and format are read from a sidecar properties file
+ * next to the video, named like the video with .properties appended:
+ * <pre>
+ * width=1280
+ * height=720
+ * format=nv12
+ * framerate=30000:1001
+ * </pre>
+ * The format is one of i420, nv12, i422 and i444 and defaults to i420. The
+ * frame rate is optional and may be a number of frames per second or a
+ * fraction like the F token of a y4m file. A truncated last frame is
+ * ignored.
+ */
+class RawVideoReader extends MappedVideoReader {
+  private static final String TAG = "RawVideoReader";
+  static final String SIDECAR_SUFFIX = ".properties";
+
+  /** The frame size, format and rate of a sidecar file. */
+  static class Sidecar {
+    final PixelFormat format;
+    final int width;
+    final int height;
+    final long frameIntervalNs;
+
+    private Sidecar(PixelFormat format, int width, int height, long frameIntervalNs) {
+      this.format = format;
+      this.width = width;
+      this.height = height;
+      this.frameIntervalNs = frameIntervalNs;
+    }
+
+    static Sidecar read(File file) throws IOException {
+      Properties properties = new Properties();
+      InputStream in = new FileInputStream(file);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+      PixelFormat format;
+      String formatName = properties.getProperty("format", "i420");
+      try {
+        format = PixelFormat.valueOf(formatName.toUpperCase(Locale.US));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Does not support format " + formatName);
+      }
+      int width;
+      int height;
+      try {
+        width = Integer.parseInt(properties.getProperty("width", "0"));
+        height = Integer.parseInt(properties.getProperty("height", "0"));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid frame size in " + file);
+      }
+      if (width <= 0 || height <= 0 || (width % 2) == 1 || (height % 2) == 1) {
+        throw new IllegalArgumentException(
+            "Does not support frame size " + width + "x" + height);
+      }
+      long frameIntervalNs = 0;
+      String frameRate = properties.getProperty("framerate");
+      if (frameRate != null) {
+        frameIntervalNs = Y4mFileReader.parseFrameInterval(
+            frameRate.indexOf(':') < 0 ? frameRate + ":1" : frameRate);
+      }
+      return new Sidecar(format, width, height, frameIntervalNs);
+    }
+  }
+
+  public RawVideoReader(String path) throws IOException {
+    this(path, DEFAULT_WINDOW_SIZE);
+  }
+
+  RawVideoReader(String path, long maxWindowSize) throws IOException {
+    super(readLayout(path), maxWindowSize);
+  }
+
+  private static Layout readLayout(String path) throws IOException {
+    Sidecar sidecar = Sidecar.read(new File(path + SIDECAR_SUFFIX));
+    int frameSize = sidecar.format.getFrameSize(sidecar.width, sidecar.height);
+    long fileSize = new File(path).length();
+    long count = fileSize / frameSize;
+    if (count > Integer.MAX_VALUE) {
+      throw new IOException("Too many frames in " + path);
+    }
+    if (count * frameSize < fileSize) {
+      Log.w(TAG, "Ignoring truncated frame " + count + " of " + path);
+    }
+    long[] offsets = new long[(int) count];
+    for (int i = 0; i < count; i++) {
+      offsets[i] = (long) i * frameSize;
+    }
+    return new Layout(path, sidecar.format, sidecar.width, sidecar.height,
+        sidecar.frameIntervalNs, offsets, (int) count);
+  }
+}
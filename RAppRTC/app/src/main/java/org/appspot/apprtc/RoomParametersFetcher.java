@@ -14,6 +14,7 @@ import org.appspot.apprtc.AppRTCClient.SignalingParameters;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.json.JSONArray;
@@ -26,9 +27,18 @@ import org.webrtc.SessionDescription;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * AsyncTask that converts an AppRTC room URL into the set of signaling
@@ -36,11 +46,19 @@ import java.util.Scanner;
  */
 public class RoomParametersFetcher {
   private static final String TAG = "RoomRTCClient";
+  private static final String ROOM_PARAMS = "params";
   private static final int TURN_HTTP_TIMEOUT_MS = 5000;
+  // Lifetime of cached TURN servers if the TURN response doesn't specify one.
+  private static final long TURN_CACHE_DEFAULT_TTL_MS = 10 * 60 * 1000;
+  // Cached TURN servers are refreshed this long before their credentials expire.
+  private static final long TURN_CACHE_EXPIRY_MARGIN_MS = 30 * 1000;
+  // TURN servers are shared by all fetchers so they survive from one call to the next.
+  private static final TurnServerCache turnServerCache = new TurnServerCache();
   private final RoomParametersFetcherEvents events;
   private final String roomUrl;
   private final String roomMessage;
   private AsyncHttpURLConnection httpConnection;
+  private long requestStartTimeMs;
 
   /**
    * Room parameters fetcher callbacks.
@@ -67,6 +85,13 @@ public class RoomParametersFetcher {
 
   public void makeRequest() {
     Log.d(TAG, "Connecting to room: " + roomUrl);
+    requestStartTimeMs = SystemClock.elapsedRealtime();
+    // If a previous call to the same room server told us where to get TURN
+    // servers from, refresh them in parallel with the room join request.
+    String turnUrl = turnServerCache.getRequestUrl(getRoomServer(roomUrl));
+    if (turnUrl != null) {
+      turnServerCache.prefetch(turnUrl);
+    }
     httpConnection =
         new AsyncHttpURLConnection("POST", roomUrl, roomMessage, new AsyncHttpEvents() {
           @Override
@@ -83,6 +108,41 @@ public class RoomParametersFetcher {
     httpConnection.send();
   }
 
+  /**
+   * Prepares a call to the room server at |roomServerUrl| before any room is
+   * joined. Requesting the room server parameters opens a connection that the
+   * join request can reuse, and tells which TURN servers to prefetch.
+   */
+  public static void prewarm(final String roomServerUrl) {
+    final String roomServer = getRoomServer(roomServerUrl);
+    String turnUrl = turnServerCache.getRequestUrl(roomServer);
+    if (turnUrl != null) {
+      turnServerCache.prefetch(turnUrl);
+    }
+    Log.d(TAG, "Pre-warm room server: " + roomServerUrl);
+    AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection(
+        "GET", roomServerUrl + "/" + ROOM_PARAMS, null, new AsyncHttpEvents() {
+          @Override
+          public void onHttpError(String errorMessage) {
+            Log.w(TAG, "Room server pre-warm error: " + errorMessage);
+          }
+
+          @Override
+          public void onHttpComplete(String response) {
+            try {
+              String turnUrl = new JSONObject(response).optString("ice_server_url");
+              if (turnUrl.length() > 0) {
+                turnServerCache.setRequestUrl(roomServer, turnUrl);
+                turnServerCache.prefetch(turnUrl);
+              }
+            } catch (JSONException e) {
+              Log.w(TAG, "Room server parameters JSON error: " + e.toString());
+            }
+          }
+        });
+    httpConnection.send();
+  }
+
   private void roomHttpResponseParse(String response) {
     Log.d(TAG, "Room response: " + response);
     try {
@@ -153,9 +213,9 @@ public class RoomParametersFetcher {
 	  }		  
       // Request TURN servers.
       if (!isTurnPresent) {
-        LinkedList<PeerConnection.IceServer> turnServers =
-            requestTurnServers(roomJson.getString("ice_server_url"));
-        for (PeerConnection.IceServer turnServer : turnServers) {
+        String turnUrl = roomJson.getString("ice_server_url");
+        turnServerCache.setRequestUrl(getRoomServer(roomUrl), turnUrl);
+        for (PeerConnection.IceServer turnServer : turnServerCache.get(turnUrl)) {
           Log.d(TAG, "TurnServer: " + turnServer);
           iceServers.add(turnServer);
         }
@@ -163,6 +223,8 @@ public class RoomParametersFetcher {
 
       SignalingParameters params = new SignalingParameters(
           iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates);
+      Log.d(TAG, "Room parameters ready in "
+              + (SystemClock.elapsedRealtime() - requestStartTimeMs) + " ms.");
       events.onSignalingParametersReady(params);
     } catch (JSONException e) {
       events.onSignalingParametersError("Room JSON parsing error: " + e.toString());
@@ -171,10 +233,20 @@ public class RoomParametersFetcher {
     }
   }
 
+  // Returns the room server part of a room URL, used to remember the TURN
+  // request URL of each room server.
+  private static String getRoomServer(String roomUrl) {
+    try {
+      URL url = new URL(roomUrl);
+      return url.getProtocol() + "://" + url.getAuthority();
+    } catch (MalformedURLException e) {
+      return roomUrl;
+    }
+  }
+
   // Requests & returns a TURN ICE Server based on a request URL.  Must be run
   // off the main thread!
-  private LinkedList<PeerConnection.IceServer> requestTurnServers(String url)
-      throws IOException, JSONException {
+  private static TurnServers requestTurnServers(String url) throws IOException, JSONException {
     LinkedList<PeerConnection.IceServer> turnServers = new LinkedList<PeerConnection.IceServer>();
     Log.d(TAG, "Request TURN from: " + url);
     HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
@@ -203,7 +275,17 @@ public class RoomParametersFetcher {
         turnServers.add(new PeerConnection.IceServer(turnUrl, username, credential));
       }
     }
-    return turnServers;
+    long ttlMs = TURN_CACHE_DEFAULT_TTL_MS;
+    // Lifetime is reported as a duration string like "86400s".
+    String lifetime = responseJSON.optString("lifetimeDuration");
+    if (lifetime.endsWith("s")) {
+      try {
+        ttlMs = (long) (Double.parseDouble(lifetime.substring(0, lifetime.length() - 1)) * 1000);
+      } catch (NumberFormatException e) {
+        Log.w(TAG, "Invalid TURN lifetime: " + lifetime);
+      }
+    }
+    return new TurnServers(turnServers, SystemClock.elapsedRealtime() + ttlMs);
   }
 
   // Return the list of ICE servers described by a WebRTCPeerConnection
@@ -246,4 +328,110 @@ public class RoomParametersFetcher {
     Scanner s = new Scanner(in).useDelimiter("\\A");
     return s.hasNext() ? s.next() : "";
   }
+
+  /**
+   * TURN servers returned by a TURN request URL together with the time their
+   * credentials expire.
+   */
+  private static class TurnServers {
+    final List<PeerConnection.IceServer> servers;
+    final long expiryTimeMs;
+
+    TurnServers(List<PeerConnection.IceServer> servers, long expiryTimeMs) {
+      this.servers = servers;
+      this.expiryTimeMs = expiryTimeMs;
+    }
+
+    boolean isValid() {
+      return SystemClock.elapsedRealtime() < expiryTimeMs - TURN_CACHE_EXPIRY_MARGIN_MS;
+    }
+  }
+
+  /**
+   * Process wide cache of TURN servers keyed by TURN request URL. Requests for
+   * a URL can be started ahead of time with prefetch(); get() then waits for
+   * the pending request instead of issuing a second one.
+   */
+  private static class TurnServerCache {
+    private final Map<String, String> requestUrls = new HashMap<String, String>();
+    private final Map<String, TurnServers> entries = new HashMap<String, TurnServers>();
+    private final Map<String, FutureTask<TurnServers>> pendingRequests =
+        new HashMap<String, FutureTask<TurnServers>>();
+
+    synchronized String getRequestUrl(String roomServer) {
+      return requestUrls.get(roomServer);
+    }
+
+    synchronized void setRequestUrl(String roomServer, String turnUrl) {
+      requestUrls.put(roomServer, turnUrl);
+    }
+
+    // Starts a background request for |url| unless valid servers are cached
+    // or a request is already running.
+    synchronized void prefetch(String url) {
+      TurnServers cached = entries.get(url);
+      if (cached == null || !cached.isValid()) {
+        startRequest(url);
+      }
+    }
+
+    // Returns the TURN servers for |url|, waiting for a pending request or
+    // issuing a new one if nothing valid is cached. Must be run off the main
+    // thread!
+    List<PeerConnection.IceServer> get(String url) throws IOException, JSONException {
+      FutureTask<TurnServers> request;
+      synchronized (this) {
+        TurnServers cached = entries.get(url);
+        if (cached != null && cached.isValid()) {
+          Log.d(TAG, "Using cached TURN servers for: " + url);
+          return cached.servers;
+        }
+        request = startRequest(url);
+      }
+      try {
+        return request.get(TURN_HTTP_TIMEOUT_MS * 2, TimeUnit.MILLISECONDS).servers;
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        if (cause instanceof JSONException) {
+          throw (JSONException) cause;
+        }
+        throw new IOException("TURN request failed: " + cause);
+      } catch (TimeoutException e) {
+        throw new IOException("TURN request timeout: " + url);
+      } catch (InterruptedException e) {
+        throw new IOException("TURN request interrupted: " + url);
+      }
+    }
+
+    // Returns the running request for |url| or starts a new one. Must be
+    // called with the cache lock held.
+    private FutureTask<TurnServers> startRequest(final String url) {
+      FutureTask<TurnServers> request = pendingRequests.get(url);
+      if (request != null) {
+        return request;
+      }
+      request = new FutureTask<TurnServers>(new Callable<TurnServers>() {
+        @Override
+        public TurnServers call() throws IOException, JSONException {
+          try {
+            TurnServers turnServers = requestTurnServers(url);
+            synchronized (TurnServerCache.this) {
+              entries.put(url, turnServers);
+            }
+            return turnServers;
+          } finally {
+            synchronized (TurnServerCache.this) {
+              pendingRequests.remove(url);
+            }
+          }
+        }
+      });
+      pendingRequests.put(url, request);
+      new Thread(request).start();
+      return request;
+    }
+  }
 }
@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies a list of SDP edits (codec preference, fmtp parameters) to every
+ * matching media section of a session description in one pass over an
+ * SdpSession. Only sections an edit can apply to are parsed, and sections
+ * no edit changes are copied verbatim.
+ *
+ * <p>Edits have the same effect as applying them one after another, in the
+ * order they were added. The last parsed description is kept so that a
+ * renegotiation only parses the sections whose text changed, so one
+ * instance should be kept per call and direction: local and remote
+ * descriptions differ, and alternating them would never reuse the last one.
+ * This class is not thread-safe.
+ */
+class SdpRewriter {
+  private static final String TAG = "SdpRewriter";
+  private static final String AUDIO_MEDIA = "audio";
+  private static final String VIDEO_MEDIA = "video";
+
+  private final List<Edit> edits = new ArrayList<Edit>();
+  private SdpSession lastSession;
+
+  private static class Edit {
+    final String codec;
+    // Non-null for a codec preference edit.
+    final String mediaType;
+    // Non-null for an fmtp parameter edit.
+    final String parameterName;
+    final String parameterValue;
+
+    Edit(String codec, String mediaType, String parameterName, String parameterValue) {
+      this.codec = codec;
+      this.mediaType = mediaType;
+      this.parameterName = parameterName;
+      this.parameterValue = parameterValue;
+    }
+  }
+
+  // Moves the payload type of |codec| to the front of every audio or video
+  // m= line that has an rtpmap for it.
+  public SdpRewriter preferCodec(String codec, boolean isAudio) {
+    edits.add(new Edit(codec, isAudio ? AUDIO_MEDIA : VIDEO_MEDIA, null /* parameterName */,
+        null /* parameterValue */));
+    return this;
+  }
+
+  // Sets |parameterName|=|parameterValue| in the fmtp line of |codec| in
+  // every section that has an rtpmap for it, adding an fmtp line after the
+  // rtpmap if there is none.
+  public SdpRewriter setFmtpParameter(String codec, String parameterName, int parameterValue) {
+    edits.add(new Edit(
+        codec, null /* mediaType */, parameterName, Integer.toString(parameterValue)));
+    return this;
+  }
+
+  public void clearEdits() {
+    edits.clear();
+  }
+
+  public boolean hasEdits() {
+    return !edits.isEmpty();
+  }
+
+  // Applies all edits to |sdpDescription|. Returns the input unchanged if no
+  // edit applies.
+  public String rewrite(String sdpDescription) {
+    SdpSession session = SdpSession.parse(sdpDescription, lastSession);
+    lastSession = session;
+    for (int i = 0; i < edits.size(); i++) {
+      Edit edit = edits.get(i);
+      if (edit.mediaType != null) {
+        applyPreferCodec(session, edit);
+      } else {
+        applyFmtpParameter(session, edit);
+      }
+    }
+    return session.serialize();
+  }
+
+  private static void applyPreferCodec(SdpSession session, Edit edit) {
+    int sections = 0;
+    int preferred = 0;
+    for (int i = 0; i < session.getMediaSectionCount(); i++) {
+      SdpSession.MediaSection section = session.getMediaSection(i);
+      if (!section.isMediaType(edit.mediaType)) {
+        continue;
+      }
+      sections++;
+      int payloadType = section.findPayloadType(edit.codec);
+      if (payloadType < 0) {
+        continue;
+      }
+      if (section.preferPayloadType(payloadType)) {
+        preferred++;
+      } else {
+        Log.e(TAG, "Wrong SDP media description format: " + section.getMediaLine());
+      }
+    }
+    if (sections == 0) {
+      Log.w(TAG, "No m=" + edit.mediaType + " line, so can't prefer " + edit.codec);
+    } else if (preferred == 0) {
+      Log.w(TAG, "No rtpmap for " + edit.codec);
+    } else {
+      Log.d(TAG, "Preferred " + edit.codec + " in " + preferred + " of " + sections + " "
+              + edit.mediaType + " sections");
+    }
+  }
+
+  private static void applyFmtpParameter(SdpSession session, Edit edit) {
+    int updated = 0;
+    for (int i = 0; i < session.getMediaSectionCount(); i++) {
+      SdpSession.MediaSection section = session.getMediaSection(i);
+      if (!section.isMediaType(AUDIO_MEDIA) && !section.isMediaType(VIDEO_MEDIA)) {
+        continue;
+      }
+      int payloadType = section.findPayloadType(edit.codec);
+      if (payloadType >= 0
+          && section.setFmtpParameter(payloadType, edit.parameterName, edit.parameterValue)) {
+        updated++;
+      }
+    }
+    if (updated == 0) {
+      Log.w(TAG, "No rtpmap for " + edit.codec + " codec");
+    } else {
+      Log.d(TAG, "Set " + edit.codec + " fmtp " + edit.parameterName + "="
+              + edit.parameterValue + " in " + updated + " sections");
+    }
+  }
+}
@@ -0,0 +1,586 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lazily parsed model of an SDP session description.
+ *
+ * <p>Parsing only finds the offsets of the m= lines; the session part and
+ * every MediaSection are ranges of the description, not copies. A media
+ * section indexes its lines the first time it is used, into line offset
+ * arrays and rtpmap and fmtp tables that are int arrays indexed by payload
+ * type, so lookups and unchanged sections create no strings. An edit
+ * rebuilds the text of its section once. Serialization copies the text of
+ * unmodified sections, so an unmodified description is returned
+ * byte-identical.
+ *
+ * <p>When a description is parsed with the previous description of the same
+ * call, sections whose text did not change reuse the already built index.
+ * This class is not thread-safe.
+ */
+class SdpSession {
+  private static final String LINE_SEPARATOR = "\r\n";
+  private static final String MEDIA_PREFIX = "m=";
+
+  private final String description;
+  private final int sessionEnd;
+  private final List<MediaSection> mediaSections;
+
+  private SdpSession(String description, int sessionEnd, List<MediaSection> mediaSections) {
+    this.description = description;
+    this.sessionEnd = sessionEnd;
+    this.mediaSections = mediaSections;
+  }
+
+  public static SdpSession parse(String description) {
+    return parse(description, null /* previous */);
+  }
+
+  // Parses |description|, reusing the index of media sections of |previous|
+  // whose text is unchanged.
+  public static SdpSession parse(String description, SdpSession previous) {
+    List<MediaSection> sections = new ArrayList<MediaSection>();
+    int sectionStart = findMediaLine(description, 0);
+    int sessionEnd = sectionStart < 0 ? description.length() : sectionStart;
+    while (sectionStart >= 0) {
+      int nextSectionStart = findMediaLine(description, sectionStart + 1);
+      int sectionEnd = nextSectionStart < 0 ? description.length() : nextSectionStart;
+      MediaSection section = new MediaSection(description, sectionStart, sectionEnd);
+      if (previous != null) {
+        section.baseIndex =
+            previous.findIndex(description, sectionStart, sectionEnd, sections.size());
+      }
+      sections.add(section);
+      sectionStart = nextSectionStart;
+    }
+    return new SdpSession(description, sessionEnd, sections);
+  }
+
+  // Returns the offset of the first line starting with "m=" at or after
+  // |from|, or -1.
+  private static int findMediaLine(String description, int from) {
+    if (from == 0 && description.startsWith(MEDIA_PREFIX)) {
+      return 0;
+    }
+    int index = description.indexOf(LINE_SEPARATOR + MEDIA_PREFIX, Math.max(0, from - 2));
+    return index < 0 ? -1 : index + LINE_SEPARATOR.length();
+  }
+
+  // Returns the index of a section whose original text equals
+  // |text|[|start|, |end|), or null. The section at |position| is tried
+  // first, since sections rarely move in a renegotiation.
+  private MediaSection.Index findIndex(String text, int start, int end, int position) {
+    if (position < mediaSections.size()
+        && mediaSections.get(position).hasText(text, start, end)) {
+      return mediaSections.get(position).baseIndex;
+    }
+    for (int i = 0; i < mediaSections.size(); i++) {
+      if (i != position && mediaSections.get(i).hasText(text, start, end)) {
+        return mediaSections.get(i).baseIndex;
+      }
+    }
+    return null;
+  }
+
+  public String getSessionText() {
+    return description.substring(0, sessionEnd);
+  }
+
+  public List<MediaSection> getMediaSections() {
+    return Collections.unmodifiableList(mediaSections);
+  }
+
+  public int getMediaSectionCount() {
+    return mediaSections.size();
+  }
+
+  public MediaSection getMediaSection(int index) {
+    return mediaSections.get(index);
+  }
+
+  // Returns all sections of |mediaType|, e.g. "audio" or "video", in order.
+  public List<MediaSection> getMediaSections(String mediaType) {
+    List<MediaSection> result = new ArrayList<MediaSection>();
+    for (int i = 0; i < mediaSections.size(); i++) {
+      if (mediaSections.get(i).isMediaType(mediaType)) {
+        result.add(mediaSections.get(i));
+      }
+    }
+    return result;
+  }
+
+  public boolean isModified() {
+    for (int i = 0; i < mediaSections.size(); i++) {
+      if (mediaSections.get(i).isModified()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Returns the description text. Unmodified sections are copied verbatim,
+  // and the original string is returned if nothing was modified.
+  public String serialize() {
+    if (!isModified()) {
+      return description;
+    }
+    StringBuilder builder = new StringBuilder(description.length() + 64);
+    builder.append(description, 0, sessionEnd);
+    for (int i = 0; i < mediaSections.size(); i++) {
+      mediaSections.get(i).serialize(builder);
+    }
+    return builder.toString();
+  }
+
+  @Override
+  public String toString() {
+    return serialize();
+  }
+
+  // Returns the number in |text|[|start|, |end|) up to the first space, or
+  // -1 for a wildcard ("*") or malformed format.
+  private static int parseFormat(String text, int start, int end) {
+    int value = 0;
+    int i = start;
+    for (; i < end && text.charAt(i) != ' '; i++) {
+      char c = text.charAt(i);
+      if (c < '0' || c > '9' || i - start == 9) {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return i == start ? -1 : value;
+  }
+
+  // Like parseFormat(), but also returns -1 for formats that are not RTP
+  // payload types.
+  private static int parsePayloadType(String text, int start, int end) {
+    int payloadType = parseFormat(text, start, end);
+    return payloadType > MediaSection.MAX_PAYLOAD_TYPE ? -1 : payloadType;
+  }
+
+  /**
+   * One m= line with the attribute lines that follow it. RTP payload types
+   * are 0 to 127; attributes of other formats are not indexed.
+   */
+  public static class MediaSection {
+    static final int MAX_PAYLOAD_TYPE = 127;
+    private static final String RTPMAP_PREFIX = "a=rtpmap:";
+    private static final String FMTP_PREFIX = "a=fmtp:";
+    private static final String RTCP_FB_PREFIX = "a=rtcp-fb:";
+    private static final String MID_PREFIX = "a=mid:";
+    // Fields before the formats of an m= line: <media> <port> <proto>.
+    private static final int MEDIA_LINE_FIELDS = 3;
+
+    // Original text of the section.
+    private final String source;
+    private final int start;
+    private final int end;
+    // Current text, the original one until the first modification.
+    private String text;
+    private int textStart;
+    private int textEnd;
+    private String mediaType;
+    // Index of the original text, possibly shared with the same section of
+    // an earlier description.
+    private Index baseIndex;
+    // Index of the modified text, created on the first modification.
+    private Index modifiedIndex;
+
+    private MediaSection(String source, int start, int end) {
+      this.source = source;
+      this.start = start;
+      this.end = end;
+      text = source;
+      textStart = start;
+      textEnd = end;
+    }
+
+    // Returns true if this section has an index and its original text equals
+    // |other|[|otherStart|, |otherEnd|).
+    private boolean hasText(String other, int otherStart, int otherEnd) {
+      return baseIndex != null && end - start == otherEnd - otherStart
+          && other.regionMatches(otherStart, source, start, end - start);
+    }
+
+    // Line offsets and per payload type tables of a section text. Offsets
+    // are relative to the start of the section.
+    private static class Index {
+      private static final int INITIAL_LINE_CAPACITY = 16;
+
+      int lineCount;
+      int[] lineStarts = new int[INITIAL_LINE_CAPACITY];
+      int[] lineEnds = new int[INITIAL_LINE_CAPACITY];
+      // Line of the first rtpmap and fmtp attribute of each payload type,
+      // or -1.
+      final int[] rtpmapLines = new int[MAX_PAYLOAD_TYPE + 1];
+      final int[] fmtpLines = new int[MAX_PAYLOAD_TYPE + 1];
+      int midLine;
+
+      void build(String text, int start, int end) {
+        lineCount = 0;
+        int lineStart = start;
+        while (lineStart < end) {
+          int lineEnd = text.indexOf(LINE_SEPARATOR, lineStart);
+          if (lineEnd < 0 || lineEnd > end) {
+            lineEnd = end;
+          }
+          addLine(lineStart - start, lineEnd - start);
+          lineStart = lineEnd + LINE_SEPARATOR.length();
+        }
+        Arrays.fill(rtpmapLines, -1);
+        Arrays.fill(fmtpLines, -1);
+        midLine = -1;
+        for (int i = 1; i < lineCount; i++) {
+          int lineStartOffset = start + lineStarts[i];
+          int lineEndOffset = start + lineEnds[i];
+          if (text.startsWith(RTPMAP_PREFIX, lineStartOffset)) {
+            putFirst(rtpmapLines, parsePayloadType(text,
+                lineStartOffset + RTPMAP_PREFIX.length(), lineEndOffset), i);
+          } else if (text.startsWith(FMTP_PREFIX, lineStartOffset)) {
+            putFirst(fmtpLines, parsePayloadType(text,
+                lineStartOffset + FMTP_PREFIX.length(), lineEndOffset), i);
+          } else if (midLine == -1 && text.startsWith(MID_PREFIX, lineStartOffset)) {
+            midLine = i;
+          }
+        }
+      }
+
+      private void addLine(int lineStart, int lineEnd) {
+        if (lineCount == lineStarts.length) {
+          lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+          lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+        }
+        lineStarts[lineCount] = lineStart;
+        lineEnds[lineCount] = lineEnd;
+        lineCount++;
+      }
+
+      private static void putFirst(int[] table, int payloadType, int line) {
+        if (payloadType >= 0 && table[payloadType] < 0) {
+          table[payloadType] = line;
+        }
+      }
+    }
+
+    private Index index() {
+      if (modifiedIndex != null) {
+        return modifiedIndex;
+      }
+      if (baseIndex == null) {
+        baseIndex = new Index();
+        baseIndex.build(source, start, end);
+      }
+      return baseIndex;
+    }
+
+    private int lineStart(Index index, int line) {
+      return textStart + index.lineStarts[line];
+    }
+
+    private int lineEnd(Index index, int line) {
+      return textStart + index.lineEnds[line];
+    }
+
+    private String getLine(Index index, int line) {
+      return text.substring(lineStart(index, line), lineEnd(index, line));
+    }
+
+    // Replaces the section text with |newText| and indexes it.
+    private void setText(String newText) {
+      if (modifiedIndex == null) {
+        modifiedIndex = new Index();
+      }
+      text = newText;
+      textStart = 0;
+      textEnd = newText.length();
+      modifiedIndex.build(text, textStart, textEnd);
+    }
+
+    // Returns true if the m= line is of |mediaType|, e.g. "audio".
+    public boolean isMediaType(String mediaType) {
+      int typeEnd = start + MEDIA_PREFIX.length() + mediaType.length();
+      return source.startsWith(mediaType, start + MEDIA_PREFIX.length())
+          && (typeEnd == end || source.charAt(typeEnd) == ' ');
+    }
+
+    // Media type of the m= line, e.g. "audio", "video" or "application".
+    // Does not parse the rest of the section.
+    public String getMediaType() {
+      if (mediaType == null) {
+        int typeEnd = source.indexOf(' ', start);
+        if (typeEnd < 0 || typeEnd > end) {
+          typeEnd = end;
+        }
+        mediaType = source.substring(start + MEDIA_PREFIX.length(), typeEnd);
+      }
+      return mediaType;
+    }
+
+    public String getMid() {
+      Index index = index();
+      return index.midLine < 0
+          ? null
+          : text.substring(lineStart(index, index.midLine) + MID_PREFIX.length(),
+                lineEnd(index, index.midLine));
+    }
+
+    public String getMediaLine() {
+      return getLine(index(), 0);
+    }
+
+    // Payload types, or other numeric formats, in the order listed on the m=
+    // line.
+    public List<Integer> getPayloadTypes() {
+      Index index = index();
+      List<Integer> payloadTypes = new ArrayList<Integer>();
+      int formatStart = findFormats(index);
+      int lineEnd = lineEnd(index, 0);
+      while (formatStart >= 0 && formatStart < lineEnd) {
+        int payloadType = parseFormat(text, formatStart, lineEnd);
+        if (payloadType >= 0) {
+          payloadTypes.add(payloadType);
+        }
+        formatStart = nextField(formatStart, lineEnd);
+      }
+      return payloadTypes;
+    }
+
+    // Returns the offset of the first format on the m= line, or -1 if it
+    // has none.
+    private int findFormats(Index index) {
+      int offset = lineStart(index, 0);
+      int lineEnd = lineEnd(index, 0);
+      for (int field = 0; field < MEDIA_LINE_FIELDS; field++) {
+        offset = nextField(offset, lineEnd);
+        if (offset >= lineEnd) {
+          return -1;
+        }
+      }
+      return offset;
+    }
+
+    // Returns the offset after the next space at or after |offset|.
+    private int nextField(int offset, int lineEnd) {
+      int space = text.indexOf(' ', offset);
+      return (space < 0 || space >= lineEnd) ? lineEnd : space + 1;
+    }
+
+    // Returns "<encoding name>/<clock rate>[/<encoding parameters>]" for
+    // |payloadType|, or null if the section has no rtpmap for it.
+    public String getRtpMap(int payloadType) {
+      Index index = index();
+      int line = getLineOf(index.rtpmapLines, payloadType);
+      if (line < 0) {
+        return null;
+      }
+      return text.substring(nextField(lineStart(index, line), lineEnd(index, line)),
+          lineEnd(index, line));
+    }
+
+    public String getCodecName(int payloadType) {
+      String rtpmap = getRtpMap(payloadType);
+      if (rtpmap == null) {
+        return null;
+      }
+      int end = rtpmap.indexOf('/');
+      return end < 0 ? rtpmap : rtpmap.substring(0, end);
+    }
+
+    private static int getLineOf(int[] table, int payloadType) {
+      return (payloadType < 0 || payloadType > MAX_PAYLOAD_TYPE) ? -1 : table[payloadType];
+    }
+
+    // Returns the payload type of the first rtpmap for |codec|, or -1.
+    public int findPayloadType(String codec) {
+      Index index = index();
+      for (int line = 1; line < index.lineCount; line++) {
+        int lineStart = lineStart(index, line);
+        int lineEnd = lineEnd(index, line);
+        if (!text.startsWith(RTPMAP_PREFIX, lineStart)) {
+          continue;
+        }
+        int payloadType =
+            parsePayloadType(text, lineStart + RTPMAP_PREFIX.length(), lineEnd);
+        if (payloadType < 0 || index.rtpmapLines[payloadType] != line) {
+          continue;
+        }
+        int nameStart = nextField(lineStart, lineEnd);
+        int nameEnd = nameStart + codec.length();
+        if (text.startsWith(codec, nameStart)
+            && (nameEnd == lineEnd || text.charAt(nameEnd) == '/')) {
+          return payloadType;
+        }
+      }
+      return -1;
+    }
+
+    // Returns the fmtp parameters for |payloadType|, or null.
+    public String getFmtp(int payloadType) {
+      Index index = index();
+      int line = getLineOf(index.fmtpLines, payloadType);
+      if (line < 0) {
+        return null;
+      }
+      return text.substring(nextField(lineStart(index, line), lineEnd(index, line)),
+          lineEnd(index, line));
+    }
+
+    // Returns the rtcp-fb values (e.g. "nack pli") for |payloadType|.
+    public List<String> getRtcpFeedback(int payloadType) {
+      Index index = index();
+      List<String> feedback = new ArrayList<String>();
+      for (int line = 1; line < index.lineCount; line++) {
+        int lineStart = lineStart(index, line);
+        int lineEnd = lineEnd(index, line);
+        if (payloadType >= 0 && text.startsWith(RTCP_FB_PREFIX, lineStart)
+            && parsePayloadType(text, lineStart + RTCP_FB_PREFIX.length(), lineEnd)
+                == payloadType) {
+          feedback.add(text.substring(nextField(lineStart, lineEnd), lineEnd));
+        }
+      }
+      return feedback;
+    }
+
+    // Moves |payloadType| to the front of the m= line. Returns false if the
+    // m= line has no formats.
+    public boolean preferPayloadType(int payloadType) {
+      Index index = index();
+      int formatsStart = findFormats(index);
+      if (formatsStart < 0) {
+        return false;
+      }
+      int lineEnd = lineEnd(index, 0);
+      // Nothing to do if it is the first format and not listed again.
+      boolean isFirst = parseFormat(text, formatsStart, lineEnd) == payloadType;
+      boolean listedAgain = false;
+      for (int format = nextField(formatsStart, lineEnd); format < lineEnd;
+           format = nextField(format, lineEnd)) {
+        if (parseFormat(text, format, lineEnd) == payloadType) {
+          listedAgain = true;
+          break;
+        }
+      }
+      if (isFirst && !listedAgain) {
+        return true;
+      }
+      StringBuilder builder = new StringBuilder(textEnd - textStart + 4);
+      builder.append(text, textStart, formatsStart);
+      builder.append(payloadType);
+      for (int format = formatsStart; format < lineEnd;) {
+        int next = nextField(format, lineEnd);
+        if (parseFormat(text, format, lineEnd) != payloadType) {
+          builder.append(' ').append(text, format, next < lineEnd ? next - 1 : lineEnd);
+        }
+        format = next;
+      }
+      builder.append(text, lineEnd, textEnd);
+      setText(builder.toString());
+      return true;
+    }
+
+    // Sets |name|=|value| in the fmtp line of |payloadType|. An existing
+    // parameter is updated in place, a new one is appended to the existing
+    // fmtp line, and an fmtp line is added after the rtpmap if there is none.
+    // Returns false if the section has no rtpmap for |payloadType|.
+    public boolean setFmtpParameter(int payloadType, String name, String value) {
+      Index index = index();
+      int rtpmapLine = getLineOf(index.rtpmapLines, payloadType);
+      if (rtpmapLine < 0) {
+        return false;
+      }
+      int fmtpLine = index.fmtpLines[payloadType];
+      StringBuilder builder;
+      if (fmtpLine < 0) {
+        int insertAt = lineEnd(index, rtpmapLine);
+        builder = new StringBuilder(textEnd - textStart + FMTP_PREFIX.length() + name.length()
+            + value.length() + 8);
+        builder.append(text, textStart, insertAt)
+            .append(LINE_SEPARATOR)
+            .append(FMTP_PREFIX)
+            .append(payloadType)
+            .append(' ')
+            .append(name)
+            .append('=')
+            .append(value)
+            .append(text, insertAt, textEnd);
+        setText(builder.toString());
+        return true;
+      }
+      int lineStart = lineStart(index, fmtpLine);
+      int lineEnd = lineEnd(index, fmtpLine);
+      int parametersStart = text.indexOf(' ', lineStart);
+      if (parametersStart < 0 || parametersStart >= lineEnd) {
+        parametersStart = -1;
+      } else {
+        parametersStart++;
+      }
+      int valueStart = -1;
+      int valueEnd = -1;
+      if (parametersStart > 0) {
+        int parameterStart = parametersStart;
+        while (parameterStart < lineEnd) {
+          int parameterEnd = text.indexOf(';', parameterStart);
+          if (parameterEnd < 0 || parameterEnd > lineEnd) {
+            parameterEnd = lineEnd;
+          }
+          int nameStart = parameterStart;
+          while (nameStart < parameterEnd && text.charAt(nameStart) == ' ') {
+            nameStart++;
+          }
+          int nameEnd = nameStart + name.length();
+          if (nameEnd < parameterEnd && text.charAt(nameEnd) == '='
+              && text.startsWith(name, nameStart)) {
+            valueStart = nameEnd + 1;
+            valueEnd = parameterEnd;
+            break;
+          }
+          parameterStart = parameterEnd + 1;
+        }
+      }
+      if (valueStart >= 0 && valueEnd - valueStart == value.length()
+          && text.startsWith(value, valueStart)) {
+        return true;
+      }
+      builder = new StringBuilder(textEnd - textStart + name.length() + value.length() + 4);
+      if (valueStart >= 0) {
+        builder.append(text, textStart, valueStart).append(value).append(text, valueEnd, textEnd);
+      } else {
+        builder.append(text, textStart, lineEnd)
+            .append(parametersStart > 0 ? "; " : " ")
+            .append(name)
+            .append('=')
+            .append(value)
+            .append(text, lineEnd, textEnd);
+      }
+      setText(builder.toString());
+      return true;
+    }
+
+    public boolean isModified() {
+      return modifiedIndex != null;
+    }
+
+    private void serialize(StringBuilder builder) {
+      builder.append(text, textStart, textEnd);
+    }
+
+    @Override
+    public String toString() {
+      return text.substring(textStart, textEnd);
+    }
+  }
+}
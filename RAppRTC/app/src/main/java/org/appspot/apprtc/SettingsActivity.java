@@ -30,6 +30,8 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
   private String keyprefResolution;
   private String keyprefFps;
   private String keyprefCaptureQualitySlider;
+  private String keyprefQualityAdaptation;
+  private String keyprefPerformanceGovernor;
   private String keyprefMaxVideoBitrateType;
   private String keyprefMaxVideoBitrateValue;
   private String keyPrefVideoCodec;
@@ -51,6 +53,9 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
   private String keyPrefRoomServerUrl;
   private String keyPrefDisplayHud;
   private String keyPrefTracing;
+  private String keyPrefRecordStats;
+  private String keyPrefLatencyProbe;
+  private String keyPrefPrewarm;
 
   private String keyprefEnableDataChannel;
   private String keyprefOrdered;
@@ -69,6 +74,8 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     keyprefResolution = getString(R.string.pref_resolution_key);
     keyprefFps = getString(R.string.pref_fps_key);
     keyprefCaptureQualitySlider = getString(R.string.pref_capturequalityslider_key);
+    keyprefQualityAdaptation = getString(R.string.pref_quality_adaptation_key);
+    keyprefPerformanceGovernor = getString(R.string.pref_performance_governor_key);
     keyprefMaxVideoBitrateType = getString(R.string.pref_maxvideobitrate_key);
     keyprefMaxVideoBitrateValue = getString(R.string.pref_maxvideobitratevalue_key);
     keyPrefVideoCodec = getString(R.string.pref_videocodec_key);
@@ -98,6 +105,9 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     keyPrefRoomServerUrl = getString(R.string.pref_room_server_url_key);
     keyPrefDisplayHud = getString(R.string.pref_displayhud_key);
     keyPrefTracing = getString(R.string.pref_tracing_key);
+    keyPrefRecordStats = getString(R.string.pref_record_stats_key);
+    keyPrefLatencyProbe = getString(R.string.pref_latency_probe_key);
+    keyPrefPrewarm = getString(R.string.pref_prewarm_key);
 
     // Display the fragment as the main content.
     settingsFragment = new SettingsFragment();
@@ -120,6 +130,8 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     updateSummary(sharedPreferences, keyprefResolution);
     updateSummary(sharedPreferences, keyprefFps);
     updateSummaryB(sharedPreferences, keyprefCaptureQualitySlider);
+    updateSummaryB(sharedPreferences, keyprefQualityAdaptation);
+    updateSummaryB(sharedPreferences, keyprefPerformanceGovernor);
     updateSummary(sharedPreferences, keyprefMaxVideoBitrateType);
     updateSummaryBitrate(sharedPreferences, keyprefMaxVideoBitrateValue);
     setVideoBitrateEnable(sharedPreferences);
@@ -152,6 +164,9 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     updateSummary(sharedPreferences, keyPrefRoomServerUrl);
     updateSummaryB(sharedPreferences, keyPrefDisplayHud);
     updateSummaryB(sharedPreferences, keyPrefTracing);
+    updateSummaryB(sharedPreferences, keyPrefRecordStats);
+    updateSummaryB(sharedPreferences, keyPrefLatencyProbe);
+    updateSummaryB(sharedPreferences, keyPrefPrewarm);
 
     if (!Camera2Enumerator.isSupported(this)) {
       Preference camera2Preference = settingsFragment.findPreference(keyprefCamera2);
@@ -220,7 +235,12 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefScreencapture)
         || key.equals(keyprefCamera2)
         || key.equals(keyPrefTracing)
+        || key.equals(keyPrefRecordStats)
+        || key.equals(keyPrefLatencyProbe)
+        || key.equals(keyPrefPrewarm)
         || key.equals(keyprefCaptureQualitySlider)
+        || key.equals(keyprefQualityAdaptation)
+        || key.equals(keyprefPerformanceGovernor)
         || key.equals(keyprefHwCodec)
         || key.equals(keyprefCaptureToTexture)
         || key.equals(keyprefNoAudioProcessing)
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.os.SystemClock;
+
+import java.util.LinkedList;
+
+/**
+ * FIFO of outgoing signaling messages waiting for a channel to become ready.
+ * Keeps track of the queue depth and of how long messages stay in the queue
+ * so that early ICE candidate latency is visible in the logs.
+ *
+ * <p>This class is not thread-safe and should be used from the signaling
+ * looper thread only.
+ */
+class SignalingSendQueue {
+  private final String name;
+  private final LinkedList<String> messages = new LinkedList<String>();
+  private final LinkedList<Long> enqueueTimesMs = new LinkedList<Long>();
+  private int maxDepth;
+  private long queuedMessages;
+  private long totalQueueTimeMs;
+  private long maxQueueTimeMs;
+  private long lastQueueTimeMs;
+
+  public SignalingSendQueue(String name) {
+    this.name = name;
+  }
+
+  public void add(String message) {
+    messages.add(message);
+    enqueueTimesMs.add(SystemClock.elapsedRealtime());
+    queuedMessages++;
+    maxDepth = Math.max(maxDepth, messages.size());
+  }
+
+  // Removes and returns the oldest message, or null if the queue is empty.
+  public String poll() {
+    if (messages.isEmpty()) {
+      return null;
+    }
+    lastQueueTimeMs = SystemClock.elapsedRealtime() - enqueueTimesMs.poll();
+    totalQueueTimeMs += lastQueueTimeMs;
+    maxQueueTimeMs = Math.max(maxQueueTimeMs, lastQueueTimeMs);
+    return messages.poll();
+  }
+
+  public void clear() {
+    messages.clear();
+    enqueueTimesMs.clear();
+  }
+
+  public boolean isEmpty() {
+    return messages.isEmpty();
+  }
+
+  public int size() {
+    return messages.size();
+  }
+
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  // Time the message returned by the last poll() call spent in the queue.
+  public long getLastQueueTimeMs() {
+    return lastQueueTimeMs;
+  }
+
+  public long getMaxQueueTimeMs() {
+    return maxQueueTimeMs;
+  }
+
+  public long getAverageQueueTimeMs() {
+    long dequeuedMessages = queuedMessages - messages.size();
+    return dequeuedMessages == 0 ? 0 : totalQueueTimeMs / dequeuedMessages;
+  }
+
+  public String getStatString() {
+    return name + " queue. Depth: " + messages.size() + ". Max depth: " + maxDepth
+        + ". Queued: " + queuedMessages + ". Queue time avg/max: " + getAverageQueueTimeMs() + "/"
+        + maxQueueTimeMs + " ms";
+  }
+}
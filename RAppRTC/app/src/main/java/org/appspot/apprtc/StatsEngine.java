@@ -0,0 +1,340 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.webrtc.StatsReport;
+
+/**
+ * Turns cumulative StatsReport counters into per-stream rates.
+ *
+ * <p>Every getStats() result is added to a StatsStore, and the previous
+ * sample of each ssrc report is compared with the latest one to compute
+ * bitrates, packet and frame rates and loss percentages. A counter that
+ * goes down (an ssrc restarted after renegotiation) is treated as having
+ * started again from zero. Smoothed values are updated incrementally per
+ * stream, and the result of each poll is published as an immutable
+ * CallStats.
+ *
+ * <p>This class is not thread-safe; it should be updated from the thread
+ * that delivers stats callbacks.
+ */
+class StatsEngine {
+  private static final String SSRC_REPORT_TYPE = "ssrc";
+  private static final String BWE_REPORT_ID = "bweforvideo";
+  private static final String CANDIDATE_PAIR_REPORT_TYPE = "googCandidatePair";
+  // Smoothing factor of the bitrate deviation, as for RTP interarrival jitter
+  // in RFC 3550.
+  private static final double DEVIATION_GAIN = 1.0 / 16;
+
+  private final StatsStore store;
+  // Per report key state of ssrc streams.
+  private StreamState[] streamStates = new StreamState[16];
+
+  /**
+   * Rates of one send or receive ssrc during the last poll interval. Rates
+   * are NaN until two samples of the stream are available.
+   */
+  public static class StreamStats {
+    public final String id;
+    public final String trackId;
+    public final boolean isVideo;
+    public final boolean isSend;
+    public final double bitrateKbps;
+    public final double packetsPerSecond;
+    public final double lossPercent;
+    public final double framesPerSecond;
+    // Reported rate of frames entering the stream: captured frames of send
+    // streams and received frames of receive streams, or NaN.
+    public final double inputFramesPerSecond;
+    // Reported encode time relative to the capture interval of send video
+    // streams, or NaN.
+    public final double encodeUsagePercent;
+    public final int frameWidth;
+    public final int frameHeight;
+    // Reported interarrival jitter and round trip time, or NaN.
+    public final double jitterMs;
+    public final double rttMs;
+    // Smoothed deviation of successive bitrate samples.
+    public final double bitrateDeviationKbps;
+    // True if a counter went down since the previous poll.
+    public final boolean counterReset;
+
+    public StreamStats(String id, String trackId, boolean isVideo, boolean isSend,
+        double bitrateKbps, double packetsPerSecond, double lossPercent, double framesPerSecond,
+        double inputFramesPerSecond, double encodeUsagePercent, int frameWidth, int frameHeight,
+        double jitterMs, double rttMs, double bitrateDeviationKbps, boolean counterReset) {
+      this.id = id;
+      this.trackId = trackId;
+      this.isVideo = isVideo;
+      this.isSend = isSend;
+      this.bitrateKbps = bitrateKbps;
+      this.packetsPerSecond = packetsPerSecond;
+      this.lossPercent = lossPercent;
+      this.framesPerSecond = framesPerSecond;
+      this.inputFramesPerSecond = inputFramesPerSecond;
+      this.encodeUsagePercent = encodeUsagePercent;
+      this.frameWidth = frameWidth;
+      this.frameHeight = frameHeight;
+      this.jitterMs = jitterMs;
+      this.rttMs = rttMs;
+      this.bitrateDeviationKbps = bitrateDeviationKbps;
+      this.counterReset = counterReset;
+    }
+  }
+
+  /**
+   * Stats of one poll. Bandwidth values are NaN if the reports did not
+   * include them.
+   */
+  public static class CallStats {
+    // Report time in ms since 1970.
+    public final long timestampMs;
+    public final List<StreamStats> streams;
+    public final double availableSendBandwidthKbps;
+    public final double availableReceiveBandwidthKbps;
+    public final double targetEncBitrateKbps;
+    public final double actualEncBitrateKbps;
+    // Round trip time of the active candidate pair.
+    public final double connectionRttMs;
+
+    public CallStats(long timestampMs, List<StreamStats> streams,
+        double availableSendBandwidthKbps, double availableReceiveBandwidthKbps,
+        double targetEncBitrateKbps, double actualEncBitrateKbps, double connectionRttMs) {
+      this.timestampMs = timestampMs;
+      this.streams = Collections.unmodifiableList(streams);
+      this.availableSendBandwidthKbps = availableSendBandwidthKbps;
+      this.availableReceiveBandwidthKbps = availableReceiveBandwidthKbps;
+      this.targetEncBitrateKbps = targetEncBitrateKbps;
+      this.actualEncBitrateKbps = actualEncBitrateKbps;
+      this.connectionRttMs = connectionRttMs;
+    }
+
+    // Returns the first stream with the given kind and direction, or null.
+    public StreamStats getStream(boolean isVideo, boolean isSend) {
+      for (StreamStats stream : streams) {
+        if (stream.isVideo == isVideo && stream.isSend == isSend) {
+          return stream;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static class StreamState {
+    // Report id the state belongs to, since keys of evicted reports are
+    // reused.
+    final String id;
+    double lastBitrateKbps = Double.NaN;
+    double bitrateDeviationKbps;
+
+    StreamState(String id) {
+      this.id = id;
+    }
+  }
+
+  public StatsEngine() {
+    this(new StatsStore());
+  }
+
+  public StatsEngine(StatsStore store) {
+    this.store = store;
+  }
+
+  public StatsStore getStatsStore() {
+    return store;
+  }
+
+  // Adds a getStats() result and returns the stats of the interval since
+  // the previous one.
+  public CallStats update(StatsReport[] reports) {
+    store.addReports(reports);
+    List<StreamStats> streams = new ArrayList<StreamStats>();
+    double availableSendBandwidthKbps = Double.NaN;
+    double availableReceiveBandwidthKbps = Double.NaN;
+    double targetEncBitrateKbps = Double.NaN;
+    double actualEncBitrateKbps = Double.NaN;
+    double connectionRttMs = Double.NaN;
+    long timestampMs = 0;
+    for (StatsReport report : reports) {
+      timestampMs = Math.max(timestampMs, (long) report.timestamp);
+      int reportKey = store.getReportKey(report.id);
+      if (report.type.equals(SSRC_REPORT_TYPE)) {
+        StreamStats stream = updateStream(reportKey);
+        if (stream != null) {
+          streams.add(stream);
+        }
+      } else if (report.id.equals(BWE_REPORT_ID)) {
+        availableSendBandwidthKbps = getLatest(reportKey, "googAvailableSendBandwidth") / 1000;
+        availableReceiveBandwidthKbps =
+            getLatest(reportKey, "googAvailableReceiveBandwidth") / 1000;
+        targetEncBitrateKbps = getLatest(reportKey, "googTargetEncBitrate") / 1000;
+        actualEncBitrateKbps = getLatest(reportKey, "googActualEncBitrate") / 1000;
+      } else if (report.type.equals(CANDIDATE_PAIR_REPORT_TYPE)
+          && getLatest(reportKey, "googActiveConnection") == 1) {
+        connectionRttMs = getLatest(reportKey, "googRtt");
+      }
+    }
+    return new CallStats(timestampMs, streams, availableSendBandwidthKbps,
+        availableReceiveBandwidthKbps, targetEncBitrateKbps, actualEncBitrateKbps,
+        connectionRttMs);
+  }
+
+  private StreamStats updateStream(int reportKey) {
+    boolean isSend = isCurrent(reportKey, "bytesSent");
+    String bytesName = isSend ? "bytesSent" : "bytesReceived";
+    String packetsName = isSend ? "packetsSent" : "packetsReceived";
+    if (!isCurrent(reportKey, bytesName)) {
+      return null;
+    }
+    // Older reports have no mediaType, but only video reports frame sizes.
+    String mediaType = getLatestString(reportKey, "mediaType");
+    boolean isVideo = (mediaType != null)
+        ? mediaType.equals("video")
+        : isCurrent(reportKey, isSend ? "googFrameWidthSent" : "googFrameWidthReceived");
+
+    long intervalMs = getIntervalMs(getMetric(reportKey, bytesName));
+    Delta bytes = delta(reportKey, bytesName);
+    Delta packets = delta(reportKey, packetsName);
+    Delta packetsLost = delta(reportKey, "packetsLost");
+    boolean counterReset = bytes.reset || packets.reset || packetsLost.reset;
+
+    double bitrateKbps = rate(bytes.value * 8, intervalMs);
+    double packetsPerSecond = rate(packets.value, intervalMs) * 1000;
+    double lossPercent = Double.NaN;
+    if (!Double.isNaN(packetsLost.value) && !Double.isNaN(packets.value)) {
+      // Sent packets include the lost ones, received packets do not.
+      double expected = isSend ? packets.value : packets.value + packetsLost.value;
+      lossPercent = expected > 0 ? Math.max(0, 100 * packetsLost.value / expected) : 0;
+    }
+    double framesPerSecond = Double.NaN;
+    double inputFramesPerSecond = Double.NaN;
+    double encodeUsagePercent = Double.NaN;
+    int frameWidth = 0;
+    int frameHeight = 0;
+    if (isVideo) {
+      Delta frames = delta(reportKey, isSend ? "framesEncoded" : "framesDecoded");
+      framesPerSecond = rate(frames.value, intervalMs) * 1000;
+      if (Double.isNaN(framesPerSecond)) {
+        framesPerSecond =
+            getLatest(reportKey, isSend ? "googFrameRateSent" : "googFrameRateReceived");
+      }
+      inputFramesPerSecond =
+          getLatest(reportKey, isSend ? "googFrameRateInput" : "googFrameRateReceived");
+      if (isSend) {
+        encodeUsagePercent = getLatest(reportKey, "googEncodeUsagePercent");
+      }
+      frameWidth = (int) getLatestOrZero(
+          reportKey, isSend ? "googFrameWidthSent" : "googFrameWidthReceived");
+      frameHeight = (int) getLatestOrZero(
+          reportKey, isSend ? "googFrameHeightSent" : "googFrameHeightReceived");
+    }
+
+    StreamState state = getStreamState(reportKey);
+    if (counterReset) {
+      state.lastBitrateKbps = Double.NaN;
+      state.bitrateDeviationKbps = 0;
+    }
+    if (!Double.isNaN(bitrateKbps)) {
+      if (!Double.isNaN(state.lastBitrateKbps)) {
+        double difference = Math.abs(bitrateKbps - state.lastBitrateKbps);
+        state.bitrateDeviationKbps +=
+            (difference - state.bitrateDeviationKbps) * DEVIATION_GAIN;
+      }
+      state.lastBitrateKbps = bitrateKbps;
+    }
+
+    return new StreamStats(store.getReportId(reportKey),
+        getLatestString(reportKey, "googTrackId"), isVideo, isSend, bitrateKbps,
+        packetsPerSecond, lossPercent, framesPerSecond, inputFramesPerSecond, encodeUsagePercent,
+        frameWidth, frameHeight, getLatest(reportKey, "googJitterReceived"),
+        getLatest(reportKey, "googRtt"), state.bitrateDeviationKbps, counterReset);
+  }
+
+  private StreamState getStreamState(int reportKey) {
+    if (reportKey >= streamStates.length) {
+      streamStates = Arrays.copyOf(streamStates, Math.max(reportKey + 1, streamStates.length * 2));
+    }
+    String id = store.getReportId(reportKey);
+    if (streamStates[reportKey] == null || streamStates[reportKey].id != id) {
+      streamStates[reportKey] = new StreamState(id);
+    }
+    return streamStates[reportKey];
+  }
+
+  // Difference between the two latest samples of a counter.
+  private static class Delta {
+    static final Delta UNKNOWN = new Delta(Double.NaN, false);
+    final double value;
+    final boolean reset;
+
+    Delta(double value, boolean reset) {
+      this.value = value;
+      this.reset = reset;
+    }
+  }
+
+  private Delta delta(int reportKey, String name) {
+    int metric = getMetric(reportKey, name);
+    if (metric < 0 || !store.isMetricCurrent(metric)) {
+      return Delta.UNKNOWN;
+    }
+    double current = store.getSample(metric, 0);
+    double previous = store.getSample(metric, 1);
+    if (Double.isNaN(current) || Double.isNaN(previous)) {
+      return Delta.UNKNOWN;
+    }
+    if (current < previous) {
+      // The counter restarted from zero during the interval.
+      return new Delta(current, true);
+    }
+    return new Delta(current - previous, false);
+  }
+
+  private long getIntervalMs(int metric) {
+    if (metric < 0 || store.getSampleCount(metric) < 2) {
+      return 0;
+    }
+    return store.getSampleTimestampMs(metric, 0) - store.getSampleTimestampMs(metric, 1);
+  }
+
+  // Returns |value| per ms, or NaN if the interval is unknown.
+  private static double rate(double value, long intervalMs) {
+    return intervalMs > 0 ? value / intervalMs : Double.NaN;
+  }
+
+  private int getMetric(int reportKey, String name) {
+    return store.getMetric(reportKey, store.getNameKey(name));
+  }
+
+  private boolean isCurrent(int reportKey, String name) {
+    int metric = getMetric(reportKey, name);
+    return metric >= 0 && store.isMetricCurrent(metric);
+  }
+
+  private double getLatest(int reportKey, String name) {
+    int metric = getMetric(reportKey, name);
+    return (metric >= 0 && store.isMetricCurrent(metric)) ? store.getLatest(metric) : Double.NaN;
+  }
+
+  private double getLatestOrZero(int reportKey, String name) {
+    double value = getLatest(reportKey, name);
+    return Double.isNaN(value) ? 0 : value;
+  }
+
+  private String getLatestString(int reportKey, String name) {
+    int metric = getMetric(reportKey, name);
+    return (metric >= 0 && store.isMetricCurrent(metric)) ? store.getLatestString(metric) : null;
+  }
+}
@@ -0,0 +1,343 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.StatsReport;
+
+/**
+ * Records StatsReport snapshots to a compact append-only binary file.
+ *
+ * <p>File format, all integers as unsigned LEB128 varints unless noted:
+ * <pre>
+ *   header:   int32 MAGIC, byte VERSION
+ *   record:   byte tag, then
+ *     TAG_STRING:   id, length, UTF-8 bytes      (dictionary entry)
+ *     TAG_SNAPSHOT: report count, then per report:
+ *                   id ref, type ref, zigzag timestamp delta in us,
+ *                   value count, then per value: name ref, value
+ * </pre>
+ * A value is one varint whose two low bits select the encoding: the zigzag
+ * delta from the previous integer value of the same report value, a
+ * dictionary reference, or an inline UTF-8 string of the given length.
+ * Integers whose zigzag delta needs more than 62 bits are written as
+ * inline strings and do not update the delta state.
+ * Report ids, types, value names and repeated string values are written
+ * once per file. Every file starts with an empty dictionary and delta
+ * state, so rotated files can be read on their own.
+ *
+ * <p>When a file grows beyond |maxFileBytes| it is renamed to name.1,
+ * older files shift to name.2 and so on, and at most |maxFiles| files are
+ * kept. Encoding and I/O run on a recorder thread; record() only posts the
+ * reports.
+ */
+class StatsRecorder {
+  private static final String TAG = "StatsRecorder";
+  static final int MAGIC = 0x41525453; // "ARTS"
+  static final int VERSION = 1;
+  static final byte TAG_STRING = 1;
+  static final byte TAG_SNAPSHOT = 2;
+  static final int VALUE_INTEGER = 0;
+  static final int VALUE_STRING_REF = 1;
+  static final int VALUE_INLINE_STRING = 2;
+  private static final String LONG_MAX_DIGITS = Long.toString(Long.MAX_VALUE);
+  private static final String LONG_MIN_DIGITS = Long.toString(Long.MIN_VALUE).substring(1);
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // Repeated string values such as track ids and codec names go into the
+  // dictionary; past this size new strings are written inline.
+  private static final int MAX_DICTIONARY_SIZE = 4096;
+
+  private final File file;
+  private final long maxFileBytes;
+  private final int maxFiles;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  // Recorder thread state.
+  private FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  private long fileBytes;
+  private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+  private final Map<Long, Long> lastIntegerValues = new HashMap<Long, Long>();
+  private long lastTimestampUs;
+  private long snapshotCount;
+  private boolean failed;
+
+  public StatsRecorder(File file, long maxFileBytes, int maxFiles) {
+    this.file = file;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFiles = maxFiles;
+  }
+
+  // Returns the |index|-th rotated file of |file|; index 0 is the current one.
+  static File getRotatedFile(File file, int index) {
+    return index == 0 ? file : new File(file.getPath() + "." + index);
+  }
+
+  public void record(final StatsReport[] reports) {
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (failed) {
+            return;
+          }
+          try {
+            writeSnapshot(reports);
+          } catch (IOException e) {
+            Log.e(TAG, "Failed to record stats to " + file, e);
+            failed = true;
+            closeChannel();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Stats callbacks can still arrive while the call is closing.
+      Log.w(TAG, "Recorder is closed, dropping stats snapshot.");
+    }
+  }
+
+  // Flushes pending snapshots and closes the file on the recorder thread,
+  // without waiting for it. Later snapshots are dropped.
+  public void closeAsync() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        closeChannel();
+        Log.d(TAG, "Recorded " + snapshotCount + " stats snapshots to " + file);
+      }
+    });
+    executor.shutdown();
+  }
+
+  // Flushes pending snapshots and closes the file. Blocks until done.
+  public void close() {
+    closeAsync();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void openFile() throws IOException {
+    if (snapshotCount == 0 && file.exists()) {
+      // Keep the recording of the previous call.
+      rotate();
+    }
+    channel = new FileOutputStream(file).getChannel();
+    fileBytes = 0;
+    dictionary.clear();
+    lastIntegerValues.clear();
+    lastTimestampUs = 0;
+    buffer.clear();
+    buffer.putInt(MAGIC);
+    buffer.put((byte) VERSION);
+  }
+
+  private void closeChannel() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      flush();
+      channel.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close " + file, e);
+    }
+    channel = null;
+  }
+
+  private void rotate() throws IOException {
+    closeChannel();
+    for (int i = maxFiles - 1; i > 0; i--) {
+      File from = getRotatedFile(file, i - 1);
+      if (from.exists()) {
+        File to = getRotatedFile(file, i);
+        if (to.exists() && !to.delete()) {
+          throw new IOException("Can not delete " + to);
+        }
+        if (!from.renameTo(to)) {
+          throw new IOException("Can not rename " + from);
+        }
+      }
+    }
+    if (maxFiles <= 1 && file.exists() && !file.delete()) {
+      throw new IOException("Can not delete " + file);
+    }
+  }
+
+  private void writeSnapshot(StatsReport[] reports) throws IOException {
+    // Rotate lazily so that the current file always exists once recording
+    // has started.
+    if (channel != null && fileBytes >= maxFileBytes) {
+      rotate();
+    }
+    if (channel == null) {
+      openFile();
+    }
+    // Dictionary entries go first so that the snapshot only refers to
+    // strings defined earlier in the file.
+    for (StatsReport report : reports) {
+      define(report.id);
+      define(report.type);
+      for (StatsReport.Value value : report.values) {
+        define(value.name);
+        if (dictionary.size() < MAX_DICTIONARY_SIZE && !isCanonicalLong(value.value)
+            && !startsLikeNumber(value.value)) {
+          define(value.value);
+        }
+      }
+    }
+    ensureCapacity(1 + 5);
+    buffer.put(TAG_SNAPSHOT);
+    putVarint(reports.length);
+    for (StatsReport report : reports) {
+      int idRef = dictionary.get(report.id);
+      long timestampUs = Math.round(report.timestamp * 1000);
+      ensureCapacity(4 * 10);
+      putVarint(idRef);
+      putVarint(dictionary.get(report.type));
+      putVarint(zigzag(timestampUs - lastTimestampUs));
+      putVarint(report.values.length);
+      lastTimestampUs = timestampUs;
+      for (StatsReport.Value value : report.values) {
+        int nameRef = dictionary.get(value.name);
+        ensureCapacity(2 * 10);
+        putVarint(nameRef);
+        putValue(((long) idRef << 32) | nameRef, value.value);
+      }
+    }
+    snapshotCount++;
+    // Write every snapshot out so that a crash loses at most one poll.
+    flush();
+  }
+
+  private void putValue(long key, String value) throws IOException {
+    if (isCanonicalLong(value)) {
+      long integer = Long.parseLong(value);
+      Long previous = lastIntegerValues.get(key);
+      // The delta may wrap around; the reader wraps back the same way.
+      long delta = zigzag(integer - (previous == null ? 0 : previous));
+      // Deltas that do not fit beside the tag bits are written as strings and
+      // leave the previous value in place, like the reader does.
+      if ((delta >>> 62) == 0) {
+        lastIntegerValues.put(key, integer);
+        putVarint((delta << 2) | VALUE_INTEGER);
+        return;
+      }
+    }
+    Integer ref = dictionary.get(value);
+    if (ref != null) {
+      putVarint(((long) ref << 2) | VALUE_STRING_REF);
+      return;
+    }
+    byte[] bytes = value.getBytes(UTF_8);
+    putVarint(((long) bytes.length << 2) | VALUE_INLINE_STRING);
+    putBytes(bytes);
+  }
+
+  private void define(String string) throws IOException {
+    if (dictionary.containsKey(string)) {
+      return;
+    }
+    int id = dictionary.size();
+    dictionary.put(string, id);
+    byte[] bytes = string.getBytes(UTF_8);
+    ensureCapacity(1 + 2 * 10);
+    buffer.put(TAG_STRING);
+    putVarint(id);
+    putVarint(bytes.length);
+    putBytes(bytes);
+  }
+
+  // Integers that print back to the same string, so replay is exact.
+  static boolean isCanonicalLong(String value) {
+    int length = value.length();
+    int start = (length > 0 && value.charAt(0) == '-') ? 1 : 0;
+    int digits = length - start;
+    if (length == start || digits > 19) {
+      return false;
+    }
+    if (value.charAt(start) == '0' && (length - start > 1 || start == 1)) {
+      return false;
+    }
+    for (int i = start; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    // Equal length digit strings compare like their values.
+    return digits < 19 || value.substring(start).compareTo(start == 1
+        ? LONG_MIN_DIGITS : LONG_MAX_DIGITS) <= 0;
+  }
+
+  // Fractional values, addresses and the like rarely repeat, so they are not
+  // worth a dictionary entry.
+  private static boolean startsLikeNumber(String value) {
+    if (value.isEmpty()) {
+      return false;
+    }
+    char c = value.charAt(0);
+    return c == '-' || (c >= '0' && c <= '9');
+  }
+
+  static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private void putVarint(long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  private void putBytes(byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      ensureCapacity(1);
+      int length = Math.min(buffer.remaining(), bytes.length - offset);
+      buffer.put(bytes, offset, length);
+      offset += length;
+    }
+  }
+
+  private void ensureCapacity(int bytes) throws IOException {
+    if (buffer.remaining() < bytes) {
+      flush();
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      fileBytes += channel.write(buffer);
+    }
+    buffer.clear();
+  }
+}
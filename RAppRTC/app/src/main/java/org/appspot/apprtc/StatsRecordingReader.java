@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.webrtc.StatsReport;
+
+/**
+ * Reads stats files written by StatsRecorder and replays them through a
+ * StatsEngine. Does not depend on Android, so recordings can be analyzed
+ * offline on a JVM.
+ */
+class StatsRecordingReader {
+  private final MappedByteBuffer buffer;
+  private final List<String> dictionary = new ArrayList<String>();
+  private final Map<Long, Long> lastIntegerValues = new HashMap<Long, Long>();
+  private long lastTimestampUs;
+
+  /**
+   * Receives every replayed snapshot with the stats the engine computed
+   * from it.
+   */
+  public interface ReplayListener {
+    void onSnapshot(StatsReport[] reports, StatsEngine.CallStats callStats);
+  }
+
+  public StatsRecordingReader(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      randomAccessFile.close();
+    }
+    if (buffer.remaining() < 5 || buffer.getInt() != StatsRecorder.MAGIC) {
+      throw new IOException("Not a stats recording: " + file);
+    }
+    int version = buffer.get();
+    if (version != StatsRecorder.VERSION) {
+      throw new IOException("Unsupported stats recording version " + version + ": " + file);
+    }
+  }
+
+  // Returns the next snapshot, or null at the end of the file. A snapshot
+  // cut short by a crash is treated as the end of the file.
+  public StatsReport[] readSnapshot() throws IOException {
+    try {
+      while (buffer.hasRemaining()) {
+        byte tag = buffer.get();
+        if (tag == StatsRecorder.TAG_STRING) {
+          int id = (int) getVarint();
+          if (id != dictionary.size()) {
+            throw new IOException("Unexpected dictionary id " + id);
+          }
+          dictionary.add(getString((int) getVarint()));
+        } else if (tag == StatsRecorder.TAG_SNAPSHOT) {
+          return readReports();
+        } else {
+          throw new IOException("Unknown record tag " + tag);
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      // Truncated last record.
+    }
+    return null;
+  }
+
+  private StatsReport[] readReports() throws IOException {
+    StatsReport[] reports = new StatsReport[(int) getVarint()];
+    for (int i = 0; i < reports.length; i++) {
+      int idRef = (int) getVarint();
+      String id = lookup(idRef);
+      String type = lookup((int) getVarint());
+      lastTimestampUs += unzigzag(getVarint());
+      StatsReport.Value[] values = new StatsReport.Value[(int) getVarint()];
+      for (int j = 0; j < values.length; j++) {
+        int nameRef = (int) getVarint();
+        values[j] = new StatsReport.Value(
+            lookup(nameRef), readValue(((long) idRef << 32) | nameRef));
+      }
+      reports[i] = new StatsReport(id, type, lastTimestampUs / 1000.0, values);
+    }
+    return reports;
+  }
+
+  private String readValue(long key) throws IOException {
+    long header = getVarint();
+    long payload = header >>> 2;
+    switch ((int) (header & 3)) {
+      case StatsRecorder.VALUE_INTEGER:
+        Long previous = lastIntegerValues.get(key);
+        long value = (previous == null ? 0 : previous) + unzigzag(payload);
+        lastIntegerValues.put(key, value);
+        return Long.toString(value);
+      case StatsRecorder.VALUE_STRING_REF:
+        return lookup((int) payload);
+      case StatsRecorder.VALUE_INLINE_STRING:
+        return getString((int) payload);
+      default:
+        throw new IOException("Unknown value encoding " + (header & 3));
+    }
+  }
+
+  private String lookup(int ref) throws IOException {
+    if (ref < 0 || ref >= dictionary.size()) {
+      throw new IOException("Undefined dictionary reference " + ref);
+    }
+    return dictionary.get(ref);
+  }
+
+  private String getString(int length) {
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StatsRecorder.UTF_8);
+  }
+
+  private long getVarint() {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  // Returns the files of a rotated recording, oldest first.
+  public static List<File> getRecordingFiles(File file) {
+    List<File> files = new ArrayList<File>();
+    for (int i = 0;; i++) {
+      File rotatedFile = StatsRecorder.getRotatedFile(file, i);
+      if (!rotatedFile.exists()) {
+        break;
+      }
+      files.add(0, rotatedFile);
+    }
+    return files;
+  }
+
+  // Streams all snapshots of |files| through |engine|. Returns the number of
+  // snapshots replayed.
+  public static int replay(List<File> files, StatsEngine engine, ReplayListener listener)
+      throws IOException {
+    int snapshots = 0;
+    for (File file : files) {
+      StatsRecordingReader reader = new StatsRecordingReader(file);
+      StatsReport[] reports;
+      while ((reports = reader.readSnapshot()) != null) {
+        StatsEngine.CallStats callStats = engine.update(reports);
+        if (listener != null) {
+          listener.onSnapshot(reports, callStats);
+        }
+        snapshots++;
+      }
+    }
+    return snapshots;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.webrtc.StatsReport;
+
+/**
+ * Describes which stats reports a stats subscriber needs.
+ *
+ * <p>A track-scoped request is answered with PeerConnection.getStats() for
+ * the given tracks only. That query returns the session report, the track
+ * report and the ssrc reports of the track. Connection-wide reports such as
+ * VideoBwe or googCandidatePair need a query for the whole connection.
+ * Report types are filtered on the Java side after the query.
+ */
+class StatsRequest {
+  public static final int LOCAL_AUDIO_TRACK = 1;
+  public static final int LOCAL_VIDEO_TRACK = 1 << 1;
+  public static final int REMOTE_VIDEO_TRACK = 1 << 2;
+
+  // Report types returned by a track-scoped query.
+  private static final Set<String> TRACK_REPORT_TYPES = Collections.unmodifiableSet(
+      new HashSet<String>(Arrays.asList("googLibjingleSession", "googTrack", "ssrc")));
+
+  /** All reports of the connection. */
+  public static final StatsRequest ALL = new StatsRequest(0, null);
+
+  // Bit mask of the tracks to query, or 0 for the whole connection.
+  public final int tracks;
+  // Report types to deliver, or null for all types.
+  public final Set<String> reportTypes;
+
+  private StatsRequest(int tracks, Set<String> reportTypes) {
+    this.tracks = tracks;
+    this.reportTypes = reportTypes;
+  }
+
+  // Requests reports of |reportTypes|, or all track report types if none are
+  // given, for the tracks in the |tracks| bit mask.
+  public static StatsRequest forTracks(int tracks, String... reportTypes) {
+    if (tracks == 0) {
+      throw new IllegalArgumentException("No tracks to query");
+    }
+    for (String reportType : reportTypes) {
+      if (!TRACK_REPORT_TYPES.contains(reportType)) {
+        throw new IllegalArgumentException("Not a track report type: " + reportType);
+      }
+    }
+    return new StatsRequest(tracks, toSet(reportTypes));
+  }
+
+  // Requests reports of |reportTypes|, or of all types if none are given,
+  // for the whole connection.
+  public static StatsRequest forConnection(String... reportTypes) {
+    return new StatsRequest(0, toSet(reportTypes));
+  }
+
+  private static Set<String> toSet(String[] reportTypes) {
+    return reportTypes.length == 0
+        ? null
+        : Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(reportTypes)));
+  }
+
+  public boolean isTrackScoped() {
+    return tracks != 0;
+  }
+
+  public boolean accepts(StatsReport report) {
+    return reportTypes == null || reportTypes.contains(report.type);
+  }
+
+  // Returns the reports of |reports| this request asks for. A subscriber may
+  // also see reports of other tracks queried in the same poll.
+  public StatsReport[] filter(StatsReport[] reports) {
+    if (reportTypes == null) {
+      return reports;
+    }
+    List<StatsReport> accepted = new ArrayList<StatsReport>(reports.length);
+    for (StatsReport report : reports) {
+      if (accepts(report)) {
+        accepted.add(report);
+      }
+    }
+    return accepted.size() == reports.length ? reports
+                                              : accepted.toArray(new StatsReport[accepted.size()]);
+  }
+
+  // Returns the tracks to query to answer all |requests|, or 0 if one of them
+  // needs the whole connection.
+  public static int getTracksToQuery(List<StatsRequest> requests) {
+    int tracks = 0;
+    for (StatsRequest request : requests) {
+      if (!request.isTrackScoped()) {
+        return 0;
+      }
+      tracks |= request.tracks;
+    }
+    return tracks;
+  }
+
+  // Merges the results of several track-scoped queries. Reports that are
+  // part of more than one result, like the session report, are kept once.
+  public static StatsReport[] merge(List<StatsReport[]> results) {
+    if (results.size() == 1) {
+      return results.get(0);
+    }
+    Set<String> ids = new HashSet<String>();
+    List<StatsReport> merged = new ArrayList<StatsReport>();
+    for (StatsReport[] reports : results) {
+      for (StatsReport report : reports) {
+        if (ids.add(report.id)) {
+          merged.add(report);
+        }
+      }
+    }
+    return merged.toArray(new StatsReport[merged.size()]);
+  }
+}
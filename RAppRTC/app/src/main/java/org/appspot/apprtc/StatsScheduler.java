@@ -0,0 +1,254 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.StatsReport;
+
+/**
+ * Schedules stats polls on an existing executor.
+ *
+ * <p>Each consumer of stats holds a Subscription with the poll period it
+ * needs. The scheduler polls at the shortest period of the active
+ * subscriptions and not at all when there are none. In the background the
+ * period is stretched by BACKGROUND_BACKOFF_FACTOR, setMinPeriodMs() limits
+ * how often it polls, e.g. while the device is hot, and for a while after
+ * boost() it is shortened to at most BOOST_PERIOD_MS, e.g. around ICE
+ * connection changes. Unlike java.util.Timer, polling can be paused and
+ * resumed any number of times.
+ *
+ * <p>Every poll is passed the subscriptions that are due, so that only the
+ * stats they request need to be queried. Subscriptions with a longer period
+ * are due on the polls closest to their period.
+ *
+ * <p>All methods are thread safe. |pollTask| runs on the executor thread.
+ */
+class StatsScheduler {
+  static final int BOOST_PERIOD_MS = 250;
+  static final int BACKGROUND_BACKOFF_FACTOR = 5;
+
+  private final ScheduledExecutorService executor;
+  private final PollTask pollTask;
+  private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+  // Nothing is polled before the first resume().
+  private boolean paused = true;
+  private boolean background;
+  private int minPeriodMs;
+  private boolean released;
+  private long boostEndTimeMs;
+  private long lastPollTimeMs = Long.MIN_VALUE;
+  private ScheduledFuture<?> pendingPoll;
+  private long pendingPollTimeMs;
+  // Incremented whenever a scheduled poll is replaced, so that a poll that
+  // could not be cancelled in time does nothing.
+  private int pollGeneration;
+
+  /** Queries the stats of |dueSubscriptions| and delivers them. */
+  public interface PollTask {
+    void poll(List<Subscription> dueSubscriptions);
+  }
+
+  /**
+   * Receives the reports of a subscription, and the rates of the poll they
+   * came from as computed from the shared StatsStore.
+   */
+  public interface StatsListener {
+    void onStatsReady(StatsReport[] reports, StatsEngine.CallStats callStats);
+  }
+
+  /** Poll period and stats request of one stats consumer. */
+  public class Subscription {
+    public final StatsRequest request;
+    // Null for consumers of the default PeerConnectionEvents callbacks.
+    public final StatsListener listener;
+    private int periodMs;
+    private boolean active;
+    private long lastPollTimeMs = Long.MIN_VALUE;
+
+    private Subscription(int periodMs, StatsRequest request, StatsListener listener) {
+      this.request = request;
+      this.listener = listener;
+      this.periodMs = periodMs;
+      this.active = true;
+    }
+
+    public void setPeriodMs(int periodMs) {
+      synchronized (StatsScheduler.this) {
+        this.periodMs = periodMs;
+        reschedule();
+      }
+    }
+
+    // Inactive subscriptions are kept but do not cause polls, e.g. while
+    // the view showing the stats is hidden.
+    public void setActive(boolean active) {
+      synchronized (StatsScheduler.this) {
+        this.active = active;
+        reschedule();
+      }
+    }
+
+    public void cancel() {
+      synchronized (StatsScheduler.this) {
+        subscriptions.remove(this);
+        reschedule();
+      }
+    }
+  }
+
+  public StatsScheduler(ScheduledExecutorService executor, PollTask pollTask) {
+    this.executor = executor;
+    this.pollTask = pollTask;
+  }
+
+  public synchronized Subscription subscribe(
+      int periodMs, StatsRequest request, StatsListener listener) {
+    if (periodMs <= 0) {
+      throw new IllegalArgumentException("Invalid stats period " + periodMs);
+    }
+    Subscription subscription = new Subscription(periodMs, request, listener);
+    subscriptions.add(subscription);
+    reschedule();
+    return subscription;
+  }
+
+  public synchronized void pause() {
+    paused = true;
+    reschedule();
+  }
+
+  public synchronized void resume() {
+    paused = false;
+    reschedule();
+  }
+
+  public synchronized void setBackground(boolean background) {
+    this.background = background;
+    reschedule();
+  }
+
+  // Polls at most every |minPeriodMs|, or as often as needed if 0. Boosts
+  // still apply.
+  public synchronized void setMinPeriodMs(int minPeriodMs) {
+    this.minPeriodMs = minPeriodMs;
+    reschedule();
+  }
+
+  // Polls at BOOST_PERIOD_MS or faster for the next |durationMs|.
+  public synchronized void boost(int durationMs) {
+    boostEndTimeMs = Math.max(boostEndTimeMs, nowMs() + durationMs);
+    reschedule();
+  }
+
+  // Stops polling for good. Subscriptions stay valid but have no effect.
+  public synchronized void release() {
+    released = true;
+    reschedule();
+  }
+
+  // Returns the current poll period, or 0 if no poll is needed.
+  synchronized int getPeriodMs() {
+    if (paused || released) {
+      return 0;
+    }
+    int periodMs = Integer.MAX_VALUE;
+    for (Subscription subscription : subscriptions) {
+      if (subscription.active) {
+        periodMs = Math.min(periodMs, subscription.periodMs);
+      }
+    }
+    return periodMs == Integer.MAX_VALUE ? 0 : adjustPeriodMs(periodMs);
+  }
+
+  // Applies the background back-off, the minimum period and the boost to
+  // |periodMs|.
+  private int adjustPeriodMs(int periodMs) {
+    if (background) {
+      periodMs = (int) Math.min(Integer.MAX_VALUE, (long) periodMs * BACKGROUND_BACKOFF_FACTOR);
+    }
+    periodMs = Math.max(periodMs, minPeriodMs);
+    if (nowMs() < boostEndTimeMs) {
+      periodMs = Math.min(periodMs, BOOST_PERIOD_MS);
+    }
+    return periodMs;
+  }
+
+  private static long nowMs() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+  // Makes sure the next poll happens one period after the previous one, or
+  // cancels it if no poll is needed. Must hold the lock.
+  private void reschedule() {
+    int periodMs = getPeriodMs();
+    if (periodMs == 0) {
+      cancelPendingPoll();
+      return;
+    }
+    long nowMs = nowMs();
+    long pollTimeMs = (lastPollTimeMs == Long.MIN_VALUE) ? nowMs : lastPollTimeMs + periodMs;
+    if (pendingPoll != null && pendingPollTimeMs <= pollTimeMs) {
+      // A longer period takes effect after the poll that is already due.
+      return;
+    }
+    cancelPendingPoll();
+    final int generation = pollGeneration;
+    pendingPollTimeMs = Math.max(nowMs, pollTimeMs);
+    pendingPoll = executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        poll(generation);
+      }
+    }, pendingPollTimeMs - nowMs, TimeUnit.MILLISECONDS);
+  }
+
+  private void cancelPendingPoll() {
+    if (pendingPoll != null) {
+      pendingPoll.cancel(false);
+      pendingPoll = null;
+    }
+    pollGeneration++;
+  }
+
+  private void poll(int generation) {
+    List<Subscription> dueSubscriptions = new ArrayList<Subscription>();
+    synchronized (this) {
+      if (generation != pollGeneration) {
+        return;
+      }
+      pendingPoll = null;
+      int periodMs = getPeriodMs();
+      if (periodMs == 0) {
+        return;
+      }
+      long nowMs = nowMs();
+      lastPollTimeMs = nowMs;
+      for (Subscription subscription : subscriptions) {
+        // Polls happen every |periodMs|; take the one nearest to the
+        // subscription's own period.
+        if (subscription.active && (subscription.lastPollTimeMs == Long.MIN_VALUE
+            || nowMs - subscription.lastPollTimeMs
+                >= adjustPeriodMs(subscription.periodMs) - periodMs / 2)) {
+          subscription.lastPollTimeMs = nowMs;
+          dueSubscriptions.add(subscription);
+        }
+      }
+    }
+    pollTask.poll(dueSubscriptions);
+    synchronized (this) {
+      reschedule();
+    }
+  }
+}
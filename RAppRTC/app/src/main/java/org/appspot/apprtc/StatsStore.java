@@ -0,0 +1,454 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.webrtc.StatsReport;
+
+/**
+ * Columnar store for StatsReport snapshots.
+ *
+ * <p>Report ids and value names are interned to integer keys, and every
+ * (report id, value name) pair gets a metric index. Values are parsed once
+ * when a snapshot is added and kept in a fixed-size ring of recent samples
+ * per metric, so consumers read numbers by metric index without parsing
+ * strings or building maps on every stats tick. Numbers are stored as
+ * doubles, which hold counters exactly up to 2^53. The last string value
+ * of each metric is kept for values that are not numeric (ids, codec names)
+ * and for display.
+ *
+ * <p>Reports usually list the same values in the same order on every poll,
+ * so after the first snapshot adding a snapshot does not allocate. Each
+ * report maps name keys to its metrics in an int array, so looking up a
+ * value, including one the report does not have, takes constant time. A
+ * report that is missing from |historySize| snapshots in a row, e.g. the
+ * ssrc of a removed track, is evicted, and its report key and metrics are
+ * reused for later reports. This class is not thread-safe.
+ */
+class StatsStore {
+  public static final int DEFAULT_HISTORY_SIZE = 60;
+  private static final int INITIAL_METRIC_CAPACITY = 256;
+  private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+      1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18};
+
+  private final int historySize;
+  private final Map<String, Integer> reportKeys = new HashMap<String, Integer>();
+  private final Map<String, Integer> nameKeys = new HashMap<String, Integer>();
+  private final List<String> names = new ArrayList<String>();
+  // Indexed by report key; null for evicted reports.
+  private final List<Report> reports = new ArrayList<Report>();
+  private int[] freeReportKeys = new int[16];
+  private int freeReportKeyCount;
+  private long snapshotCount;
+
+  // Metric columns, indexed by metric.
+  private int metricCount;
+  private int[] metricReportKeys = new int[INITIAL_METRIC_CAPACITY];
+  private int[] metricNameKeys = new int[INITIAL_METRIC_CAPACITY];
+  private double[][] samples = new double[INITIAL_METRIC_CAPACITY][];
+  private long[][] sampleTimestampsMs = new long[INITIAL_METRIC_CAPACITY][];
+  // Ring position of the latest sample.
+  private int[] sampleHeads = new int[INITIAL_METRIC_CAPACITY];
+  private int[] sampleCounts = new int[INITIAL_METRIC_CAPACITY];
+  private long[] lastSnapshots = new long[INITIAL_METRIC_CAPACITY];
+  private long[] lastChangedSnapshots = new long[INITIAL_METRIC_CAPACITY];
+  private String[] lastStrings = new String[INITIAL_METRIC_CAPACITY];
+  private int[] freeMetrics = new int[INITIAL_METRIC_CAPACITY];
+  private int freeMetricCount;
+
+  private static class Report {
+    final String id;
+    final String type;
+    // Value names in the order of the last report, and their metrics.
+    String[] valueNames = new String[0];
+    int[] metrics = new int[0];
+    int valueCount;
+    // Metric + 1 of every value the report ever had, by name key, or 0.
+    int[] metricsByName = new int[0];
+    double timestampMs;
+    long lastSnapshot = -1;
+
+    Report(String id, String type) {
+      this.id = id;
+      this.type = type;
+    }
+  }
+
+  public StatsStore() {
+    this(DEFAULT_HISTORY_SIZE);
+  }
+
+  public StatsStore(int historySize) {
+    this.historySize = historySize;
+  }
+
+  // Adds one getStats() result as a new snapshot.
+  public void addReports(StatsReport[] statsReports) {
+    snapshotCount++;
+    for (StatsReport statsReport : statsReports) {
+      int reportKey = internReport(statsReport.id, statsReport.type);
+      Report report = reports.get(reportKey);
+      report.lastSnapshot = snapshotCount;
+      report.timestampMs = statsReport.timestamp;
+      StatsReport.Value[] values = statsReport.values;
+      if (report.valueNames.length < values.length) {
+        report.valueNames = Arrays.copyOf(report.valueNames, values.length);
+        report.metrics = Arrays.copyOf(report.metrics, values.length);
+      }
+      for (int i = 0; i < values.length; i++) {
+        int metric;
+        if (i < report.valueCount && report.valueNames[i].equals(values[i].name)) {
+          metric = report.metrics[i];
+        } else {
+          metric = internMetric(reportKey, values[i].name);
+          report.valueNames[i] = values[i].name;
+          report.metrics[i] = metric;
+        }
+        addSample(metric, (long) statsReport.timestamp, values[i].value);
+      }
+      report.valueCount = values.length;
+    }
+    evictStaleReports();
+  }
+
+  private int internReport(String id, String type) {
+    Integer key = reportKeys.get(id);
+    if (key == null) {
+      if (freeReportKeyCount > 0) {
+        key = freeReportKeys[--freeReportKeyCount];
+        reports.set(key, new Report(id, type));
+      } else {
+        key = reports.size();
+        reports.add(new Report(id, type));
+      }
+      reportKeys.put(id, key);
+    }
+    return key;
+  }
+
+  // Evicts the reports that were missing from the last |historySize|
+  // snapshots, and frees their metrics.
+  private void evictStaleReports() {
+    for (int reportKey = 0; reportKey < reports.size(); reportKey++) {
+      Report report = reports.get(reportKey);
+      if (report == null || snapshotCount - report.lastSnapshot < historySize) {
+        continue;
+      }
+      for (int metricPlusOne : report.metricsByName) {
+        if (metricPlusOne > 0) {
+          freeMetric(metricPlusOne - 1);
+        }
+      }
+      reportKeys.remove(report.id);
+      reports.set(reportKey, null);
+      if (freeReportKeyCount == freeReportKeys.length) {
+        freeReportKeys = Arrays.copyOf(freeReportKeys, freeReportKeyCount * 2);
+      }
+      freeReportKeys[freeReportKeyCount++] = reportKey;
+    }
+  }
+
+  private void freeMetric(int metric) {
+    metricReportKeys[metric] = -1;
+    metricNameKeys[metric] = -1;
+    sampleCounts[metric] = 0;
+    sampleHeads[metric] = historySize - 1;
+    lastSnapshots[metric] = 0;
+    lastChangedSnapshots[metric] = 0;
+    lastStrings[metric] = null;
+    if (freeMetricCount == freeMetrics.length) {
+      freeMetrics = Arrays.copyOf(freeMetrics, freeMetricCount * 2);
+    }
+    freeMetrics[freeMetricCount++] = metric;
+  }
+
+  private int internName(String name) {
+    Integer key = nameKeys.get(name);
+    if (key == null) {
+      key = names.size();
+      names.add(name);
+      nameKeys.put(name, key);
+    }
+    return key;
+  }
+
+  private int internMetric(int reportKey, String name) {
+    int nameKey = internName(name);
+    int metric = getMetric(reportKey, nameKey);
+    if (metric >= 0) {
+      return metric;
+    }
+    Report report = reports.get(reportKey);
+    if (report.metricsByName.length <= nameKey) {
+      report.metricsByName = Arrays.copyOf(report.metricsByName, names.size());
+    }
+    if (freeMetricCount > 0) {
+      // The sample rings of a freed metric are reused.
+      metric = freeMetrics[--freeMetricCount];
+      metricReportKeys[metric] = reportKey;
+      metricNameKeys[metric] = nameKey;
+      report.metricsByName[nameKey] = metric + 1;
+      return metric;
+    }
+    if (metricCount == metricReportKeys.length) {
+      int capacity = metricCount * 2;
+      metricReportKeys = Arrays.copyOf(metricReportKeys, capacity);
+      metricNameKeys = Arrays.copyOf(metricNameKeys, capacity);
+      samples = Arrays.copyOf(samples, capacity);
+      sampleTimestampsMs = Arrays.copyOf(sampleTimestampsMs, capacity);
+      sampleHeads = Arrays.copyOf(sampleHeads, capacity);
+      sampleCounts = Arrays.copyOf(sampleCounts, capacity);
+      lastSnapshots = Arrays.copyOf(lastSnapshots, capacity);
+      lastChangedSnapshots = Arrays.copyOf(lastChangedSnapshots, capacity);
+      lastStrings = Arrays.copyOf(lastStrings, capacity);
+    }
+    metric = metricCount++;
+    metricReportKeys[metric] = reportKey;
+    metricNameKeys[metric] = nameKey;
+    samples[metric] = new double[historySize];
+    sampleTimestampsMs[metric] = new long[historySize];
+    sampleHeads[metric] = historySize - 1;
+    report.metricsByName[nameKey] = metric + 1;
+    return metric;
+  }
+
+  private void addSample(int metric, long timestampMs, String value) {
+    double number = parseNumber(value);
+    int previousHead = sampleHeads[metric];
+    // Strings are only compared if the numbers are equal or not numbers.
+    boolean changed;
+    if (sampleCounts[metric] == 0 || lastStrings[metric] == null) {
+      changed = true;
+    } else if (!Double.isNaN(number) && number != samples[metric][previousHead]) {
+      changed = true;
+    } else {
+      changed = !value.equals(lastStrings[metric]);
+    }
+    int head = previousHead + 1;
+    if (head == historySize) {
+      head = 0;
+    }
+    sampleHeads[metric] = head;
+    samples[metric][head] = number;
+    sampleTimestampsMs[metric][head] = timestampMs;
+    if (sampleCounts[metric] < historySize) {
+      sampleCounts[metric]++;
+    }
+    lastSnapshots[metric] = snapshotCount;
+    if (changed) {
+      lastChangedSnapshots[metric] = snapshotCount;
+    }
+    lastStrings[metric] = value;
+  }
+
+  // Parses decimal numbers and booleans. Returns NaN for other values.
+  static double parseNumber(String value) {
+    int length = value.length();
+    if (length == 0) {
+      return Double.NaN;
+    }
+    if (value.equals("true")) {
+      return 1;
+    }
+    if (value.equals("false")) {
+      return 0;
+    }
+    int pos = 0;
+    boolean negative = value.charAt(0) == '-';
+    if (negative) {
+      pos++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fractionDigits = -1;
+    for (; pos < length; pos++) {
+      char c = value.charAt(pos);
+      if (c >= '0' && c <= '9') {
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+        if (fractionDigits >= 0) {
+          fractionDigits++;
+        }
+      } else if (c == '.' && fractionDigits < 0) {
+        fractionDigits = 0;
+      } else {
+        break;
+      }
+    }
+    if (digits == 0) {
+      return Double.NaN;
+    }
+    if (pos < length) {
+      char c = value.charAt(pos);
+      if (c != 'e' && c != 'E') {
+        // Addresses, resolutions and ids that start with a digit.
+        return Double.NaN;
+      }
+    }
+    if (pos < length || digits >= POWERS_OF_TEN.length || mantissa >= (1L << 53)) {
+      // Exponents and long values are rare, leave them to the JDK parser.
+      try {
+        return Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+        return Double.NaN;
+      }
+    }
+    // Both operands are exact, so the division is correctly rounded.
+    double result = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+    return negative ? -result : result;
+  }
+
+  // Number of snapshots added so far.
+  public long getSnapshotCount() {
+    return snapshotCount;
+  }
+
+  // Number of reports that are not evicted.
+  public int getReportCount() {
+    return reportKeys.size();
+  }
+
+  // Returns the key of report |id|, or -1 if it was never reported or was
+  // evicted. The key of an evicted report may be reused for another report.
+  public int getReportKey(String id) {
+    Integer key = reportKeys.get(id);
+    return key == null ? -1 : key;
+  }
+
+  public String getReportId(int reportKey) {
+    return reports.get(reportKey).id;
+  }
+
+  public String getReportType(int reportKey) {
+    return reports.get(reportKey).type;
+  }
+
+  // Whether report |reportKey| was part of the latest snapshot.
+  public boolean isReportCurrent(int reportKey) {
+    return reports.get(reportKey).lastSnapshot == snapshotCount;
+  }
+
+  // Timestamp of the latest report |reportKey|, in ms since 1970.
+  public double getReportTimestampMs(int reportKey) {
+    return reports.get(reportKey).timestampMs;
+  }
+
+  // Number of values in the latest report |reportKey|.
+  public int getReportValueCount(int reportKey) {
+    return reports.get(reportKey).valueCount;
+  }
+
+  // Metric of value |index| of the latest report |reportKey|, in report order.
+  public int getReportMetric(int reportKey, int index) {
+    return reports.get(reportKey).metrics[index];
+  }
+
+  // Returns the key of value name |name|, or -1 if it was never reported.
+  public int getNameKey(String name) {
+    Integer key = nameKeys.get(name);
+    return key == null ? -1 : key;
+  }
+
+  public String getName(int nameKey) {
+    return names.get(nameKey);
+  }
+
+  // Number of metrics of reports that are not evicted.
+  public int getMetricCount() {
+    return metricCount - freeMetricCount;
+  }
+
+  // Returns the metric for value |nameKey| of report |reportKey|, or -1.
+  // Values missing from the latest report keep their history.
+  public int getMetric(int reportKey, int nameKey) {
+    if (reportKey < 0 || nameKey < 0 || reportKey >= reports.size()) {
+      return -1;
+    }
+    Report report = reports.get(reportKey);
+    if (report == null || nameKey >= report.metricsByName.length) {
+      return -1;
+    }
+    return report.metricsByName[nameKey] - 1;
+  }
+
+  public int findMetric(String reportId, String name) {
+    return getMetric(getReportKey(reportId), getNameKey(name));
+  }
+
+  public int getMetricReportKey(int metric) {
+    return metricReportKeys[metric];
+  }
+
+  public int getMetricNameKey(int metric) {
+    return metricNameKeys[metric];
+  }
+
+  // Whether |metric| was part of the latest snapshot.
+  public boolean isMetricCurrent(int metric) {
+    return lastSnapshots[metric] == snapshotCount;
+  }
+
+  // Whether the latest snapshot changed the value of |metric| as reported.
+  public boolean isMetricChanged(int metric) {
+    return lastChangedSnapshots[metric] == snapshotCount;
+  }
+
+  public int getSampleCount(int metric) {
+    return sampleCounts[metric];
+  }
+
+  // Returns the sample |age| polls back (0 is the latest), or NaN if the
+  // metric is not numeric or has fewer samples.
+  public double getSample(int metric, int age) {
+    if (metric < 0 || age >= sampleCounts[metric]) {
+      return Double.NaN;
+    }
+    int index = sampleHeads[metric] - age;
+    return samples[metric][index < 0 ? index + historySize : index];
+  }
+
+  // Returns the report timestamp of the sample |age| polls back, or -1.
+  public long getSampleTimestampMs(int metric, int age) {
+    if (metric < 0 || age >= sampleCounts[metric]) {
+      return -1;
+    }
+    int index = sampleHeads[metric] - age;
+    return sampleTimestampsMs[metric][index < 0 ? index + historySize : index];
+  }
+
+  public double getLatest(int metric) {
+    return getSample(metric, 0);
+  }
+
+  public long getLatestLong(int metric) {
+    double value = getLatest(metric);
+    return Double.isNaN(value) ? 0 : (long) value;
+  }
+
+  // Returns the latest value as reported, or null.
+  public String getLatestString(int metric) {
+    return metric < 0 ? null : lastStrings[metric];
+  }
+
+  // Copies up to |count| latest samples into |out|, oldest first, and
+  // returns the number of samples copied.
+  public int copySamples(int metric, double[] out, int count) {
+    count = Math.min(Math.min(count, out.length), sampleCounts[metric]);
+    for (int i = 0; i < count; i++) {
+      out[i] = getSample(metric, count - 1 - i);
+    }
+    return count;
+  }
+}
@@ -202,11 +202,12 @@ public class TCPChannelClient {
         if (message == null) {
           break;
         }
+        MetricsRegistry.getInstance().getCounter("TCPChannelClient.MessagesReceived").increment();
 
         executor.execute(new Runnable() {
           @Override
           public void run() {
-            Log.v(TAG, "Receive: " + message);
+            AsyncLogger.getInstance().v(TAG, "Receive: {}", message);
             eventListener.onTCPMessage(message);
           }
         });
@@ -246,7 +247,7 @@ public class TCPChannelClient {
      * Sends a message on the socket. Should only be called on the executor thread.
      */
     public void send(String message) {
-      Log.v(TAG, "Send: " + message);
+      AsyncLogger.getInstance().v(TAG, "Send: {}", message);
 
       synchronized (rawSocketLock) {
         if (out == null) {
@@ -257,6 +258,7 @@ public class TCPChannelClient {
         out.write(message + "\n");
         out.flush();
       }
+      MetricsRegistry.getInstance().getCounter("TCPChannelClient.MessagesSent").increment();
     }
   }
 
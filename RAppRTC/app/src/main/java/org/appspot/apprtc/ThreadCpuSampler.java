@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples the CPU time of each thread of this process from
+ * /proc/self/task/<tid>/stat and attributes it to thread names.
+ *
+ * <p>Threads are keyed by the name the kernel knows them by, which for Java
+ * threads is the thread name cut to 15 characters, e.g. "AudioTrackJavaT"
+ * for AudioTrackJavaThread. The CPU time of threads that share a name, like
+ * the codec threads of several MediaCodec instances, is summed.
+ *
+ * <p>The stat file of each thread is kept open with the ProcSampler, and
+ * the thread list is read once per sample. Not thread-safe.
+ */
+class ThreadCpuSampler {
+  static final String TASK_DIR = "/proc/self/task";
+
+  /** CPU use of the threads with one name over the last interval. Immutable. */
+  public static class ThreadUsage {
+    public final String name;
+    public final int threadCount;
+    // Percent of one core; above 100 if threads of the name ran in parallel.
+    public final double coreUsagePercent;
+
+    ThreadUsage(String name, int threadCount, double coreUsagePercent) {
+      this.name = name;
+      this.threadCount = threadCount;
+      this.coreUsagePercent = coreUsagePercent;
+    }
+
+    @Override
+    public String toString() {
+      return name + (threadCount > 1 ? " x" + threadCount : "") + ": "
+          + Math.round(coreUsagePercent) + "%";
+    }
+  }
+
+  private static class Task {
+    final ProcSampler.KernelFile file;
+    String name;
+    // User and system time in clock ticks, or -1 before the first read.
+    long cpuTime = -1;
+    // Time used since the previous sample.
+    long cpuTimeDelta;
+    boolean sampled;
+
+    Task(ProcSampler.KernelFile file) {
+      this.file = file;
+    }
+  }
+
+  private final ProcSampler sampler;
+  private final File taskDir;
+  // Keyed by thread id.
+  private final Map<String, Task> tasks = new HashMap<String, Task>();
+  private final long[] times = new long[2];
+  private boolean hasSampled;
+
+  public ThreadCpuSampler(ProcSampler sampler) {
+    this(sampler, TASK_DIR);
+  }
+
+  ThreadCpuSampler(ProcSampler sampler, String taskDir) {
+    this.sampler = sampler;
+    this.taskDir = new File(taskDir);
+  }
+
+  // Reads the CPU time of all threads. Returns the number of threads read.
+  public int sample() {
+    String[] threadIds = taskDir.list();
+    if (threadIds == null) {
+      return 0;
+    }
+    for (Task task : tasks.values()) {
+      task.sampled = false;
+    }
+    int count = 0;
+    for (String threadId : threadIds) {
+      Task task = tasks.get(threadId);
+      if (task == null) {
+        task = new Task(sampler.open(taskDir.getPath() + "/" + threadId + "/stat"));
+        tasks.put(threadId, task);
+      }
+      if (!sampler.readTaskTimes(task.file, times)) {
+        continue;
+      }
+      long cpuTime = times[0] + times[1];
+      task.name = sampler.getTaskName(task.name);
+      if (task.cpuTime >= 0) {
+        task.cpuTimeDelta = cpuTime - task.cpuTime;
+      } else {
+        // A thread started since the previous sample used all of its time
+        // in this interval.
+        task.cpuTimeDelta = hasSampled ? cpuTime : 0;
+      }
+      task.cpuTime = cpuTime;
+      task.sampled = true;
+      count++;
+    }
+    // Forget threads that ended.
+    Iterator<Task> iterator = tasks.values().iterator();
+    while (iterator.hasNext()) {
+      Task task = iterator.next();
+      if (!task.sampled) {
+        task.file.close();
+        iterator.remove();
+      }
+    }
+    hasSampled = true;
+    return count;
+  }
+
+  // Returns up to |count| thread names that used the most CPU time in the
+  // last interval, busiest first. |coreTicks| is the length of the interval
+  // in clock ticks of one core. Names that used no CPU time are left out.
+  public List<ThreadUsage> getTopThreads(int count, double coreTicks) {
+    Map<String, long[]> totals = new HashMap<String, long[]>();
+    for (Task task : tasks.values()) {
+      if (task.cpuTimeDelta <= 0) {
+        continue;
+      }
+      // Time and thread count.
+      long[] total = totals.get(task.name);
+      if (total == null) {
+        total = new long[2];
+        totals.put(task.name, total);
+      }
+      total[0] += task.cpuTimeDelta;
+      total[1]++;
+    }
+    List<ThreadUsage> usages = new ArrayList<ThreadUsage>(totals.size());
+    if (coreTicks <= 0) {
+      return usages;
+    }
+    for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+      long[] total = entry.getValue();
+      usages.add(new ThreadUsage(entry.getKey(), (int) total[1], 100.0 * total[0] / coreTicks));
+    }
+    Collections.sort(usages, new Comparator<ThreadUsage>() {
+      @Override
+      public int compare(ThreadUsage lhs, ThreadUsage rhs) {
+        return Double.compare(rhs.coreUsagePercent, lhs.coreUsagePercent);
+      }
+    });
+    return usages.size() > count ? new ArrayList<ThreadUsage>(usages.subList(0, count)) : usages;
+  }
+
+  public void close() {
+    for (Task task : tasks.values()) {
+      task.file.close();
+    }
+    tasks.clear();
+    hasSampled = false;
+  }
+}
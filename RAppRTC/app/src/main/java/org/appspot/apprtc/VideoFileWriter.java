@@ -0,0 +1,212 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.webrtc.ThreadUtils;
+
+/**
+ * Writes the frames of a y4m file on a dedicated I/O thread.
+ *
+ * <p>Frames are filled in buffers from a pool of |poolSize| frames and queued
+ * with writeFrame(). The I/O thread writes the FRAME header and the frame data
+ * with a single gathering write to a FileChannel, and returns the frame to the
+ * pool. When the disk falls behind and the pool is empty, obtainFrame() returns
+ * null and the frame is counted as dropped, so that the caller never blocks on
+ * I/O.
+ */
+class VideoFileWriter {
+  private static final String TAG = "VideoFileWriter";
+  private static final byte[] FRAME_HEADER = {'F', 'R', 'A', 'M', 'E', '\n'};
+
+  /** A frame buffer of the pool. */
+  public static class Frame {
+    // I420 frame, or a frame laid out like TextureYuvConverter output.
+    public final ByteBuffer buffer;
+    // Views of the header and data to write, for either layout.
+    private final ByteBuffer[] i420Views;
+    private final ByteBuffer[] sideBySideChromaViews;
+    private ByteBuffer[] views;
+
+    private Frame(int width, int height) {
+      int frameSize = width * height * 3 / 2;
+      buffer = ByteBuffer.allocateDirect(frameSize);
+      i420Views = new ByteBuffer[] {ByteBuffer.wrap(FRAME_HEADER), buffer.duplicate()};
+      // Y, then each row of U and each row of V, which are the left and right
+      // halves of the rows after Y.
+      int chromaRows = height / 2;
+      int chromaWidth = width / 2;
+      sideBySideChromaViews = new ByteBuffer[2 + 2 * chromaRows];
+      sideBySideChromaViews[0] = ByteBuffer.wrap(FRAME_HEADER);
+      sideBySideChromaViews[1] = slice(0, width * height);
+      for (int row = 0; row < chromaRows; row++) {
+        int rowStart = width * height + row * width;
+        sideBySideChromaViews[2 + row] = slice(rowStart, chromaWidth);
+        sideBySideChromaViews[2 + chromaRows + row] = slice(rowStart + chromaWidth, chromaWidth);
+      }
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+      ByteBuffer view = buffer.duplicate();
+      view.position(offset);
+      view.limit(offset + length);
+      return view.slice();
+    }
+  }
+
+  private final FileOutputStream outputStream;
+  private final FileChannel channel;
+  private final int width;
+  private final int height;
+  private final ArrayBlockingQueue<Frame> freeFrames;
+  private final ArrayBlockingQueue<Frame> queuedFrames;
+  // Queued after the last frame to stop the I/O thread.
+  private final Frame endOfStream;
+  private final Thread ioThread;
+  private final AtomicLong framesWritten = new AtomicLong();
+  private final AtomicLong framesDropped = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong writeTimeNs = new AtomicLong();
+  private volatile boolean failed;
+
+  public VideoFileWriter(String outputFile, String header, int width, int height, int poolSize)
+      throws IOException {
+    this.width = width;
+    this.height = height;
+    freeFrames = new ArrayBlockingQueue<Frame>(poolSize);
+    queuedFrames = new ArrayBlockingQueue<Frame>(poolSize + 1);
+    for (int i = 0; i < poolSize; i++) {
+      freeFrames.add(new Frame(width, height));
+    }
+    endOfStream = new Frame(0, 0);
+    outputStream = new FileOutputStream(outputFile);
+    channel = outputStream.getChannel();
+    writeFully(new ByteBuffer[] {ByteBuffer.wrap(header.getBytes("US-ASCII"))});
+
+    ioThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeFrames();
+      }
+    }, TAG);
+    ioThread.start();
+  }
+
+  /**
+   * Returns a free frame to fill, or null if all frames are waiting to be written, in which
+   * case the frame is counted as dropped.
+   */
+  public Frame obtainFrame() {
+    Frame frame = failed ? null : freeFrames.poll();
+    if (frame == null) {
+      framesDropped.incrementAndGet();
+    }
+    return frame;
+  }
+
+  /** Returns a frame from obtainFrame() to the pool without writing it. */
+  public void discardFrame(Frame frame) {
+    freeFrames.add(frame);
+  }
+
+  /**
+   * Queues a frame from obtainFrame() to be written. If |sideBySideChroma|, the U and V rows
+   * of the frame are side by side, like TextureYuvConverter output with a stride of the width.
+   */
+  public void writeFrame(Frame frame, boolean sideBySideChroma) {
+    frame.views = sideBySideChroma ? frame.sideBySideChromaViews : frame.i420Views;
+    queuedFrames.add(frame);
+  }
+
+  /** Writes the queued frames, closes the file and stops the I/O thread. */
+  public void release() {
+    queuedFrames.add(endOfStream);
+    ThreadUtils.joinUninterruptibly(ioThread);
+    try {
+      outputStream.close();
+    } catch (IOException e) {
+      Log.d(TAG, "Error closing output video file");
+    }
+    Log.d(TAG, "Wrote " + framesWritten.get() + " frames, " + bytesWritten.get()
+            + " bytes at " + getWriteBytesPerSecond() + " bytes/s, dropped "
+            + framesDropped.get() + " frames");
+  }
+
+  public long getFramesWritten() {
+    return framesWritten.get();
+  }
+
+  public long getFramesDropped() {
+    return framesDropped.get();
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /** Returns the rate of the frame writes while they are in progress. */
+  public long getWriteBytesPerSecond() {
+    long timeNs = writeTimeNs.get();
+    return (timeNs == 0) ? 0 : bytesWritten.get() * TimeUnit.SECONDS.toNanos(1) / timeNs;
+  }
+
+  private void writeFrames() {
+    while (true) {
+      Frame frame;
+      try {
+        frame = queuedFrames.take();
+      } catch (InterruptedException e) {
+        Log.e(TAG, "I/O thread interrupted");
+        return;
+      }
+      if (frame == endOfStream) {
+        return;
+      }
+      if (!failed) {
+        for (ByteBuffer view : frame.views) {
+          view.rewind();
+        }
+        long startNs = System.nanoTime();
+        try {
+          writeFully(frame.views);
+          writeTimeNs.addAndGet(System.nanoTime() - startNs);
+          framesWritten.incrementAndGet();
+        } catch (IOException e) {
+          // Later frames are dropped.
+          Log.e(TAG, "Failed to write to file for video out: " + e);
+          failed = true;
+        }
+      }
+      freeFrames.add(frame);
+    }
+  }
+
+  private void writeFully(ByteBuffer[] views) throws IOException {
+    long remaining = 0;
+    for (ByteBuffer view : views) {
+      remaining += view.remaining();
+    }
+    while (remaining > 0) {
+      // Long gathers may be written in parts.
+      long written = channel.write(views);
+      remaining -= written;
+      bytesWritten.addAndGet(written);
+    }
+  }
+}
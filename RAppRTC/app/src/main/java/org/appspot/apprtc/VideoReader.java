@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of the I420 frames of a video, played by MappedFileVideoCapturer.
+ *
+ * <p>Frames are handed out from a small pool of holders and are returned
+ * with Frame.release(), so that readers need not allocate per frame.
+ * Implementations must let frames be released on another thread than the
+ * one that got them.
+ */
+public interface VideoReader {
+  /** Layouts of 8-bit YUV frames that readers convert to I420. */
+  enum PixelFormat {
+    // Y, U and V planes, with chroma subsampled 2x2.
+    I420(2, 2),
+    // Y plane and interleaved U and V, with chroma subsampled 2x2.
+    NV12(2, 2),
+    // Y, U and V planes, with chroma subsampled horizontally.
+    I422(2, 1),
+    // Y, U and V planes, without chroma subsampling.
+    I444(1, 1);
+
+    private final int chromaWidthDivisor;
+    private final int chromaHeightDivisor;
+
+    PixelFormat(int chromaWidthDivisor, int chromaHeightDivisor) {
+      this.chromaWidthDivisor = chromaWidthDivisor;
+      this.chromaHeightDivisor = chromaHeightDivisor;
+    }
+
+    public int getChromaWidth(int width) {
+      return width / chromaWidthDivisor;
+    }
+
+    public int getChromaHeight(int height) {
+      return height / chromaHeightDivisor;
+    }
+
+    public int getFrameSize(int width, int height) {
+      return width * height + 2 * getChromaWidth(width) * getChromaHeight(height);
+    }
+  }
+
+  /** A frame handed out by getNextFrame() or getFrame(). */
+  interface Frame {
+    // Returns the Y, U and V planes of the frame in I420, from position()
+    // to limit(). The buffer belongs to the holder until release().
+    ByteBuffer getData();
+
+    int getIndex();
+
+    // Returns the holder to the pool. The data must not be used afterwards.
+    void release();
+  }
+
+  int getFrameWidth();
+
+  int getFrameHeight();
+
+  int getFrameCount();
+
+  // Returns the frame interval of the video, or 0 if it is not known.
+  long getFrameIntervalNs();
+
+  // Returns the next frame, starting over after the last one, or null if
+  // all holders are handed out.
+  Frame getNextFrame();
+
+  // Returns frame |index|, or null if all holders are handed out.
+  Frame getFrame(int index);
+
+  void close();
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * Copies the native histograms of org.webrtc.Metrics into a MetricsRegistry.
+ *
+ * <p>org.webrtc.Metrics is not part of every libjingle_peerconnection build,
+ * including the one bundled with this app, so it is looked up at runtime.
+ * Without it, importing does nothing.
+ */
+class WebRtcMetricsImporter {
+  private static final String TAG = "WebRtcMetricsImporter";
+  private static final String METRICS_CLASS = "org.webrtc.Metrics";
+
+  private final MetricsRegistry registry;
+  private Method getAndResetMethod;
+  private Field mapField;
+  private Field maxField;
+  private Field samplesField;
+
+  public WebRtcMetricsImporter(MetricsRegistry registry) {
+    this.registry = registry;
+  }
+
+  // Enables native metrics collection. Must be called after the native
+  // library is loaded. Returns false if native metrics are not available.
+  public boolean enable() {
+    try {
+      Class<?> metricsClass = Class.forName(METRICS_CLASS);
+      Class<?> infoClass = Class.forName(METRICS_CLASS + "$HistogramInfo");
+      metricsClass.getMethod("enable").invoke(null);
+      getAndResetMethod = metricsClass.getMethod("getAndReset");
+      mapField = metricsClass.getField("map");
+      maxField = infoClass.getField("max");
+      samplesField = infoClass.getField("samples");
+      return true;
+    } catch (ClassNotFoundException e) {
+      Log.d(TAG, "Native metrics are not available in this build.");
+    } catch (Throwable e) {
+      Log.e(TAG, "Can not enable native metrics", e);
+    }
+    getAndResetMethod = null;
+    return false;
+  }
+
+  // Adds the native samples since the previous call to histograms named like
+  // the native ones. Returns the number of imported histograms.
+  public int importMetrics() {
+    if (getAndResetMethod == null) {
+      return 0;
+    }
+    try {
+      Map<?, ?> map = (Map<?, ?>) mapField.get(getAndResetMethod.invoke(null));
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        Object info = entry.getValue();
+        importHistogram((String) entry.getKey(), maxField.getInt(info),
+            (Map<?, ?>) samplesField.get(info));
+      }
+      return map.size();
+    } catch (Throwable e) {
+      Log.e(TAG, "Can not import native metrics", e);
+      getAndResetMethod = null;
+      return 0;
+    }
+  }
+
+  // Native samples are keyed by bucket value with an event count.
+  void importHistogram(String name, int max, Map<?, ?> samples) {
+    MetricsRegistry.Histogram histogram =
+        registry.getHistogram(name, Math.max(max, MetricsRegistry.Histogram.SUB_BUCKET_COUNT));
+    for (Map.Entry<?, ?> sample : samples.entrySet()) {
+      histogram.record((Integer) sample.getKey(), (Integer) sample.getValue());
+    }
+  }
+}
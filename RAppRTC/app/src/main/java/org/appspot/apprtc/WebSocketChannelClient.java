@@ -25,7 +25,6 @@ import org.json.JSONObject;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.LinkedList;
 
 /**
  * WebSocket client implementation.
@@ -51,7 +50,7 @@ public class WebSocketChannelClient {
   private boolean closeEvent;
   // WebSocket send queue. Messages are added to the queue when WebSocket
   // client is not registered and are consumed in register() call.
-  private final LinkedList<String> wsSendQueue;
+  private final SignalingSendQueue wsSendQueue;
 
   /**
    * Possible WebSocket connection states.
@@ -73,7 +72,7 @@ public class WebSocketChannelClient {
     this.events = events;
     roomID = null;
     clientID = null;
-    wsSendQueue = new LinkedList<String>();
+    wsSendQueue = new SignalingSendQueue("WebSocket");
     state = WebSocketConnectionState.NEW;
   }
 
@@ -121,10 +120,14 @@ public class WebSocketChannelClient {
       ws.sendTextMessage(json.toString());
       state = WebSocketConnectionState.REGISTERED;
       // Send any previously accumulated messages.
-      for (String sendMessage : wsSendQueue) {
+      boolean hadQueuedMessages = !wsSendQueue.isEmpty();
+      String sendMessage;
+      while ((sendMessage = wsSendQueue.poll()) != null) {
         send(sendMessage);
       }
-      wsSendQueue.clear();
+      if (hadQueuedMessages) {
+        Log.d(TAG, wsSendQueue.getStatString());
+      }
     } catch (JSONException e) {
       reportError("WebSocket register JSON error: " + e.getMessage());
     }
@@ -137,7 +140,7 @@ public class WebSocketChannelClient {
       case CONNECTED:
         // Store outgoing messages and send them after websocket client
         // is registered.
-        Log.d(TAG, "WS ACC: " + message);
+        AsyncLogger.getInstance().d(TAG, "WS ACC: {}", message);
         wsSendQueue.add(message);
         return;
       case ERROR:
@@ -150,7 +153,7 @@ public class WebSocketChannelClient {
           json.put("cmd", "send");
           json.put("msg", message);
           message = json.toString();
-          Log.d(TAG, "C->WSS: " + message);
+          AsyncLogger.getInstance().d(TAG, "C->WSS: {}", message);
           ws.sendTextMessage(message);
         } catch (JSONException e) {
           reportError("WebSocket send JSON error: " + e.getMessage());
@@ -215,7 +218,7 @@ public class WebSocketChannelClient {
   // Asynchronously send POST/DELETE to WebSocket server.
   private void sendWSSMessage(final String method, final String message) {
     String postUrl = postServerUrl + "/" + roomID + "/" + clientID;
-    Log.d(TAG, "WS " + method + " : " + postUrl + " : " + message);
+    AsyncLogger.getInstance().d(TAG, "WS {} : {} : {}", method, postUrl, message);
     AsyncHttpURLConnection httpConnection =
         new AsyncHttpURLConnection(method, postUrl, message, new AsyncHttpEvents() {
           @Override
@@ -274,7 +277,7 @@ public class WebSocketChannelClient {
 
     @Override
     public void onTextMessage(String payload) {
-      Log.d(TAG, "WSS->C: " + payload);
+      AsyncLogger.getInstance().d(TAG, "WSS->C: {}", payload);
       final String message = payload;
       handler.post(new Runnable() {
         @Override
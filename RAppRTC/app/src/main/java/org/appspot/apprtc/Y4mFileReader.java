@@ -0,0 +1,209 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the frames of a .y4m file from memory maps, without copying or
+ * allocating per I420 frame.
+ *
+ * <p>The constructor parses the header and indexes the offset of every
+ * frame, which MappedVideoReader maps. Files with 8 bits per sample in the
+ * C420, C420jpeg, C420paldv, C420mpeg2, C422 and C444 color spaces are
+ * supported; 4:2:2 and 4:4:4 frames are downsampled to I420 as they are
+ * read. The frame rate of the F token is available as getFrameIntervalNs().
+ */
+class Y4mFileReader extends MappedVideoReader {
+  private static final String TAG = "Y4mFileReader";
+  private static final String Y4M_MAGIC = "YUV4MPEG2";
+  private static final String Y4M_FRAME_DELIMITER = "FRAME";
+  // Longest file and frame header read; headers are a few dozen bytes.
+  private static final int MAX_HEADER_SIZE = 1024;
+
+  public Y4mFileReader(String path) throws IOException {
+    this(path, DEFAULT_WINDOW_SIZE);
+  }
+
+  Y4mFileReader(String path, long maxWindowSize) throws IOException {
+    super(readLayout(path), maxWindowSize);
+  }
+
+  // Returns true if the file at |path| starts with the y4m magic bytes,
+  // whatever its name.
+  public static boolean isY4mFile(String path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      ByteBuffer magic = ByteBuffer.allocate(Y4M_MAGIC.length());
+      FileChannel channel = file.getChannel();
+      while (magic.hasRemaining()) {
+        if (channel.read(magic) < 0) {
+          return false;
+        }
+      }
+      return startsWith(magic, Y4M_MAGIC);
+    } finally {
+      file.close();
+    }
+  }
+
+  private static Layout readLayout(String path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      long fileSize = channel.size();
+      ByteBuffer header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+      int headerLength = readHeader(channel, 0, header);
+      if (headerLength < 0 || !startsWith(header, Y4M_MAGIC)) {
+        throw new IOException("Not a y4m file: " + path);
+      }
+      int width = 0;
+      int height = 0;
+      String colorSpace = "420";
+      String frameRate = null;
+      // Tokens are separated by single spaces and start with a letter.
+      int tokenStart = Y4M_MAGIC.length() + 1;
+      while (tokenStart < headerLength) {
+        int tokenEnd = tokenStart;
+        while (tokenEnd < headerLength && header.get(tokenEnd) != ' ') {
+          tokenEnd++;
+        }
+        switch (header.get(tokenStart)) {
+          case 'W':
+            width = parseInt(header, tokenStart + 1, tokenEnd);
+            break;
+          case 'H':
+            height = parseInt(header, tokenStart + 1, tokenEnd);
+            break;
+          case 'C':
+            colorSpace = getString(header, tokenStart + 1, tokenEnd);
+            break;
+          case 'F':
+            frameRate = getString(header, tokenStart + 1, tokenEnd);
+            break;
+        }
+        tokenStart = tokenEnd + 1;
+      }
+      PixelFormat format;
+      if (colorSpace.equals("420") || colorSpace.equals("420jpeg")
+          || colorSpace.equals("420paldv") || colorSpace.equals("420mpeg2")) {
+        format = PixelFormat.I420;
+      } else if (colorSpace.equals("422")) {
+        format = PixelFormat.I422;
+      } else if (colorSpace.equals("444")) {
+        format = PixelFormat.I444;
+      } else {
+        throw new IllegalArgumentException("Does not support color space " + colorSpace);
+      }
+      if (width <= 0 || height <= 0 || (width % 2) == 1 || (height % 2) == 1) {
+        throw new IllegalArgumentException(
+            "Does not support frame size " + width + "x" + height);
+      }
+      long frameIntervalNs = (frameRate == null) ? 0 : parseFrameInterval(frameRate);
+      int frameSize = format.getFrameSize(width, height);
+
+      // Index the frames. Frame headers may carry parameters after FRAME.
+      long[] offsets = new long[64];
+      int count = 0;
+      long position = headerLength + 1;
+      while (position < fileSize) {
+        int frameHeaderLength = readHeader(channel, position, header);
+        if (frameHeaderLength < 0 || !startsWith(header, Y4M_FRAME_DELIMITER)) {
+          throw new IOException("Frame " + count + " has no FRAME header in " + path);
+        }
+        long dataOffset = position + frameHeaderLength + 1;
+        if (dataOffset + frameSize > fileSize) {
+          Log.w(TAG, "Ignoring truncated frame " + count + " of " + path);
+          break;
+        }
+        if (count == offsets.length) {
+          long[] grown = new long[count * 2];
+          System.arraycopy(offsets, 0, grown, 0, count);
+          offsets = grown;
+        }
+        offsets[count++] = dataOffset;
+        position = dataOffset + frameSize;
+      }
+      return new Layout(path, format, width, height, frameIntervalNs, offsets, count);
+    } finally {
+      file.close();
+    }
+  }
+
+  // Reads the header line at |position| into |buffer|. Returns its length
+  // without the newline, or -1 if there is no newline in MAX_HEADER_SIZE
+  // bytes.
+  private static int readHeader(FileChannel channel, long position, ByteBuffer buffer)
+      throws IOException {
+    buffer.clear();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        break;
+      }
+    }
+    for (int i = 0; i < buffer.position(); i++) {
+      if (buffer.get(i) == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(ByteBuffer buffer, String prefix) {
+    if (buffer.position() < prefix.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (buffer.get(i) != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Parses a frame rate of the form numerator:denominator. Returns 0 for an
+  // unknown rate, which is written as 0:0.
+  static long parseFrameInterval(String frameRate) {
+    int colon = frameRate.indexOf(':');
+    int numerator;
+    int denominator;
+    try {
+      numerator = Integer.parseInt(frameRate.substring(0, Math.max(colon, 0)));
+      denominator = Integer.parseInt(frameRate.substring(colon + 1));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid frame rate " + frameRate);
+    }
+    if (numerator == 0 && denominator == 0) {
+      return 0;
+    }
+    if (numerator <= 0 || denominator <= 0) {
+      throw new IllegalArgumentException("Invalid frame rate " + frameRate);
+    }
+    return FramePacer.getFrameIntervalNs(numerator, denominator);
+  }
+
+  private static int parseInt(ByteBuffer buffer, int start, int end) {
+    return Integer.parseInt(getString(buffer, start, end));
+  }
+
+  private static String getString(ByteBuffer buffer, int start, int end) {
+    StringBuilder builder = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      builder.append((char) buffer.get(i));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import org.webrtc.EglBase;
+import org.webrtc.RendererCommon;
+import org.webrtc.ThreadUtils;
+import org.webrtc.VideoRenderer;
+
+/**
+ * Saves the video frames to a y4m file, like org.webrtc.VideoFileRenderer.
+ *
+ * <p>Frames are converted on a render thread into the buffers of a
+ * VideoFileWriter, which writes them on its own I/O thread. Texture frames
+ * are read back with a TextureYuvConverter and I420 frames are scaled with a
+ * YuvFrameConverter. Frames that arrive while the disk is behind are dropped
+ * before they are converted.
+ */
+public class Y4mFileRenderer implements VideoRenderer.Callbacks {
+  private static final String TAG = "Y4mFileRenderer";
+  // Frames converted and waiting to be written.
+  private static final int OUTPUT_FRAME_POOL_SIZE = 4;
+
+  private final HandlerThread renderThread;
+  private final Handler renderThreadHandler;
+  private final VideoFileWriter videoFileWriter;
+  private final YuvFrameConverter yuvFrameConverter = new YuvFrameConverter();
+  private final int outputFileWidth;
+  private final int outputFileHeight;
+  private EglBase eglBase;
+  private TextureYuvConverter textureYuvConverter;
+
+  public Y4mFileRenderer(String outputFile, int outputFileWidth, int outputFileHeight,
+      final EglBase.Context sharedContext) throws IOException {
+    if ((outputFileWidth % 2) == 1 || (outputFileHeight % 2) == 1) {
+      throw new IllegalArgumentException("Does not support uneven width or height");
+    }
+
+    this.outputFileWidth = outputFileWidth;
+    this.outputFileHeight = outputFileHeight;
+
+    videoFileWriter = new VideoFileWriter(outputFile,
+        "YUV4MPEG2 C420 W" + outputFileWidth + " H" + outputFileHeight + " Ip F30:1 A1:1\n",
+        outputFileWidth, outputFileHeight, OUTPUT_FRAME_POOL_SIZE);
+
+    renderThread = new HandlerThread(TAG);
+    renderThread.start();
+    renderThreadHandler = new Handler(renderThread.getLooper());
+
+    ThreadUtils.invokeAtFrontUninterruptibly(renderThreadHandler, new Runnable() {
+      @Override
+      public void run() {
+        eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PIXEL_BUFFER);
+        eglBase.createDummyPbufferSurface();
+        eglBase.makeCurrent();
+        textureYuvConverter = new TextureYuvConverter();
+      }
+    });
+  }
+
+  @Override
+  public void renderFrame(final VideoRenderer.I420Frame frame) {
+    renderThreadHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        renderFrameOnRenderThread(frame);
+      }
+    });
+  }
+
+  private void renderFrameOnRenderThread(VideoRenderer.I420Frame frame) {
+    final VideoFileWriter.Frame outputFrame = videoFileWriter.obtainFrame();
+    if (outputFrame == null) {
+      // The disk is behind; the frame is counted as dropped.
+      VideoRenderer.renderFrameDone(frame);
+      return;
+    }
+    boolean written = false;
+    try {
+      if (!frame.yuvFrame) {
+        final float frameAspectRatio =
+            (float) frame.rotatedWidth() / (float) frame.rotatedHeight();
+        final float[] rotatedSamplingMatrix =
+            RendererCommon.rotateTextureMatrix(frame.samplingMatrix, frame.rotationDegree);
+        final float[] layoutMatrix = RendererCommon.getLayoutMatrix(
+            false, frameAspectRatio, (float) outputFileWidth / outputFileHeight);
+        final float[] texMatrix =
+            RendererCommon.multiplyMatrices(rotatedSamplingMatrix, layoutMatrix);
+        // U and V rows come out side by side, and are gathered in order by the writer.
+        textureYuvConverter.convert(outputFrame.buffer, outputFileWidth, outputFileHeight,
+            outputFileWidth, frame.textureId, texMatrix);
+        videoFileWriter.writeFrame(outputFrame, true /* sideBySideChroma */);
+      } else {
+        outputFrame.buffer.clear();
+        yuvFrameConverter.scaleI420(frame.yuvPlanes[0], frame.yuvStrides[0], frame.yuvPlanes[1],
+            frame.yuvStrides[1], frame.yuvPlanes[2], frame.yuvStrides[2], frame.width,
+            frame.height, outputFrame.buffer, outputFileWidth, outputFileHeight);
+        videoFileWriter.writeFrame(outputFrame, false /* sideBySideChroma */);
+      }
+      written = true;
+    } finally {
+      if (!written) {
+        videoFileWriter.discardFrame(outputFrame);
+      }
+      VideoRenderer.renderFrameDone(frame);
+    }
+  }
+
+  /** Returns the number of frames written to the file. */
+  public long getFramesWritten() {
+    return videoFileWriter.getFramesWritten();
+  }
+
+  /** Returns the number of frames dropped because the disk was behind. */
+  public long getFramesDropped() {
+    return videoFileWriter.getFramesDropped();
+  }
+
+  /**
+   * Release all resources. All already posted frames will be rendered and written first.
+   */
+  public void release() {
+    final CountDownLatch cleanupBarrier = new CountDownLatch(1);
+    renderThreadHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        textureYuvConverter.release();
+        eglBase.release();
+        renderThread.quit();
+        cleanupBarrier.countDown();
+      }
+    });
+    ThreadUtils.awaitUninterruptibly(cleanupBarrier);
+    videoFileWriter.release();
+  }
+}
@@ -0,0 +1,521 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts I420 frames to and from NV21 and scales them, in Java, as a
+ * counterpart of FileVideoCapturer.nativeI420ToNV21 and
+ * VideoFileRenderer.nativeI420Scale that runs on a plain JVM. NV12 frames
+ * and planar frames with 4:2:2 or 4:4:4 chroma can be converted to I420,
+ * with the chroma planes downsampled like a bilinear scale.
+ *
+ * <p>Frames are 8-bit with even width and height, in ByteBuffers that may
+ * be direct, heap or read-only. I420 frames are the Y, U and V planes back
+ * to back and NV21 frames the Y plane followed by interleaved V and U, both
+ * without padding, starting at the position of the buffer. Positions and
+ * limits are not changed. Scaling is bilinear, like libyuv's
+ * kFilterBilinear, with pixel centers aligned.
+ *
+ * <p>Each row band moves whole rows with bulk copies and works on them in
+ * scratch arrays, which is much faster than byte reads of a direct buffer.
+ * Frames of at least MIN_PARALLEL_PIXELS pixels are split into one row band
+ * per thread of the pool, if there is one, and the calling thread works on
+ * the last band. Nothing is allocated per frame once the scratch arrays and
+ * buffer views for a frame size and buffers exist.
+ *
+ * <p>Not thread-safe; each thread should use its own converter.
+ */
+class YuvFrameConverter {
+  static final int MIN_PARALLEL_PIXELS = 640 * 360;
+  // Bilinear weights are in 1/256.
+  private static final int FRACTION_BITS = 8;
+  private static final int FRACTION_ONE = 1 << FRACTION_BITS;
+
+  private static final int OP_I420_TO_NV21 = 0;
+  private static final int OP_NV21_TO_I420 = 1;
+  private static final int OP_SCALE_I420 = 2;
+  private static final int OP_NV12_TO_I420 = 3;
+  private static final int OP_PLANAR_TO_I420 = 4;
+
+  private final ForkJoinPool pool;
+  private final Band[] bands;
+
+  // The operation that the bands run.
+  private int op;
+  private ByteBuffer src;
+  private ByteBuffer srcU;
+  private ByteBuffer srcV;
+  private int srcStrideY;
+  private int srcStrideU;
+  private int srcStrideV;
+  // Offsets of the U and V planes from the positions of srcU and srcV.
+  private int uOffset;
+  private int vOffset;
+  private int srcWidth;
+  private int srcHeight;
+  // Chroma plane size of a planar frame converted to I420.
+  private int srcChromaWidth;
+  private int srcChromaHeight;
+  private ByteBuffer dst;
+  private int dstWidth;
+  private int dstHeight;
+  // Source columns and weights of the destination columns of a scale.
+  private final ColumnMap lumaColumns = new ColumnMap();
+  private final ColumnMap chromaColumns = new ColumnMap();
+
+  // Maps the columns of a |dstWidth| row to the left source column of
+  // |srcWidth| and the weight of the right one.
+  private static class ColumnMap {
+    int srcWidth;
+    int dstWidth;
+    int[] columns = new int[0];
+    int[] weights = new int[0];
+
+    void update(int srcWidth, int dstWidth) {
+      if (srcWidth == this.srcWidth && dstWidth == this.dstWidth) {
+        return;
+      }
+      this.srcWidth = srcWidth;
+      this.dstWidth = dstWidth;
+      if (columns.length < dstWidth) {
+        columns = new int[dstWidth];
+        weights = new int[dstWidth];
+      }
+      for (int x = 0; x < dstWidth; x++) {
+        int position = getSourcePosition(x, srcWidth, dstWidth);
+        columns[x] = position >> FRACTION_BITS;
+        weights[x] = position & (FRACTION_ONE - 1);
+      }
+    }
+  }
+
+  // Works on the chroma rows from |startRow| to |endRow| and their luma rows.
+  private class Band extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    int startRow;
+    int endRow;
+    // Scratch rows, grown to the widest row seen.
+    byte[] row0 = new byte[0];
+    byte[] row1 = new byte[0];
+    byte[] out = new byte[0];
+    // Duplicates of buffers without an accessible array, for bulk copies at
+    // an index. Replaced round-robin.
+    final ByteBuffer[] viewSources = new ByteBuffer[4];
+    final ByteBuffer[] views = new ByteBuffer[4];
+    int nextView;
+
+    @Override
+    protected void compute() {
+      run(this);
+    }
+
+    void ensureRows(int width) {
+      if (row0.length < width) {
+        row0 = new byte[width];
+        row1 = new byte[width];
+        out = new byte[width];
+      }
+    }
+
+    ByteBuffer getView(ByteBuffer buffer) {
+      for (int i = 0; i < views.length; i++) {
+        if (viewSources[i] == buffer) {
+          return views[i];
+        }
+      }
+      ByteBuffer view = buffer.duplicate();
+      viewSources[nextView] = buffer;
+      views[nextView] = view;
+      nextView = (nextView + 1) % views.length;
+      return view;
+    }
+
+    void read(ByteBuffer buffer, int index, byte[] array, int length) {
+      if (buffer.hasArray()) {
+        System.arraycopy(buffer.array(), buffer.arrayOffset() + index, array, 0, length);
+      } else {
+        ByteBuffer view = getView(buffer);
+        view.clear();
+        view.position(index);
+        view.get(array, 0, length);
+      }
+    }
+
+    void write(byte[] array, int length, ByteBuffer buffer, int index) {
+      if (buffer.hasArray()) {
+        System.arraycopy(array, 0, buffer.array(), buffer.arrayOffset() + index, length);
+      } else {
+        ByteBuffer view = getView(buffer);
+        view.clear();
+        view.position(index);
+        view.put(array, 0, length);
+      }
+    }
+
+    void copy(ByteBuffer from, int fromIndex, ByteBuffer to, int toIndex, int length) {
+      if (from.hasArray() && to.hasArray()) {
+        System.arraycopy(from.array(), from.arrayOffset() + fromIndex, to.array(),
+            to.arrayOffset() + toIndex, length);
+        return;
+      }
+      ByteBuffer fromView = getView(from);
+      fromView.clear();
+      fromView.position(fromIndex);
+      fromView.limit(fromIndex + length);
+      ByteBuffer toView = getView(to);
+      toView.clear();
+      toView.position(toIndex);
+      toView.put(fromView);
+    }
+  }
+
+  // Runs on the calling thread only.
+  public YuvFrameConverter() {
+    this(null);
+  }
+
+  // Splits large frames across |pool| if it is not null.
+  public YuvFrameConverter(ForkJoinPool pool) {
+    this.pool = pool;
+    int bandCount = (pool == null) ? 1 : Math.max(1, pool.getParallelism());
+    bands = new Band[bandCount];
+    for (int i = 0; i < bandCount; i++) {
+      bands[i] = new Band();
+    }
+  }
+
+  // Converts the I420 frame in |src| to NV21 in |dst|.
+  public void i420ToNV21(ByteBuffer src, int width, int height, ByteBuffer dst) {
+    checkSize(width, height);
+    checkCapacity(src, width, height);
+    checkCapacity(dst, width, height);
+    this.op = OP_I420_TO_NV21;
+    setFrames(src, width, height, dst, width, height);
+    runBands();
+  }
+
+  // Converts the NV21 frame in |src| to I420 in |dst|.
+  public void nv21ToI420(ByteBuffer src, int width, int height, ByteBuffer dst) {
+    checkSize(width, height);
+    checkCapacity(src, width, height);
+    checkCapacity(dst, width, height);
+    this.op = OP_NV21_TO_I420;
+    setFrames(src, width, height, dst, width, height);
+    runBands();
+  }
+
+  // Converts the NV12 frame in |src| to I420 in |dst|.
+  public void nv12ToI420(ByteBuffer src, int width, int height, ByteBuffer dst) {
+    checkSize(width, height);
+    checkCapacity(src, width, height);
+    checkCapacity(dst, width, height);
+    this.op = OP_NV12_TO_I420;
+    setFrames(src, width, height, dst, width, height);
+    runBands();
+  }
+
+  // Converts the planar frame in |src|, whose U and V planes are
+  // |chromaWidth| x |chromaHeight|, to I420 in |dst|. The chroma planes may
+  // be full or half the width and height of the frame, which covers 4:2:0,
+  // 4:2:2 and 4:4:4 frames.
+  public void planarToI420(ByteBuffer src, int width, int height, int chromaWidth,
+      int chromaHeight, ByteBuffer dst) {
+    checkSize(width, height);
+    if ((chromaWidth != width && chromaWidth != width / 2)
+        || (chromaHeight != height && chromaHeight != height / 2)) {
+      throw new IllegalArgumentException("Does not support chroma planes of " + chromaWidth + "x"
+          + chromaHeight + " for frame size " + width + "x" + height);
+    }
+    if (src.remaining() < width * height + 2 * chromaWidth * chromaHeight) {
+      throw new IllegalArgumentException("Buffer of " + src.remaining()
+          + " bytes is too small for " + width + "x" + height + " with chroma planes of "
+          + chromaWidth + "x" + chromaHeight);
+    }
+    checkCapacity(dst, width, height);
+    this.op = OP_PLANAR_TO_I420;
+    setFrames(src, width, height, dst, width, height);
+    this.srcChromaWidth = chromaWidth;
+    this.srcChromaHeight = chromaHeight;
+    chromaColumns.update(chromaWidth, width / 2);
+    runBands();
+  }
+
+  // Scales the I420 frame in |src| to |dstWidth| x |dstHeight| in |dst|.
+  public void scaleI420(
+      ByteBuffer src, int width, int height, ByteBuffer dst, int dstWidth, int dstHeight) {
+    int ySize = width * height;
+    scaleI420(src, width, src, width / 2, src, width / 2, width, height, dst, dstWidth,
+        dstHeight, ySize, ySize * 5 / 4);
+  }
+
+  // Scales the I420 frame of planes |srcY|, |srcU| and |srcV| with the
+  // given strides, like VideoFileRenderer.nativeI420Scale.
+  public void scaleI420(ByteBuffer srcY, int strideY, ByteBuffer srcU, int strideU,
+      ByteBuffer srcV, int strideV, int width, int height, ByteBuffer dst, int dstWidth,
+      int dstHeight) {
+    scaleI420(srcY, strideY, srcU, strideU, srcV, strideV, width, height, dst, dstWidth,
+        dstHeight, 0, 0);
+  }
+
+  private void scaleI420(ByteBuffer srcY, int strideY, ByteBuffer srcU, int strideU,
+      ByteBuffer srcV, int strideV, int width, int height, ByteBuffer dst, int dstWidth,
+      int dstHeight, int uOffset, int vOffset) {
+    checkSize(width, height);
+    checkSize(dstWidth, dstHeight);
+    if (strideY < width || strideU < width / 2 || strideV < width / 2) {
+      throw new IllegalArgumentException("Strides are narrower than the frame");
+    }
+    if (srcY.remaining() < strideY * (height - 1) + width
+        || srcU.remaining() < uOffset + strideU * (height / 2 - 1) + width / 2
+        || srcV.remaining() < vOffset + strideV * (height / 2 - 1) + width / 2) {
+      throw new IllegalArgumentException("Source planes are too small");
+    }
+    checkCapacity(dst, dstWidth, dstHeight);
+    this.op = OP_SCALE_I420;
+    setFrames(srcY, width, height, dst, dstWidth, dstHeight);
+    this.srcU = srcU;
+    this.srcV = srcV;
+    this.srcStrideY = strideY;
+    this.srcStrideU = strideU;
+    this.srcStrideV = strideV;
+    this.uOffset = uOffset;
+    this.vOffset = vOffset;
+    lumaColumns.update(width, dstWidth);
+    chromaColumns.update(width / 2, dstWidth / 2);
+    runBands();
+  }
+
+  private void setFrames(
+      ByteBuffer src, int srcWidth, int srcHeight, ByteBuffer dst, int dstWidth, int dstHeight) {
+    this.src = src;
+    this.srcWidth = srcWidth;
+    this.srcHeight = srcHeight;
+    this.dst = dst;
+    this.dstWidth = dstWidth;
+    this.dstHeight = dstHeight;
+  }
+
+  private void runBands() {
+    int chromaRows = dstHeight / 2;
+    int bandCount = (dstWidth * dstHeight < MIN_PARALLEL_PIXELS) ? 1 : bands.length;
+    bandCount = Math.min(bandCount, chromaRows);
+    for (int i = 0; i < bandCount; i++) {
+      Band band = bands[i];
+      band.startRow = chromaRows * i / bandCount;
+      band.endRow = chromaRows * (i + 1) / bandCount;
+      if (i < bandCount - 1) {
+        band.reinitialize();
+        pool.execute(band);
+      }
+    }
+    // Wait for all bands, even if one fails, before the frames are let go.
+    RuntimeException error = null;
+    try {
+      run(bands[bandCount - 1]);
+    } catch (RuntimeException e) {
+      error = e;
+    }
+    for (int i = 0; i < bandCount - 1; i++) {
+      try {
+        bands[i].join();
+      } catch (RuntimeException e) {
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+    src = null;
+    srcU = null;
+    srcV = null;
+    dst = null;
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private void run(Band band) {
+    switch (op) {
+      case OP_I420_TO_NV21:
+        runI420ToNV21(band);
+        break;
+      case OP_NV21_TO_I420:
+        runSemiPlanarToI420(band, false /* uFirst */);
+        break;
+      case OP_NV12_TO_I420:
+        runSemiPlanarToI420(band, true /* uFirst */);
+        break;
+      case OP_PLANAR_TO_I420:
+        runPlanarToI420(band);
+        break;
+      case OP_SCALE_I420:
+        runScaleI420(band);
+        break;
+    }
+  }
+
+  private void runI420ToNV21(Band band) {
+    int width = srcWidth;
+    int ySize = width * srcHeight;
+    int chromaWidth = width / 2;
+    int srcStart = src.position();
+    int dstStart = dst.position();
+    band.copy(src, srcStart + 2 * band.startRow * width, dst, dstStart + 2 * band.startRow * width,
+        2 * (band.endRow - band.startRow) * width);
+    int uStart = srcStart + ySize;
+    int vStart = uStart + ySize / 4;
+    band.ensureRows(width);
+    byte[] u = band.row0;
+    byte[] v = band.row1;
+    byte[] out = band.out;
+    for (int row = band.startRow; row < band.endRow; row++) {
+      band.read(src, uStart + row * chromaWidth, u, chromaWidth);
+      band.read(src, vStart + row * chromaWidth, v, chromaWidth);
+      for (int x = 0; x < chromaWidth; x++) {
+        out[2 * x] = v[x];
+        out[2 * x + 1] = u[x];
+      }
+      band.write(out, width, dst, dstStart + ySize + row * width);
+    }
+  }
+
+  // Converts NV21, or NV12 if |uFirst|.
+  private void runSemiPlanarToI420(Band band, boolean uFirst) {
+    int width = srcWidth;
+    int ySize = width * srcHeight;
+    int chromaWidth = width / 2;
+    int srcStart = src.position();
+    int dstStart = dst.position();
+    band.copy(src, srcStart + 2 * band.startRow * width, dst, dstStart + 2 * band.startRow * width,
+        2 * (band.endRow - band.startRow) * width);
+    int uStart = dstStart + ySize;
+    int vStart = uStart + ySize / 4;
+    band.ensureRows(width);
+    byte[] interleaved = band.row0;
+    byte[] u = band.row1;
+    byte[] v = band.out;
+    byte[] first = uFirst ? u : v;
+    byte[] second = uFirst ? v : u;
+    for (int row = band.startRow; row < band.endRow; row++) {
+      band.read(src, srcStart + ySize + row * width, interleaved, width);
+      for (int x = 0; x < chromaWidth; x++) {
+        first[x] = interleaved[2 * x];
+        second[x] = interleaved[2 * x + 1];
+      }
+      band.write(u, chromaWidth, dst, uStart + row * chromaWidth);
+      band.write(v, chromaWidth, dst, vStart + row * chromaWidth);
+    }
+  }
+
+  private void runPlanarToI420(Band band) {
+    int width = srcWidth;
+    int ySize = width * srcHeight;
+    int chromaSize = srcChromaWidth * srcChromaHeight;
+    int srcStart = src.position();
+    int dstStart = dst.position();
+    band.copy(src, srcStart + 2 * band.startRow * width, dst, dstStart + 2 * band.startRow * width,
+        2 * (band.endRow - band.startRow) * width);
+    band.ensureRows(srcChromaWidth);
+    scalePlane(band, src, srcStart + ySize, srcChromaWidth, srcChromaWidth, srcChromaHeight,
+        chromaColumns, dstStart + ySize, width / 2, srcHeight / 2, band.startRow, band.endRow);
+    scalePlane(band, src, srcStart + ySize + chromaSize, srcChromaWidth, srcChromaWidth,
+        srcChromaHeight, chromaColumns, dstStart + ySize * 5 / 4, width / 2, srcHeight / 2,
+        band.startRow, band.endRow);
+  }
+
+  private void runScaleI420(Band band) {
+    band.ensureRows(Math.max(srcWidth, dstWidth));
+    int dstStart = dst.position();
+    int dstYSize = dstWidth * dstHeight;
+    scalePlane(band, src, src.position(), srcStrideY, srcWidth, srcHeight, lumaColumns, dstStart,
+        dstWidth, dstHeight, 2 * band.startRow, 2 * band.endRow);
+    scalePlane(band, srcU, srcU.position() + uOffset, srcStrideU, srcWidth / 2, srcHeight / 2,
+        chromaColumns, dstStart + dstYSize, dstWidth / 2, dstHeight / 2, band.startRow,
+        band.endRow);
+    scalePlane(band, srcV, srcV.position() + vOffset, srcStrideV, srcWidth / 2, srcHeight / 2,
+        chromaColumns, dstStart + dstYSize * 5 / 4, dstWidth / 2, dstHeight / 2, band.startRow,
+        band.endRow);
+  }
+
+  // Scales rows |startRow| to |endRow| of a plane to |dst| at |dstStart|.
+  private void scalePlane(Band band, ByteBuffer plane, int start, int stride, int width,
+      int height, ColumnMap columnMap, int dstStart, int dstWidth, int dstHeight, int startRow,
+      int endRow) {
+    byte[] row0 = band.row0;
+    byte[] row1 = band.row1;
+    byte[] out = band.out;
+    int[] columns = columnMap.columns;
+    int[] weights = columnMap.weights;
+    int loadedRow0 = -1;
+    int loadedRow1 = -1;
+    for (int y = startRow; y < endRow; y++) {
+      int position = getSourcePosition(y, height, dstHeight);
+      int y0 = position >> FRACTION_BITS;
+      int y1 = Math.min(y0 + 1, height - 1);
+      int rowWeight = position & (FRACTION_ONE - 1);
+      // Consecutive rows of a downscale or upscale often share source rows.
+      if (y0 == loadedRow1) {
+        byte[] swap = row0;
+        row0 = row1;
+        row1 = swap;
+        loadedRow0 = y0;
+        loadedRow1 = -1;
+      }
+      if (y0 != loadedRow0) {
+        band.read(plane, start + y0 * stride, row0, width);
+        loadedRow0 = y0;
+      }
+      if (y1 != loadedRow1) {
+        band.read(plane, start + y1 * stride, row1, width);
+        loadedRow1 = y1;
+      }
+      for (int x = 0; x < dstWidth; x++) {
+        int x0 = columns[x];
+        int x1 = Math.min(x0 + 1, width - 1);
+        int weight = weights[x];
+        int top = (row0[x0] & 0xFF) * (FRACTION_ONE - weight) + (row0[x1] & 0xFF) * weight;
+        int bottom = (row1[x0] & 0xFF) * (FRACTION_ONE - weight) + (row1[x1] & 0xFF) * weight;
+        out[x] = (byte) ((top * (FRACTION_ONE - rowWeight) + bottom * rowWeight
+                             + (1 << (2 * FRACTION_BITS - 1)))
+            >> (2 * FRACTION_BITS));
+      }
+      band.write(out, dstWidth, dst, dstStart + y * dstWidth);
+    }
+    // The swaps may have exchanged the scratch rows.
+    band.row0 = row0;
+    band.row1 = row1;
+  }
+
+  // Returns the source position of the center of destination pixel |i| in
+  // 1/256 pixels, clamped to the first and last source pixels.
+  private static int getSourcePosition(int i, int srcSize, int dstSize) {
+    long position = ((2L * i + 1) * srcSize << FRACTION_BITS) / (2L * dstSize)
+        - (FRACTION_ONE / 2);
+    return (int) Math.max(0, Math.min(position, (long) (srcSize - 1) << FRACTION_BITS));
+  }
+
+  private static void checkSize(int width, int height) {
+    if (width <= 0 || height <= 0 || (width % 2) == 1 || (height % 2) == 1) {
+      throw new IllegalArgumentException("Does not support frame size " + width + "x" + height);
+    }
+  }
+
+  private static void checkCapacity(ByteBuffer buffer, int width, int height) {
+    if (buffer.remaining() < width * height * 3 / 2) {
+      throw new IllegalArgumentException(
+          "Buffer of " + buffer.remaining() + " bytes is too small for " + width + "x" + height);
+    }
+  }
+}
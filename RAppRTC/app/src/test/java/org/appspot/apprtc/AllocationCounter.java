@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.lang.reflect.Method;
+
+/**
+ * Counts the bytes allocated by the calling thread, on JVMs that tell
+ * through com.sun.management.ThreadMXBean.
+ */
+final class AllocationCounter {
+  // Looked up once, since the lookup itself allocates. Null if the JVM does
+  // not tell.
+  private static Object threadBean;
+  private static Method allocatedBytesMethod;
+
+  static {
+    try {
+      threadBean = Class.forName("java.lang.management.ManagementFactory")
+                       .getMethod("getThreadMXBean")
+                       .invoke(null);
+      allocatedBytesMethod =
+          Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes",
+              long.class);
+    } catch (Exception e) {
+      allocatedBytesMethod = null;
+    }
+  }
+
+  private AllocationCounter() {}
+
+  // Returns the bytes allocated by the current thread so far, or -1 if the
+  // JVM does not tell.
+  static long getAllocatedBytes() {
+    if (allocatedBytesMethod == null) {
+      return -1;
+    }
+    try {
+      return (Long) allocatedBytesMethod.invoke(threadBean, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  // Runs |operation| |rounds| times and returns the least bytes one run
+  // allocated, or -1 if the JVM does not tell. The least allocation is used
+  // since the JVM may allocate once in any round, e.g. when it compiles a
+  // reflective call.
+  static long leastAllocated(int rounds, Runnable operation) {
+    long leastAllocated = Long.MAX_VALUE;
+    for (int round = 0; round < rounds; round++) {
+      long allocatedBefore = getAllocatedBytes();
+      if (allocatedBefore < 0) {
+        return -1;
+      }
+      operation.run();
+      leastAllocated = Math.min(leastAllocated, getAllocatedBytes() - allocatedBefore);
+    }
+    return leastAllocated;
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import org.webrtc.Logging;
+
+public class AsyncLoggerTest {
+  private static final long TIMEOUT_MS = 5000;
+  // Letters of the android.util.Log priorities, like logcat prints them.
+  private static final String PRIORITY_LETTERS = "??VDIWE";
+
+  private static class Messages implements AsyncLogger.Sink {
+    final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+    final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    public void write(int priority, String tag, long timeMs, String threadName, String message,
+        Throwable throwable) {
+      lines.add(PRIORITY_LETTERS.charAt(priority) + " " + tag + ": " + message
+          + (throwable != null ? " " + throwable.getMessage() : ""));
+      threadNames.add(threadName);
+    }
+  }
+
+  // Counts how often it is converted to a string.
+  private static class Argument {
+    int toStringCount;
+
+    @Override
+    public String toString() {
+      toStringCount++;
+      return "arg";
+    }
+  }
+
+  @Test
+  public void formatsPlaceholders() {
+    StringBuilder builder = new StringBuilder();
+    AsyncLogger.appendFormatted(builder, "a={} b={} c={}", 3, 1, "two", null);
+    assertEquals("a=1 b=two c=null", builder.toString());
+    builder.setLength(0);
+    AsyncLogger.appendFormatted(builder, "{} and {}", 1, "x", null, null);
+    assertEquals("x and {}", builder.toString());
+    builder.setLength(0);
+    AsyncLogger.appendFormatted(builder, "no placeholder", 1, "x", null, null);
+    assertEquals("no placeholder", builder.toString());
+  }
+
+  @Test
+  public void writesMessagesInOrderOnWriterThread() {
+    Messages messages = new Messages();
+    AsyncLogger logger = new AsyncLogger(messages, 64, Log.VERBOSE);
+    logger.v("Tag", "Receive: {}", "hello");
+    logger.d("Tag", "{}x{}@{}", 640, 480, 30);
+    logger.e("Tag", "Failed", new RuntimeException("boom"));
+    assertTrue(logger.flush(TIMEOUT_MS));
+    assertEquals(3, messages.lines.size());
+    assertEquals("V Tag: Receive: hello", messages.lines.get(0));
+    assertEquals("D Tag: 640x480@30", messages.lines.get(1));
+    assertEquals("E Tag: Failed boom", messages.lines.get(2));
+    assertEquals(Thread.currentThread().getName(), messages.threadNames.get(0));
+    logger.close();
+  }
+
+  @Test
+  public void skipsDisabledPrioritiesWithoutFormatting() {
+    Messages messages = new Messages();
+    AsyncLogger logger = new AsyncLogger(messages, 64, Log.INFO);
+    Argument argument = new Argument();
+    // Debug traces stay below an INFO threshold.
+    logger.d("Tag", "Value {}", argument);
+    assertFalse(logger.isLoggable(Log.DEBUG));
+    logger.setMinPriority(Log.DEBUG);
+    logger.d("Tag", "Value {}", argument);
+    assertTrue(logger.flush(TIMEOUT_MS));
+    assertEquals(1, messages.lines.size());
+    assertEquals(1, argument.toStringCount);
+    logger.close();
+  }
+
+  @Test
+  public void dropsMessagesWhenFull() throws InterruptedException {
+    final CountDownLatch release = new CountDownLatch(1);
+    final Messages messages = new Messages();
+    AsyncLogger logger = new AsyncLogger(new AsyncLogger.Sink() {
+      @Override
+      public void write(int priority, String tag, long timeMs, String threadName,
+          String message, Throwable throwable) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        messages.write(priority, tag, timeMs, threadName, message, throwable);
+      }
+    }, 8, Log.INFO);
+    int logged = 0;
+    for (int i = 0; i < 20; i++) {
+      if (logger.log(Log.INFO, "Tag", "{}", 1, i, null, null, null)) {
+        logged++;
+      }
+    }
+    // The writer may hold one message while blocked in the sink.
+    assertTrue(logged >= 8 && logged <= 9);
+    assertEquals(20 - logged, logger.getDroppedCount());
+    release.countDown();
+    assertTrue(logger.flush(TIMEOUT_MS));
+    logger.close();
+    assertEquals("I Tag: 0", messages.lines.get(0));
+    assertTrue(messages.lines.contains("W AsyncLogger: Dropped " + (20 - logged)
+        + " messages"));
+  }
+
+  @Test
+  public void keepsMessagesOfConcurrentThreads() throws InterruptedException {
+    final int threadCount = 4;
+    final int messageCount = 10000;
+    Messages messages = new Messages();
+    final AsyncLogger logger = new AsyncLogger(messages, 256, Log.INFO);
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      final int thread = t;
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < messageCount; i++) {
+            while (!logger.log(Log.INFO, "T" + thread, "{}", 1, i, null, null,
+                null)) {
+              Thread.yield();
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(logger.flush(TIMEOUT_MS));
+    logger.close();
+
+    // Every message arrives once, in order per thread.
+    int[] next = new int[threadCount];
+    int written = 0;
+    for (String line : messages.lines) {
+      if (line.startsWith("W ")) {
+        continue;
+      }
+      int thread = line.charAt("I T".length()) - '0';
+      assertEquals(Integer.toString(next[thread]), line.substring(line.indexOf(": ") + 2));
+      next[thread]++;
+      written++;
+    }
+    assertEquals(threadCount * messageCount, written);
+  }
+
+  @Test
+  public void ignoresMessagesAfterClose() {
+    Messages messages = new Messages();
+    AsyncLogger logger = new AsyncLogger(messages, 8, Log.DEBUG);
+    logger.d("Tag", "before");
+    logger.close();
+    logger.d("Tag", "after");
+    assertEquals(1, messages.lines.size());
+  }
+
+  @Test
+  public void receivesWebRtcLoggingMessages() throws ClassNotFoundException {
+    // Native logging is not enabled in unit tests, so Logging writes to
+    // java.util.logging. Load it first, since it logs the missing library.
+    Class.forName(Logging.class.getName());
+    Messages messages = new Messages();
+    AsyncLogger logger = new AsyncLogger(messages, 8, Log.INFO);
+    logger.attachToWebRtcLogging();
+    try {
+      Logging.w("Tag", "warning");
+      Logging.d("Tag", "info");
+      Logging.log(Logging.Severity.LS_VERBOSE, "Tag", "verbose");
+    } finally {
+      logger.detachFromWebRtcLogging();
+    }
+    Logging.w("Tag", "after detach");
+    assertTrue(logger.flush(TIMEOUT_MS));
+    assertEquals(Arrays.asList("W Tag: warning", "I Tag: info"), messages.lines);
+    logger.close();
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import org.junit.Assume;
+
+/**
+ * Opt-in benchmarks. A benchmark test calls assumeEnabled() first, so it is
+ * skipped in the default unit test run. Benchmarks print their results and
+ * run with
+ *   ./gradlew testDebugUnitTest -Pbenchmarks
+ */
+final class Benchmarks {
+  // Set by build.gradle when the benchmarks property is given.
+  static final String ENABLED_PROPERTY = "apprtc.benchmarks";
+
+  private Benchmarks() {}
+
+  static void assumeEnabled() {
+    Assume.assumeTrue("Benchmarks run with -Pbenchmarks", Boolean.getBoolean(ENABLED_PROPERTY));
+  }
+
+  // Prints a benchmark result line.
+  static void report(String benchmark, String result) {
+    System.out.println("Benchmark " + benchmark + ": " + result);
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class CallQualityAnalyzerTest {
+  private static final long POLL_MS = 1000;
+
+  private static class Events implements CallQualityAnalyzer.Listener {
+    final List<CallQualityAnalyzer.EventType> types =
+        new ArrayList<CallQualityAnalyzer.EventType>();
+
+    @Override
+    public void onQualityEvent(
+        CallQualityAnalyzer.EventType type, CallQualityAnalyzer.Estimate estimate) {
+      types.add(type);
+    }
+
+    int count(CallQualityAnalyzer.EventType type) {
+      int count = 0;
+      for (CallQualityAnalyzer.EventType event : types) {
+        if (event == type) {
+          count++;
+        }
+      }
+      return count;
+    }
+  }
+
+  private static StatsEngine.StreamStats stream(boolean isVideo, boolean isSend, double fps,
+      double inputFps, double lossPercent, double jitterMs) {
+    return new StatsEngine.StreamStats(isVideo ? "video" : "audio", "track", isVideo, isSend, 500,
+        50, lossPercent, isVideo ? fps : Double.NaN, isVideo ? inputFps : Double.NaN, Double.NaN,
+        640, 480, jitterMs, Double.NaN, 0, false);
+  }
+
+  // A poll at |timeMs| of a call with audio and video in both directions.
+  private static StatsEngine.CallStats poll(long timeMs, double rttMs, double lossPercent,
+      double jitterMs, double sendFps, double receiveFps) {
+    return new StatsEngine.CallStats(timeMs,
+        Arrays.asList(stream(false, true, 0, 0, 0, Double.NaN),
+            stream(false, false, 0, 0, lossPercent, jitterMs),
+            stream(true, true, sendFps, 30, 0, Double.NaN),
+            stream(true, false, receiveFps, 30, lossPercent, Double.NaN)),
+        Double.NaN, Double.NaN, Double.NaN, Double.NaN, rttMs);
+  }
+
+  @Test
+  public void audioMosFollowsEModel() {
+    // Close to the best narrowband score without impairments.
+    assertEquals(4.4, CallQualityAnalyzer.computeAudioMos(0, 0, 0), 0.05);
+    assertTrue(CallQualityAnalyzer.computeAudioMos(200, 10, 0)
+        > CallQualityAnalyzer.computeAudioMos(600, 10, 0));
+    assertTrue(CallQualityAnalyzer.computeAudioMos(50, 10, 1)
+        > CallQualityAnalyzer.computeAudioMos(50, 10, 5));
+    // Heavy loss and delay are unusable.
+    assertTrue(CallQualityAnalyzer.computeAudioMos(800, 50, 20) < 2);
+    assertEquals(1, CallQualityAnalyzer.rToMos(-10), 0);
+    assertEquals(4.5, CallQualityAnalyzer.rToMos(120), 0);
+  }
+
+  @Test
+  public void videoScoreFollowsFrameRateAndFreezes() {
+    assertEquals(5, CallQualityAnalyzer.computeVideoScore(30, 0, 0), 1e-9);
+    assertTrue(CallQualityAnalyzer.computeVideoScore(5, 0, 0)
+        < CallQualityAnalyzer.computeVideoScore(15, 0, 0));
+    assertEquals(1, CallQualityAnalyzer.computeVideoScore(30, 1, 0), 1e-9);
+    assertEquals(1, CallQualityAnalyzer.computeVideoScore(30, 0, 50), 1e-9);
+  }
+
+  @Test
+  public void sendVideoScoreFollowsEncodedShareOfInput() {
+    assertEquals(5, CallQualityAnalyzer.computeSendVideoScore(0, 0), 1e-9);
+    assertTrue(CallQualityAnalyzer.computeSendVideoScore(50, 0)
+        < CallQualityAnalyzer.computeSendVideoScore(10, 0));
+    assertEquals(1, CallQualityAnalyzer.computeSendVideoScore(100, 0), 1e-9);
+    assertTrue(Double.isNaN(CallQualityAnalyzer.computeSendVideoScore(Double.NaN, 0)));
+  }
+
+  // A capture frame rate below 30 fps, e.g. after CPU adaptation lowered it,
+  // is not low send quality as long as every captured frame is encoded.
+  @Test
+  public void lowCaptureFrameRateIsNotLowSendQuality() {
+    Events events = new Events();
+    CallQualityAnalyzer analyzer = new CallQualityAnalyzer(new MetricsRegistry(), events);
+    for (int i = 0; i < 60; i++) {
+      analyzer.update(new StatsEngine.CallStats(i * POLL_MS,
+          Arrays.asList(stream(true, true, 10, 10, 0, Double.NaN)), Double.NaN, Double.NaN,
+          Double.NaN, Double.NaN, 40));
+    }
+    assertEquals(0, events.count(CallQualityAnalyzer.EventType.SEND_VIDEO_QUALITY_LOW));
+    assertEquals(5, analyzer.getEstimate().sendVideoScore, 1e-9);
+  }
+
+  @Test
+  public void goodCallEmitsNoEvents() {
+    Events events = new Events();
+    CallQualityAnalyzer analyzer = new CallQualityAnalyzer(new MetricsRegistry(), events);
+    CallQualityAnalyzer.Estimate estimate = null;
+    for (int i = 0; i < 60; i++) {
+      estimate = analyzer.update(poll(i * POLL_MS, 40, 0, 5, 30, 30));
+    }
+    assertTrue(events.types.isEmpty());
+    assertTrue(estimate.audioMos > 4.2);
+    assertEquals(5, estimate.receiveVideoScore, 1e-9);
+    assertEquals(0, estimate.receiveFrameDropPercent, 1e-9);
+  }
+
+  @Test
+  public void lowQualityHasHysteresisAndRepeats() {
+    Events events = new Events();
+    MetricsRegistry metrics = new MetricsRegistry();
+    CallQualityAnalyzer analyzer = new CallQualityAnalyzer(metrics, events);
+    long timeMs = 0;
+    for (int i = 0; i < 10; i++, timeMs += POLL_MS) {
+      analyzer.update(poll(timeMs, 40, 0, 5, 30, 30));
+    }
+    // The encoder drops to 3 fps for 30 s.
+    for (int i = 0; i < 30; i++, timeMs += POLL_MS) {
+      analyzer.update(poll(timeMs, 40, 0, 5, 3, 30));
+    }
+    // Reported once the average falls below the threshold, then repeated.
+    assertEquals(2, events.count(CallQualityAnalyzer.EventType.SEND_VIDEO_QUALITY_LOW));
+    assertEquals(0, events.count(CallQualityAnalyzer.EventType.SEND_VIDEO_QUALITY_RECOVERED));
+    assertTrue(metrics.getGauge("CallQuality.SendFrameDropPercent").get() > 80);
+    for (int i = 0; i < 30; i++, timeMs += POLL_MS) {
+      analyzer.update(poll(timeMs, 40, 0, 5, 30, 30));
+    }
+    assertEquals(1, events.count(CallQualityAnalyzer.EventType.SEND_VIDEO_QUALITY_RECOVERED));
+    assertEquals(0, events.count(CallQualityAnalyzer.EventType.AUDIO_QUALITY_LOW));
+    assertEquals(0, events.count(CallQualityAnalyzer.EventType.RECEIVE_VIDEO_QUALITY_LOW));
+  }
+
+  @Test
+  public void lossAndDelayLowerAudioQuality() {
+    Events events = new Events();
+    CallQualityAnalyzer analyzer = new CallQualityAnalyzer(new MetricsRegistry(), events);
+    long timeMs = 0;
+    for (int i = 0; i < 30; i++, timeMs += POLL_MS) {
+      analyzer.update(poll(timeMs, 600, 15, 40, 30, 30));
+    }
+    assertEquals(CallQualityAnalyzer.EventType.AUDIO_QUALITY_LOW, events.types.get(0));
+    assertTrue(analyzer.getEstimate().audioMos < CallQualityAnalyzer.LOW_QUALITY_MOS);
+  }
+
+  @Test
+  public void detectsFreezes() {
+    Events events = new Events();
+    MetricsRegistry metrics = new MetricsRegistry();
+    CallQualityAnalyzer analyzer = new CallQualityAnalyzer(metrics, events);
+    long timeMs = 0;
+    for (int i = 0; i < 10; i++, timeMs += POLL_MS) {
+      analyzer.update(poll(timeMs, 40, 0, 5, 30, 30));
+    }
+    for (int i = 0; i < 3; i++, timeMs += POLL_MS) {
+      analyzer.update(poll(timeMs, 40, 0, 5, 30, 0));
+    }
+    assertTrue(analyzer.getEstimate().videoFrozen);
+    analyzer.update(poll(timeMs, 40, 0, 5, 30, 30));
+    CallQualityAnalyzer.Estimate estimate = analyzer.getEstimate();
+    assertFalse(estimate.videoFrozen);
+    assertEquals(1, estimate.freezeCount);
+    // Frames were last decoded in the poll before the freeze.
+    assertEquals(4 * POLL_MS, estimate.totalFreezeMs);
+    assertEquals(CallQualityAnalyzer.EventType.VIDEO_FREEZE_STARTED, events.types.get(0));
+    assertEquals(1, events.count(CallQualityAnalyzer.EventType.VIDEO_FREEZE_ENDED));
+    // A freeze of seconds is also low receive quality.
+    assertEquals(1, events.count(CallQualityAnalyzer.EventType.RECEIVE_VIDEO_QUALITY_LOW));
+    assertEquals(1, metrics.getCounter("CallQuality.Freezes").get());
+    assertEquals(4 * POLL_MS,
+        metrics.getHistogram("CallQuality.FreezeDurationMs", 60000).snapshot().max);
+  }
+
+  @Test
+  public void ignoresRepeatedPolls() {
+    Events events = new Events();
+    CallQualityAnalyzer analyzer = new CallQualityAnalyzer(new MetricsRegistry(), events);
+    analyzer.update(poll(0, 40, 0, 5, 30, 30));
+    analyzer.update(poll(POLL_MS, 40, 0, 5, 30, 30));
+    CallQualityAnalyzer.Estimate estimate = analyzer.update(poll(POLL_MS, 40, 0, 5, 30, 0));
+    assertFalse(estimate.videoFrozen);
+    assertEquals(5, estimate.receiveVideoScore, 1e-9);
+    assertTrue(events.types.isEmpty());
+  }
+}
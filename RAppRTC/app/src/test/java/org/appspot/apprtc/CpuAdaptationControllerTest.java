@@ -0,0 +1,304 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class CpuAdaptationControllerTest {
+  private static final long POLL_MS = 1000;
+  // CpuMonitor samples every 2 s and averages the last 5 samples.
+  private static final long CPU_SAMPLE_MS = 2000;
+  private static final int CPU_AVERAGE_SAMPLES = 5;
+
+  /** CPU load of the device for a capture rate. */
+  private interface CpuTrace {
+    double getCpuPercent(long timeMs, double megapixelsPerSecond);
+  }
+
+  private static class Change {
+    final long timeMs;
+    final int width;
+    final int height;
+    final int framerate;
+    final boolean overuse;
+
+    Change(long timeMs, int width, int height, int framerate, boolean overuse) {
+      this.timeMs = timeMs;
+      this.width = width;
+      this.height = height;
+      this.framerate = framerate;
+      this.overuse = overuse;
+    }
+  }
+
+  // Polls the controller like CallActivity, with a CPU average that lags
+  // like the one of CpuMonitor.
+  private static class Simulation implements CpuAdaptationController.Listener {
+    final MetricsRegistry metrics = new MetricsRegistry();
+    final CpuAdaptationController controller = new CpuAdaptationController(metrics, this);
+    final List<Change> changes = new ArrayList<Change>();
+    final double[] cpuSamples = new double[CPU_AVERAGE_SAMPLES];
+    int cpuSampleIndex;
+    long timeMs;
+    int width;
+    int height;
+    int framerate;
+
+    Simulation(int width, int height, int framerate) {
+      controller.setMaxCaptureFormat(width, height, framerate);
+      this.width = width;
+      this.height = height;
+      this.framerate = framerate;
+    }
+
+    @Override
+    public void onCaptureFormatChange(int width, int height, int framerate, boolean overuse) {
+      changes.add(new Change(timeMs, width, height, framerate, overuse));
+      this.width = width;
+      this.height = height;
+      this.framerate = framerate;
+    }
+
+    double getMegapixelsPerSecond() {
+      return width * height * framerate / 1e6;
+    }
+
+    double getCpuAverage() {
+      double sum = 0;
+      for (double sample : cpuSamples) {
+        sum += sample;
+      }
+      return sum / CPU_AVERAGE_SAMPLES;
+    }
+
+    void run(long durationMs, CpuTrace trace) {
+      long endMs = timeMs + durationMs;
+      for (; timeMs < endMs; timeMs += POLL_MS) {
+        if (timeMs % CPU_SAMPLE_MS == 0) {
+          cpuSamples[cpuSampleIndex] =
+              Math.min(100, trace.getCpuPercent(timeMs, getMegapixelsPerSecond()));
+          cpuSampleIndex = (cpuSampleIndex + 1) % CPU_AVERAGE_SAMPLES;
+        }
+        controller.update(timeMs, getCpuAverage(), Double.NaN);
+      }
+    }
+
+    int count(boolean overuse) {
+      int count = 0;
+      for (Change change : changes) {
+        if (change.overuse == overuse) {
+          count++;
+        }
+      }
+      return count;
+    }
+  }
+
+  // Load proportional to the capture rate on top of a background load.
+  private static CpuTrace linear(final double backgroundPercent, final double percentPerMegapixel) {
+    return new CpuTrace() {
+      @Override
+      public double getCpuPercent(long timeMs, double megapixelsPerSecond) {
+        return backgroundPercent + percentPerMegapixel * megapixelsPerSecond;
+      }
+    };
+  }
+
+  @Test
+  public void stepsDownUnderSustainedOverloadAndSettles() {
+    Simulation simulation = new Simulation(1280, 720, 30);
+    // 100% at 720p30, 60% at half the rate.
+    simulation.run(180000, linear(20, 3));
+    assertTrue(simulation.count(true) >= 1);
+    assertEquals(0, simulation.count(false));
+    for (int i = 1; i < simulation.changes.size(); i++) {
+      assertTrue(simulation.changes.get(i).timeMs - simulation.changes.get(i - 1).timeMs
+          >= CpuAdaptationController.DOWN_INTERVAL_MS);
+    }
+    // Settled below the overuse threshold within the first minute.
+    Change last = simulation.changes.get(simulation.changes.size() - 1);
+    assertTrue(last.timeMs < 60000);
+    assertTrue(simulation.getCpuAverage() < CpuAdaptationController.HIGH_CPU_PERCENT);
+    assertFalse(simulation.controller.isOverusing());
+    assertEquals(simulation.changes.size(),
+        simulation.metrics.getCounter("CpuAdaptation.StepsDown").get());
+  }
+
+  @Test
+  public void rampsBackUpWhenLoadGoesAway() {
+    Simulation simulation = new Simulation(1280, 720, 30);
+    simulation.run(60000, linear(60, 3));
+    int stepsDown = simulation.count(true);
+    assertTrue(stepsDown >= 2);
+    simulation.run(300000, linear(5, 1));
+    assertEquals(1280, simulation.width);
+    assertEquals(720, simulation.height);
+    assertEquals(30, simulation.framerate);
+    assertEquals(stepsDown, simulation.count(true));
+    // Steps up wait for a full delay of underuse.
+    long previousMs = 60000;
+    for (Change change : simulation.changes) {
+      if (!change.overuse) {
+        assertTrue(change.timeMs - previousMs >= CpuAdaptationController.INITIAL_UP_DELAY_MS);
+        previousMs = change.timeMs;
+      }
+    }
+  }
+
+  @Test
+  public void backsOffWhenSteppingUpOverloads() {
+    Simulation simulation = new Simulation(1280, 720, 30);
+    // Overloaded at the call format and idle at any lower one.
+    simulation.run(1200000, new CpuTrace() {
+      @Override
+      public double getCpuPercent(long timeMs, double megapixelsPerSecond) {
+        return megapixelsPerSecond >= 1280 * 720 * 30 / 1e6 ? 95 : 40;
+      }
+    });
+    // Without backoff the format would change about every 30 s.
+    assertTrue(simulation.changes.size() < 20);
+    assertEquals(CpuAdaptationController.MAX_UP_DELAY_MS, simulation.controller.getUpDelayMs());
+    // Each step up waits longer than the one before.
+    long previousUpMs = 0;
+    long previousWaitMs = 0;
+    for (int i = 1; i < simulation.changes.size(); i++) {
+      Change change = simulation.changes.get(i);
+      if (!change.overuse) {
+        long waitMs = change.timeMs - simulation.changes.get(i - 1).timeMs;
+        assertTrue(waitMs >= previousWaitMs);
+        previousWaitMs = waitMs;
+        previousUpMs = change.timeMs;
+      }
+    }
+    assertTrue(previousUpMs > 0);
+  }
+
+  @Test
+  public void backoffDecaysOnceStepsUpHold() {
+    Simulation simulation = new Simulation(1280, 720, 30);
+    // Overloaded at the call format and idle at any lower one, early in the
+    // call.
+    simulation.run(1200000, new CpuTrace() {
+      @Override
+      public double getCpuPercent(long timeMs, double megapixelsPerSecond) {
+        return megapixelsPerSecond >= 1280 * 720 * 30 / 1e6 ? 95 : 40;
+      }
+    });
+    assertEquals(CpuAdaptationController.MAX_UP_DELAY_MS, simulation.controller.getUpDelayMs());
+
+    // Then the call format fits.
+    simulation.run(1200000, linear(5, 1));
+    assertEquals(1280, simulation.width);
+    assertEquals(CpuAdaptationController.INITIAL_UP_DELAY_MS,
+        simulation.controller.getUpDelayMs());
+
+    // A later overload is followed by a step up after the initial delay.
+    int stepsDown = simulation.count(true);
+    simulation.run(30000, linear(60, 3));
+    assertTrue(simulation.count(true) > stepsDown);
+    int changes = simulation.changes.size();
+    long lastDownMs = simulation.changes.get(changes - 1).timeMs;
+    simulation.run(60000, linear(5, 1));
+    Change up = simulation.changes.get(changes);
+    assertFalse(up.overuse);
+    // Allows for the CPU average to fall.
+    assertTrue(up.timeMs - lastDownMs
+        < CpuAdaptationController.INITIAL_UP_DELAY_MS + CPU_SAMPLE_MS * CPU_AVERAGE_SAMPLES);
+  }
+
+  @Test
+  public void ignoresShortSpikes() {
+    Simulation simulation = new Simulation(1280, 720, 30);
+    CpuAdaptationController controller = simulation.controller;
+    for (long timeMs = 0; timeMs < 60000; timeMs += POLL_MS) {
+      double encodeUsage = (timeMs % 10000 == 0) ? 100 : 70;
+      assertFalse(controller.update(timeMs, 70, encodeUsage));
+    }
+    assertTrue(simulation.changes.isEmpty());
+  }
+
+  @Test
+  public void encodeUsageAloneSignalsOveruse() {
+    Simulation simulation = new Simulation(640, 480, 30);
+    CpuAdaptationController controller = simulation.controller;
+    assertFalse(controller.update(0, Double.NaN, 95));
+    assertTrue(controller.update(POLL_MS, Double.NaN, 95));
+    Change change = simulation.changes.get(0);
+    assertTrue(change.overuse);
+    assertTrue(change.width * change.height * change.framerate < 640 * 480 * 30);
+    // Unknown inputs do not count as underuse.
+    for (long timeMs = 2 * POLL_MS; timeMs < 120000; timeMs += POLL_MS) {
+      controller.update(timeMs, Double.NaN, Double.NaN);
+    }
+    assertEquals(1, simulation.changes.size());
+  }
+
+  @Test
+  public void neverStepsAboveCallFormat() {
+    Simulation simulation = new Simulation(640, 480, 15);
+    simulation.controller.setCaptureFormat(256, 144, 15);
+    simulation.width = 256;
+    simulation.height = 144;
+    simulation.run(600000, linear(5, 1));
+    assertTrue(simulation.count(false) >= 2);
+    for (Change change : simulation.changes) {
+      assertTrue(change.width * change.height <= 640 * 480);
+      assertTrue(change.framerate <= 15);
+    }
+    assertEquals(640, simulation.width);
+    assertEquals(480, simulation.height);
+    assertEquals(15, simulation.framerate);
+  }
+
+  @Test
+  public void lowSendQualityStepsDownAndHoldsStepsUp() {
+    Simulation simulation = new Simulation(1280, 720, 30);
+    simulation.controller.setSendQualityLow(true);
+    // The CPU has room at any format, but the quality is low.
+    simulation.run(30000, linear(5, 1));
+    assertEquals(0, simulation.count(false));
+    assertEquals(3, simulation.count(true));
+    Change lastDown = simulation.changes.get(simulation.changes.size() - 1);
+
+    simulation.controller.setSendQualityLow(false);
+    simulation.run(300000, linear(5, 1));
+    assertEquals(1280, simulation.width);
+    assertEquals(30, simulation.framerate);
+    // The first step up waits a full delay after the last step down.
+    for (Change change : simulation.changes) {
+      if (!change.overuse) {
+        assertTrue(change.timeMs - lastDown.timeMs >= CpuAdaptationController.INITIAL_UP_DELAY_MS);
+        break;
+      }
+    }
+  }
+
+  @Test
+  public void recoveredSendQualityDoesNotOverloadTheCpu() {
+    Simulation simulation = new Simulation(1280, 720, 30);
+    // 100% at 720p30, 60% at half the rate.
+    CpuTrace trace = linear(20, 3);
+    simulation.controller.setSendQualityLow(true);
+    simulation.run(60000, trace);
+    simulation.controller.setSendQualityLow(false);
+    simulation.run(300000, trace);
+    // Steps up stop below the format that overloads the CPU.
+    assertTrue(simulation.getMegapixelsPerSecond() < 1280 * 720 * 30 / 1e6);
+    assertTrue(simulation.getCpuAverage() < CpuAdaptationController.HIGH_CPU_PERCENT);
+    assertFalse(simulation.controller.isOverusing());
+  }
+}
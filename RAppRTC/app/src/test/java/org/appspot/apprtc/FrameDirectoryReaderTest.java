@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameDirectoryReaderTest {
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("frames", "");
+    directory.delete();
+    directory.mkdir();
+    write(FrameDirectoryReader.SIDECAR_NAME, "width=4\nheight=2\nformat=i444\n".getBytes("UTF-8"));
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  private void write(String name, byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(new File(directory, name));
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  // Writes a 4x2 I444 frame whose samples are all |value|.
+  private void writeFrame(String name, int value) throws IOException {
+    byte[] frame = new byte[24];
+    Arrays.fill(frame, (byte) value);
+    write(name, frame);
+  }
+
+  private static void assertFrame(VideoReader.Frame frame, int index, int value) {
+    assertEquals(index, frame.getIndex());
+    ByteBuffer data = frame.getData();
+    assertEquals(12, data.remaining());
+    for (int i = data.position(); i < data.limit(); i++) {
+      assertEquals(value, data.get(i));
+    }
+  }
+
+  @Test
+  public void ordersFramesByNumber() throws IOException {
+    writeFrame("frame_10.yuv", 10);
+    writeFrame("frame_9.yuv", 9);
+    writeFrame("frame_100.yuv", 100);
+    write("README", new byte[] {1});
+    FrameDirectoryReader reader = new FrameDirectoryReader(directory.getPath());
+    assertEquals(3, reader.getFrameCount());
+    int[] values = {9, 10, 100, 9};
+    for (int i = 0; i < values.length; i++) {
+      VideoReader.Frame frame = reader.getNextFrame();
+      assertFrame(frame, i % 3, values[i]);
+      frame.release();
+    }
+    reader.close();
+  }
+
+  @Test
+  public void readsFramesWhenHandedOut() throws IOException {
+    writeFrame("0.yuv", 1);
+    writeFrame("1.yuv", 2);
+    FrameDirectoryReader reader = new FrameDirectoryReader(directory.getPath());
+    writeFrame("1.yuv", 3);
+    assertFrame(reader.getFrame(1), 1, 3);
+    for (int i = 1; i < MappedVideoReader.POOL_SIZE; i++) {
+      reader.getFrame(0);
+    }
+    assertNull(reader.getFrame(0));
+    reader.close();
+  }
+
+  @Test
+  public void rejectsFramesOfTheWrongSize() throws IOException {
+    writeFrame("0.yuv", 1);
+    write("1.yuv", new byte[12]);
+    try {
+      new FrameDirectoryReader(directory.getPath());
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void findsFrameNumbers() {
+    assertEquals(12, FrameDirectoryReader.getFrameNumber("frame_0012.yuv"));
+    assertEquals(2, FrameDirectoryReader.getFrameNumber("take1_2"));
+    assertEquals(-1, FrameDirectoryReader.getFrameNumber("frame.yuv"));
+  }
+}
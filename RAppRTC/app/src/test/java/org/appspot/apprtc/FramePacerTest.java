@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class FramePacerTest {
+  private static final long INTERVAL_NS = FramePacer.getFrameIntervalNs(30, 1);
+
+  // Clock that only moves when the test sets it. The frames awaited in the
+  // tests are due, so awaitFrame() does not block on it.
+  private static class FakeClock implements FramePacer.Clock {
+    long nowNs;
+
+    @Override
+    public long nanoTime() {
+      return nowNs;
+    }
+  }
+
+  private static final FramePacer.Clock SYSTEM_CLOCK = new FramePacer.Clock() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+  };
+
+  @Test
+  public void computesFrameIntervals() {
+    assertEquals(33333333, FramePacer.getFrameIntervalNs(30, 1));
+    assertEquals(33366666, FramePacer.getFrameIntervalNs(30000, 1001));
+    assertEquals(2000000000, FramePacer.getFrameIntervalNs(1, 2));
+  }
+
+  @Test
+  public void timestampsFollowTheScheduleWhenLate() throws InterruptedException {
+    FakeClock clock = new FakeClock();
+    clock.nowNs = 1000;
+    FramePacer pacer = new FramePacer(clock, INTERVAL_NS);
+    pacer.start();
+    assertEquals(1000, pacer.awaitFrame());
+    // A slightly late wakeup does not show in the timestamp.
+    clock.nowNs = 1000 + INTERVAL_NS + 100000;
+    assertEquals(1000 + INTERVAL_NS, pacer.awaitFrame());
+    // Frames a bit over an interval late are delivered right away and the
+    // schedule does not drift.
+    clock.nowNs = 1000 + 3 * INTERVAL_NS;
+    assertEquals(1000 + 2 * INTERVAL_NS, pacer.awaitFrame());
+    assertEquals(1000 + 3 * INTERVAL_NS, pacer.awaitFrame());
+    assertEquals(4, pacer.getFrames());
+    assertEquals(1, pacer.getLateFrames());
+    assertEquals(0, pacer.getResyncs());
+  }
+
+  @Test
+  public void restartsTheScheduleWhenFarBehind() throws InterruptedException {
+    FakeClock clock = new FakeClock();
+    FramePacer pacer = new FramePacer(clock, INTERVAL_NS);
+    pacer.start();
+    assertEquals(0, pacer.awaitFrame());
+    clock.nowNs = TimeUnit.SECONDS.toNanos(10);
+    assertEquals(clock.nowNs, pacer.awaitFrame());
+    assertEquals(1, pacer.getResyncs());
+    clock.nowNs += INTERVAL_NS;
+    assertEquals(clock.nowNs, pacer.awaitFrame());
+    assertEquals(0, pacer.getLateFrames());
+  }
+
+  @Test
+  public void playsFasterThanRealTime() throws InterruptedException {
+    FakeClock clock = new FakeClock();
+    FramePacer pacer = new FramePacer(clock, INTERVAL_NS);
+    pacer.setSpeed(4);
+    pacer.start();
+    assertEquals(0, pacer.awaitFrame());
+    clock.nowNs = INTERVAL_NS / 4;
+    assertEquals(INTERVAL_NS / 4, pacer.awaitFrame());
+
+    // As fast as possible, timestamps keep the frame rate of the file.
+    pacer.setSpeed(0);
+    clock.nowNs = 1000;
+    assertEquals(INTERVAL_NS / 4 + INTERVAL_NS, pacer.awaitFrame());
+    assertEquals(INTERVAL_NS / 4 + 2 * INTERVAL_NS, pacer.awaitFrame());
+  }
+
+  @Test
+  public void stepsFrames() throws InterruptedException {
+    FakeClock clock = new FakeClock();
+    final FramePacer pacer = new FramePacer(clock, INTERVAL_NS);
+    pacer.setFrameStep(true);
+    pacer.start();
+    pacer.step(2);
+    assertEquals(0, pacer.awaitFrame());
+    assertEquals(INTERVAL_NS, pacer.awaitFrame());
+    Thread stepper = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          return;
+        }
+        pacer.step(1);
+      }
+    });
+    stepper.start();
+    assertEquals(2 * INTERVAL_NS, pacer.awaitFrame());
+    stepper.join();
+    assertEquals(3, pacer.getFrames());
+  }
+
+  @Test
+  public void stopWakesUpTheCaptureThread() throws InterruptedException {
+    final FramePacer pacer = new FramePacer(SYSTEM_CLOCK, TimeUnit.SECONDS.toNanos(100));
+    pacer.start();
+    pacer.awaitFrame();
+    Thread stopper = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        pacer.stop();
+      }
+    });
+    stopper.start();
+    assertEquals(-1, pacer.awaitFrame());
+    stopper.join();
+  }
+
+  // Paces frames on the system clock and checks that the frames are not
+  // early and that their timestamps are exactly one interval apart.
+  @Test
+  public void pacesOnTheSystemClock() throws InterruptedException {
+    long intervalNs = TimeUnit.MILLISECONDS.toNanos(20);
+    FramePacer pacer = new FramePacer(SYSTEM_CLOCK, intervalNs);
+    pacer.start();
+    long firstNs = pacer.awaitFrame();
+    for (int i = 1; i <= 10; i++) {
+      long timestampNs = pacer.awaitFrame();
+      assertTrue(System.nanoTime() >= timestampNs);
+      assertEquals(firstNs + i * intervalNs, timestampNs);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FramePrefetcherTest {
+  private static final int WIDTH = 4;
+  private static final int HEIGHT = 2;
+  private static final int FRAMES = 5;
+
+  private Y4mFileReader reader;
+  private MetricsRegistry metrics;
+  private FramePrefetcher prefetcher;
+
+  @Before
+  public void setUp() throws IOException {
+    reader = new Y4mFileReader(
+        Y4mFileReaderTest.writeY4m("YUV4MPEG2 W4 H2", "FRAME", WIDTH, HEIGHT, FRAMES).getPath());
+    metrics = new MetricsRegistry();
+    prefetcher = new FramePrefetcher(reader, new YuvFrameConverter(), 2, metrics);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    prefetcher.stop();
+    reader.close();
+  }
+
+  // Checks that |slot| holds frame |index| of the file in NV21, where V
+  // comes first in the interleaved chroma plane.
+  private static void assertSlot(FramePrefetcher.Slot slot, long sequence, int index) {
+    assertEquals(sequence, slot.getSequence());
+    byte[] data = slot.getData();
+    assertEquals(index, data[0] & 0xFF);
+    assertEquals(200 + index, data[WIDTH * HEIGHT] & 0xFF);
+    assertEquals(100 + index, data[WIDTH * HEIGHT + 1] & 0xFF);
+  }
+
+  @Test
+  public void prefetchesFramesInALoop() throws InterruptedException {
+    prefetcher.start(0);
+    for (int i = 0; i < 2 * FRAMES; i++) {
+      FramePrefetcher.Slot slot = prefetcher.take(i, true);
+      assertSlot(slot, i, i % FRAMES);
+      prefetcher.release(slot);
+    }
+    assertEquals(0, prefetcher.getLateFrames());
+    assertEquals(0, prefetcher.getDroppedFrames());
+  }
+
+  @Test
+  public void dropsFramesThatAreNotReadyInTime() throws InterruptedException {
+    prefetcher.start(0);
+    prefetcher.awaitFilled();
+    // Frame 0 is dropped when tick 1 comes first.
+    FramePrefetcher.Slot held = prefetcher.take(1, false);
+    assertSlot(held, 1, 1);
+    prefetcher.awaitFilled();
+    // With |held| taken, only frame 2 fits in the ring, so tick 4 is late.
+    // Frame 2 is discarded and the prefetch thread skips frame 3.
+    assertNull(prefetcher.take(4, false));
+    prefetcher.release(held);
+    prefetcher.awaitFilled();
+    FramePrefetcher.Slot slot = prefetcher.take(4, false);
+    assertSlot(slot, 4, 4);
+    prefetcher.release(slot);
+
+    assertEquals(1, prefetcher.getLateFrames());
+    assertEquals(3, prefetcher.getDroppedFrames());
+    assertEquals(5, prefetcher.getPrefetchedFrames());
+    assertEquals(1, metrics.getCounter("FramePrefetcher.LateFrames").get());
+    assertEquals(3, metrics.getCounter("FramePrefetcher.DroppedFrames").get());
+  }
+
+  @Test
+  public void restartsAtTheNextSequence() throws InterruptedException {
+    prefetcher.start(0);
+    prefetcher.awaitFilled();
+    prefetcher.stop();
+    prefetcher.start(7);
+    FramePrefetcher.Slot slot = prefetcher.take(7, true);
+    assertSlot(slot, 7, 7 % FRAMES);
+    prefetcher.release(slot);
+    assertEquals(0, prefetcher.getDroppedFrames());
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+public class HudModelTest {
+  // Time per frame at 60 fps.
+  private static final long FRAME_BUDGET_NS = 16667000;
+
+  private static StatsReport report(String id, String type, String... namesAndValues) {
+    StatsReport.Value[] values = new StatsReport.Value[namesAndValues.length / 2];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new StatsReport.Value(namesAndValues[2 * i], namesAndValues[2 * i + 1]);
+    }
+    return new StatsReport(id, type, 1000, values);
+  }
+
+  // A snapshot like a loopback call produces, with counters that advance
+  // with |tick|.
+  private static StatsReport[] snapshot(int tick) {
+    StatsReport[] reports = new StatsReport[40];
+    reports[0] = report("ssrc_1_send", "ssrc", "googTrackId", PeerConnectionClient.VIDEO_TRACK_ID,
+        "bytesSent", Integer.toString(tick * 125000), "googFrameRateSent", "30",
+        "googCodecName", "VP8", "googFrameWidthSent", "640", "googFrameHeightSent", "480");
+    reports[1] = report("ssrc_2_recv", "ssrc", "googFrameWidthReceived", "640",
+        "bytesReceived", Integer.toString(tick * 125000), "googFrameRateDecoded", "30");
+    reports[2] = report("bweforvideo", "VideoBwe", "googAvailableSendBandwidth", "300000",
+        "googTargetEncBitrate", "300000", "googActualEncBitrate", "290000");
+    reports[3] = report("Conn-audio-1-0", "googCandidatePair", "googActiveConnection", "true",
+        "googRtt", "20", "bytesSent", Integer.toString(tick * 4000));
+    for (int i = 4; i < reports.length; i++) {
+      reports[i] = report("Cand-" + i, "localcandidate", "ipAddress", "192.168.1." + i,
+          "portNumber", "5000", "transport", "udp");
+    }
+    return reports;
+  }
+
+  // A HUD model and the store it reads, which the stats callbacks add every
+  // poll to before the model formats it.
+  private static class Hud {
+    final StatsStore store = new StatsStore();
+    final HudModel model = new HudModel(store);
+
+    HudModel.Update update(StatsReport[] reports, String cpuStat) {
+      store.addReports(reports);
+      return model.update(reports, true, cpuStat);
+    }
+  }
+
+  private static class TextViews implements HudModel.TextSink {
+    final String[] texts = new String[HudModel.SECTION_COUNT];
+    int setTextCount;
+
+    @Override
+    public void setText(int section, String text) {
+      texts[section] = text;
+      setTextCount++;
+    }
+  }
+
+  @Test
+  public void formatsSections() {
+    TextViews views = new TextViews();
+    new Hud().update(snapshot(1), "CPU%: 10/10. Freq: 1.0").applyTo(views);
+    assertEquals("Fps:  30\nTarget BR: 300000\nActual BR: 290000\nCPU%: 10/10. Freq: 1.0",
+        views.texts[HudModel.SECTION_ENCODER]);
+    assertEquals("bweforvideo\nSendBandwidth=300000\nTargetEncBitrate=300000\n"
+            + "ActualEncBitrate=290000\n",
+        views.texts[HudModel.SECTION_BWE]);
+    assertEquals("Conn-audio-1-0\nActiveConnection=true\nRtt=20\nbytesSent=4000\n",
+        views.texts[HudModel.SECTION_CONNECTION]);
+    assertTrue(views.texts[HudModel.SECTION_VIDEO_SEND].startsWith(
+        "ssrc_1_send\nTrackId=ARDAMSv0\nbytesSent=125000\n"));
+    assertTrue(views.texts[HudModel.SECTION_VIDEO_RECV].startsWith(
+        "ssrc_2_recv\nFrameWidthReceived=640\n"));
+  }
+
+  @Test
+  public void updatesOnlyChangedSections() {
+    Hud hud = new Hud();
+    assertEquals(HudModel.SECTION_COUNT, hud.update(snapshot(1), null).getChangedSectionCount());
+    assertEquals(0, hud.update(snapshot(1), null).getChangedSectionCount());
+
+    TextViews views = new TextViews();
+    // Only the byte counters of the send, receive and connection reports move.
+    hud.update(snapshot(2), null).applyTo(views);
+    assertEquals(3, views.setTextCount);
+    assertNull(views.texts[HudModel.SECTION_ENCODER]);
+    assertNull(views.texts[HudModel.SECTION_BWE]);
+    assertTrue(views.texts[HudModel.SECTION_CONNECTION].contains("bytesSent=8000"));
+  }
+
+  // The UI thread only sets the sections that changed, and the sections
+  // kept from earlier updates still match a full formatting.
+  @Test
+  public void incrementalUpdatesMatchFullFormatting() {
+    Hud hud = new Hud();
+    TextViews views = new TextViews();
+    hud.update(snapshot(0), "CPU%: 10/10. Freq: 1.0").applyTo(views);
+    for (int tick = 1; tick < 100; tick++) {
+      views.setTextCount = 0;
+      hud.update(snapshot(tick), "CPU%: 10/10. Freq: 1.0").applyTo(views);
+      assertEquals(3, views.setTextCount);
+      assertMatchesFullFormatting(snapshot(tick), "CPU%: 10/10. Freq: 1.0", views);
+    }
+  }
+
+  // Polls of other consumers, e.g. a query of the send video track only, are
+  // added to the shared store between the polls the HUD shows.
+  @Test
+  public void otherPollsInTheSharedStoreDoNotChangeTheTexts() {
+    Hud hud = new Hud();
+    TextViews views = new TextViews();
+    hud.update(snapshot(0), null).applyTo(views);
+    for (int tick = 1; tick < 20; tick++) {
+      StatsReport[] trackPoll = {snapshot(2 * tick - 1)[0]};
+      hud.store.addReports(trackPoll);
+      hud.update(snapshot(2 * tick), null).applyTo(views);
+      assertMatchesFullFormatting(snapshot(2 * tick), null, views);
+    }
+  }
+
+  // An update that the UI thread drops, e.g. while ICE is disconnected, is
+  // not lost: the next update after requestFullUpdate() sets every section.
+  @Test
+  public void droppedUpdateIsSentAgain() {
+    Hud hud = new Hud();
+    TextViews views = new TextViews();
+    hud.update(snapshot(0), null).applyTo(views);
+    // The update of tick 1 is never applied.
+    hud.update(snapshot(1), null);
+    hud.model.requestFullUpdate();
+    views.setTextCount = 0;
+    hud.update(snapshot(1), null).applyTo(views);
+    assertEquals(HudModel.SECTION_COUNT, views.setTextCount);
+    assertMatchesFullFormatting(snapshot(1), null, views);
+    // Later updates are incremental again.
+    assertEquals(0, hud.update(snapshot(1), null).getChangedSectionCount());
+  }
+
+  // Formatting stays off the UI thread, and setting the changed texts on it
+  // takes a small part of a frame.
+  @Test
+  public void uiThreadWorkFitsInFrameBudget() {
+    Hud hud = new Hud();
+    TextViews views = new TextViews();
+    final int updates = 1000;
+    long formatNs = 0;
+    long applyNs = 0;
+    for (int tick = 0; tick < updates; tick++) {
+      StatsReport[] reports = snapshot(tick);
+      long startNs = System.nanoTime();
+      HudModel.Update update = hud.update(reports, "CPU%: 10/10. Freq: 1.0");
+      long formattedNs = System.nanoTime();
+      update.applyTo(views);
+      applyNs += System.nanoTime() - formattedNs;
+      formatNs += formattedNs - startNs;
+    }
+    assertTrue("Apply " + applyNs / updates + " ns", applyNs / updates < FRAME_BUDGET_NS / 10);
+    assertTrue("Format " + formatNs / updates + " ns", formatNs / updates < FRAME_BUDGET_NS);
+  }
+
+  // Checks that |views| show what a new model shows for |reports|.
+  private static void assertMatchesFullFormatting(
+      StatsReport[] reports, String cpuStat, TextViews views) {
+    TextViews expected = new TextViews();
+    new Hud().update(reports, cpuStat).applyTo(expected);
+    for (int section = 0; section < HudModel.SECTION_COUNT; section++) {
+      assertEquals(expected.texts[section], views.texts[section]);
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class LatencyProbeTest {
+  private static byte[] grayNv21(int width, int height) {
+    byte[] frame = new byte[width * height * 3 / 2];
+    Arrays.fill(frame, (byte) 128);
+    return frame;
+  }
+
+  // Halves the luma plane of |frame| with a box filter and adds noise, like a
+  // lossy encoder that scaled the resolution down.
+  private static ByteBuffer scaleAndDistort(byte[] frame, int width, int height, Random random) {
+    int scaledWidth = width / 2;
+    int scaledHeight = height / 2;
+    ByteBuffer scaled = ByteBuffer.allocateDirect(scaledWidth * scaledHeight);
+    for (int y = 0; y < scaledHeight; y++) {
+      for (int x = 0; x < scaledWidth; x++) {
+        int sum = (frame[2 * y * width + 2 * x] & 0xFF) + (frame[2 * y * width + 2 * x + 1] & 0xFF)
+            + (frame[(2 * y + 1) * width + 2 * x] & 0xFF)
+            + (frame[(2 * y + 1) * width + 2 * x + 1] & 0xFF);
+        int value = sum / 4 + random.nextInt(41) - 20;
+        scaled.put(y * scaledWidth + x, (byte) Math.max(0, Math.min(255, value)));
+      }
+    }
+    return scaled;
+  }
+
+  @Test
+  public void readsStampedTimecode() {
+    byte[] frame = grayNv21(640, 480);
+    assertTrue(LatencyProbe.stampNv21(frame, 640, 480, 0xABCDEF));
+    assertEquals(0xABCDEF, LatencyProbe.readTimecode(ByteBuffer.wrap(frame), 640, 640, 480));
+  }
+
+  @Test
+  public void readsTimecodeAfterScalingAndNoise() {
+    Random random = new Random(42);
+    for (int timecode = 0; timecode < (1 << 24); timecode += 99991) {
+      byte[] frame = grayNv21(640, 480);
+      LatencyProbe.stampNv21(frame, 640, 480, timecode);
+      ByteBuffer scaled = scaleAndDistort(frame, 640, 480, random);
+      assertEquals(timecode, LatencyProbe.readTimecode(scaled, 320, 320, 240));
+    }
+  }
+
+  @Test
+  public void rejectsFramesWithoutTimecode() {
+    byte[] frame = grayNv21(640, 480);
+    assertEquals(-1, LatencyProbe.readTimecode(ByteBuffer.wrap(frame), 640, 640, 480));
+    // A flipped bit fails the check.
+    LatencyProbe.stampNv21(frame, 640, 480, 12345);
+    int blockWidth = 640 / LatencyProbe.BLOCK_COUNT;
+    for (int y = 0; y < blockWidth; y++) {
+      for (int x = 5 * blockWidth; x < 6 * blockWidth; x++) {
+        frame[y * 640 + x] = (byte) (255 - (frame[y * 640 + x] & 0xFF));
+      }
+    }
+    assertEquals(-1, LatencyProbe.readTimecode(ByteBuffer.wrap(frame), 640, 640, 480));
+    assertFalse(LatencyProbe.stampNv21(grayNv21(32, 32), 32, 32, 1));
+  }
+}
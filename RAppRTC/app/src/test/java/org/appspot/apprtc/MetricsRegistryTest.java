@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class MetricsRegistryTest {
+  @Test
+  public void countsFromManyThreads() throws InterruptedException {
+    final MetricsRegistry registry = new MetricsRegistry();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            registry.getCounter("events").increment();
+            registry.getHistogram("latency", 1000).record(j % 100);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    MetricsRegistry.Snapshot snapshot = registry.snapshot();
+    assertEquals(40000L, (long) snapshot.counters.get("events"));
+    MetricsRegistry.HistogramSnapshot latency = snapshot.histograms.get("latency");
+    assertEquals(40000, latency.count);
+    assertEquals(0, latency.min);
+    assertEquals(99, latency.max);
+    assertEquals(49.5, latency.getMean(), 1e-9);
+  }
+
+  @Test
+  public void bucketsKeepRelativeError() {
+    assertEquals(31, MetricsRegistry.Histogram.getBucketIndex(31));
+    for (long value = 0; value < 1 << 20; value += 7) {
+      int index = MetricsRegistry.Histogram.getBucketIndex(value);
+      long lowest = MetricsRegistry.Histogram.getBucketLowestValue(index);
+      long highest = MetricsRegistry.Histogram.getBucketHighestValue(index);
+      assertTrue(value + " in [" + lowest + ", " + highest + "]",
+          lowest <= value && value <= highest);
+      assertTrue(highest - lowest <= Math.max(0, lowest / 16));
+    }
+  }
+
+  @Test
+  public void computesPercentiles() {
+    MetricsRegistry.Histogram histogram = new MetricsRegistry.Histogram(60000);
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    histogram.record(100000);
+    MetricsRegistry.HistogramSnapshot snapshot = histogram.snapshot();
+    assertEquals(1001, snapshot.count);
+    assertEquals(100000, snapshot.max);
+    assertEquals(500, snapshot.getValueAtPercentile(50), 500 / 16);
+    assertEquals(990, snapshot.getValueAtPercentile(99), 990 / 16);
+    // Values above the highest trackable value only count in the top bucket.
+    assertEquals(100000, snapshot.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void exportsSnapshot() {
+    MetricsRegistry registry = new MetricsRegistry();
+    assertSame(registry.getGauge("cpu"), registry.getGauge("cpu"));
+    registry.getGauge("cpu").set(42);
+    registry.getCounter("sent").add(3);
+    registry.getHistogram("rtt", 1000).record(20);
+    assertEquals("counter sent 3\ngauge cpu 42.0\n"
+            + "histogram rtt count=1 min=20 mean=20 p50=20 p90=20 p99=20 max=20\n",
+        registry.snapshot().export());
+    registry.getCounter("sent").increment();
+    assertEquals(4L, (long) registry.snapshot().counters.get("sent"));
+    assertTrue(Double.isNaN(registry.getGauge("unset").get()));
+  }
+
+  @Test
+  public void importsNativeHistograms() {
+    MetricsRegistry registry = new MetricsRegistry();
+    WebRtcMetricsImporter importer = new WebRtcMetricsImporter(registry);
+    // org.webrtc.Metrics is not in the bundled library.
+    assertFalse(importer.enable());
+    assertEquals(0, importer.importMetrics());
+
+    Map<Integer, Integer> samples = new HashMap<Integer, Integer>();
+    samples.put(10, 3);
+    samples.put(200, 1);
+    importer.importHistogram("WebRTC.Video.EncodeTimeInMs", 1000, samples);
+    importer.importHistogram("WebRTC.Video.EncodeTimeInMs", 1000, samples);
+    MetricsRegistry.HistogramSnapshot snapshot =
+        registry.snapshot().histograms.get("WebRTC.Video.EncodeTimeInMs");
+    assertEquals(8, snapshot.count);
+    assertEquals(10, snapshot.getValueAtPercentile(75));
+    assertEquals(200, snapshot.max);
+  }
+}
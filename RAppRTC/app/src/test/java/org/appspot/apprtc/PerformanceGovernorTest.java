@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class PerformanceGovernorTest {
+  private static final long POLL_MS = 2000;
+
+  private final MetricsRegistry metrics = new MetricsRegistry();
+  private final List<PerformanceGovernor.Budget> budgets =
+      new ArrayList<PerformanceGovernor.Budget>();
+  private final PerformanceGovernor governor =
+      new PerformanceGovernor(metrics, new PerformanceGovernor.Listener() {
+        @Override
+        public void onBudgetChanged(PerformanceGovernor.Budget budget) {
+          budgets.add(budget);
+        }
+      });
+  private long timeMs;
+
+  private static PerformanceGovernor.DeviceState soc(double temperatureC) {
+    return new PerformanceGovernor.DeviceState(temperatureC, Double.NaN, -1, false, 0, 0);
+  }
+
+  private static PerformanceGovernor.DeviceState battery(int percent, boolean charging) {
+    return new PerformanceGovernor.DeviceState(Double.NaN, 30, percent, charging, 0, 0);
+  }
+
+  private static PerformanceGovernor.DeviceState load(int cpuPercent, int frequencyScalePercent) {
+    return new PerformanceGovernor.DeviceState(
+        Double.NaN, Double.NaN, -1, false, cpuPercent, frequencyScalePercent);
+  }
+
+  // Updates with |state| every POLL_MS for |durationMs|. Returns the last
+  // budget.
+  private PerformanceGovernor.Budget run(long durationMs, PerformanceGovernor.DeviceState state) {
+    PerformanceGovernor.Budget budget = governor.getBudget();
+    long endMs = timeMs + durationMs;
+    for (; timeMs < endMs; timeMs += POLL_MS) {
+      budget = governor.update(timeMs, state);
+    }
+    return budget;
+  }
+
+  @Test
+  public void unknownStateHasNoCaps() {
+    PerformanceGovernor.Budget budget = run(60000,
+        new PerformanceGovernor.DeviceState(Double.NaN, Double.NaN, -1, false, 100, 0));
+    assertEquals(PerformanceGovernor.LEVEL_NONE, budget.level);
+    assertEquals(0, budget.maxRenderFps, 0);
+    assertEquals(0, budget.maxVideoBitrateKbps);
+    assertEquals(0, budget.statsMinPeriodMs);
+    assertTrue(budgets.isEmpty());
+  }
+
+  @Test
+  public void capsTightenWithTemperature() {
+    assertEquals(PerformanceGovernor.LEVEL_LIGHT, run(10000, soc(80)).level);
+    assertEquals(PerformanceGovernor.LEVEL_SERIOUS, run(10000, soc(90)).level);
+    PerformanceGovernor.Budget critical = run(10000, soc(100));
+    assertEquals(PerformanceGovernor.LEVEL_CRITICAL, critical.level);
+    assertEquals(3, budgets.size());
+    for (int i = 1; i < budgets.size(); i++) {
+      assertTrue(budgets.get(i).maxRenderFps < budgets.get(i - 1).maxRenderFps);
+      assertTrue(budgets.get(i).maxVideoBitrateKbps < budgets.get(i - 1).maxVideoBitrateKbps);
+      assertTrue(budgets.get(i).statsMinPeriodMs > budgets.get(i - 1).statsMinPeriodMs);
+    }
+    assertEquals("SoC 100 C", critical.reason);
+    assertEquals(PerformanceGovernor.LEVEL_CRITICAL,
+        metrics.getGauge("PerformanceGovernor.Level").get(), 0);
+  }
+
+  @Test
+  public void ignoresSingleHotSample() {
+    governor.update(0, soc(100));
+    run(60000, soc(50));
+    assertTrue(budgets.isEmpty());
+  }
+
+  @Test
+  public void relaxesOneLevelPerPeriod() {
+    run(10000, soc(100));
+    long coolMs = timeMs;
+    run(4 * PerformanceGovernor.RELAX_MS, soc(50));
+    assertEquals(4, budgets.size());
+    assertEquals(PerformanceGovernor.LEVEL_SERIOUS, budgets.get(1).level);
+    assertEquals(PerformanceGovernor.LEVEL_LIGHT, budgets.get(2).level);
+    assertEquals(PerformanceGovernor.LEVEL_NONE, budgets.get(3).level);
+    // Each level holds for a full RELAX_MS after the device cools down.
+    assertTrue(timeMs - coolMs >= 3 * PerformanceGovernor.RELAX_MS);
+  }
+
+  @Test
+  public void heatingUpAgainRestartsRelaxation() {
+    run(10000, soc(90));
+    run(PerformanceGovernor.RELAX_MS / 2, soc(50));
+    governor.update(timeMs, soc(90));
+    timeMs += POLL_MS;
+    run(PerformanceGovernor.RELAX_MS * 3 / 4, soc(50));
+    assertEquals(1, budgets.size());
+  }
+
+  @Test
+  public void lowBatteryCountsOnlyWhileNotCharging() {
+    assertEquals(PerformanceGovernor.LEVEL_NONE, run(10000, battery(50, false)).level);
+    assertEquals(PerformanceGovernor.LEVEL_NONE, run(10000, battery(8, true)).level);
+    PerformanceGovernor.Budget budget = run(10000, battery(8, false));
+    assertEquals(PerformanceGovernor.LEVEL_SERIOUS, budget.level);
+    assertEquals("battery 8%", budget.reason);
+  }
+
+  @Test
+  public void frequencyDropUnderLoadCountsAsThrottling() {
+    // A low frequency scale at low load is the governor saving power.
+    assertEquals(PerformanceGovernor.LEVEL_NONE, run(10000, load(20, 30)).level);
+    assertEquals(PerformanceGovernor.LEVEL_NONE, run(10000, load(90, 100)).level);
+    assertEquals(PerformanceGovernor.LEVEL_NONE, run(10000, load(90, 85)).level);
+    assertEquals(PerformanceGovernor.LEVEL_LIGHT, run(10000, load(90, 70)).level);
+    PerformanceGovernor.Budget budget = run(10000, load(90, 50));
+    assertEquals(PerformanceGovernor.LEVEL_SERIOUS, budget.level);
+    assertEquals("CPU throttled to 50%", budget.reason);
+    assertEquals(0.5, metrics.getGauge("PerformanceGovernor.ThrottleRatio").get(), 1e-9);
+  }
+}
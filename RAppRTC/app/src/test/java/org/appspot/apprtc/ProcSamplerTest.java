@@ -0,0 +1,234 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+public class ProcSamplerTest {
+  private static final int WARM_UP_SAMPLES = 20000;
+  private static final int ALLOCATION_ROUNDS = 3;
+  private static final int SAMPLES = 5000;
+  private static final int BENCHMARK_SAMPLES = 100000;
+
+  private static File writeFile(String contents) throws IOException {
+    File file = File.createTempFile("proc", ".txt");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents.getBytes("US-ASCII"));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  @Test
+  public void parsesCpuLines() throws IOException {
+    File stat = writeFile("cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0\n"
+        + "cpu0 1 2 3 4 5 6 7 8 9 10\n"
+        + "intr 161356 0 0\n");
+    ProcSampler sampler = new ProcSampler();
+    ProcSampler.KernelFile file = sampler.open(stat.getPath());
+    assertTrue(sampler.read(file));
+    assertTrue(sampler.startsWith("cpu "));
+    long[] times = new long[ProcSampler.CPU_TIME_FIELDS];
+    assertEquals(ProcSampler.CPU_TIME_FIELDS, sampler.nextLongs(times, "cpu".length()));
+    assertEquals(5093818, times[ProcSampler.USER]);
+    assertEquals(165934119, times[ProcSampler.IDLE]);
+    assertEquals(272086, times[ProcSampler.SOFTIRQ]);
+
+    assertTrue(sampler.nextLine());
+    assertTrue(sampler.startsWith("cpu0"));
+    sampler.skip("cpu".length());
+    assertEquals(0, sampler.nextLongInLine());
+    assertEquals(1, sampler.nextLongInLine());
+    assertTrue(sampler.nextLine());
+    assertFalse(sampler.startsWith("cpu"));
+    assertFalse(sampler.nextLine());
+    file.close();
+  }
+
+  @Test
+  public void fillsMissingFieldsWithZero() throws IOException {
+    File stat = writeFile("cpu  1 2 3 4\n");
+    ProcSampler sampler = new ProcSampler();
+    ProcSampler.KernelFile file = sampler.open(stat.getPath());
+    assertTrue(sampler.read(file));
+    long[] times = {9, 9, 9, 9, 9, 9, 9};
+    assertEquals(4, sampler.nextLongs(times, "cpu".length()));
+    assertEquals(4, times[ProcSampler.IDLE]);
+    assertEquals(0, times[ProcSampler.IOWAIT]);
+    file.close();
+  }
+
+  @Test
+  public void readsCoreLines() throws IOException {
+    // Core 1 is offline.
+    File stat = writeFile("cpu  30 0 10 60 0 0 0 0 0 0\n"
+        + "cpu0 20 0 5 25 0 0 0 0 0 0\n"
+        + "cpu2 10 0 5 35 0 0 0 0 0 0\n"
+        + "intr 161356 0 0\n");
+    ProcSampler sampler = new ProcSampler(stat.getPath());
+    long[] times = new long[ProcSampler.CPU_TIME_FIELDS];
+    long[][] coreTimes = new long[3][ProcSampler.CPU_TIME_FIELDS];
+    coreTimes[1][ProcSampler.IDLE] = 99;
+    assertEquals(ProcSampler.CPU_TIME_FIELDS, sampler.readCpuTimes(times, coreTimes));
+    assertEquals(60, times[ProcSampler.IDLE]);
+    assertEquals(20, coreTimes[0][ProcSampler.USER]);
+    assertEquals(25, coreTimes[0][ProcSampler.IDLE]);
+    assertEquals(0, coreTimes[1][ProcSampler.IDLE]);
+    assertEquals(5, coreTimes[2][ProcSampler.SYSTEM]);
+    sampler.close();
+  }
+
+  @Test
+  public void readsTaskStat() throws IOException {
+    File stat = writeFile("1234 (Egl (Renderer)) S 1200 1200 0 0 -1 1077936192 25 0 0 0 1508 242"
+        + " 0 0 20 0 12 0 3567 0\n");
+    ProcSampler sampler = new ProcSampler();
+    ProcSampler.KernelFile file = sampler.open(stat.getPath());
+    long[] times = new long[2];
+    assertTrue(sampler.readTaskTimes(file, times));
+    assertEquals(1508, times[0]);
+    assertEquals(242, times[1]);
+    String name = sampler.getTaskName(null);
+    assertEquals("Egl (Renderer)", name);
+    assertTrue(sampler.readTaskTimes(file, times));
+    assertTrue(name == sampler.getTaskName(name));
+    assertEquals(name, sampler.getTaskName("EglRenderer"));
+    file.close();
+  }
+
+  @Test
+  public void rereadsOpenFiles() throws IOException {
+    File value = writeFile("1500000\n");
+    ProcSampler sampler = new ProcSampler();
+    ProcSampler.KernelFile file = sampler.open(value.getPath());
+    assertEquals(1500000, sampler.readLong(file));
+    FileOutputStream out = new FileOutputStream(value);
+    out.write("300000\n".getBytes("US-ASCII"));
+    out.close();
+    assertEquals(300000, sampler.readLong(file));
+    file.close();
+  }
+
+  @Test
+  public void retriesMissingFilesPeriodically() throws IOException {
+    File value = new File(writeFile("").getPath() + ".missing");
+    ProcSampler sampler = new ProcSampler();
+    ProcSampler.KernelFile file = sampler.open(value.getPath());
+    assertEquals(0, sampler.readLong(file));
+    FileOutputStream out = new FileOutputStream(value);
+    out.write("42\n".getBytes("US-ASCII"));
+    out.close();
+    value.deleteOnExit();
+    for (int i = 0; i < ProcSampler.REOPEN_PERIOD; i++) {
+      assertEquals(0, sampler.readLong(file));
+    }
+    assertEquals(42, sampler.readLong(file));
+    file.close();
+  }
+
+  @Test
+  public void countsCpus() throws IOException {
+    ProcSampler sampler = new ProcSampler();
+    assertEquals(8, sampler.readCpuCount(writeFile("0-7\n").getPath()));
+    assertEquals(1, sampler.readCpuCount(writeFile("0\n").getPath()));
+    assertEquals(8, sampler.readCpuCount(writeFile("0-3,6-7\n").getPath()));
+    assertEquals(0, sampler.readCpuCount("/nonexistent/present"));
+  }
+
+  @Test
+  public void readsProcStat() {
+    if (!new File(ProcSampler.PROC_STAT).canRead()) {
+      return;
+    }
+    ProcSampler sampler = new ProcSampler();
+    long[] first = new long[ProcSampler.CPU_TIME_FIELDS];
+    long[] second = new long[ProcSampler.CPU_TIME_FIELDS];
+    assertTrue(sampler.readCpuTimes(first) > ProcSampler.IDLE);
+    assertTrue(sampler.readCpuTimes(second) > ProcSampler.IDLE);
+    for (int i = 0; i < first.length; i++) {
+      assertTrue(second[i] >= first[i]);
+    }
+    sampler.close();
+  }
+
+  // Samples /proc/stat like CpuMonitor. The busy time never goes back, and
+  // reading it does not allocate per sample.
+  @Test
+  public void samplesProcStatWithoutAllocating() {
+    if (!new File(ProcSampler.PROC_STAT).canRead()) {
+      return;
+    }
+    final ProcSampler sampler = new ProcSampler();
+    final long[] times = new long[ProcSampler.CPU_TIME_FIELDS];
+    final long[] previousTimes = new long[ProcSampler.CPU_TIME_FIELDS];
+    for (int i = 0; i < WARM_UP_SAMPLES; i++) {
+      sampler.readCpuTimes(times);
+    }
+    long leastAllocated = AllocationCounter.leastAllocated(ALLOCATION_ROUNDS, new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < SAMPLES; i++) {
+          System.arraycopy(times, 0, previousTimes, 0, times.length);
+          assertTrue(sampler.readCpuTimes(times) > ProcSampler.IDLE);
+          // Only iowait may decrease, so it is left out.
+          for (int field = ProcSampler.USER; field <= ProcSampler.SYSTEM; field++) {
+            assertTrue(times[field] >= previousTimes[field]);
+          }
+        }
+      }
+    });
+    sampler.close();
+
+    // An allocation per sample takes at least an object header. Fewer bytes
+    // leave room for the measurement itself.
+    assertTrue("Allocated " + leastAllocated, leastAllocated < SAMPLES * 8L);
+  }
+
+  // Samples /proc/stat like CpuMonitor and reports samples per second and
+  // bytes allocated per sample.
+  @Test
+  public void benchmarkProcStat() {
+    Benchmarks.assumeEnabled();
+    if (!new File(ProcSampler.PROC_STAT).canRead()) {
+      return;
+    }
+    ProcSampler sampler = new ProcSampler();
+    long[] times = new long[ProcSampler.CPU_TIME_FIELDS];
+    for (int i = 0; i < WARM_UP_SAMPLES; i++) {
+      sampler.readCpuTimes(times);
+    }
+    long allocatedBefore = AllocationCounter.getAllocatedBytes();
+    long startNs = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_SAMPLES; i++) {
+      sampler.readCpuTimes(times);
+    }
+    long elapsedNs = System.nanoTime() - startNs;
+    long allocatedAfter = AllocationCounter.getAllocatedBytes();
+    sampler.close();
+
+    Benchmarks.report("ProcSampler /proc/stat",
+        String.format("%.0f samples/s", BENCHMARK_SAMPLES * 1e9 / elapsedNs));
+    if (allocatedBefore >= 0) {
+      Benchmarks.report("ProcSampler /proc/stat", String.format("%.3f bytes/sample",
+          (double) (allocatedAfter - allocatedBefore) / BENCHMARK_SAMPLES));
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class RawVideoReaderTest {
+  private static void write(File file, byte[] bytes) throws IOException {
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  // Writes a raw video of |bytes| with |sidecar| as its sidecar file.
+  private static File writeVideo(String sidecar, byte[] bytes) throws IOException {
+    File file = File.createTempFile("video", ".yuv");
+    write(file, bytes);
+    write(new File(file.getPath() + RawVideoReader.SIDECAR_SUFFIX), sidecar.getBytes("UTF-8"));
+    return file;
+  }
+
+  // Returns |frames| 4x2 NV12 frames whose samples are the frame index,
+  // except V, which is 100 more.
+  private static byte[] nv12Frames(int frames) {
+    byte[] bytes = new byte[12 * frames];
+    for (int i = 0; i < bytes.length; i++) {
+      int offset = i % 12;
+      bytes[i] = (byte) ((i / 12) + ((offset >= 8 && offset % 2 == 1) ? 100 : 0));
+    }
+    return bytes;
+  }
+
+  @Test
+  public void readsNV12Frames() throws IOException {
+    File file = writeVideo("width=4\nheight=2\nformat=nv12\nframerate=25\n", nv12Frames(3));
+    RawVideoReader reader = new RawVideoReader(file.getPath());
+    assertEquals(3, reader.getFrameCount());
+    assertEquals(FramePacer.getFrameIntervalNs(25, 1), reader.getFrameIntervalNs());
+    for (int i = 0; i < 3; i++) {
+      VideoReader.Frame frame = reader.getNextFrame();
+      assertEquals(ByteBuffer.wrap(new byte[] {(byte) i, (byte) i, (byte) i, (byte) i, (byte) i,
+                       (byte) i, (byte) i, (byte) i, (byte) i, (byte) i, (byte) (100 + i),
+                       (byte) (100 + i)}),
+          frame.getData());
+      frame.release();
+    }
+    reader.close();
+  }
+
+  @Test
+  public void mapsI420FramesInWindowsAndIgnoresTruncatedFrames() throws IOException {
+    byte[] bytes = new byte[12 * 5 + 7];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i / 12);
+    }
+    File file = writeVideo("width=4\nheight=2\n", bytes);
+    RawVideoReader reader = new RawVideoReader(file.getPath(), 2 * 12);
+    assertEquals(5, reader.getFrameCount());
+    assertEquals(0, reader.getFrameIntervalNs());
+    for (int i = 0; i < 5; i++) {
+      VideoReader.Frame frame = reader.getFrame(i);
+      ByteBuffer data = frame.getData();
+      assertEquals(12, data.remaining());
+      assertEquals(i, data.get(data.position()));
+      assertEquals(i, data.get(data.limit() - 1));
+      frame.release();
+    }
+    reader.close();
+  }
+
+  @Test
+  public void rejectsInvalidSidecars() throws IOException {
+    String[] sidecars = {"width=4\n", "width=4\nheight=2\nformat=rgb\n",
+        "width=3\nheight=2\n", "width=4\nheight=2\nframerate=-1\n"};
+    for (String sidecar : sidecars) {
+      try {
+        new RawVideoReader(writeVideo(sidecar, nv12Frames(1)).getPath());
+        fail(sidecar);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+    File file = File.createTempFile("video", ".yuv");
+    write(file, nv12Frames(1));
+    try {
+      new RawVideoReader(file.getPath());
+      fail();
+    } catch (IOException e) {
+      // Expected without a sidecar.
+    }
+  }
+}
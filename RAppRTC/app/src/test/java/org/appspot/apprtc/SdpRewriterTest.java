@@ -0,0 +1,307 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class SdpRewriterTest {
+  private static final String AUDIO_SECTION = "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 0 8\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=rtcp:9 IN IP4 0.0.0.0\r\n"
+      + "a=mid:audio\r\n"
+      + "a=rtpmap:111 opus/48000/2\r\n"
+      + "a=rtcp-fb:111 transport-cc\r\n"
+      + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+      + "a=rtpmap:103 ISAC/16000\r\n"
+      + "a=rtpmap:104 ISAC/32000\r\n"
+      + "a=rtpmap:9 G722/8000\r\n"
+      + "a=rtpmap:0 PCMU/8000\r\n"
+      + "a=rtpmap:8 PCMA/8000\r\n";
+  private static final String VIDEO_SECTION = "m=video 9 UDP/TLS/RTP/SAVPF 100 101 107 116\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=rtcp:9 IN IP4 0.0.0.0\r\n"
+      + "a=mid:video\r\n"
+      + "a=rtpmap:100 VP8/90000\r\n"
+      + "a=rtcp-fb:100 nack\r\n"
+      + "a=rtcp-fb:100 nack pli\r\n"
+      + "a=rtpmap:101 VP9/90000\r\n"
+      + "a=rtcp-fb:101 nack\r\n"
+      + "a=rtpmap:107 H264/90000\r\n"
+      + "a=fmtp:107 profile-level-id=42e01f;packetization-mode=1\r\n"
+      + "a=rtpmap:116 red/90000\r\n";
+  private static final String SESSION = "v=0\r\n"
+      + "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+      + "s=-\r\n"
+      + "t=0 0\r\n"
+      + "a=group:BUNDLE audio video\r\n";
+  private static final String SDP = SESSION + AUDIO_SECTION + VIDEO_SECTION;
+
+  private static final String OPUS_BITRATE = "maxaveragebitrate";
+
+  @Test
+  public void preferVideoCodecMovesPayloadTypeToFront() {
+    String result = new SdpRewriter().preferCodec("H264", false).rewrite(SDP);
+    assertEquals(SDP.replace("SAVPF 100 101 107 116", "SAVPF 107 100 101 116"), result);
+  }
+
+  @Test
+  public void preferAudioCodecUsesFirstRtpMap() {
+    String result = new SdpRewriter().preferCodec("ISAC", true).rewrite(SDP);
+    assertEquals(SDP.replace("SAVPF 111 103 104", "SAVPF 103 111 104"), result);
+  }
+
+  @Test
+  public void fmtpParameterIsAppendedToExistingLine() {
+    String result = new SdpRewriter().setFmtpParameter("opus", OPUS_BITRATE, 32000).rewrite(SDP);
+    assertEquals(SDP.replace("useinbandfec=1\r\n", "useinbandfec=1; maxaveragebitrate=32000\r\n"),
+        result);
+  }
+
+  @Test
+  public void fmtpLineIsInsertedAfterRtpMap() {
+    String result = new SdpRewriter().setFmtpParameter("VP8", "x-google-start-bitrate", 1000)
+        .rewrite(SDP);
+    assertEquals(SDP.replace("a=rtpmap:100 VP8/90000\r\n",
+                     "a=rtpmap:100 VP8/90000\r\na=fmtp:100 x-google-start-bitrate=1000\r\n"),
+        result);
+  }
+
+  @Test
+  public void missingCodecLeavesDescriptionUnchanged() {
+    SdpRewriter rewriter = new SdpRewriter();
+    rewriter.preferCodec("H265", false).setFmtpParameter("H265", OPUS_BITRATE, 1);
+    assertSame(SDP, rewriter.rewrite(SDP));
+  }
+
+  @Test
+  public void matchesSequentialStringRewritesForSingleSections() {
+    String[] descriptions = {SDP, buildLargeSdp(1), SESSION + VIDEO_SECTION};
+    SdpRewriter rewriter = new SdpRewriter();
+    rewriter.preferCodec("ISAC", true)
+        .preferCodec("VP9", false)
+        .preferCodec("H264", false)
+        .setFmtpParameter("opus", OPUS_BITRATE, 32000)
+        .setFmtpParameter("VP8", OPUS_BITRATE, 1000);
+    for (String description : descriptions) {
+      String expected = legacyPreferCodec(description, "ISAC", true);
+      expected = legacyPreferCodec(expected, "VP9", false);
+      expected = legacyPreferCodec(expected, "H264", false);
+      expected = legacySetFmtpParameter(expected, "opus", OPUS_BITRATE, 32000);
+      expected = legacySetFmtpParameter(expected, "VP8", OPUS_BITRATE, 1000);
+      // Rewriting twice also checks that reused sections are not modified.
+      assertEquals(expected, rewriter.rewrite(description));
+      assertEquals(expected, rewriter.rewrite(description));
+    }
+  }
+
+  @Test
+  public void everyMediaSectionIsRewritten() {
+    String sdp = buildLargeSdp(3);
+    String result = new SdpRewriter()
+                        .preferCodec("H264", false)
+                        .setFmtpParameter("opus", OPUS_BITRATE, 32000)
+                        .rewrite(sdp);
+    String expected =
+        sdp.replace("SAVPF 100 101 107 116", "SAVPF 107 100 101 116")
+            .replace("useinbandfec=1\r\n", "useinbandfec=1; maxaveragebitrate=32000\r\n");
+    assertEquals(expected, result);
+  }
+
+  @Test
+  public void fmtpParameterIsUpdatedInPlace() {
+    SdpRewriter rewriter = new SdpRewriter();
+    rewriter.setFmtpParameter("opus", "minptime", 20)
+        .setFmtpParameter("VP8", OPUS_BITRATE, 1000)
+        .setFmtpParameter("VP8", OPUS_BITRATE, 2000);
+    String expected = SDP.replace("minptime=10", "minptime=20")
+                          .replace("a=rtpmap:100 VP8/90000\r\n",
+                              "a=rtpmap:100 VP8/90000\r\na=fmtp:100 maxaveragebitrate=2000\r\n");
+    assertEquals(expected, rewriter.rewrite(SDP));
+  }
+
+  // A rewriter reuses the index of the previous description; rewriting a
+  // large description alternately with a renegotiation that changes one
+  // section must give the same result as a fresh rewriter.
+  @Test
+  public void largeDescriptionRenegotiationMatchesFirstOffer() {
+    String sdp = buildLargeSdp(32);
+    String renegotiatedSdp = sdp.replace("a=mid:video31", "a=mid:video32");
+    String expected = createRewriter().rewrite(sdp);
+    String expectedRenegotiated = createRewriter().rewrite(renegotiatedSdp);
+    // Every section is rewritten, not only the first of each media type.
+    assertEquals(32, countOccurrences(expected, "m=audio 9 UDP/TLS/RTP/SAVPF 103 111 104"));
+    assertEquals(32, countOccurrences(expected, "maxaveragebitrate=32000"));
+    SdpRewriter rewriter = createRewriter();
+    for (int i = 0; i < 4; i++) {
+      assertEquals(expected, rewriter.rewrite(sdp));
+      assertEquals(expectedRenegotiated, rewriter.rewrite(renegotiatedSdp));
+    }
+  }
+
+  // Compares rewriting with splitting and regex matching on every call with
+  // the SdpSession based rewriter, for a first offer and for a renegotiation
+  // that only changes one section, on descriptions with 8 to 64 sections.
+  @Test
+  public void benchmarkLargeDescriptions() {
+    Benchmarks.assumeEnabled();
+    final int iterations = 1000;
+    for (int sections : new int[] {4, 16, 32}) {
+      String sdp = buildLargeSdp(sections);
+      String renegotiatedSdp =
+          sdp.replace("a=mid:video" + (sections - 1), "a=mid:video" + sections);
+      int checksum = 0;
+      long legacyNs = 0;
+      long firstOfferNs = 0;
+      long renegotiationNs = 0;
+      // The first round warms up the JIT.
+      for (int round = 0; round < 2; round++) {
+        long startNs = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+          String result = legacyPreferCodec(sdp, "ISAC", true);
+          result = legacyPreferCodec(result, "H264", false);
+          checksum += legacySetFmtpParameter(result, "opus", OPUS_BITRATE, 32000).length();
+        }
+        legacyNs = System.nanoTime() - startNs;
+        startNs = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+          checksum += createRewriter().rewrite(sdp).length();
+        }
+        firstOfferNs = System.nanoTime() - startNs;
+        SdpRewriter rewriter = createRewriter();
+        rewriter.rewrite(sdp);
+        startNs = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+          checksum += rewriter.rewrite((i & 1) == 0 ? renegotiatedSdp : sdp).length();
+        }
+        renegotiationNs = System.nanoTime() - startNs;
+      }
+      assertTrue(checksum > 0);
+      Benchmarks.report("SdpRewriter " + 2 * sections + " sections",
+          sdp.length() + " chars. Split and regex (first sections only): "
+              + legacyNs / iterations / 1000 + " us. All sections: "
+              + firstOfferNs / iterations / 1000 + " us, renegotiation: "
+              + renegotiationNs / iterations / 1000 + " us.");
+    }
+  }
+
+  private static int countOccurrences(String string, String substring) {
+    int count = 0;
+    for (int i = string.indexOf(substring); i >= 0; i = string.indexOf(substring, i + 1)) {
+      count++;
+    }
+    return count;
+  }
+
+  private static SdpRewriter createRewriter() {
+    return new SdpRewriter().preferCodec("ISAC", true).preferCodec("H264", false).setFmtpParameter(
+        "opus", OPUS_BITRATE, 32000);
+  }
+
+  // Session with |sections| audio and video sections each, like a
+  // description carrying many tracks.
+  private static String buildLargeSdp(int sections) {
+    StringBuilder builder = new StringBuilder(SESSION);
+    for (int i = 0; i < sections; i++) {
+      builder.append(AUDIO_SECTION.replace("a=mid:audio", "a=mid:audio" + i));
+    }
+    for (int i = 0; i < sections; i++) {
+      builder.append(VIDEO_SECTION.replace("a=mid:video", "a=mid:video" + i));
+    }
+    return builder.toString();
+  }
+
+  // The string based rewrites PeerConnectionClient used before SdpRewriter,
+  // which only edit the first matching section.
+  private static String legacySetFmtpParameter(
+      String sdpDescription, String codec, String parameterName, int parameterValue) {
+    String[] lines = sdpDescription.split("\r\n");
+    int rtpmapLineIndex = -1;
+    boolean sdpFormatUpdated = false;
+    String codecRtpMap = null;
+    Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
+    for (int i = 0; i < lines.length; i++) {
+      Matcher codecMatcher = codecPattern.matcher(lines[i]);
+      if (codecMatcher.matches()) {
+        codecRtpMap = codecMatcher.group(1);
+        rtpmapLineIndex = i;
+        break;
+      }
+    }
+    if (codecRtpMap == null) {
+      return sdpDescription;
+    }
+    codecPattern = Pattern.compile("^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$");
+    for (int i = 0; i < lines.length; i++) {
+      Matcher codecMatcher = codecPattern.matcher(lines[i]);
+      if (codecMatcher.matches()) {
+        lines[i] += "; " + parameterName + "=" + parameterValue;
+        sdpFormatUpdated = true;
+        break;
+      }
+    }
+    StringBuilder newSdpDescription = new StringBuilder();
+    for (int i = 0; i < lines.length; i++) {
+      newSdpDescription.append(lines[i]).append("\r\n");
+      if (!sdpFormatUpdated && i == rtpmapLineIndex) {
+        newSdpDescription.append("a=fmtp:" + codecRtpMap + " " + parameterName + "="
+            + parameterValue).append("\r\n");
+      }
+    }
+    return newSdpDescription.toString();
+  }
+
+  private static String legacyPreferCodec(String sdpDescription, String codec, boolean isAudio) {
+    String[] lines = sdpDescription.split("\r\n");
+    int mLineIndex = -1;
+    String codecRtpMap = null;
+    Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
+    String mediaDescription = isAudio ? "m=audio " : "m=video ";
+    for (int i = 0; (i < lines.length) && (mLineIndex == -1 || codecRtpMap == null); i++) {
+      if (lines[i].startsWith(mediaDescription)) {
+        mLineIndex = i;
+        continue;
+      }
+      Matcher codecMatcher = codecPattern.matcher(lines[i]);
+      if (codecMatcher.matches()) {
+        codecRtpMap = codecMatcher.group(1);
+      }
+    }
+    if (mLineIndex == -1 || codecRtpMap == null) {
+      return sdpDescription;
+    }
+    String[] origMLineParts = lines[mLineIndex].split(" ");
+    if (origMLineParts.length > 3) {
+      StringBuilder newMLine = new StringBuilder();
+      int origPartIndex = 0;
+      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
+      newMLine.append(codecRtpMap);
+      for (; origPartIndex < origMLineParts.length; origPartIndex++) {
+        if (!origMLineParts[origPartIndex].equals(codecRtpMap)) {
+          newMLine.append(" ").append(origMLineParts[origPartIndex]);
+        }
+      }
+      lines[mLineIndex] = newMLine.toString();
+    }
+    StringBuilder newSdpDescription = new StringBuilder();
+    for (String line : lines) {
+      newSdpDescription.append(line).append("\r\n");
+    }
+    return newSdpDescription.toString();
+  }
+}
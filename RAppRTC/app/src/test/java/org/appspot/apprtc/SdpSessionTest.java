@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class SdpSessionTest {
+  private static final String SESSION = "v=0\r\n"
+      + "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+      + "s=-\r\n"
+      + "t=0 0\r\n"
+      + "a=group:BUNDLE audio video0 video1\r\n";
+  private static final String AUDIO_SECTION = "m=audio 9 UDP/TLS/RTP/SAVPF 111 103\r\n"
+      + "a=mid:audio\r\n"
+      + "a=rtpmap:111 opus/48000/2\r\n"
+      + "a=rtcp-fb:111 transport-cc\r\n"
+      + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+      + "a=rtpmap:103 ISAC/16000\r\n";
+  private static final String VIDEO_SECTION = "m=video 9 UDP/TLS/RTP/SAVPF 100 107\r\n"
+      + "a=mid:video0\r\n"
+      + "a=rtpmap:100 VP8/90000\r\n"
+      + "a=rtcp-fb:100 nack\r\n"
+      + "a=rtcp-fb:100 nack pli\r\n"
+      + "a=rtpmap:107 H264/90000\r\n"
+      + "a=fmtp:107 profile-level-id=42e01f;packetization-mode=1\r\n";
+  private static final String DATA_SECTION = "m=application 9 DTLS/SCTP 5000\r\n"
+      + "a=mid:data\r\n"
+      + "a=sctpmap:5000 webrtc-datachannel 1024\r\n";
+  private static final String SDP = SESSION + AUDIO_SECTION + VIDEO_SECTION
+      + VIDEO_SECTION.replace("video0", "video1") + DATA_SECTION;
+
+  @Test
+  public void unmodifiedDescriptionIsReturnedAsIs() {
+    SdpSession session = SdpSession.parse(SDP);
+    assertEquals(SESSION, session.getSessionText());
+    assertEquals(4, session.getMediaSections().size());
+    // Reading the tables does not modify the description.
+    session.getMediaSections().get(1).getRtcpFeedback(100);
+    assertFalse(session.isModified());
+    assertSame(SDP, session.serialize());
+  }
+
+  @Test
+  public void sectionTablesAreIndexedByPayloadType() {
+    SdpSession session = SdpSession.parse(SDP);
+    SdpSession.MediaSection audio = session.getMediaSections("audio").get(0);
+    assertEquals("audio", audio.getMid());
+    assertEquals(Arrays.asList(111, 103), audio.getPayloadTypes());
+    assertEquals("opus/48000/2", audio.getRtpMap(111));
+    assertEquals("ISAC", audio.getCodecName(103));
+    assertEquals("minptime=10;useinbandfec=1", audio.getFmtp(111));
+    assertNull(audio.getFmtp(103));
+    assertEquals(Arrays.asList("transport-cc"), audio.getRtcpFeedback(111));
+
+    List<SdpSession.MediaSection> videos = session.getMediaSections("video");
+    assertEquals(2, videos.size());
+    assertEquals("video1", videos.get(1).getMid());
+    assertEquals(107, videos.get(1).findPayloadType("H264"));
+    assertEquals(-1, videos.get(1).findPayloadType("VP9"));
+    assertEquals(Arrays.asList("nack", "nack pli"), videos.get(1).getRtcpFeedback(100));
+    assertEquals("application", session.getMediaSections().get(3).getMediaType());
+  }
+
+  @Test
+  public void onlyModifiedSectionsAreRebuilt() {
+    SdpSession session = SdpSession.parse(SDP);
+    SdpSession.MediaSection video1 = session.getMediaSections("video").get(1);
+    assertTrue(video1.preferPayloadType(107));
+    assertTrue(video1.setFmtpParameter(100, "x-google-start-bitrate", "1000"));
+    assertTrue(video1.setFmtpParameter(107, "packetization-mode", "0"));
+    assertFalse(session.getMediaSections("video").get(0).isModified());
+    String expectedVideo1 = VIDEO_SECTION.replace("video0", "video1")
+                                .replace("SAVPF 100 107", "SAVPF 107 100")
+                                .replace("a=rtpmap:100 VP8/90000\r\n",
+                                    "a=rtpmap:100 VP8/90000\r\na=fmtp:100 "
+                                        + "x-google-start-bitrate=1000\r\n")
+                                .replace("packetization-mode=1", "packetization-mode=0");
+    assertEquals(SESSION + AUDIO_SECTION + VIDEO_SECTION + expectedVideo1 + DATA_SECTION,
+        session.serialize());
+  }
+
+  @Test
+  public void preferringFirstPayloadTypeDoesNotModify() {
+    SdpSession session = SdpSession.parse(SDP);
+    assertTrue(session.getMediaSections("audio").get(0).preferPayloadType(111));
+    assertSame(SDP, session.serialize());
+  }
+
+  @Test
+  public void renegotiationReusesUnchangedSections() {
+    SdpSession first = SdpSession.parse(SDP);
+    for (SdpSession.MediaSection section : first.getMediaSections()) {
+      section.preferPayloadType(section.getPayloadTypes().get(0));
+    }
+    first.getMediaSections("audio").get(0).preferPayloadType(103);
+    String renegotiated = SDP.replace("a=mid:video1", "a=mid:video2");
+    SdpSession second = SdpSession.parse(renegotiated, first);
+    // Edits to the previous description do not leak into reused sections.
+    assertSame(renegotiated, second.serialize());
+    assertEquals("video2", second.getMediaSections("video").get(1).getMid());
+    assertEquals(Arrays.asList(111, 103), second.getMediaSections("audio").get(0).getPayloadTypes());
+  }
+
+  @Test
+  public void descriptionWithoutTrailingSeparator() {
+    String sdp = SESSION + AUDIO_SECTION.substring(0, AUDIO_SECTION.length() - 2);
+    SdpSession session = SdpSession.parse(sdp);
+    session.getMediaSections().get(0).preferPayloadType(103);
+    assertEquals(sdp.replace("SAVPF 111 103", "SAVPF 103 111"), session.serialize());
+  }
+
+  @Test
+  public void fmtpParameterNamesMatchExactly() {
+    String sdp = SESSION + "m=video 9 UDP/TLS/RTP/SAVPF 100 200\r\n"
+        + "a=rtpmap:100 VP8/90000\r\n"
+        + "a=fmtp:100 x-google-start-bitrate-max=5;x-google-start-bitrate=1\r\n"
+        + "a=rtpmap:200 VP9/90000\r\n";
+    SdpSession.MediaSection video = SdpSession.parse(sdp).getMediaSections().get(0);
+    assertTrue(video.setFmtpParameter(100, "x-google-start-bitrate", "1000"));
+    assertEquals("x-google-start-bitrate-max=5;x-google-start-bitrate=1000", video.getFmtp(100));
+    // 200 is not an RTP payload type, so its rtpmap is not indexed.
+    assertEquals(Arrays.asList(100, 200), video.getPayloadTypes());
+    assertEquals(-1, video.findPayloadType("VP9"));
+    assertFalse(video.setFmtpParameter(200, "x-google-start-bitrate", "1000"));
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+public class StatsEngineTest {
+  private static StatsReport report(
+      String id, String type, double timestampMs, String... namesAndValues) {
+    StatsReport.Value[] values = new StatsReport.Value[namesAndValues.length / 2];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new StatsReport.Value(namesAndValues[2 * i], namesAndValues[2 * i + 1]);
+    }
+    return new StatsReport(id, type, timestampMs, values);
+  }
+
+  private static StatsReport videoRecv(double timestampMs, long bytes, long packets, long lost,
+      long frames) {
+    return report("ssrc_2_recv", "ssrc", timestampMs, "mediaType", "video", "bytesReceived",
+        Long.toString(bytes), "packetsReceived", Long.toString(packets), "packetsLost",
+        Long.toString(lost), "framesDecoded", Long.toString(frames), "googFrameWidthReceived",
+        "640", "googFrameHeightReceived", "480");
+  }
+
+  private static StatsReport audioSend(double timestampMs, long bytes, long packets, long lost) {
+    return report("ssrc_1_send", "ssrc", timestampMs, "bytesSent", Long.toString(bytes),
+        "packetsSent", Long.toString(packets), "packetsLost", Long.toString(lost), "googRtt", "42");
+  }
+
+  @Test
+  public void computesRatesBetweenPolls() {
+    StatsEngine engine = new StatsEngine();
+    StatsEngine.CallStats first = engine.update(new StatsReport[] {
+        videoRecv(1000, 0, 0, 0, 0), audioSend(1000, 0, 0, 0)});
+    assertTrue(Double.isNaN(first.getStream(true, false).bitrateKbps));
+
+    StatsEngine.CallStats second = engine.update(new StatsReport[] {
+        videoRecv(2000, 125000, 95, 5, 30), audioSend(2000, 4000, 50, 1),
+        report("bweforvideo", "VideoBwe", 2000, "googAvailableSendBandwidth", "300000"),
+        report("Conn-audio-1-0", "googCandidatePair", 2000, "googActiveConnection", "true",
+            "googRtt", "20")});
+    StatsEngine.StreamStats video = second.getStream(true, false);
+    assertEquals("ssrc_2_recv", video.id);
+    assertFalse(video.isSend);
+    assertEquals(1000, video.bitrateKbps, 1e-9);
+    assertEquals(95, video.packetsPerSecond, 1e-9);
+    assertEquals(5, video.lossPercent, 1e-9);
+    assertEquals(30, video.framesPerSecond, 1e-9);
+    assertEquals(640, video.frameWidth);
+    assertFalse(video.counterReset);
+
+    StatsEngine.StreamStats audio = second.getStream(false, true);
+    assertEquals(32, audio.bitrateKbps, 1e-9);
+    assertEquals(2, audio.lossPercent, 1e-9);
+    assertEquals(42, audio.rttMs, 0);
+    assertEquals(300, second.availableSendBandwidthKbps, 0);
+    assertEquals(20, second.connectionRttMs, 0);
+    assertEquals(2000, second.timestampMs);
+  }
+
+  @Test
+  public void handlesCounterReset() {
+    StatsEngine engine = new StatsEngine();
+    engine.update(new StatsReport[] {videoRecv(1000, 500000, 500, 10, 300)});
+    engine.update(new StatsReport[] {videoRecv(2000, 625000, 600, 10, 330)});
+    // Renegotiation restarted the counters.
+    StatsEngine.StreamStats stream =
+        engine.update(new StatsReport[] {videoRecv(3000, 62500, 50, 0, 15)}).getStream(true,
+            false);
+    assertTrue(stream.counterReset);
+    assertEquals(500, stream.bitrateKbps, 1e-9);
+    assertEquals(15, stream.framesPerSecond, 1e-9);
+    assertEquals(0, stream.lossPercent, 1e-9);
+    assertEquals(0, stream.bitrateDeviationKbps, 0);
+  }
+
+  @Test
+  public void tracksBitrateDeviation() {
+    StatsEngine engine = new StatsEngine();
+    engine.update(new StatsReport[] {audioSend(0, 0, 0, 0)});
+    engine.update(new StatsReport[] {audioSend(1000, 4000, 50, 0)});
+    StatsEngine.StreamStats stream =
+        engine.update(new StatsReport[] {audioSend(2000, 6000, 100, 0)}).getStream(false, true);
+    assertEquals(16, stream.bitrateKbps, 1e-9);
+    assertEquals(1, stream.bitrateDeviationKbps, 1e-9);
+  }
+
+  @Test
+  public void ignoresReportsWithoutCounters() {
+    StatsEngine engine = new StatsEngine();
+    StatsEngine.CallStats stats = engine.update(new StatsReport[] {
+        report("ssrc_3_recv", "ssrc", 1000, "googTrackId", "ARDAMSa0")});
+    assertTrue(stats.streams.isEmpty());
+    assertNull(stats.getStream(false, false));
+    assertTrue(Double.isNaN(stats.availableSendBandwidthKbps));
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+public class StatsRecorderTest {
+  private File directory;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("stats", "");
+    assertTrue(directory.delete() && directory.mkdir());
+    file = new File(directory, "stats.bin");
+  }
+
+  @After
+  public void tearDown() {
+    for (File child : directory.listFiles()) {
+      child.delete();
+    }
+    directory.delete();
+  }
+
+  private static StatsReport[] snapshot(int i) {
+    return new StatsReport[] {
+        new StatsReport("ssrc_1_send", "ssrc", 1000.0 * i,
+            new StatsReport.Value[] {new StatsReport.Value("bytesSent", Long.toString(i * 4000L)),
+                new StatsReport.Value("packetsLost", Integer.toString(i / 10)),
+                new StatsReport.Value("googTrackId", "ARDAMSv0"),
+                new StatsReport.Value("googRtt", "-1"),
+                new StatsReport.Value("googFractionLost", "0.25")}),
+        new StatsReport("bweforvideo", "VideoBwe", 1000.0 * i + 0.5,
+            new StatsReport.Value[] {new StatsReport.Value("googAvailableSendBandwidth", "300000"),
+                new StatsReport.Value("googCodecName", i % 2 == 0 ? "VP8" : "01")})};
+  }
+
+  private static void assertSnapshotEquals(StatsReport[] expected, StatsReport[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i].toString(), actual[i].toString());
+    }
+  }
+
+  @Test
+  public void recordsAndReadsBackSnapshots() throws IOException {
+    StatsRecorder recorder = new StatsRecorder(file, 1 << 20, 2);
+    for (int i = 0; i < 100; i++) {
+      recorder.record(snapshot(i));
+    }
+    recorder.close();
+
+    StatsRecordingReader reader = new StatsRecordingReader(file);
+    for (int i = 0; i < 100; i++) {
+      assertSnapshotEquals(snapshot(i), reader.readSnapshot());
+    }
+    assertNull(reader.readSnapshot());
+    // Dictionary and delta encoding keep a poll well below its text size.
+    long textBytes = 0;
+    for (int i = 0; i < 100; i++) {
+      for (StatsReport report : snapshot(i)) {
+        textBytes += report.toString().length();
+      }
+    }
+    assertTrue(file.length() * 5 < textBytes);
+  }
+
+  @Test
+  public void rotatesFilesAndReplaysThroughEngine() throws IOException {
+    StatsRecorder recorder = new StatsRecorder(file, 512, 3);
+    for (int i = 0; i < 100; i++) {
+      recorder.record(snapshot(i));
+    }
+    recorder.close();
+    List<File> files = StatsRecordingReader.getRecordingFiles(file);
+    assertEquals(3, files.size());
+    assertEquals(file, files.get(2));
+    for (File recording : files) {
+      assertTrue(recording.length() < 512 + 200);
+    }
+
+    final List<StatsEngine.CallStats> replayed = new ArrayList<StatsEngine.CallStats>();
+    int snapshots = StatsRecordingReader.replay(
+        files, new StatsEngine(), new StatsRecordingReader.ReplayListener() {
+          @Override
+          public void onSnapshot(StatsReport[] reports, StatsEngine.CallStats callStats) {
+            replayed.add(callStats);
+          }
+        });
+    assertEquals(replayed.size(), snapshots);
+    assertTrue(snapshots < 100);
+    StatsEngine.CallStats last = replayed.get(replayed.size() - 1);
+    assertEquals(99000, last.timestampMs);
+    assertEquals(32, last.getStream(false, true).bitrateKbps, 1e-9);
+    assertEquals(300, last.availableSendBandwidthKbps, 0);
+  }
+
+  @Test
+  public void truncatedFileEndsAtLastCompleteSnapshot() throws IOException {
+    StatsRecorder recorder = new StatsRecorder(file, 1 << 20, 1);
+    for (int i = 0; i < 3; i++) {
+      recorder.record(snapshot(i));
+    }
+    recorder.close();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.setLength(randomAccessFile.length() - 3);
+    randomAccessFile.close();
+
+    StatsRecordingReader reader = new StatsRecordingReader(file);
+    assertSnapshotEquals(snapshot(0), reader.readSnapshot());
+    assertSnapshotEquals(snapshot(1), reader.readSnapshot());
+    assertNull(reader.readSnapshot());
+  }
+
+  @Test
+  public void extremeIntegersReadBackExactly() throws IOException {
+    String[] values = {"0", Long.toString(Long.MAX_VALUE), Long.toString(Long.MIN_VALUE),
+        Long.toString(Long.MAX_VALUE), "5", Long.toString(Long.MIN_VALUE), "0",
+        "-999999999999999999", "999999999999999999", "9223372036854775808", "-1"};
+    StatsReport[][] snapshots = new StatsReport[values.length][];
+    StatsRecorder recorder = new StatsRecorder(file, 1 << 20, 1);
+    for (int i = 0; i < values.length; i++) {
+      snapshots[i] = new StatsReport[] {new StatsReport("ssrc_1_send", "ssrc", 1000.0 * i,
+          new StatsReport.Value[] {new StatsReport.Value("bytesSent", values[i])})};
+      recorder.record(snapshots[i]);
+    }
+    recorder.close();
+
+    StatsRecordingReader reader = new StatsRecordingReader(file);
+    for (StatsReport[] snapshot : snapshots) {
+      assertSnapshotEquals(snapshot, reader.readSnapshot());
+    }
+    assertNull(reader.readSnapshot());
+  }
+
+  @Test
+  public void canonicalLongsCoverTheLongRange() {
+    assertTrue(StatsRecorder.isCanonicalLong(Long.toString(Long.MAX_VALUE)));
+    assertTrue(StatsRecorder.isCanonicalLong(Long.toString(Long.MIN_VALUE)));
+    assertFalse(StatsRecorder.isCanonicalLong("9223372036854775808"));
+    assertFalse(StatsRecorder.isCanonicalLong("-9223372036854775809"));
+    assertFalse(StatsRecorder.isCanonicalLong("-0"));
+    assertFalse(StatsRecorder.isCanonicalLong("007"));
+  }
+}
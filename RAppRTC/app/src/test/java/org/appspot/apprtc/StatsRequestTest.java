@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+public class StatsRequestTest {
+  private static StatsReport report(String id, String type) {
+    return new StatsReport(id, type, 1000, new StatsReport.Value[0]);
+  }
+
+  private static final StatsReport SESSION =
+      report("googLibjingleSession_1", "googLibjingleSession");
+  private static final StatsReport SEND_SSRC = report("ssrc_1_send", "ssrc");
+  private static final StatsReport RECV_SSRC = report("ssrc_2_recv", "ssrc");
+  private static final StatsReport BWE = report("bweforvideo", "VideoBwe");
+
+  @Test
+  public void filtersReportTypes() {
+    StatsReport[] reports = {SESSION, SEND_SSRC, BWE, RECV_SSRC};
+    assertSame(reports, StatsRequest.ALL.filter(reports));
+    StatsReport[] encoder = StatsRequest.forConnection("VideoBwe", "ssrc").filter(reports);
+    assertEquals(Arrays.asList(SEND_SSRC, BWE, RECV_SSRC), Arrays.asList(encoder));
+    StatsReport[] ssrc =
+        StatsRequest.forTracks(StatsRequest.LOCAL_VIDEO_TRACK, "ssrc").filter(reports);
+    assertEquals(Arrays.asList(SEND_SSRC, RECV_SSRC), Arrays.asList(ssrc));
+  }
+
+  @Test
+  public void queriesTracksOnlyIfAllRequestsAreTrackScoped() {
+    StatsRequest localVideo = StatsRequest.forTracks(StatsRequest.LOCAL_VIDEO_TRACK, "ssrc");
+    StatsRequest remoteVideo = StatsRequest.forTracks(StatsRequest.REMOTE_VIDEO_TRACK);
+    assertEquals(StatsRequest.LOCAL_VIDEO_TRACK | StatsRequest.REMOTE_VIDEO_TRACK,
+        StatsRequest.getTracksToQuery(Arrays.asList(localVideo, remoteVideo)));
+    assertEquals(0, StatsRequest.getTracksToQuery(
+        Arrays.asList(localVideo, StatsRequest.forConnection("VideoBwe"))));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsConnectionTypesForTracks() {
+    StatsRequest.forTracks(StatsRequest.LOCAL_VIDEO_TRACK, "VideoBwe");
+  }
+
+  @Test
+  public void mergesTrackResultsOnce() {
+    StatsReport[] local = {SESSION, SEND_SSRC};
+    StatsReport[] remote = {SESSION, RECV_SSRC};
+    assertSame(local, StatsRequest.merge(Collections.singletonList(local)));
+    StatsReport[] merged = StatsRequest.merge(Arrays.asList(local, remote));
+    assertEquals(Arrays.asList(SESSION, SEND_SSRC, RECV_SSRC), Arrays.asList(merged));
+    assertTrue(merged.length < local.length + remote.length);
+  }
+}
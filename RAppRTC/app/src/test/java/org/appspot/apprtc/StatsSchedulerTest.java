@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatsSchedulerTest {
+  private ScheduledExecutorService executor;
+  private final AtomicInteger polls = new AtomicInteger();
+  private final AtomicInteger slowPolls = new AtomicInteger();
+  private StatsScheduler.Subscription slowSubscription;
+  private StatsScheduler scheduler;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    scheduler = new StatsScheduler(executor, new StatsScheduler.PollTask() {
+      @Override
+      public void poll(List<StatsScheduler.Subscription> dueSubscriptions) {
+        polls.incrementAndGet();
+        if (dueSubscriptions.contains(slowSubscription)) {
+          slowPolls.incrementAndGet();
+        }
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    scheduler.release();
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void pollsAtShortestActivePeriod() {
+    StatsScheduler.Subscription slow = scheduler.subscribe(5000, StatsRequest.ALL, null);
+    StatsScheduler.Subscription fast = scheduler.subscribe(1000, StatsRequest.ALL, null);
+    assertEquals(0, scheduler.getPeriodMs());
+    scheduler.resume();
+    assertEquals(1000, scheduler.getPeriodMs());
+    fast.setActive(false);
+    assertEquals(5000, scheduler.getPeriodMs());
+    scheduler.setBackground(true);
+    assertEquals(5000 * StatsScheduler.BACKGROUND_BACKOFF_FACTOR, scheduler.getPeriodMs());
+    scheduler.boost(60 * 1000);
+    assertEquals(StatsScheduler.BOOST_PERIOD_MS, scheduler.getPeriodMs());
+    slow.cancel();
+    assertEquals(0, scheduler.getPeriodMs());
+  }
+
+  @Test
+  public void minPeriodLimitsPollsExceptWhenBoosted() {
+    scheduler.subscribe(1000, StatsRequest.ALL, null);
+    scheduler.resume();
+    scheduler.setMinPeriodMs(3000);
+    assertEquals(3000, scheduler.getPeriodMs());
+    scheduler.setBackground(true);
+    assertEquals(1000 * StatsScheduler.BACKGROUND_BACKOFF_FACTOR, scheduler.getPeriodMs());
+    scheduler.boost(60 * 1000);
+    assertEquals(StatsScheduler.BOOST_PERIOD_MS, scheduler.getPeriodMs());
+  }
+
+  @Test
+  public void pausesAndResumes() throws InterruptedException {
+    scheduler.subscribe(20, StatsRequest.ALL, null);
+    Thread.sleep(100);
+    assertEquals(0, polls.get());
+
+    scheduler.resume();
+    Thread.sleep(200);
+    int resumedPolls = polls.get();
+    assertTrue("Polls: " + resumedPolls, resumedPolls >= 3 && resumedPolls <= 12);
+
+    scheduler.pause();
+    // Let a poll that was already running finish.
+    Thread.sleep(50);
+    int pausedPolls = polls.get();
+    Thread.sleep(100);
+    assertEquals(pausedPolls, polls.get());
+
+    scheduler.resume();
+    Thread.sleep(100);
+    assertTrue(polls.get() > pausedPolls);
+  }
+
+  @Test
+  public void shorterPeriodTakesEffectImmediately() throws InterruptedException {
+    StatsScheduler.Subscription subscription =
+        scheduler.subscribe(60 * 1000, StatsRequest.ALL, null);
+    scheduler.resume();
+    Thread.sleep(50);
+    assertEquals(1, polls.get());
+
+    subscription.setPeriodMs(20);
+    Thread.sleep(200);
+    assertTrue(polls.get() >= 4);
+
+    scheduler.release();
+    Thread.sleep(50);
+    int releasedPolls = polls.get();
+    scheduler.resume();
+    Thread.sleep(100);
+    assertEquals(releasedPolls, polls.get());
+  }
+
+  @Test
+  public void passesDueSubscriptionsToPoll() throws InterruptedException {
+    scheduler.subscribe(20, StatsRequest.ALL, null);
+    slowSubscription = scheduler.subscribe(100, StatsRequest.ALL, null);
+    scheduler.resume();
+    Thread.sleep(500);
+    scheduler.pause();
+    Thread.sleep(50);
+    // Every fifth poll includes the slow subscription.
+    assertTrue("Polls: " + polls.get() + ", slow: " + slowPolls.get(),
+        slowPolls.get() * 3 < polls.get() && slowPolls.get() >= 3);
+  }
+}
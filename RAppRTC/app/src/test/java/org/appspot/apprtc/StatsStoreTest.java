@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.webrtc.StatsReport;
+
+public class StatsStoreTest {
+  private static StatsReport report(String id, double timestampMs, String... namesAndValues) {
+    StatsReport.Value[] values = new StatsReport.Value[namesAndValues.length / 2];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = new StatsReport.Value(namesAndValues[2 * i], namesAndValues[2 * i + 1]);
+    }
+    return new StatsReport(id, "ssrc", timestampMs, values);
+  }
+
+  @Test
+  public void parsesNumbersOnce() {
+    assertEquals(1234, StatsStore.parseNumber("1234"), 0);
+    assertEquals(-0.25, StatsStore.parseNumber("-0.25"), 0);
+    assertEquals(0.1, StatsStore.parseNumber("0.1"), 0);
+    assertEquals(1.5e10, StatsStore.parseNumber("1.5e10"), 0);
+    assertEquals(1, StatsStore.parseNumber("true"), 0);
+    assertEquals(0, StatsStore.parseNumber("false"), 0);
+    assertTrue(Double.isNaN(StatsStore.parseNumber("")));
+    assertTrue(Double.isNaN(StatsStore.parseNumber("VP8")));
+    assertTrue(Double.isNaN(StatsStore.parseNumber("192.168.1.2:5000")));
+  }
+
+  @Test
+  public void keepsRingOfRecentSamples() {
+    StatsStore store = new StatsStore(3);
+    for (int i = 1; i <= 5; i++) {
+      store.addReports(new StatsReport[] {report("ssrc_1_send", i * 1000,
+          "bytesSent", Integer.toString(i * 100), "googCodecName", "VP8")});
+    }
+    int bytesSent = store.findMetric("ssrc_1_send", "bytesSent");
+    assertEquals(3, store.getSampleCount(bytesSent));
+    assertEquals(500, store.getLatest(bytesSent), 0);
+    assertEquals(300, store.getSample(bytesSent, 2), 0);
+    assertTrue(Double.isNaN(store.getSample(bytesSent, 3)));
+    assertEquals(4000, store.getSampleTimestampMs(bytesSent, 1));
+    double[] history = new double[5];
+    assertEquals(3, store.copySamples(bytesSent, history, 5));
+    assertEquals(300, history[0], 0);
+    assertEquals(500, history[2], 0);
+
+    int codec = store.findMetric("ssrc_1_send", "googCodecName");
+    assertEquals("VP8", store.getLatestString(codec));
+    assertTrue(Double.isNaN(store.getLatest(codec)));
+    assertEquals(5, store.getSnapshotCount());
+  }
+
+  @Test
+  public void internsReportsAndNames() {
+    StatsStore store = new StatsStore();
+    store.addReports(new StatsReport[] {report("ssrc_1_send", 1000, "bytesSent", "1"),
+        report("ssrc_2_recv", 1000, "bytesReceived", "2", "packetsLost", "0")});
+    // Value order changes and a value disappears.
+    store.addReports(new StatsReport[] {report("ssrc_2_recv", 2000, "packetsLost", "3")});
+
+    int send = store.getReportKey("ssrc_1_send");
+    int recv = store.getReportKey("ssrc_2_recv");
+    assertEquals(2, store.getReportCount());
+    assertEquals("ssrc_2_recv", store.getReportId(recv));
+    assertFalse(store.isReportCurrent(send));
+    assertTrue(store.isReportCurrent(recv));
+    assertEquals(1, store.getReportValueCount(recv));
+
+    int packetsLost = store.findMetric("ssrc_2_recv", "packetsLost");
+    assertEquals(packetsLost, store.getReportMetric(recv, 0));
+    assertEquals(3, store.getLatestLong(packetsLost));
+    assertEquals(0, store.getSample(packetsLost, 1), 0);
+
+    int bytesReceived = store.findMetric("ssrc_2_recv", "bytesReceived");
+    assertFalse(store.isMetricCurrent(bytesReceived));
+    assertEquals(2, store.getLatest(bytesReceived), 0);
+    assertEquals(-1, store.findMetric("ssrc_1_send", "packetsLost"));
+    assertEquals(3, store.getMetricCount());
+  }
+
+  @Test
+  public void flagsChangedValues() {
+    StatsStore store = new StatsStore();
+    store.addReports(new StatsReport[] {report("ssrc_1_send", 1000, "bytesSent", "1",
+        "googCodecName", "VP8", "googRtt", "20")});
+    int bytesSent = store.findMetric("ssrc_1_send", "bytesSent");
+    int codec = store.findMetric("ssrc_1_send", "googCodecName");
+    int rtt = store.findMetric("ssrc_1_send", "googRtt");
+    assertTrue(store.isMetricChanged(bytesSent));
+    store.addReports(new StatsReport[] {report("ssrc_1_send", 2000, "bytesSent", "2",
+        "googCodecName", "VP8", "googRtt", "20.0")});
+    assertTrue(store.isMetricChanged(bytesSent));
+    assertFalse(store.isMetricChanged(codec));
+    // Equal numbers that are reported differently still change the text.
+    assertTrue(store.isMetricChanged(rtt));
+  }
+
+  @Test
+  public void evictsReportsThatStopAppearing() {
+    StatsStore store = new StatsStore(2);
+    store.addReports(new StatsReport[] {report("ssrc_1_send", 1000, "bytesSent", "1"),
+        report("ssrc_2_send", 1000, "bytesSent", "2")});
+    int removed = store.getReportKey("ssrc_2_send");
+    store.addReports(new StatsReport[] {report("ssrc_1_send", 2000, "bytesSent", "3")});
+    // Still in the history window.
+    assertEquals(removed, store.getReportKey("ssrc_2_send"));
+    assertEquals(-1, store.findMetric("ssrc_2_send", "packetsLost"));
+    store.addReports(new StatsReport[] {report("ssrc_1_send", 3000, "bytesSent", "5")});
+    assertEquals(-1, store.getReportKey("ssrc_2_send"));
+    assertEquals(1, store.getReportCount());
+    assertEquals(1, store.getMetricCount());
+
+    // A new report reuses the key and the metric of the evicted one, without
+    // its history.
+    store.addReports(new StatsReport[] {report("ssrc_1_send", 4000, "bytesSent", "7"),
+        report("ssrc_3_send", 4000, "bytesSent", "9")});
+    assertEquals(removed, store.getReportKey("ssrc_3_send"));
+    int bytesSent = store.findMetric("ssrc_3_send", "bytesSent");
+    assertEquals(1, store.getSampleCount(bytesSent));
+    assertEquals(9, store.getLatest(bytesSent), 0);
+    assertEquals(2, store.getMetricCount());
+    assertEquals(5, store.getSample(store.findMetric("ssrc_1_send", "bytesSent"), 1), 0);
+  }
+}
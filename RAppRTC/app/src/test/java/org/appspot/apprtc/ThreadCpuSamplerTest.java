@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+public class ThreadCpuSamplerTest {
+  private static final long BUSY_MS = 300;
+  // Keeps the busy loop from being optimized away.
+  private static volatile long busySum;
+
+  private static File createTaskDir() throws IOException {
+    File dir = File.createTempFile("task", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    dir.deleteOnExit();
+    return dir;
+  }
+
+  private static void writeTask(File taskDir, int threadId, String name, long utime, long stime)
+      throws IOException {
+    File dir = new File(taskDir, Integer.toString(threadId));
+    dir.mkdir();
+    dir.deleteOnExit();
+    File stat = new File(dir, "stat");
+    stat.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(stat);
+    out.write((threadId + " (" + name + ") S 1 1 0 0 -1 0 0 0 0 0 " + utime + " " + stime
+        + " 0 0 20 0 1 0 100 0\n").getBytes("US-ASCII"));
+    out.close();
+  }
+
+  private static void removeTask(File taskDir, int threadId) {
+    File dir = new File(taskDir, Integer.toString(threadId));
+    new File(dir, "stat").delete();
+    dir.delete();
+  }
+
+  @Test
+  public void ranksThreadNamesByCpuTime() throws IOException {
+    File taskDir = createTaskDir();
+    writeTask(taskDir, 1, "apprtc", 100, 20);
+    writeTask(taskDir, 2, "EglRenderer", 50, 10);
+    writeTask(taskDir, 3, "MediaCodec_loop", 10, 0);
+    writeTask(taskDir, 4, "MediaCodec_loop", 10, 0);
+    ThreadCpuSampler sampler = new ThreadCpuSampler(new ProcSampler(), taskDir.getPath());
+    assertEquals(4, sampler.sample());
+    // Nothing is attributed before a second sample.
+    assertTrue(sampler.getTopThreads(3, 100).isEmpty());
+
+    writeTask(taskDir, 1, "apprtc", 101, 20);
+    writeTask(taskDir, 2, "EglRenderer", 80, 20);
+    writeTask(taskDir, 3, "MediaCodec_loop", 20, 5);
+    writeTask(taskDir, 4, "MediaCodec_loop", 15, 0);
+    writeTask(taskDir, 5, "AudioTrackJavaT", 12, 0);
+    assertEquals(5, sampler.sample());
+    List<ThreadCpuSampler.ThreadUsage> top = sampler.getTopThreads(3, 100);
+    assertEquals(3, top.size());
+    assertEquals("EglRenderer", top.get(0).name);
+    assertEquals(40, top.get(0).coreUsagePercent, 1e-9);
+    // Threads that share a name are summed.
+    assertEquals("MediaCodec_loop", top.get(1).name);
+    assertEquals(2, top.get(1).threadCount);
+    assertEquals(20, top.get(1).coreUsagePercent, 1e-9);
+    // A new thread counts all of its time.
+    assertEquals("AudioTrackJavaT", top.get(2).name);
+    assertEquals(12, top.get(2).coreUsagePercent, 1e-9);
+
+    removeTask(taskDir, 2);
+    assertEquals(4, sampler.sample());
+    assertEquals(0, sampler.getTopThreads(3, 100).size());
+    sampler.close();
+  }
+
+  @Test
+  public void findsBusyThreadOfThisProcess() throws InterruptedException {
+    if (!new File(ThreadCpuSampler.TASK_DIR).isDirectory()) {
+      return;
+    }
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread busyThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long sum = 0;
+        while (!done.get()) {
+          sum += System.nanoTime();
+        }
+        busySum = sum;
+      }
+    }, "BusyTestThread");
+    ThreadCpuSampler sampler = new ThreadCpuSampler(new ProcSampler());
+    busyThread.start();
+    try {
+      assertTrue(sampler.sample() > 1);
+      Thread.sleep(BUSY_MS);
+      sampler.sample();
+    } finally {
+      done.set(true);
+      busyThread.join();
+    }
+    // Clock ticks are 10 ms on Linux.
+    List<ThreadCpuSampler.ThreadUsage> top = sampler.getTopThreads(10, BUSY_MS / 10);
+    boolean found = false;
+    for (ThreadCpuSampler.ThreadUsage thread : top) {
+      // The kernel keeps 15 characters of the name.
+      if (thread.name.equals("BusyTestThread")) {
+        found = true;
+        assertTrue(thread.coreUsagePercent > 20);
+      }
+    }
+    assertTrue(found);
+    sampler.close();
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VideoFileWriterTest {
+  private static final String HEADER = "YUV4MPEG2 C420 W4 H2 Ip F30:1 A1:1\n";
+  private static final String FRAME_HEADER = "FRAME\n";
+  private static final int WIDTH = 4;
+  private static final int HEIGHT = 2;
+  private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+  private static final int POOL_SIZE = 3;
+
+  private File directory;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("video", "");
+    assertTrue(directory.delete() && directory.mkdir());
+    file = new File(directory, "video.y4m");
+  }
+
+  @After
+  public void tearDown() {
+    for (File child : directory.listFiles()) {
+      child.delete();
+    }
+    directory.delete();
+  }
+
+  private VideoFileWriter createWriter() throws IOException {
+    return new VideoFileWriter(file.getPath(), HEADER, WIDTH, HEIGHT, POOL_SIZE);
+  }
+
+  // Fills |frame| with |frameNumber| * FRAME_SIZE + i at index i.
+  private static void fill(VideoFileWriter.Frame frame, int frameNumber) {
+    frame.buffer.clear();
+    for (int i = 0; i < FRAME_SIZE; i++) {
+      frame.buffer.put((byte) (frameNumber * FRAME_SIZE + i));
+    }
+  }
+
+  private static byte[] frameBytes(int frameNumber, boolean sideBySideChroma) {
+    byte[] data = new byte[FRAME_SIZE];
+    for (int i = 0; i < FRAME_SIZE; i++) {
+      data[i] = (byte) (frameNumber * FRAME_SIZE + i);
+    }
+    if (!sideBySideChroma) {
+      return data;
+    }
+    // The rows after Y hold a U row on the left and a V row on the right.
+    byte[] i420 = new byte[FRAME_SIZE];
+    int ySize = WIDTH * HEIGHT;
+    System.arraycopy(data, 0, i420, 0, ySize);
+    int chromaWidth = WIDTH / 2;
+    int chromaRows = HEIGHT / 2;
+    for (int row = 0; row < chromaRows; row++) {
+      int rowStart = ySize + row * WIDTH;
+      System.arraycopy(data, rowStart, i420, ySize + row * chromaWidth, chromaWidth);
+      System.arraycopy(data, rowStart + chromaWidth, i420,
+          ySize + (chromaRows + row) * chromaWidth, chromaWidth);
+    }
+    return i420;
+  }
+
+  private byte[] readFile() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    InputStream input = new FileInputStream(file);
+    try {
+      byte[] chunk = new byte[1024];
+      int read;
+      while ((read = input.read(chunk)) != -1) {
+        output.write(chunk, 0, read);
+      }
+    } finally {
+      input.close();
+    }
+    return output.toByteArray();
+  }
+
+  private static byte[] expectedFile(int frames, boolean sideBySideChroma) throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(HEADER.getBytes("US-ASCII"));
+    for (int i = 0; i < frames; i++) {
+      expected.write(FRAME_HEADER.getBytes("US-ASCII"));
+      expected.write(frameBytes(i, sideBySideChroma));
+    }
+    return expected.toByteArray();
+  }
+
+  @Test
+  public void writesI420FramesInOrder() throws IOException {
+    VideoFileWriter writer = createWriter();
+    final int frames = 10;
+    for (int i = 0; i < frames; i++) {
+      VideoFileWriter.Frame frame;
+      // Wait for the I/O thread to return a frame to the pool.
+      while ((frame = writer.obtainFrame()) == null) {
+        Thread.yield();
+      }
+      fill(frame, i);
+      writer.writeFrame(frame, false /* sideBySideChroma */);
+    }
+    writer.release();
+
+    byte[] expected = expectedFile(frames, false);
+    assertArrayEquals(expected, readFile());
+    assertEquals(frames, writer.getFramesWritten());
+    assertEquals(expected.length, writer.getBytesWritten());
+  }
+
+  @Test
+  public void writesSideBySideChromaAsI420() throws IOException {
+    VideoFileWriter writer = createWriter();
+    for (int i = 0; i < POOL_SIZE; i++) {
+      VideoFileWriter.Frame frame = writer.obtainFrame();
+      fill(frame, i);
+      writer.writeFrame(frame, true /* sideBySideChroma */);
+    }
+    writer.release();
+
+    assertArrayEquals(expectedFile(POOL_SIZE, true), readFile());
+    assertEquals(POOL_SIZE, writer.getFramesWritten());
+    assertEquals(0, writer.getFramesDropped());
+  }
+
+  @Test
+  public void exhaustedPoolDropsFrames() throws IOException {
+    VideoFileWriter writer = createWriter();
+    VideoFileWriter.Frame[] frames = new VideoFileWriter.Frame[POOL_SIZE];
+    for (int i = 0; i < POOL_SIZE; i++) {
+      frames[i] = writer.obtainFrame();
+      assertNotNull(frames[i]);
+    }
+    // Frames that are held by the caller are not returned to the pool.
+    assertNull(writer.obtainFrame());
+    assertNull(writer.obtainFrame());
+    assertEquals(2, writer.getFramesDropped());
+
+    // A discarded frame can be obtained again and is not written.
+    writer.discardFrame(frames[0]);
+    VideoFileWriter.Frame frame = writer.obtainFrame();
+    assertNotNull(frame);
+    fill(frame, 0);
+    writer.writeFrame(frame, false /* sideBySideChroma */);
+    for (int i = 1; i < POOL_SIZE; i++) {
+      writer.discardFrame(frames[i]);
+    }
+    writer.release();
+
+    assertArrayEquals(expectedFile(1, false), readFile());
+    assertEquals(1, writer.getFramesWritten());
+    assertEquals(2, writer.getFramesDropped());
+  }
+}
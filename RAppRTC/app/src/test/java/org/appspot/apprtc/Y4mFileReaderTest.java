@@ -0,0 +1,380 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class Y4mFileReaderTest {
+  private static final int LARGE_WIDTH = 1280;
+  private static final int LARGE_HEIGHT = 720;
+  private static final int LARGE_FILE_FRAMES = 10;
+  private static final int ALLOCATION_ROUNDS = 3;
+  // More 720p frames than fit in a window, so the benchmark moves between
+  // windows.
+  private static final int BENCHMARK_FILE_FRAMES = 60;
+  private static final int WARM_UP_FRAMES = 100;
+  private static final int BENCHMARK_FRAMES = 300;
+
+  // Writes a y4m file whose frame |i| has Y samples i, U samples 100 + i
+  // and V samples 200 + i, with |frameHeader| before each frame.
+  static File writeY4m(String header, String frameHeader, int width, int height,
+      int frames) throws IOException {
+    File file = File.createTempFile("video", ".y4m");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write((header + "\n").getBytes("US-ASCII"));
+      int ySize = width * height;
+      byte[] frame = new byte[ySize * 3 / 2];
+      for (int i = 0; i < frames; i++) {
+        for (int j = 0; j < frame.length; j++) {
+          frame[j] = (byte) (j < ySize ? i : (j < ySize * 5 / 4 ? 100 + i : 200 + i));
+        }
+        out.write((frameHeader + "\n").getBytes("US-ASCII"));
+        out.write(frame);
+      }
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  // Writes a y4m file with a single frame.
+  private static File writeY4m(String header, byte[] frame) throws IOException {
+    File file = File.createTempFile("video", ".y4m");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write((header + "\nFRAME\n").getBytes("US-ASCII"));
+      out.write(frame);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private static void assertFrame(VideoReader.Frame frame, int index, int width, int height) {
+    assertEquals(index, frame.getIndex());
+    ByteBuffer data = frame.getData();
+    int ySize = width * height;
+    assertEquals(ySize * 3 / 2, data.remaining());
+    int start = data.position();
+    assertEquals(index, data.get(start) & 0xFF);
+    assertEquals(index, data.get(start + ySize - 1) & 0xFF);
+    assertEquals(100 + index, data.get(start + ySize) & 0xFF);
+    assertEquals(200 + index, data.get(data.limit() - 1) & 0xFF);
+  }
+
+  @Test
+  public void readsFramesInALoop() throws IOException {
+    File file =
+        writeY4m("YUV4MPEG2 W8 H4 F30:1 Ip A0:0 C420jpeg XYSCSS=420JPEG", "FRAME", 8, 4, 3);
+    Y4mFileReader reader = new Y4mFileReader(file.getPath());
+    assertEquals(8, reader.getFrameWidth());
+    assertEquals(4, reader.getFrameHeight());
+    assertEquals(3, reader.getFrameCount());
+    for (int i = 0; i < 7; i++) {
+      VideoReader.Frame frame = reader.getNextFrame();
+      assertFrame(frame, i % 3, 8, 4);
+      frame.release();
+    }
+    reader.close();
+  }
+
+  @Test
+  public void parsesFrameRate() throws IOException {
+    Y4mFileReader reader =
+        new Y4mFileReader(writeY4m("YUV4MPEG2 W4 H2 F30000:1001", "FRAME", 4, 2, 1).getPath());
+    assertEquals(FramePacer.getFrameIntervalNs(30000, 1001), reader.getFrameIntervalNs());
+    reader.close();
+    reader = new Y4mFileReader(writeY4m("YUV4MPEG2 W4 H2 F0:0", "FRAME", 4, 2, 1).getPath());
+    assertEquals(0, reader.getFrameIntervalNs());
+    reader.close();
+    reader = new Y4mFileReader(writeY4m("YUV4MPEG2 W4 H2", "FRAME", 4, 2, 1).getPath());
+    assertEquals(0, reader.getFrameIntervalNs());
+    reader.close();
+  }
+
+  @Test
+  public void downsamples422And444Frames() throws IOException {
+    byte[] y = {1, 2, 3, 4, 5, 6, 7, 8};
+    // 4x2 chroma planes, with U varying by column and V by row.
+    byte[] i444 = new byte[24];
+    System.arraycopy(y, 0, i444, 0, 8);
+    for (int i = 0; i < 8; i++) {
+      i444[8 + i] = (byte) (100 + 10 * (i % 4));
+      i444[16 + i] = (byte) (50 + 10 * (i / 4));
+    }
+    Y4mFileReader reader = new Y4mFileReader(writeY4m("YUV4MPEG2 W4 H2 C444", i444).getPath());
+    VideoReader.Frame frame = reader.getFrame(0);
+    assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 105, 125, 55, 55}),
+        frame.getData());
+    frame.release();
+    reader.close();
+
+    // 2x2 chroma planes.
+    byte[] i422 = new byte[16];
+    System.arraycopy(y, 0, i422, 0, 8);
+    for (int i = 0; i < 4; i++) {
+      i422[8 + i] = (byte) (100 + 20 * (i % 2));
+      i422[12 + i] = (byte) (50 + 10 * (i / 2));
+    }
+    reader = new Y4mFileReader(writeY4m("YUV4MPEG2 W4 H2 C422", i422).getPath());
+    frame = reader.getFrame(0);
+    assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 100, 120, 55, 55}),
+        frame.getData());
+    frame.release();
+    reader.close();
+  }
+
+  @Test
+  public void skipsFrameParameters() throws IOException {
+    File file = writeY4m("YUV4MPEG2 W4 H2", "FRAME Ip XTAG=1", 4, 2, 2);
+    Y4mFileReader reader = new Y4mFileReader(file.getPath());
+    assertFrame(reader.getFrame(1), 1, 4, 2);
+    assertFrame(reader.getFrame(0), 0, 4, 2);
+    reader.close();
+  }
+
+  @Test
+  public void mapsWindowsOnDemand() throws IOException {
+    File file = writeY4m("YUV4MPEG2 W16 H16 C420", "FRAME", 16, 16, 10);
+    // Three frames of 384 bytes fit in a window, so there are four.
+    Y4mFileReader reader = new Y4mFileReader(file.getPath(), 3 * 384 + 100);
+    assertEquals(0, reader.getMapCount());
+    for (int loop = 0; loop < 2; loop++) {
+      for (int i = 0; i < 10; i++) {
+        VideoReader.Frame frame = reader.getNextFrame();
+        assertFrame(frame, i, 16, 16);
+        frame.release();
+        // Windows before the current one are dropped.
+        assertEquals(1, reader.getMappedWindowCount());
+      }
+    }
+    assertEquals(8, reader.getMapCount());
+
+    // A window stays mapped while a frame in it is handed out.
+    VideoReader.Frame held = reader.getFrame(0);
+    for (int i = 3; i < 10; i++) {
+      reader.getFrame(i).release();
+    }
+    assertEquals(2, reader.getMappedWindowCount());
+    assertFrame(held, 0, 16, 16);
+    held.release();
+    assertEquals(1, reader.getMappedWindowCount());
+    reader.close();
+  }
+
+  @Test
+  public void handsOutAtMostPoolSizeFrames() throws IOException {
+    File file = writeY4m("YUV4MPEG2 W4 H2", "FRAME", 4, 2, 5);
+    Y4mFileReader reader = new Y4mFileReader(file.getPath());
+    VideoReader.Frame first = reader.getNextFrame();
+    for (int i = 1; i < Y4mFileReader.POOL_SIZE; i++) {
+      reader.getNextFrame();
+    }
+    assertNull(reader.getNextFrame());
+    first.release();
+    // The holder is reused and the frame that was not handed out is next.
+    VideoReader.Frame next = reader.getNextFrame();
+    assertTrue(next == first);
+    assertFrame(next, Y4mFileReader.POOL_SIZE, 4, 2);
+    reader.close();
+  }
+
+  @Test
+  public void ignoresTruncatedLastFrame() throws IOException {
+    File file = writeY4m("YUV4MPEG2 W4 H2", "FRAME", 4, 2, 2);
+    RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+    truncated.setLength(truncated.length() - 1);
+    truncated.close();
+    Y4mFileReader reader = new Y4mFileReader(file.getPath());
+    assertEquals(1, reader.getFrameCount());
+    reader.close();
+  }
+
+  @Test
+  public void tellsY4mFilesByTheirMagicBytes() throws IOException {
+    File y4m = writeY4m("YUV4MPEG2 W4 H2", "FRAME", 4, 2, 1);
+    File renamed = new File(y4m.getPath() + ".yuv");
+    assertTrue(y4m.renameTo(renamed));
+    renamed.deleteOnExit();
+    assertTrue(Y4mFileReader.isY4mFile(renamed.getPath()));
+    assertFalse(Y4mFileReader.isY4mFile(writeY4m("YUV4MPEG", "FRAME", 4, 2, 0).getPath()));
+    assertFalse(Y4mFileReader.isY4mFile(writeY4m("RIFF", "FRAME", 4, 2, 1).getPath()));
+  }
+
+  @Test
+  public void rejectsUnsupportedFiles() throws IOException {
+    try {
+      new Y4mFileReader(writeY4m("YUV4MPEG2 W4 H2 C411", "FRAME", 4, 2, 1).getPath());
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      new Y4mFileReader(writeY4m("YUV4MPEG2 W3 H2", "FRAME", 4, 2, 1).getPath());
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      new Y4mFileReader(writeY4m("YUV4MPEG2 W4 H2 F30", "FRAME", 4, 2, 1).getPath());
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      new Y4mFileReader(writeY4m("YUV4MPEG2 W4 H2", "FRAMX", 4, 2, 1).getPath());
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+    try {
+      new Y4mFileReader(writeY4m("RIFF", "FRAME", 4, 2, 1).getPath());
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  // Reads like the VideoReaderY4M of org.webrtc.FileVideoCapturer, with
+  // the conversion to NV21 in Java.
+  private static class RandomAccessReader {
+    final RandomAccessFile file;
+    final long videoStart;
+    final int frameSize;
+
+    RandomAccessReader(File path, int width, int height) throws IOException {
+      file = new RandomAccessFile(path, "r");
+      while (file.read() != '\n') {
+      }
+      videoStart = file.getFilePointer();
+      frameSize = width * height * 3 / 2;
+    }
+
+    byte[] getNextFrame(int width, int height) throws IOException {
+      byte[] frame = new byte[frameSize];
+      byte[] frameDelim = new byte["FRAME".length() + 1];
+      if (file.read(frameDelim) < frameDelim.length) {
+        file.seek(videoStart);
+        file.read(frameDelim);
+      }
+      if (!new String(frameDelim).equals("FRAME\n")) {
+        throw new IOException("Bad delimiter");
+      }
+      file.readFully(frame);
+      byte[] nv21 = new byte[frameSize];
+      new YuvFrameConverter().i420ToNV21(
+          ByteBuffer.wrap(frame), width, height, ByteBuffer.wrap(nv21));
+      return nv21;
+    }
+  }
+
+  // The mapped reader delivers the same frames as the RandomAccessFile
+  // reader it replaces, across the loop back to the first frame, without
+  // allocating a frame per read.
+  @Test
+  public void matchesRandomAccessReaderWithoutAllocatingFrames() throws IOException {
+    final int width = LARGE_WIDTH;
+    final int height = LARGE_HEIGHT;
+    int frameSize = width * height * 3 / 2;
+    File file = writeY4m("YUV4MPEG2 W" + width + " H" + height + " C420", "FRAME", width,
+        height, LARGE_FILE_FRAMES);
+
+    final Y4mFileReader reader = new Y4mFileReader(file.getPath());
+    RandomAccessReader randomAccessReader = new RandomAccessReader(file, width, height);
+    final YuvFrameConverter converter = new YuvFrameConverter();
+    final ByteBuffer nv21 = ByteBuffer.allocate(frameSize);
+    for (int i = 0; i < 3 * LARGE_FILE_FRAMES; i++) {
+      VideoReader.Frame frame = reader.getNextFrame();
+      converter.i420ToNV21(frame.getData(), width, height, nv21);
+      frame.release();
+      assertTrue(Arrays.equals(randomAccessReader.getNextFrame(width, height), nv21.array()));
+    }
+    randomAccessReader.file.close();
+
+    long leastAllocated = AllocationCounter.leastAllocated(ALLOCATION_ROUNDS, new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 3 * LARGE_FILE_FRAMES; i++) {
+          VideoReader.Frame frame = reader.getNextFrame();
+          converter.i420ToNV21(frame.getData(), width, height, nv21);
+          frame.release();
+        }
+      }
+    });
+    reader.close();
+    // All reads together allocate less than a single frame.
+    assertTrue("Allocated " + leastAllocated, leastAllocated < frameSize);
+  }
+
+  // Reports frames per second and bytes allocated per frame of the mapped
+  // reader, and of the RandomAccessFile reader it replaces, at 720p.
+  @Test
+  public void benchmarkReaders() throws IOException {
+    Benchmarks.assumeEnabled();
+    int width = LARGE_WIDTH;
+    int height = LARGE_HEIGHT;
+    File file = writeY4m("YUV4MPEG2 W" + width + " H" + height + " C420", "FRAME", width,
+        height, BENCHMARK_FILE_FRAMES);
+
+    Y4mFileReader reader = new Y4mFileReader(file.getPath());
+    YuvFrameConverter converter = new YuvFrameConverter();
+    ByteBuffer nv21 = ByteBuffer.allocate(width * height * 3 / 2);
+    for (int i = 0; i < WARM_UP_FRAMES; i++) {
+      VideoReader.Frame frame = reader.getNextFrame();
+      converter.i420ToNV21(frame.getData(), width, height, nv21);
+      frame.release();
+    }
+    long allocatedBefore = AllocationCounter.getAllocatedBytes();
+    long startNs = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_FRAMES; i++) {
+      VideoReader.Frame frame = reader.getNextFrame();
+      converter.i420ToNV21(frame.getData(), width, height, nv21);
+      frame.release();
+    }
+    long mappedNs = System.nanoTime() - startNs;
+    long mappedBytes = AllocationCounter.getAllocatedBytes() - allocatedBefore;
+    reader.close();
+
+    RandomAccessReader randomAccessReader = new RandomAccessReader(file, width, height);
+    for (int i = 0; i < WARM_UP_FRAMES; i++) {
+      randomAccessReader.getNextFrame(width, height);
+    }
+    allocatedBefore = AllocationCounter.getAllocatedBytes();
+    startNs = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_FRAMES; i++) {
+      randomAccessReader.getNextFrame(width, height);
+    }
+    long randomAccessNs = System.nanoTime() - startNs;
+    long randomAccessBytes = AllocationCounter.getAllocatedBytes() - allocatedBefore;
+    randomAccessReader.file.close();
+    file.delete();
+
+    Benchmarks.report("Y4mFileReader 720p", String.format("%.0f frames/s, %.1f bytes/frame",
+        BENCHMARK_FRAMES * 1e9 / mappedNs, (double) mappedBytes / BENCHMARK_FRAMES));
+    Benchmarks.report("RandomAccessFile 720p", String.format("%.0f frames/s, %.0f bytes/frame",
+        BENCHMARK_FRAMES * 1e9 / randomAccessNs, (double) randomAccessBytes / BENCHMARK_FRAMES));
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ *  Copyright 2016 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Test;
+
+public class YuvFrameConverterTest {
+  private static final int WARM_UP_FRAMES = 30;
+  private static final int ALLOCATION_ROUNDS = 3;
+  private static final int ALLOCATION_FRAMES = 20;
+  private static final int[][] LARGE_SIZES = {{640, 360}, {1280, 720}};
+  private static final int[][] BENCHMARK_SIZES = {{640, 360}, {1280, 720}, {1920, 1080}};
+  private static final int BENCHMARK_FRAMES = 60;
+  // Rounding to a sample, plus weights rounded to 1/256.
+  private static final double MAX_SCALE_ERROR = 1.5;
+
+  private final ForkJoinPool pool = new ForkJoinPool(4);
+
+  @After
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  private static byte[] randomBytes(int size, long seed) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] toBytes(int... values) {
+    byte[] bytes = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return bytes;
+  }
+
+  // Returns a direct, read-only copy of |bytes| at position |offset|.
+  private static ByteBuffer directCopy(byte[] bytes, int offset) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(offset + bytes.length);
+    buffer.position(offset);
+    buffer.put(bytes);
+    buffer.position(offset);
+    return buffer.asReadOnlyBuffer();
+  }
+
+  private static byte[] getBytes(ByteBuffer buffer, int offset, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(offset + i);
+    }
+    return bytes;
+  }
+
+  @Test
+  public void convertsI420ToNV21() {
+    // 4x2 frame: Y, then U 2x1, then V 2x1.
+    byte[] i420 = toBytes(1, 2, 3, 4, 5, 6, 7, 8, 10, 11, 20, 21);
+    byte[] nv21 = new byte[i420.length];
+    new YuvFrameConverter().i420ToNV21(ByteBuffer.wrap(i420), 4, 2, ByteBuffer.wrap(nv21));
+    assertArrayEquals(toBytes(1, 2, 3, 4, 5, 6, 7, 8, 20, 10, 21, 11), nv21);
+
+    byte[] back = new byte[i420.length];
+    new YuvFrameConverter().nv21ToI420(ByteBuffer.wrap(nv21), 4, 2, ByteBuffer.wrap(back));
+    assertArrayEquals(i420, back);
+  }
+
+  @Test
+  public void convertsNV12AndPlanarFramesToI420() {
+    YuvFrameConverter converter = new YuvFrameConverter();
+    byte[] i420 = new byte[12];
+    // 4x2 frame: Y, then interleaved U and V.
+    byte[] nv12 = toBytes(1, 2, 3, 4, 5, 6, 7, 8, 10, 20, 11, 21);
+    converter.nv12ToI420(ByteBuffer.wrap(nv12), 4, 2, ByteBuffer.wrap(i420));
+    assertArrayEquals(toBytes(1, 2, 3, 4, 5, 6, 7, 8, 10, 11, 20, 21), i420);
+
+    // 4:2:2 chroma planes are 2x2 and their rows are averaged.
+    byte[] i422 = toBytes(1, 2, 3, 4, 5, 6, 7, 8, 10, 11, 20, 31, 40, 41, 50, 61);
+    converter.planarToI420(ByteBuffer.wrap(i422), 4, 2, 2, 2, ByteBuffer.wrap(i420));
+    assertArrayEquals(toBytes(1, 2, 3, 4, 5, 6, 7, 8, 15, 21, 45, 51), i420);
+
+    // 4:4:4 chroma planes are 4x2 and their 2x2 blocks are averaged.
+    byte[] i444 = toBytes(
+        1, 2, 3, 4, 5, 6, 7, 8, 10, 10, 20, 20, 30, 30, 40, 40, 0, 4, 8, 12, 0, 4, 8, 12);
+    converter.planarToI420(ByteBuffer.wrap(i444), 4, 2, 4, 2, ByteBuffer.wrap(i420));
+    assertArrayEquals(toBytes(1, 2, 3, 4, 5, 6, 7, 8, 20, 30, 2, 10), i420);
+  }
+
+  @Test
+  public void convertsDirectBuffersAtTheirPositions() {
+    int width = 64;
+    int height = 48;
+    byte[] i420 = randomBytes(width * height * 3 / 2, 1);
+    ByteBuffer nv21 = ByteBuffer.allocateDirect(i420.length + 10);
+    nv21.position(10);
+    YuvFrameConverter converter = new YuvFrameConverter();
+    converter.i420ToNV21(directCopy(i420, 7), width, height, nv21);
+    assertEquals(10, nv21.position());
+
+    ByteBuffer back = ByteBuffer.allocate(i420.length + 3);
+    back.position(3);
+    converter.nv21ToI420(nv21.asReadOnlyBuffer(), width, height, back);
+    assertArrayEquals(i420, getBytes(back, 3, i420.length));
+  }
+
+  @Test
+  public void parallelMatchesSerial() {
+    int width = 1280;
+    int height = 720;
+    int size = width * height * 3 / 2;
+    byte[] frame = randomBytes(size, 2);
+    YuvFrameConverter serial = new YuvFrameConverter();
+    YuvFrameConverter parallel = new YuvFrameConverter(pool);
+
+    byte[] serialOut = new byte[size];
+    byte[] parallelOut = new byte[size];
+    serial.i420ToNV21(ByteBuffer.wrap(frame), width, height, ByteBuffer.wrap(serialOut));
+    parallel.i420ToNV21(directCopy(frame, 0), width, height, ByteBuffer.wrap(parallelOut));
+    assertArrayEquals(serialOut, parallelOut);
+
+    serial.nv21ToI420(ByteBuffer.wrap(frame), width, height, ByteBuffer.wrap(serialOut));
+    parallel.nv21ToI420(ByteBuffer.wrap(frame), width, height, ByteBuffer.wrap(parallelOut));
+    assertArrayEquals(serialOut, parallelOut);
+
+    int scaledSize = 852 * 480 * 3 / 2;
+    serialOut = new byte[scaledSize];
+    parallelOut = new byte[scaledSize];
+    serial.scaleI420(ByteBuffer.wrap(frame), width, height, ByteBuffer.wrap(serialOut), 852, 480);
+    parallel.scaleI420(
+        ByteBuffer.wrap(frame), width, height, ByteBuffer.wrap(parallelOut), 852, 480);
+    assertArrayEquals(serialOut, parallelOut);
+  }
+
+  @Test
+  public void scalesToGoldenImages() {
+    YuvFrameConverter converter = new YuvFrameConverter();
+    // 2x2 to 4x4: edges are clamped, inner pixels are 1/4 and 3/4 between.
+    byte[] src = toBytes(0, 200, 200, 0, 40, 90);
+    byte[] dst = new byte[24];
+    converter.scaleI420(ByteBuffer.wrap(src), 2, 2, ByteBuffer.wrap(dst), 4, 4);
+    assertArrayEquals(toBytes(0, 50, 150, 200, 50, 75, 125, 150, 150, 125, 75, 50, 200, 150, 50,
+                          0, 40, 40, 40, 40, 90, 90, 90, 90),
+        dst);
+
+    // Halving averages 2x2 blocks, rounded.
+    src = toBytes(0, 1, 10, 20, 2, 3, 30, 41, 100, 100, 7, 8, 200, 200, 9, 9, 60, 61, 62, 63, 70,
+        71, 72, 73);
+    dst = new byte[6];
+    converter.scaleI420(ByteBuffer.wrap(src), 4, 4, ByteBuffer.wrap(dst), 2, 2);
+    assertArrayEquals(toBytes(2, 25, 150, 8, 62, 72), dst);
+
+    // The same size is a copy.
+    byte[] frame = randomBytes(32 * 16 * 3 / 2, 3);
+    dst = new byte[frame.length];
+    converter.scaleI420(ByteBuffer.wrap(frame), 32, 16, ByteBuffer.wrap(dst), 32, 16);
+    assertArrayEquals(frame, dst);
+  }
+
+  // Bilinear sample of |plane| at the center of destination pixel |x|, |y|.
+  private static double referenceSample(
+      byte[] plane, int offset, int width, int height, int dstWidth, int dstHeight, int x, int y) {
+    double sx = Math.max(0, Math.min(width - 1, (x + 0.5) * width / dstWidth - 0.5));
+    double sy = Math.max(0, Math.min(height - 1, (y + 0.5) * height / dstHeight - 0.5));
+    int x0 = (int) sx;
+    int y0 = (int) sy;
+    int x1 = Math.min(x0 + 1, width - 1);
+    int y1 = Math.min(y0 + 1, height - 1);
+    double fx = sx - x0;
+    double fy = sy - y0;
+    double top = (plane[offset + y0 * width + x0] & 0xFF) * (1 - fx)
+        + (plane[offset + y0 * width + x1] & 0xFF) * fx;
+    double bottom = (plane[offset + y1 * width + x0] & 0xFF) * (1 - fx)
+        + (plane[offset + y1 * width + x1] & 0xFF) * fx;
+    return top * (1 - fy) + bottom * fy;
+  }
+
+  @Test
+  public void scalingMatchesReferenceBilinear() {
+    int[][] sizes = {{640, 360, 426, 240}, {320, 240, 1280, 720}, {200, 100, 150, 76}};
+    YuvFrameConverter converter = new YuvFrameConverter(pool);
+    for (int[] size : sizes) {
+      int width = size[0];
+      int height = size[1];
+      int dstWidth = size[2];
+      int dstHeight = size[3];
+      // A smooth gradient, so that rounding of the weights stays small.
+      byte[] src = new byte[width * height * 3 / 2];
+      for (int i = 0; i < src.length; i++) {
+        int x = i % width;
+        int y = i / width;
+        src[i] = (byte) ((x * 255 / width + y * 255 / height) / 2);
+      }
+      byte[] dst = new byte[dstWidth * dstHeight * 3 / 2];
+      converter.scaleI420(
+          ByteBuffer.wrap(src), width, height, ByteBuffer.wrap(dst), dstWidth, dstHeight);
+      for (int y = 0; y < dstHeight; y++) {
+        for (int x = 0; x < dstWidth; x++) {
+          double expected = referenceSample(src, 0, width, height, dstWidth, dstHeight, x, y);
+          assertEquals(expected, dst[y * dstWidth + x] & 0xFF, MAX_SCALE_ERROR);
+        }
+      }
+      int uOffset = width * height;
+      int dstUOffset = dstWidth * dstHeight;
+      for (int y = 0; y < dstHeight / 2; y++) {
+        for (int x = 0; x < dstWidth / 2; x++) {
+          double expected = referenceSample(
+              src, uOffset, width / 2, height / 2, dstWidth / 2, dstHeight / 2, x, y);
+          assertEquals(expected, dst[dstUOffset + y * dstWidth / 2 + x] & 0xFF, MAX_SCALE_ERROR);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void scalesPlanesWithStrides() {
+    int width = 64;
+    int height = 32;
+    int stride = 80;
+    byte[] frame = randomBytes(width * height * 3 / 2, 4);
+    // Copy the planes into buffers with padded rows, like an I420Frame.
+    ByteBuffer y = ByteBuffer.allocateDirect(stride * height);
+    ByteBuffer u = ByteBuffer.allocateDirect(stride / 2 * height / 2);
+    ByteBuffer v = ByteBuffer.allocateDirect(stride / 2 * height / 2);
+    for (int row = 0; row < height; row++) {
+      y.position(row * stride);
+      y.put(frame, row * width, width);
+    }
+    for (int row = 0; row < height / 2; row++) {
+      u.position(row * stride / 2);
+      u.put(frame, width * height + row * width / 2, width / 2);
+      v.position(row * stride / 2);
+      v.put(frame, width * height * 5 / 4 + row * width / 2, width / 2);
+    }
+    y.clear();
+    u.clear();
+    v.clear();
+
+    YuvFrameConverter converter = new YuvFrameConverter();
+    byte[] expected = new byte[40 * 20 * 3 / 2];
+    converter.scaleI420(ByteBuffer.wrap(frame), width, height, ByteBuffer.wrap(expected), 40, 20);
+    ByteBuffer dst = ByteBuffer.allocateDirect(expected.length);
+    converter.scaleI420(y, stride, u, stride / 2, v, stride / 2, width, height, dst, 40, 20);
+    assertArrayEquals(expected, getBytes(dst, 0, expected.length));
+  }
+
+  // Fails if |operation| allocates on the calling thread each time it runs.
+  private static void assertNoAllocation(final Runnable operation) {
+    for (int i = 0; i < WARM_UP_FRAMES; i++) {
+      operation.run();
+    }
+    long leastAllocated =
+        AllocationCounter.leastAllocated(ALLOCATION_ROUNDS, new Runnable() {
+          @Override
+          public void run() {
+            for (int i = 0; i < ALLOCATION_FRAMES; i++) {
+              operation.run();
+            }
+          }
+        });
+    // Allows for the allocation measurement itself.
+    assertTrue("Allocated " + leastAllocated, leastAllocated < ALLOCATION_FRAMES * 16L);
+  }
+
+  // Conversion to NV21 from a direct buffer, as from a mapped file, and
+  // scaling to 2/3 of the size give the same frames split across the pool
+  // as on the calling thread, which does not allocate per frame.
+  @Test
+  public void parallelConversionsMatchSerialWithoutAllocating() {
+    final YuvFrameConverter serial = new YuvFrameConverter();
+    final YuvFrameConverter parallel = new YuvFrameConverter(pool);
+    for (int[] size : LARGE_SIZES) {
+      final int width = size[0];
+      final int height = size[1];
+      final int scaledWidth = width * 2 / 3 / 2 * 2;
+      final int scaledHeight = height * 2 / 3 / 2 * 2;
+      final ByteBuffer src = directCopy(randomBytes(width * height * 3 / 2, 5), 0);
+      final ByteBuffer nv21 = ByteBuffer.allocate(width * height * 3 / 2);
+      final ByteBuffer scaled = ByteBuffer.allocate(scaledWidth * scaledHeight * 3 / 2);
+      ByteBuffer parallelNv21 = ByteBuffer.allocate(nv21.capacity());
+      ByteBuffer parallelScaled = ByteBuffer.allocate(scaled.capacity());
+
+      serial.i420ToNV21(src, width, height, nv21);
+      parallel.i420ToNV21(src, width, height, parallelNv21);
+      assertArrayEquals(nv21.array(), parallelNv21.array());
+      serial.scaleI420(src, width, height, scaled, scaledWidth, scaledHeight);
+      parallel.scaleI420(src, width, height, parallelScaled, scaledWidth, scaledHeight);
+      assertArrayEquals(scaled.array(), parallelScaled.array());
+
+      assertNoAllocation(new Runnable() {
+        @Override
+        public void run() {
+          serial.i420ToNV21(src, width, height, nv21);
+        }
+      });
+      assertNoAllocation(new Runnable() {
+        @Override
+        public void run() {
+          serial.scaleI420(src, width, height, scaled, scaledWidth, scaledHeight);
+        }
+      });
+    }
+  }
+
+  // Returns the average time of |operation| in ms.
+  private static double measure(Runnable operation) {
+    for (int i = 0; i < WARM_UP_FRAMES; i++) {
+      operation.run();
+    }
+    long startNs = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_FRAMES; i++) {
+      operation.run();
+    }
+    return (System.nanoTime() - startNs) / 1e6 / BENCHMARK_FRAMES;
+  }
+
+  // Reports ms per frame of conversion to NV21 from a direct buffer, as
+  // from a mapped file, and of scaling to 2/3 of the size, on the calling
+  // thread and split across the pool, at 360p, 720p and 1080p.
+  @Test
+  public void benchmarkConversions() {
+    Benchmarks.assumeEnabled();
+    final YuvFrameConverter serial = new YuvFrameConverter();
+    final YuvFrameConverter parallel = new YuvFrameConverter(pool);
+    for (int[] size : BENCHMARK_SIZES) {
+      final int width = size[0];
+      final int height = size[1];
+      final int scaledWidth = width * 2 / 3 / 2 * 2;
+      final int scaledHeight = height * 2 / 3 / 2 * 2;
+      final ByteBuffer src = directCopy(randomBytes(width * height * 3 / 2, 5), 0);
+      final ByteBuffer nv21 = ByteBuffer.allocate(width * height * 3 / 2);
+      final ByteBuffer scaled = ByteBuffer.allocate(scaledWidth * scaledHeight * 3 / 2);
+      double serialNv21Ms = measure(new Runnable() {
+        @Override
+        public void run() {
+          serial.i420ToNV21(src, width, height, nv21);
+        }
+      });
+      double parallelNv21Ms = measure(new Runnable() {
+        @Override
+        public void run() {
+          parallel.i420ToNV21(src, width, height, nv21);
+        }
+      });
+      double serialScaleMs = measure(new Runnable() {
+        @Override
+        public void run() {
+          serial.scaleI420(src, width, height, scaled, scaledWidth, scaledHeight);
+        }
+      });
+      double parallelScaleMs = measure(new Runnable() {
+        @Override
+        public void run() {
+          parallel.scaleI420(src, width, height, scaled, scaledWidth, scaledHeight);
+        }
+      });
+      Benchmarks.report("YuvFrameConverter " + width + "x" + height, String.format(
+          "I420 to NV21 %.2f ms, %.2f ms in %d bands. Scale to %dx%d %.2f ms, %.2f ms",
+          serialNv21Ms, parallelNv21Ms, pool.getParallelism(), scaledWidth, scaledHeight,
+          serialScaleMs, parallelScaleMs));
+    }
+  }
+}